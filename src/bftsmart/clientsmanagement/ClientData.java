@@ -16,8 +16,6 @@ limitations under the License.
 package bftsmart.clientsmanagement;
 
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,7 +29,7 @@ public class ClientData {
     ReentrantLock clientLock = new ReentrantLock();
 
     private int clientId;
-    //private PublicKey publicKey = null;
+    private PublicKey publicKey = null;
 
     private int session = -1;
 
@@ -44,25 +42,18 @@ public class ClientData {
     //anb: new code to deal with client requests that arrive after their execution
     private RequestList orderedRequests = new RequestList(5);
 
-    private Signature signatureVerificator = null;
-    
     /**
-     * Class constructor. Just store the clientId and creates a signature
-     * verificator for a given client public key.
+     * Class constructor. Just store the clientId and the client public key,
+     * used to verify the signatures of its requests.
      *
      * @param clientId client unique id
      * @param publicKey client public key
      */
     public ClientData(int clientId, PublicKey publicKey) {
         this.clientId = clientId;
+        this.publicKey = publicKey;
         if(publicKey != null) {
-            try {
-                signatureVerificator = Signature.getInstance("SHA1withRSA");
-                signatureVerificator.initVerify(publicKey);
-                Logger.println("Signature verifier initialized for client "+clientId);
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
+            Logger.println("Signature verifier initialized for client "+clientId);
         }
     }
 
@@ -70,6 +61,10 @@ public class ClientData {
         return clientId;
     }
 
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
     public int getSession() {
         return session;
     }
@@ -111,12 +106,8 @@ public class ClientData {
     }
 
     public boolean verifySignature(byte[] message, byte[] signature) {
-        if(signatureVerificator != null) {
-            try {
-                return TOMUtil.verifySignature(signatureVerificator, message, signature);
-            } catch (SignatureException ex) {
-                System.err.println("Error in processing client "+clientId+" signature: "+ex.getMessage());
-            }
+        if(publicKey != null) {
+            return TOMUtil.verifySignature(publicKey, message, signature);
         }
         return false;
     }
@@ -19,6 +19,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.communication.ServerCommunicationSystem;
@@ -38,10 +39,27 @@ public class ClientsManager {
     private RequestsTimer timer;
     private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
     private ReentrantLock clientsLock = new ReentrantLock();
+    private SignatureVerifier signatureVerifier;
+    private AtomicInteger unproposed = new AtomicInteger(0); // pending requests not proposed yet
 
     public ClientsManager(ServerViewController controller, RequestsTimer timer) {
         this.controller = controller;
         this.timer = timer;
+        this.signatureVerifier = new SignatureVerifier(this,
+                controller.getStaticConf().getSignatureVerificationThreads(),
+                4 * controller.getStaticConf().getMaxBatchSize());
+    }
+
+    /**
+     * Verifies, in parallel, the client signatures of the requests of a proposed batch.
+     * Must be called before the requests are given to requestReceived, and
+     * without holding the clients lock.
+     *
+     * @param requests the requests of the batch
+     * @return true if all signatures are valid, false otherwise
+     */
+    public boolean verifySignatures(TOMMessage[] requests) {
+        return signatureVerifier.verify(requests);
     }
 
     /**
@@ -63,7 +81,7 @@ public class ClientsManager {
             //******* EDUARDO BEGIN **************//
             clientData = new ClientData(clientId,
                     (controller.getStaticConf().getUseSignatures() == 1)
-                    ? controller.getStaticConf().getRSAPublicKey(clientId)
+                    ? controller.getStaticConf().getPublicKey(clientId)
                     : null);
             //******* EDUARDO END **************//
             clientsData.put(clientId, clientData);
@@ -82,7 +100,23 @@ public class ClientsManager {
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
+        return getPendingRequests(controller.getStaticConf().getMaxBatchSize(),
+                controller.getStaticConf().getMaxBatchBytes());
+    }
+
+    /**
+     * Get pending requests in a fair way (one request from each client
+     * queue until the max number of requests or bytes is obtained).
+     *
+     * @param maxRequests maximum number of requests to obtain
+     * @param maxBytes maximum size (in bytes) of the requests obtained (0 means no limit).
+     * At least one request is returned, even if it is bigger than this limit
+     * @return the set of pending requests to be proposed
+     */
+    public RequestList getPendingRequests(int maxRequests, int maxBytes) {
         RequestList allReq = new RequestList();
+        int totalBytes = 0;
+        boolean full = false;
 
         clientsLock.lock();
         /******* BEGIN CLIENTS CRITICAL SECTION ******/
@@ -94,7 +128,7 @@ public class ClientsManager {
             int noMoreMessages = 0;
 
             while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
+                    && allReq.size() < maxRequests && !full
                     && noMoreMessages < clientsEntrySet.size()) {
 
                 ClientData clientData = it.next().getValue();
@@ -104,22 +138,30 @@ public class ClientsManager {
                 /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
                 TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
-
                 if (request != null) {
                     if(!request.alreadyProposed) {
-                        //this client have pending message
-                        request.alreadyProposed = true;
-                        allReq.addLast(request);
+                        if (maxBytes > 0 && !allReq.isEmpty() &&
+                                totalBytes + request.serializedMessage.length > maxBytes) {
+                            //the batch would become too big
+                            full = true;
+                        } else {
+                            //this client have pending message
+                            request.alreadyProposed = true;
+                            unproposed.decrementAndGet();
+                            allReq.addLast(request);
+                            totalBytes += request.serializedMessage.length;
+                        }
                     }
                 } else {
                     //this client don't have more pending requests
                     noMoreMessages++;
                 }
+
+                /******* END CLIENTDATA CRITICAL SECTION ******/
+                clientData.clientLock.unlock();
             }
             
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
+            if(allReq.size() >= maxRequests || full ||
                     noMoreMessages == clientsEntrySet.size()) {
                 
                 break;
@@ -132,38 +174,55 @@ public class ClientsManager {
     }
 
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
-     *
-     * @return true if there are some pending requests and false otherwise
+     * @return true if there are some pending requests that were not
+     * proposed yet, false otherwise
      */
     public boolean havePendingRequests() {
-        boolean havePending = false;
+        return unproposed.get() > 0;
+    }
+
+    /**
+     * Counts the requests received from clients that were not proposed yet.
+     * The count is kept as requests are added, proposed and removed, so it
+     * is read without going through the pending requests of every client.
+     *
+     * @return the number of requests waiting to be proposed
+     */
+    public int countPendingRequests() {
+        return unproposed.get();
+    }
+
+    /**
+     * Gets a request received from a client (pending or already ordered).
+     *
+     * @param clientId the client that sent the request
+     * @param session the client session
+     * @param sequence the request sequence number
+     * @return the request, or null if this replica does not have it
+     */
+    public TOMMessage getRequest(int clientId, int session, int sequence) {
+        TOMMessage request = null;
 
         clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
+        /******* BEGIN CLIENTS CRITICAL SECTION ******/
+        ClientData clientData = clientsData.get(clientId);
+        /******* END CLIENTS CRITICAL SECTION ******/
+        clientsLock.unlock();
 
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
+        if (clientData != null) {
             clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            if (clientData.getSession() == session) {
+                request = clientData.getPendingRequests().getBySequence(sequence);
+                if (request == null) {
+                    request = clientData.getOrderedRequests().getBySequence(sequence);
                 }
             }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
             clientData.clientLock.unlock();
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+        return request;
     }
 
     /**
@@ -248,7 +307,7 @@ public class ClientsManager {
             clientData.setSession(request.getSession());
             clientData.setLastMessageReceived(-1);
             clientData.getOrderedRequests().clear();
-            clientData.getPendingRequests().clear();
+            discardPending(clientData);
         }
 
         if ((clientData.getLastMessageReceived() == -1) || //first message received or new session (see above)
@@ -256,15 +315,22 @@ public class ClientsManager {
                 ((request.getSequence() > clientData.getLastMessageReceived()) && !fromClient)) {
 
             //it is a new message and I have to verify it's signature
-            if (!request.signed
+            if (!request.signed || request.signatureVerified
                     || clientData.verifySignature(request.serializedMessage,
                     request.serializedMessageSignature)) {
 
+                if (request.signed && !request.signatureVerified) {
+                    //remember it, so that it is not verified again when proposed
+                    request.signatureVerified = true;
+                    signatureVerifier.addVerified(request);
+                }
+
                 //I don't have the message but it is valid, I will
                 //insert it in the pending requests of this client
 
                 request.recvFromClient = fromClient;
                 clientData.getPendingRequests().add(request); 
+                if (!request.alreadyProposed) unproposed.incrementAndGet();
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
@@ -285,7 +351,12 @@ public class ClientsManager {
                 
                 if (reply != null && cs != null) {
 
-                    if (reply.recvFromClient && fromClient) {
+                    if (reply.fullReply != null && request.getReplyServer() < 0 && fromClient) {
+                        //the client did not get the full reply from the replica it designated,
+                        //and sent the request again to ask for it (see ServiceProxy.invokeOrderedHashed)
+                        cs.send(new int[]{request.getSender()}, reply.fullReply);
+
+                    } else if (reply.recvFromClient && fromClient) {
                         System.out.println("[CACHE] re-send reply [Sender: " + reply.getSender() + ", sequence: " + reply.getSequence()+", session: " + reply.getSession()+ "]");
                         cs.send(new int[]{request.getSender()}, reply);
 
@@ -338,9 +409,12 @@ public class ClientsManager {
 
         clientData.clientLock.lock();
         /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        TOMMessage pending = clientData.getPendingRequests().getBySequence(request.getSequence());
         if (!clientData.removeOrderedRequest(request)) {
             Logger.println("(ClientsManager.requestOrdered) Request "
                     + request + " does not exist in pending requests");
+        } else if (pending != null && pending.equals(request) && !pending.alreadyProposed) {
+            unproposed.decrementAndGet(); //ordered in a batch proposed by another replica
         }
         clientData.setLastMessageExecuted(request.getSequence());
 
@@ -348,6 +422,17 @@ public class ClientsManager {
         clientData.clientLock.unlock();
     }
 
+    /**
+     * Removes all pending requests of a client, discounting the ones that
+     * were not proposed yet. Must be called holding the client lock.
+     */
+    private void discardPending(ClientData clientData) {
+        for (TOMMessage msg : clientData.getPendingRequests()) {
+            if (!msg.alreadyProposed) unproposed.decrementAndGet();
+        }
+        clientData.getPendingRequests().clear();
+    }
+
     public ReentrantLock getClientsLock() {
         return clientsLock;
     }
@@ -0,0 +1,177 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Verifies the client signatures of the requests in a proposed batch.
+ *
+ * The signatures are verified in parallel, by a bounded pool of threads,
+ * with the scheme of the client keys (see SignatureScheme).
+ * Requests whose signature this replica already verified when it received
+ * them directly from the client are skipped: the verified requests are kept
+ * in a bounded cache, indexed by their signature and holding the signed
+ * bytes themselves (not a hash of them, so that a request colliding with a
+ * verified one is never taken as verified).
+ */
+public class SignatureVerifier {
+
+    private static final int MIN_CACHE_SIZE = 1024;
+
+    private final ClientsManager clientsManager;
+    private final ExecutorService pool; // null if signatures are verified by the caller
+    private final Map<ByteBuffer, byte[]> verified; // signature -> signed bytes
+    private final ReentrantLock verifiedLock = new ReentrantLock();
+
+    /**
+     * @param clientsManager the manager with the public keys of the clients
+     * @param threads number of threads used to verify signatures (1 means the caller verifies them)
+     * @param cacheSize maximum number of verified requests kept
+     */
+    public SignatureVerifier(ClientsManager clientsManager, int threads, int cacheSize) {
+        this.clientsManager = clientsManager;
+
+        final int maxEntries = Math.max(cacheSize, MIN_CACHE_SIZE);
+        this.verified = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        if (threads > 1) {
+            this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Signature verifier " + (count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Records that the signature of a request was verified
+     * @param request the request
+     */
+    public void addVerified(TOMMessage request) {
+        verifiedLock.lock();
+        verified.put(ByteBuffer.wrap(request.serializedMessageSignature), request.serializedMessage);
+        verifiedLock.unlock();
+    }
+
+    /**
+     * Checks if the signature of a request was already verified by this replica
+     * @param request the request
+     * @return true if it was, false otherwise
+     */
+    public boolean isVerified(TOMMessage request) {
+        verifiedLock.lock();
+        byte[] signed = verified.get(ByteBuffer.wrap(request.serializedMessageSignature));
+        verifiedLock.unlock();
+
+        return signed != null && Arrays.equals(signed, request.serializedMessage);
+    }
+
+    /**
+     * Verifies the signatures of the signed requests of a batch. Requests whose
+     * signature is valid are marked as verified, so that the clients manager
+     * does not check them again.
+     *
+     * @param requests the requests of the batch
+     * @return true if all signatures are valid, false otherwise
+     */
+    public boolean verify(TOMMessage[] requests) {
+        List<TOMMessage> toVerify = new ArrayList<TOMMessage>(requests.length);
+        for (TOMMessage request : requests) {
+            if (!request.signed || request.signatureVerified) continue;
+
+            if (isVerified(request)) {
+                request.signatureVerified = true;
+            } else {
+                toVerify.add(request);
+            }
+        }
+
+        if (toVerify.isEmpty()) return true;
+
+        if (pool == null || toVerify.size() == 1) {
+            for (TOMMessage request : toVerify) {
+                if (!verify(request)) return false;
+            }
+            return true;
+        }
+
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(toVerify.size());
+        for (final TOMMessage request : toVerify) {
+            results.add(pool.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return verify(request);
+                }
+            }));
+        }
+
+        boolean valid = true;
+        try {
+            for (Future<Boolean> result : results) {
+                valid &= result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        return valid;
+    }
+
+    private boolean verify(TOMMessage request) {
+        PublicKey key = clientsManager.getClientData(request.getSender()).getPublicKey();
+
+        if (TOMUtil.verifySignature(key, request.serializedMessage, request.serializedMessageSignature)) {
+            request.signatureVerified = true;
+            return true;
+        }
+
+        Logger.println("(SignatureVerifier.verify) invalid signature in request " + request);
+        return false;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import bftsmart.tom.util.Logger;
+
+/**
+ * Stage between the connections to the other replicas and the thread that
+ * runs the consensus (ServerCommunicationSystem). Its threads do the work
+ * of each message that does not depend on the state of the replica (see
+ * MessageHandler.prepare) and then hand the message to the in queue, so that
+ * the consensus thread only applies messages that are ready.
+ *
+ * The messages of a replica are always prepared by the same thread, so they
+ * reach the in queue in the order they were received. With no threads,
+ * messages go directly to the in queue.
+ */
+public class InboundStage {
+
+    private final LinkedBlockingQueue<SystemMessage> inQueue;
+    private final MessageHandler messageHandler;
+    private final Worker[] workers;
+
+    /**
+     * @param threads number of threads that prepare the messages (0 for none)
+     * @param inQueue queue of the messages ready for the consensus thread
+     * @param messageHandler prepares the messages
+     */
+    public InboundStage(int threads, LinkedBlockingQueue<SystemMessage> inQueue, MessageHandler messageHandler) {
+        this.inQueue = inQueue;
+        this.messageHandler = messageHandler;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, inQueue.remainingCapacity() + inQueue.size());
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @return queue of the messages ready for the consensus thread
+     */
+    public LinkedBlockingQueue<SystemMessage> getInQueue() {
+        return inQueue;
+    }
+
+    /**
+     * Called by the connections for each message received from another replica
+     * @return false if there is no room for the message (it is discarded)
+     */
+    public boolean offer(SystemMessage sm) {
+        if (workers.length == 0) return inQueue.offer(sm);
+        return workers[(sm.getSender() & Integer.MAX_VALUE) % workers.length].queue.offer(sm);
+    }
+
+    /**
+     * @return number of messages waiting to be prepared
+     */
+    public int size() {
+        int size = 0;
+        for (Worker w : workers) size += w.queue.size();
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "inQueue=" + inQueue.toString() + ", being prepared=" + size();
+    }
+
+    /**
+     * Thread that prepares the messages of some of the replicas
+     */
+    private class Worker extends Thread {
+
+        private final LinkedBlockingQueue<SystemMessage> queue;
+
+        Worker(int id, int capacity) {
+            super("Inbound stage " + id);
+            setDaemon(true);
+            this.queue = new LinkedBlockingQueue<SystemMessage>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    SystemMessage sm = queue.take();
+                    try {
+                        messageHandler.prepare(sm);
+                    } catch (RuntimeException ex) {
+                        // the message is still handed over, and processed as if not prepared
+                        Logger.println("(InboundStage.run) error preparing " + sm + ": " + ex);
+                    }
+                    inQueue.put(sm); // waits for room, holding back the messages of the replicas it serves
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+}
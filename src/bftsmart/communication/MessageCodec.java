@@ -0,0 +1,305 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+
+import bftsmart.communication.server.ServerConnection;
+import bftsmart.consensus.messages.MacVector;
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.statemanagement.strategy.StandardSMMessage;
+import bftsmart.statemanagement.strategy.durability.CSTSMMessage;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.timer.ForwardedMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Binary encoding of the messages exchanged by the replicas, used instead of
+ * Java serialization.
+ *
+ * A message is encoded as [version (byte)][type tag (byte)][fields], where the
+ * fields are the ones written by the writeExternal method of the message
+ * class, in the same fixed layout. Each message class is registered with a
+ * tag and a factory, so decoding needs no class descriptors nor reflection.
+ * Objects nested in a message are encoded as [kind (byte)][object]: byte
+ * arrays and MAC vectors (the proofs of ACCEPTs) natively, and the rest
+ * (views, application states and reconfiguration replies, which are only
+ * sent by the state transfer and reconfiguration protocols) with Java
+ * serialization.
+ *
+ * Data starting with the Java serialization magic number is still decoded
+ * with an ObjectInputStream, so messages from processes that use Java
+ * serialization are understood.
+ */
+public final class MessageCodec {
+
+    /**
+     * Creates empty messages of a registered type, to be filled by readExternal
+     */
+    public interface Factory {
+        SystemMessage newMessage();
+    }
+
+    public static final byte VERSION = 1;
+
+    // type tags
+    public static final byte PAXOS = 1;
+    public static final byte LC = 2;
+    public static final byte FORWARDED = 3;
+    public static final byte STANDARD_SM = 4;
+    public static final byte CST_SM = 5;
+    public static final byte VM = 6;
+    public static final byte REQUEST_FETCH = 7;
+
+    // kinds of nested objects
+    private static final byte NULL = 0;
+    private static final byte BYTES = 1;
+    private static final byte MAC_VECTOR = 2;
+    private static final byte SERIALIZED = 3;
+
+    private static final byte STREAM_MAGIC = (byte) (ObjectOutputStream.STREAM_MAGIC >>> 8);
+
+    private static final Map<Class<?>, Byte> tags = new HashMap<Class<?>, Byte>();
+    private static final Factory[] factories = new Factory[128];
+    private static final int MAC_LENGTH = macLength(); // length of the MACs in MAC vectors
+
+    static {
+        register(PAXOS, PaxosMessage.class, new Factory() {
+            public SystemMessage newMessage() { return new PaxosMessage(); }
+        });
+        register(LC, LCMessage.class, new Factory() {
+            public SystemMessage newMessage() { return new LCMessage(); }
+        });
+        register(FORWARDED, ForwardedMessage.class, new Factory() {
+            public SystemMessage newMessage() { return new ForwardedMessage(); }
+        });
+        register(STANDARD_SM, StandardSMMessage.class, new Factory() {
+            public SystemMessage newMessage() { return new StandardSMMessage(); }
+        });
+        register(CST_SM, CSTSMMessage.class, new Factory() {
+            public SystemMessage newMessage() { return new CSTSMMessage(); }
+        });
+        register(VM, VMMessage.class, new Factory() {
+            public SystemMessage newMessage() { return new VMMessage(); }
+        });
+        register(REQUEST_FETCH, RequestFetchMessage.class, new Factory() {
+            public SystemMessage newMessage() { return new RequestFetchMessage(); }
+        });
+    }
+
+    private MessageCodec() {
+    }
+
+    private static int macLength() {
+        try {
+            return Mac.getInstance(ServerConnection.MAC_ALGORITHM).getMacLength();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Registers a message class. Must be done before any message of the class
+     * is sent, with the same tag in all processes.
+     *
+     * @param tag type tag of the class (0 to 127)
+     * @param messageClass the class
+     * @param factory creates empty messages of the class
+     */
+    public static synchronized void register(byte tag, Class<? extends SystemMessage> messageClass, Factory factory) {
+        if (tag < 0 || factories[tag] != null) {
+            throw new IllegalArgumentException("Invalid or duplicated message tag " + tag);
+        }
+        factories[tag] = factory;
+        tags.put(messageClass, tag);
+    }
+
+    /**
+     * Encodes a message
+     * @param sm the message
+     * @return the encoded message
+     * @throws IOException if the message class is not registered
+     */
+    public static byte[] encode(SystemMessage sm) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        encode(sm, bOut);
+        return bOut.toByteArray();
+    }
+
+    /**
+     * Encodes a message into a stream
+     * @param sm the message
+     * @param stream where the message is written
+     * @throws IOException if the message class is not registered
+     */
+    public static void encode(SystemMessage sm, OutputStream stream) throws IOException {
+        Byte tag = tags.get(sm.getClass());
+        if (tag == null) {
+            throw new IOException("Unregistered message class " + sm.getClass().getName());
+        }
+
+        BinaryOutput out = new BinaryOutput(stream);
+        out.writeByte(VERSION);
+        out.writeByte(tag);
+        sm.writeExternal(out);
+        out.flush();
+    }
+
+    /**
+     * Decodes a message
+     * @param data the encoded message (or a Java serialized message)
+     * @return the message
+     * @throws IOException if the data is not a valid message
+     * @throws ClassNotFoundException if the data has an unknown class
+     */
+    public static SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decodes a message from part of an array. The message does not keep
+     * references to the array, so it can be reused afterwards.
+     *
+     * @param data array with the encoded message
+     * @param offset where the message starts
+     * @param length length of the message
+     * @return the message
+     * @throws IOException if the data is not a valid message
+     * @throws ClassNotFoundException if the data has an unknown class
+     */
+    public static SystemMessage decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        return decode(data, offset, length, MacVector.DEFAULT_MAX_IDS);
+    }
+
+    /**
+     * Decodes a message from part of an array, rejecting MAC vectors with more
+     * MACs than there are replicas, before they are allocated
+     *
+     * @param data array with the encoded message
+     * @param offset where the message starts
+     * @param length length of the message
+     * @param maxReplicas number of replicas in the current view
+     * @return the message
+     * @throws IOException if the data is not a valid message
+     * @throws ClassNotFoundException if the data has an unknown class
+     */
+    public static SystemMessage decode(byte[] data, int offset, int length, int maxReplicas) throws IOException, ClassNotFoundException {
+        if (length < 2) throw new IOException("Message too short");
+
+        if (data[offset] == STREAM_MAGIC) {
+            return (SystemMessage) new ObjectInputStream(new ByteArrayInputStream(data, offset, length)).readObject();
+        }
+
+        if (data[offset] != VERSION) throw new IOException("Unknown message codec version " + data[offset]);
+
+        int tag = data[offset + 1];
+        Factory factory = (tag >= 0) ? factories[tag] : null;
+        if (factory == null) throw new IOException("Unknown message tag " + tag);
+
+        SystemMessage sm = factory.newMessage();
+        BinaryInput in = new BinaryInput(new ByteArrayInputStream(data, offset + 2, length - 2), maxReplicas);
+        sm.readExternal(in);
+        return sm;
+    }
+
+    /**
+     * ObjectOutput that writes primitive fields as a DataOutputStream, and
+     * nested objects as described in MessageCodec
+     */
+    private static final class BinaryOutput extends DataOutputStream implements ObjectOutput {
+
+        BinaryOutput(OutputStream out) {
+            super(out);
+        }
+
+        public void writeObject(Object obj) throws IOException {
+            if (obj == null) {
+                writeByte(NULL);
+            } else if (obj instanceof byte[]) {
+                byte[] bytes = (byte[]) obj;
+                writeByte(BYTES);
+                writeInt(bytes.length);
+                write(bytes);
+            } else if (obj instanceof MacVector) {
+                writeByte(MAC_VECTOR);
+                ((MacVector) obj).writeExternal(this);
+            } else {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+                ObjectOutputStream oOut = new ObjectOutputStream(bOut);
+                oOut.writeObject(obj);
+                oOut.flush();
+                writeByte(SERIALIZED);
+                writeInt(bOut.size());
+                bOut.writeTo(this);
+            }
+        }
+    }
+
+    /**
+     * ObjectInput that reads what BinaryOutput writes
+     */
+    private static final class BinaryInput extends DataInputStream implements ObjectInput {
+
+        private final int maxReplicas;
+
+        BinaryInput(InputStream in, int maxReplicas) {
+            super(in);
+            this.maxReplicas = maxReplicas;
+        }
+
+        public Object readObject() throws ClassNotFoundException, IOException {
+            byte kind = readByte();
+            switch (kind) {
+                case NULL:
+                    return null;
+                case BYTES:
+                    return readBytes();
+                case MAC_VECTOR:
+                    MacVector macs = new MacVector();
+                    macs.readExternal(this, maxReplicas, MAC_LENGTH);
+                    return macs;
+                case SERIALIZED:
+                    return new ObjectInputStream(new ByteArrayInputStream(readBytes())).readObject();
+                default:
+                    throw new IOException("Unknown object kind " + kind);
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = readInt();
+            if (length < 0 || length > available()) throw new IOException("Invalid length " + length);
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -15,26 +15,17 @@ limitations under the License.
 */
 package bftsmart.communication;
 
-import bftsmart.communication.server.ServerConnection;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.core.messages.RequestFetchMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.timer.ForwardedMessage;
 import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.HashMap;
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
 
 /**
  *
@@ -44,16 +35,8 @@ public class MessageHandler {
 
     private Acceptor acceptor;
     private TOMLayer tomLayer;
-    //private Cipher cipher;
-    private Mac mac;
     
     public MessageHandler() {
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
-        }
     }
     public void setAcceptor(Acceptor acceptor) {
         this.acceptor = acceptor;
@@ -71,47 +54,10 @@ public class MessageHandler {
             
             PaxosMessage paxosMsg = (PaxosMessage) sm;
 
-            if (paxosMsg.authenticated || paxosMsg.getSender() == myId) acceptor.deliver(paxosMsg);
-            else if (paxosMsg.getPaxosType() == MessageFactory.ACCEPT && paxosMsg.getProof() != null) {
-                                        
-                //We are going to verify the MAC vector at the algorithm level
-                HashMap<Integer, byte[]> macVector = (HashMap<Integer, byte[]>) paxosMsg.getProof();
-                               
-                byte[] recvMAC = macVector.get(myId);
-                
-                PaxosMessage pm = new PaxosMessage(MessageFactory.ACCEPT,paxosMsg.getNumber(),
-                        paxosMsg.getRound(), paxosMsg.getSender(), paxosMsg.getValue());
-                
-                ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-                try {
-                    new ObjectOutputStream(bOut).writeObject(pm);
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-
-                byte[] data = bOut.toByteArray();
-        
-                //byte[] hash = tomLayer.computeHash(data); 
-                
-                byte[] myMAC = null;
-                
-                /*byte[] k = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender()).getEncoded();
-                SecretKeySpec key = new SecretKeySpec(new String(k).substring(0, 8).getBytes(), "DES");*/
-                
-                SecretKey key = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender());
-                try {
-                    this.mac.init(key);                   
-                    myMAC = this.mac.doFinal(data);
-                } catch (/*IllegalBlockSizeException | BadPaddingException |*/ InvalidKeyException ex) {
-                    ex.printStackTrace();
-                }
-                
-                if (recvMAC != null && myMAC != null && Arrays.equals(recvMAC, myMAC))
-                    acceptor.deliver(paxosMsg);
-                else {
-                    Logger.println("(MessageHandler.processData) WARNING: invalid MAC from " + sm.getSender());
-                    System.out.println("(MessageHandler.processData) WARNING: invalid MAC from " + sm.getSender());
-                }
+            // ACCEPTs authenticated by a MAC vector were already verified by the
+            // thread that received them (ServerConnection.ReceiverThread)
+            if (paxosMsg.authenticated || paxosMsg.getSender() == myId) {
+                acceptor.deliver(paxosMsg);
             } else {
                 System.out.println("(MessageHandler.processData) Discarding unauthenticated message from " + sm.getSender());
                 Logger.println("(MessageHandler.processData) Discarding unauthenticated message from " + sm.getSender());
@@ -148,6 +94,9 @@ public class MessageHandler {
 	            } else if (sm instanceof ForwardedMessage) {
 	                TOMMessage request = ((ForwardedMessage) sm).getRequest();
 	                tomLayer.requestReceived(request);
+
+	            } else if (sm instanceof RequestFetchMessage) {
+	                tomLayer.fetchMessageReceived((RequestFetchMessage) sm);
 	
 	            /** This is Joao's code, to handle state transfer */
 	            } else if (sm instanceof SMMessage) {
@@ -180,6 +129,30 @@ public class MessageHandler {
         }
     }
     
+    /**
+     * Does the work of a message received from another replica that does not
+     * depend on the state of this replica, so it can be done by the threads of
+     * the inbound stage instead of the one that processes the message
+     * (processData): the hash and the requests of the value of a PROPOSE, and
+     * the signature of a forwarded request.
+     */
+    protected void prepare(SystemMessage sm) {
+        if (tomLayer == null || !sm.authenticated) return;
+
+        if (sm instanceof PaxosMessage) {
+            PaxosMessage paxosMsg = (PaxosMessage) sm;
+            if (paxosMsg.getPaxosType() == MessageFactory.PROPOSE && paxosMsg.getValue() != null
+                    && !tomLayer.controller.getStaticConf().isHashProposals()) {
+                paxosMsg.setPrepared(tomLayer.computeHash(paxosMsg.getValue()),
+                        tomLayer.prepareProposedValue(paxosMsg.getValue()));
+            }
+        } else if (sm instanceof ForwardedMessage) {
+            TOMMessage request = ((ForwardedMessage) sm).getRequest();
+            // sets signatureVerified, so the signature is not verified again by requestReceived
+            tomLayer.clientsManager.verifySignatures(new TOMMessage[]{request});
+        }
+    }
+
     protected void verifyPending() {
         tomLayer.processOutOfContext();
     }
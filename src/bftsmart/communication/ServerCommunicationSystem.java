@@ -38,6 +38,7 @@ public class ServerCommunicationSystem extends Thread {
 
     public final long MESSAGE_WAIT_TIME = 100;
     private LinkedBlockingQueue<SystemMessage> inQueue = null;//new LinkedBlockingQueue<SystemMessage>(IN_QUEUE_SIZE);
+    private InboundStage inbound; // prepares the messages of the other replicas before they reach inQueue
     protected MessageHandler messageHandler = new MessageHandler();
     private ServersCommunicationLayer serversConn;
     private CommunicationSystemServerSide clientsConn;
@@ -52,6 +53,7 @@ public class ServerCommunicationSystem extends Thread {
         this.controller = controller;
 
         inQueue = new LinkedBlockingQueue<SystemMessage>(controller.getStaticConf().getInQueueSize());
+        inbound = new InboundStage(controller.getStaticConf().getInboundThreads(), inQueue, messageHandler);
 
         //create a new conf, with updated port number for servers
         //TOMConfiguration serversConf = new TOMConfiguration(conf.getProcessId(),
@@ -59,7 +61,7 @@ public class ServerCommunicationSystem extends Thread {
 
         //serversConf.increasePortNumber();
 
-        serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
+        serversConn = new ServersCommunicationLayer(controller, inbound, replica);
 
         //******* EDUARDO BEGIN **************//
        // if (manager.isInCurrentView() || manager.isInInitView()) {
@@ -115,6 +117,7 @@ public class ServerCommunicationSystem extends Thread {
 
                 if (sm != null) {
                     Logger.println("<-------receiving---------- " + sm);
+                    serversConn.consumed(sm);
                     messageHandler.processData(sm);
                     count++;
                 } else {                
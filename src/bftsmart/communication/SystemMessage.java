@@ -31,7 +31,9 @@ public abstract class SystemMessage implements Externalizable {
     public transient boolean authenticated; // set to TRUE if the message was received
                                             // with a (valid) mac, FALSE if no mac was given
                                             // note that if the message arrives with an
-                                            // invalid MAC, it won't be delivered
+                                            // invalid MAC, it won't be delivered. ACCEPTs sent
+                                            // without a channel MAC are also set to TRUE when
+                                            // their MAC vector is valid
 
     /**
      * Creates a new instance of SystemMessage
@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.communication.client;
 
 import bftsmart.communication.client.netty.NettyClientServerCommunicationSystemClientSide;
+import bftsmart.communication.loopback.LoopbackCommunicationSystemClientSide;
 import bftsmart.reconfiguration.ClientViewController;
 
 /**
@@ -25,6 +26,9 @@ import bftsmart.reconfiguration.ClientViewController;
 public class CommunicationSystemClientSideFactory {
 
     public static CommunicationSystemClientSide getCommunicationSystemClientSide(int clientId, ClientViewController controller) {
+        if (controller.getStaticConf().getReplicaTransport().equals("loopback")) {
+            return new LoopbackCommunicationSystemClientSide(clientId, controller);
+        }
         return new NettyClientServerCommunicationSystemClientSide(clientId, controller);
     }
 }
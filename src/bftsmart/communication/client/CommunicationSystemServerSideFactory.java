@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.communication.client;
 
 import bftsmart.communication.client.netty.NettyClientServerCommunicationSystemServerSide;
+import bftsmart.communication.loopback.LoopbackCommunicationSystemServerSide;
 import bftsmart.reconfiguration.ServerViewController;
 
 /**
@@ -25,6 +26,9 @@ import bftsmart.reconfiguration.ServerViewController;
 public class CommunicationSystemServerSideFactory {
 
     public static CommunicationSystemServerSide getCommunicationSystemServerSide(ServerViewController controller) {
+        if (controller.getStaticConf().getReplicaTransport().equals("loopback")) {
+            return new LoopbackCommunicationSystemServerSide(controller);
+        }
         return new NettyClientServerCommunicationSystemServerSide(controller);
     }
 }
@@ -0,0 +1,184 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package bftsmart.communication.client.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+
+import bftsmart.reconfiguration.ClientViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Connection to a replica, shared by the clients attached to it. The replies
+ * carry the id of the client they are for, and are handed to it. A lost
+ * connection is opened again after 10 seconds, as long as some client still
+ * has the replica in its view.
+ */
+@Sharable
+class NettyClientConnection extends SimpleChannelInboundHandler<TOMMessage> {
+
+    private final NettyClientTransport transport;
+    private final String key;
+    private final int replicaId;
+    private final SocketAddress address;
+    private final Bootstrap bootstrap;
+    private final Map<Integer, NettyClientServerCommunicationSystemClientSide> clients =
+            new ConcurrentHashMap<Integer, NettyClientServerCommunicationSystemClientSide>();
+    private volatile ChannelFuture connectFuture;
+    private volatile boolean closed = false;
+
+    NettyClientConnection(NettyClientTransport transport, String key, int replicaId, SocketAddress address,
+            ClientViewController controller) throws NoSuchAlgorithmException {
+        this.transport = transport;
+        this.key = key;
+        this.replicaId = replicaId;
+        this.address = address;
+
+        Mac macDummy = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
+        final NettyClientPipelineFactory pipelineFactory = new NettyClientPipelineFactory(this, clients,
+                macDummy.getMacLength(), controller, TOMUtil.getSignatureSize(controller));
+
+        bootstrap = new Bootstrap();
+        bootstrap.group(transport.getGroup());
+        bootstrap.channel(transport.getChannelClass());
+        bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
+        bootstrap.option(ChannelOption.TCP_NODELAY, true);
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+        bootstrap.handler(new ChannelInitializer<Channel>() {
+            @Override
+            public void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(pipelineFactory.getDecoder());
+                ch.pipeline().addLast(pipelineFactory.getEncoder());
+                ch.pipeline().addLast(pipelineFactory.getHandler());
+            }
+        });
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    int getReplicaId() {
+        return replicaId;
+    }
+
+    Channel getChannel() {
+        return connectFuture.channel();
+    }
+
+    /**
+     * @return The future of the last connection attempt
+     */
+    ChannelFuture getConnectFuture() {
+        return connectFuture;
+    }
+
+    synchronized void connect() {
+        connectFuture = bootstrap.connect(address);
+    }
+
+    void attach(NettyClientServerCommunicationSystemClientSide client) {
+        clients.put(client.getClientId(), client);
+    }
+
+    /**
+     * @return true if no clients are left
+     */
+    boolean detach(NettyClientServerCommunicationSystemClientSide client) {
+        clients.remove(client.getClientId(), client);
+        return clients.isEmpty();
+    }
+
+    void close() {
+        closed = true;
+        getChannel().close();
+    }
+
+    private void reconnect() {
+        if (closed) return;
+
+        // clients that no longer have the replica in their view let it go
+        for (NettyClientServerCommunicationSystemClientSide client : new ArrayList<NettyClientServerCommunicationSystemClientSide>(clients.values())) {
+            if (!client.isInView(replicaId)) {
+                client.removeSession(replicaId);
+                transport.detach(client, this);
+            }
+        }
+        if (closed) return;
+
+        connect();
+        System.out.println("re-connecting to replica " + replicaId + " at " + address);
+        for (NettyClientServerCommunicationSystemClientSide client : clients.values()) {
+            client.channelReplaced(replicaId, getChannel());
+        }
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, TOMMessage sm) throws Exception {
+        NettyClientServerCommunicationSystemClientSide client = clients.get(sm.destination);
+        if (client != null) {
+            client.replyReceived(sm);
+        } else {
+            Logger.println("Reply for client " + sm.destination + ", which is no longer connected, discarded");
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (cause instanceof ClosedChannelException) {
+            System.out.println("Connection with replica " + replicaId + " closed.");
+        } else if (cause instanceof ConnectException) {
+            System.out.println("Impossible to connect to replica " + replicaId + ".");
+        } else {
+            System.out.println("Replica " + replicaId + " disconnected.");
+            cause.printStackTrace();
+        }
+    }
+
+    @Override
+    public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
+        // fired both when an open channel is closed and when a connection attempt fails
+        synchronized (this) {
+            if (closed || ctx.channel() != getChannel()) return;
+        }
+
+        transport.getGroup().schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        }, 10, TimeUnit.SECONDS);
+    }
+}
@@ -20,18 +20,15 @@ import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import javax.crypto.SecretKey;
 
 import bftsmart.reconfiguration.ClientViewController;
+import bftsmart.tom.core.messages.TOMMessage;
 
 
 public class NettyClientPipelineFactory{
 
-    NettyClientServerCommunicationSystemClientSide ncs;
-    Map sessionTable;
+    SimpleChannelInboundHandler<TOMMessage> handler;
+    Map clients;
     int macLength;
     int signatureLength;
 
@@ -39,28 +36,29 @@ public class NettyClientPipelineFactory{
     ClientViewController controller;
     //******* EDUARDO END **************//
 
-    ReentrantReadWriteLock rl;
-
-    public NettyClientPipelineFactory(NettyClientServerCommunicationSystemClientSide ncs, Map sessionTable, int macLength, ClientViewController controller, ReentrantReadWriteLock rl, int signatureLength) {
-        this.ncs = ncs;
-        this.sessionTable = sessionTable;
+    /**
+     * @param clients The clients using the channel, by id, whose sessions
+     * hold the MAC keys shared with the replica
+     */
+    public NettyClientPipelineFactory(SimpleChannelInboundHandler<TOMMessage> handler, Map clients, int macLength, ClientViewController controller, int signatureLength) {
+        this.handler = handler;
+        this.clients = clients;
         this.macLength = macLength;
         this.signatureLength = signatureLength;
-        this.rl = rl;
         this.controller = controller;
     }
 
 
     public ByteToMessageDecoder getDecoder(){
-    	return new NettyTOMMessageDecoder(true, sessionTable, macLength,controller,rl,signatureLength,controller.getStaticConf().getUseMACs()==1?true:false);	
+    	return new NettyTOMMessageDecoder(true, clients, macLength,controller,null,signatureLength,controller.getStaticConf().getUseMACs()==1?true:false);	
     }
     
     public MessageToByteEncoder getEncoder(){
-    	return new NettyTOMMessageEncoder(true, sessionTable, macLength,rl, signatureLength, controller.getStaticConf().getUseMACs()==1?true:false);	
+    	return new NettyTOMMessageEncoder(true, clients, macLength,null, signatureLength, controller.getStaticConf().getUseMACs()==1?true:false);	
     }
     
-    public SimpleChannelInboundHandler getHandler(){
-    	return ncs;	
+    public SimpleChannelInboundHandler<TOMMessage> getHandler(){
+    	return handler;	
     }
 
 }
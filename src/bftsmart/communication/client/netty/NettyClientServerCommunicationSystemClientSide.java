@@ -15,34 +15,19 @@ limitations under the License.
  */
 package bftsmart.communication.client.netty;
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandler.Sharable;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoop;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.nio.channels.ClosedChannelException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Signature;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.Mac;
@@ -58,11 +43,13 @@ import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 
 /**
+ * Client side of the client-server communication system. The connections to
+ * the replicas are taken from the NettyClientTransport of the JVM, and may be
+ * shared with other clients; the MAC keys of this client are its own.
  *
  * @author Paulo
  */
-@Sharable
-public class NettyClientServerCommunicationSystemClientSide extends SimpleChannelInboundHandler<TOMMessage> implements CommunicationSystemClientSide {
+public class NettyClientServerCommunicationSystemClientSide implements CommunicationSystemClientSide {
 
 	private int clientId;
 	protected ReplyReceiver trr;
@@ -70,237 +57,152 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	private ClientViewController controller;
 	//******* EDUARDO END **************//
 	private Map sessionTable = new HashMap();
+	private Map<Integer, NettyClientConnection> connections = new HashMap<Integer, NettyClientConnection>();
 	private ReentrantReadWriteLock rl;
-	//the signature engine used in the system
-	private Signature signatureEngine;
-	private int signatureLength;
+	private NettyClientTransport transport;
 	private boolean closed = false;
 
 	public NettyClientServerCommunicationSystemClientSide(int clientId, ClientViewController controller) {
 		super();
 
 		this.clientId = clientId;
-		try {           
-			SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
+		this.controller = controller;
+		this.rl = new ReentrantReadWriteLock();
+		this.transport = NettyClientTransport.getInstance(controller.getStaticConf());
 
-			this.controller = controller;
-			//this.st = new Storage(BENCHMARK_PERIOD);
-			this.rl = new ReentrantReadWriteLock();
-			signatureLength = TOMUtil.getSignatureSize(controller);
-
-			ChannelFuture future = null;
-			int[] currV = controller.getCurrentViewProcesses();
-			for (int i = 0; i < currV.length; i++) {
-				try {
-
-					String str = this.clientId + ":" + currV[i];
-					PBEKeySpec spec = new PBEKeySpec(str.toCharArray());
-					SecretKey authKey = fac.generateSecret(spec);
-
-					EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-					//try {
-					Bootstrap b = new Bootstrap();
-					b.group(workerGroup);
-					b.channel(NioSocketChannel.class);
-					b.option(ChannelOption.SO_KEEPALIVE, true);
-					b.option(ChannelOption.TCP_NODELAY, true);
-					b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,10000);
-
-					b.handler(getChannelInitializer());
-
-					// Start the client.
-					future =  b.connect(controller.getRemoteAddress(currV[i]));					
-
-					//******* EDUARDO BEGIN **************//
-
-					//creates MAC stuff
-					Mac macSend = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
-					macSend.init(authKey);
-					Mac macReceive = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
-					macReceive.init(authKey);
-					NettyClientServerSession cs = new NettyClientServerSession(future.channel(), macSend, macReceive, currV[i]);
-					sessionTable.put(currV[i], cs);
-
-					System.out.println("Connecting to replica " + currV[i] + " at " + controller.getRemoteAddress(currV[i]));
-					//******* EDUARDO END **************//
+		//connects to all the replicas at once, and then waits for them
+		int[] currV = controller.getCurrentViewProcesses();
+		NettyClientConnection[] conns = new NettyClientConnection[currV.length];
+		for (int i = 0; i < currV.length; i++) {
+			try {
+				conns[i] = connect(currV[i]);
+			} catch (java.lang.NullPointerException ex) {
+				//What the fuck is this??? This is not possible!!!
+				System.err.println("Should fix the problem, and I think it has no other implications :-), "
+						+ "but we must make the servers store the view in a different place.");
+			} catch (Exception ex){
+				ex.printStackTrace(System.err);
+			}
+		}
+		for (int i = 0; i < currV.length; i++) {
+			if (conns[i] != null) {
+				awaitConnection(conns[i]);
+			}
+		}
+	}
 
-					future.awaitUninterruptibly();
+	/**
+	 * Creates the session (MAC keys) with a replica, and attaches this client
+	 * to the connection to it
+	 */
+	private NettyClientConnection connect(int replicaId) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+		SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
+		String str = this.clientId + ":" + replicaId;
+		PBEKeySpec spec = new PBEKeySpec(str.toCharArray());
+		SecretKey authKey = fac.generateSecret(spec);
+
+		//creates MAC stuff
+		Mac macSend = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
+		macSend.init(authKey);
+		Mac macReceive = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
+		macReceive.init(authKey);
+
+		NettyClientConnection conn;
+		rl.writeLock().lock();
+		try {
+			conn = transport.attach(this, replicaId, controller.getRemoteAddress(replicaId), controller);
+			sessionTable.put(replicaId, new NettyClientServerSession(conn.getChannel(), macSend, macReceive, replicaId));
+			connections.put(replicaId, conn);
+		} finally {
+			rl.writeLock().unlock();
+		}
 
-					if (!future.isSuccess()) {
-						System.err.println("Impossible to connect to " + currV[i]);
-					}
+		System.out.println("Connecting to replica " + replicaId + " at " + controller.getRemoteAddress(replicaId));
+		return conn;
+	}
 
-				} catch (java.lang.NullPointerException ex) {
-					//What the fuck is this??? This is not possible!!!
-					System.err.println("Should fix the problem, and I think it has no other implications :-), "
-							+ "but we must make the servers store the view in a different place.");
-				} catch (InvalidKeyException ex) {
-					ex.printStackTrace(System.err);
-				} catch (Exception ex){
-					ex.printStackTrace(System.err);
-				}
-			}
-		} catch (NoSuchAlgorithmException ex) {
-			ex.printStackTrace(System.err);
+	private void awaitConnection(NettyClientConnection conn) {
+		ChannelFuture future = conn.getConnectFuture();
+		future.awaitUninterruptibly();
+		if (!future.isSuccess()) {
+			System.err.println("Impossible to connect to " + conn.getReplicaId());
 		}
 	}
 
 	@Override
 	public void updateConnections() {
 		int[] currV = controller.getCurrentViewProcesses();
-		try {
-			//open connections with new servers
-			for (int i = 0; i < currV.length; i++) {
-				rl.readLock().lock();
-				if (sessionTable.get(currV[i]) == null) {
-
-					rl.readLock().unlock();
-					rl.writeLock().lock();
-
-					SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-					try {
-						// Configure the client.
-
-						EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-						//try {
-						Bootstrap b = new Bootstrap();
-						b.group(workerGroup);
-						b.channel(NioSocketChannel.class);
-						b.option(ChannelOption.SO_KEEPALIVE, true);
-						b.option(ChannelOption.TCP_NODELAY, true);
-						b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,10000);
-
-						b.handler(getChannelInitializer());
-
-						// Start the client.
-						ChannelFuture future =  b.connect(controller.getRemoteAddress(currV[i]));
-
-						String str = this.clientId + ":" + currV[i];
-						PBEKeySpec spec = new PBEKeySpec(str.toCharArray());
-						SecretKey authKey = fac.generateSecret(spec);
-
-						//creates MAC stuff
-						Mac macSend = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
-						macSend.init(authKey);
-						Mac macReceive = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
-						macReceive.init(authKey);
-						NettyClientServerSession cs = new NettyClientServerSession(future.channel(), macSend, macReceive, currV[i]);
-						sessionTable.put(currV[i], cs);
-
-						System.out.println("Connecting to replica " + currV[i] + " at " + controller.getRemoteAddress(currV[i]));
-						//******* EDUARDO END **************//
-
-						future.awaitUninterruptibly();
-
-						if (!future.isSuccess()) {
-							System.err.println("Impossible to connect to " + currV[i]);
-						}
-
-					} catch (InvalidKeyException ex) {
-						ex.printStackTrace();
-					} catch (InvalidKeySpecException ex) {
-						ex.printStackTrace();
-					}
-					rl.writeLock().unlock();
-				} else {
-					rl.readLock().unlock();
+		//open connections with new servers
+		for (int i = 0; i < currV.length; i++) {
+			rl.readLock().lock();
+			boolean connected = sessionTable.get(currV[i]) != null;
+			rl.readLock().unlock();
+
+			if (!connected) {
+				try {
+					awaitConnection(connect(currV[i]));
+				} catch (NoSuchAlgorithmException ex) {
+					ex.printStackTrace();
+				} catch (InvalidKeyException ex) {
+					ex.printStackTrace();
+				} catch (InvalidKeySpecException ex) {
+					ex.printStackTrace();
 				}
 			}
-		} catch (NoSuchAlgorithmException ex) {
-			ex.printStackTrace();
 		}
 	}
 
-	@Override
-	public void exceptionCaught(ChannelHandlerContext ctx,Throwable cause)  throws Exception {
-		if(cause instanceof ClosedChannelException) {
-			System.out.println("Connection with replica closed.");
-		} else if(cause instanceof ConnectException) {
-			System.out.println("Impossible to connect to replica.");
-		} else {
-			System.out.println("Replica disconnected.");
-		}
-		cause.printStackTrace();
+	int getClientId() {
+		return clientId;
 	}
 
-	@Override
-	public void channelRead0(ChannelHandlerContext context, TOMMessage sm)
-			throws Exception {
-		trr.replyReceived(sm);
-
+	NettyClientServerSession getSession(int replicaId) {
+		rl.readLock().lock();
+		try {
+			return (NettyClientServerSession) sessionTable.get(replicaId);
+		} finally {
+			rl.readLock().unlock();
+		}
 	}
 
-	@Override
-	public void channelActive(ChannelHandlerContext ctx) {
-		System.out.println("Channel active");
+	/**
+	 * @return true if the replica is still in the view of this client
+	 */
+	boolean isInView(int replicaId) {
+		return !closed && controller.getRemoteAddress(replicaId) != null;
 	}
 
-	@Override
-	public void channelInactive(ChannelHandlerContext ctx){
-
-		if (this.closed) {
-			return;
-		}
-
+	/**
+	 * Called when the connection to a replica was opened again
+	 */
+	void channelReplaced(int replicaId, Channel channel) {
+		rl.writeLock().lock();
 		try {
-			//sleeps 10 seconds before trying to reconnect
-			Thread.sleep(10000);
-		} catch (InterruptedException ex) {
-			ex.printStackTrace();
+			NettyClientServerSession ncss = (NettyClientServerSession) sessionTable.get(replicaId);
+			if (ncss != null) {
+				sessionTable.put(replicaId, new NettyClientServerSession(channel, ncss.getMacSend(), ncss.getMacReceive(), replicaId));
+			}
+		} finally {
+			rl.writeLock().unlock();
 		}
+	}
 
+	/**
+	 * Called when the connection to a replica that left the view is dropped
+	 */
+	void removeSession(int replicaId) {
 		rl.writeLock().lock();
-		//Iterator sessions = sessionTable.values().iterator();
-
-		ArrayList<NettyClientServerSession> sessions = new ArrayList<NettyClientServerSession>(sessionTable.values());
-		for (NettyClientServerSession ncss : sessions) {
-			if (ncss.getChannel() == ctx.channel()) {
-				try {
-					// Configure the client.
-					EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-					//try {
-					Bootstrap b = new Bootstrap();
-					b.group(workerGroup);
-					b.channel(NioSocketChannel.class);
-					b.option(ChannelOption.SO_KEEPALIVE, true);
-					b.option(ChannelOption.TCP_NODELAY, true);
-					b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,10000);
-
-					b.handler(getChannelInitializer());
-
-					if (controller.getRemoteAddress(ncss.getReplicaId()) != null) {
-
-						ChannelFuture future =  b.connect(controller.getRemoteAddress(ncss.getReplicaId()));
-
-						//creates MAC stuff
-						Mac macSend = ncss.getMacSend();
-						Mac macReceive = ncss.getMacReceive();
-						NettyClientServerSession cs = new NettyClientServerSession(future.channel(), macSend, macReceive, ncss.getReplicaId());
-						sessionTable.remove(ncss.getReplicaId());
-						sessionTable.put(ncss.getReplicaId(), cs);
-
-						System.out.println("re-connecting to replica "+ncss.getReplicaId()+" at " + controller.getRemoteAddress(ncss.getReplicaId()));
-					} else {
-						// This cleans an olde server from the session table
-						sessionTable.remove(ncss.getReplicaId());
-					}
-				} catch (NoSuchAlgorithmException ex) {
-					ex.printStackTrace();
-				}
-			}
-
-
+		try {
+			// This cleans an old server from the session table
+			sessionTable.remove(replicaId);
+			connections.remove(replicaId);
+		} finally {
+			rl.writeLock().unlock();
 		}
+	}
 
-		//closes all other channels to avoid messages being sent to only a subset of the replicas
-		/*Enumeration sessionElements = sessionTable.elements();
-        while (sessionElements.hasMoreElements()){
-        ((NettyClientServerSession) sessionElements.nextElement()).getChannel().close();
-        }*/
-		rl.writeLock().unlock();
+	void replyReceived(TOMMessage sm) {
+		trr.replyReceived(sm);
 	}
 
 	@Override
@@ -335,7 +237,7 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 		//produce signature
 		if (sign && sm.serializedMessageSignature == null) {
 			sm.serializedMessageSignature = signMessage(
-					controller.getStaticConf().getRSAPrivateKey(), sm.serializedMessage);
+					controller.getStaticConf().getPrivateKey(), sm.serializedMessage);
 		}
 
 		int sent = 0;
@@ -390,73 +292,25 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 
 		//******* EDUARDO BEGIN **************//
 		//produce signature
-		byte[] data2 = signMessage(controller.getStaticConf().getRSAPrivateKey(), data);
+		byte[] data2 = signMessage(controller.getStaticConf().getPrivateKey(), data);
 		//******* EDUARDO END **************//
 
 		sm.serializedMessageSignature = data2;
 	}
 
 	public byte[] signMessage(PrivateKey key, byte[] message) {
-		//long startTime = System.nanoTime();
-		try {
-			if (signatureEngine == null) {
-				signatureEngine = Signature.getInstance("SHA1withRSA");
-			}
-			byte[] result = null;
-
-			signatureEngine.initSign(key);
-			signatureEngine.update(message);
-			result = signatureEngine.sign();
-
-			//st.store(System.nanoTime() - startTime);
-			return result;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
+		return TOMUtil.signMessage(key, message);
 	}
 
 	@Override
 	public void close() {
 		this.closed = true;
-		//Iterator sessions = sessionTable.values().iterator();
 		rl.readLock().lock();
-		ArrayList<NettyClientServerSession> sessions = new ArrayList<NettyClientServerSession>(sessionTable.values());
+		ArrayList<NettyClientConnection> conns = new ArrayList<NettyClientConnection>(connections.values());
 		rl.readLock().unlock();
-		for (NettyClientServerSession ncss : sessions) {
-			ncss.getChannel().close();
+		for (NettyClientConnection conn : conns) {
+			transport.detach(this, conn);
 		}
 	}
 
-	private ChannelInitializer getChannelInitializer() throws NoSuchAlgorithmException{
-
-		Mac macDummy = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
-
-		final NettyClientPipelineFactory nettyClientPipelineFactory = new NettyClientPipelineFactory(this, sessionTable,
-				macDummy.getMacLength(), controller, rl, signatureLength);
-
-		ChannelInitializer channelInitializer = new ChannelInitializer<SocketChannel>() {
-			@Override
-			public void initChannel(SocketChannel ch) throws Exception {
-				ch.pipeline().addLast(nettyClientPipelineFactory.getDecoder());
-				ch.pipeline().addLast(nettyClientPipelineFactory.getEncoder());
-				ch.pipeline().addLast(nettyClientPipelineFactory.getHandler());
-
-			}
-		};					
-		return channelInitializer;		
-
-	}
-
-	@Override
-	public void channelUnregistered(final ChannelHandlerContext ctx) throws Exception {
-		final EventLoop loop = ctx.channel().eventLoop();
-		loop.schedule(new Runnable() {
-			@Override
-			public void run() {
-				channelInactive(ctx);
-			}
-		},0,TimeUnit.SECONDS);
-	}
-
 }
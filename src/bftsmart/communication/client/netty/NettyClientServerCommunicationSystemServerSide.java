@@ -146,6 +146,7 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 	public void channelInactive(ChannelHandlerContext ctx) {
 		rl.writeLock().lock();
 		try {
+			//the channel may be shared by many clients of the same JVM
 			Set s = sessionTable.entrySet();
 			Iterator i = s.iterator();
 			while (i.hasNext()) {
@@ -154,9 +155,8 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 				if (ctx.channel().equals(value.getChannel())) {
 					int key = (Integer) m.getKey();
 					System.out.println("#Removing client channel with ID= " + key);
-					sessionTable.remove(key);
+					i.remove();
 					System.out.println("#active clients=" + sessionTable.size());
-					break;
 				}
 			}
 			
@@ -202,7 +202,7 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 		//produce signature if necessary (never in the current version)
 		if (sm.signed) {
 			//******* EDUARDO BEGIN **************//
-			byte[] data2 = TOMUtil.signMessage(controller.getStaticConf().getRSAPrivateKey(), data);
+			byte[] data2 = TOMUtil.signMessage(controller.getStaticConf().getPrivateKey(), data);
 			//******* EDUARDO END **************//
 			sm.serializedMessageSignature = data2;
 		}
@@ -0,0 +1,125 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package bftsmart.communication.client.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+
+import java.net.SocketAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import bftsmart.reconfiguration.ClientViewController;
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Netty runtime shared by all the clients of a JVM: one group of event loops
+ * (NIO, or native epoll if configured and available) and, unless disabled,
+ * one connection to each replica, over which the requests and replies of all
+ * the clients attached to it travel. Each client keeps its own MAC keys.
+ */
+public class NettyClientTransport {
+
+    private static NettyClientTransport instance = null;
+
+    /**
+     * Returns the runtime of this JVM, created with the configuration of the
+     * first client that asks for it
+     */
+    public static synchronized NettyClientTransport getInstance(TOMConfiguration conf) {
+        if (instance == null) {
+            instance = new NettyClientTransport(conf);
+        }
+        return instance;
+    }
+
+    private final EventLoopGroup group;
+    private final Class<? extends Channel> channelClass;
+    private final boolean shared;
+    private final Map<String, NettyClientConnection> connections = new HashMap<String, NettyClientConnection>();
+
+    private NettyClientTransport(TOMConfiguration conf) {
+        // daemon threads, as the loops live as long as the JVM
+        ThreadFactory threads = new DefaultThreadFactory("bftsmart-client", true);
+
+        // the native transport reads into direct buffers, which Netty only uses when it has access to Unsafe
+        if (conf.isClientEpoll() && Epoll.isAvailable() && PlatformDependent.directBufferPreferred()) {
+            group = new EpollEventLoopGroup(conf.getClientEventLoops(), threads);
+            channelClass = EpollSocketChannel.class;
+        } else {
+            if (conf.isClientEpoll()) {
+                System.out.println("Native epoll not usable in this JVM, using NIO");
+            }
+            group = new NioEventLoopGroup(conf.getClientEventLoops(), threads);
+            channelClass = NioSocketChannel.class;
+        }
+        shared = conf.isSharedClientConnections();
+    }
+
+    EventLoopGroup getGroup() {
+        return group;
+    }
+
+    Class<? extends Channel> getChannelClass() {
+        return channelClass;
+    }
+
+    /**
+     * Attaches a client to the connection to a replica, opening the
+     * connection if no other client uses it yet.
+     *
+     * @return The connection, whose connect future tells when it is usable
+     */
+    synchronized NettyClientConnection attach(NettyClientServerCommunicationSystemClientSide client, int replicaId,
+            SocketAddress address, ClientViewController controller) throws NoSuchAlgorithmException {
+        String key = shared ? address.toString() : address + "/" + client.getClientId();
+
+        NettyClientConnection conn = connections.get(key);
+        if (conn == null) {
+            conn = new NettyClientConnection(this, key, replicaId, address, controller);
+            connections.put(key, conn);
+            conn.connect();
+        }
+        conn.attach(client);
+        return conn;
+    }
+
+    /**
+     * Detaches a client from a connection, closing it if it was the last one
+     */
+    synchronized void detach(NettyClientServerCommunicationSystemClientSide client, NettyClientConnection conn) {
+        if (conn.detach(client) && connections.get(conn.getKey()) == conn) {
+            connections.remove(conn.getKey());
+            conn.close();
+        }
+    }
+
+    /**
+     * @return The number of connections open to the replicas
+     */
+    public synchronized int getConnections() {
+        return connections.size();
+    }
+}
@@ -109,6 +109,13 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
         //read control byte indicating if message is signed
         byte signed = buffer.readByte();
 
+        //replies carry the id of the client they are for, as many clients may share the channel
+        int destination = -1;
+        if (isClient) {
+            destination = buffer.readInt();
+            totalLength -= 4;
+        }
+
         int authLength = 0;
 
         if (signed == 1) {
@@ -152,9 +159,10 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
             }
 
             if (isClient) {
+                sm.destination = destination;
                 //verify MAC
                 if (useMAC) {
-                    if (!verifyMAC(sm.getSender(), data, digest)) {
+                    if (!verifyClientMAC(destination, sm.getSender(), data, digest)) {
                         System.out.println("MAC error: message discarded");
                         return;
                     }
@@ -219,4 +227,16 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
         return result;
     }
 
+    /**
+     * Verifies a reply with the session between the client it is for and the replica
+     */
+    boolean verifyClientMAC(int clientId, int replicaId, byte[] data, byte[] digest) {
+        NettyClientServerCommunicationSystemClientSide client = (NettyClientServerCommunicationSystemClientSide) sessionTable.get(clientId);
+        NettyClientServerSession session = (client == null ? null : client.getSession(replicaId));
+        if (session == null) {
+            return false;
+        }
+        return Arrays.equals(session.getMacReceive().doFinal(data), digest);
+    }
+
 }
@@ -69,7 +69,7 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
             }
         }
 
-        int dataLength = 1+msgData.length+(macData==null?0:macData.length)+
+        int dataLength = 1+(isClient?0:4)+msgData.length+(macData==null?0:macData.length)+
                 (signatureData==null?0:signatureData.length);
 
         //Logger.println("Sending message with "+dataLength+" bytes.");
@@ -77,6 +77,9 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
         buffer.writeInt(dataLength);
         /* control byte indicating if the message is signed or not */
         buffer.writeByte(sm.signed==true?(byte)1:(byte)0);       
+        /* client the reply is for, as many clients may share the channel */
+        if (!isClient)
+        	buffer.writeInt(sm.destination);
         /* data to be sent */
         buffer.writeBytes(msgData);
          /* MAC */
@@ -90,7 +93,14 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
     }
 
     byte[] produceMAC(int id, byte[] data, int me) {
-        NettyClientServerSession session = (NettyClientServerSession)sessionTable.get(id);
+        NettyClientServerSession session;
+        if (isClient) {
+            //the channel is shared by many clients, each with its own session
+            NettyClientServerCommunicationSystemClientSide client = (NettyClientServerCommunicationSystemClientSide)sessionTable.get(me);
+            session = (client == null ? null : client.getSession(id));
+        } else {
+            session = (NettyClientServerSession)sessionTable.get(id);
+        }
         if(session == null) {
         	System.out.println("NettyTOMMessageEncoder.produceMAC(). session for client " + id + " is null");
         	return null;
@@ -0,0 +1,37 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.loopback;
+
+/**
+ * Message in transit in the loopback network: the bytes that would be
+ * written to the wire, owned by the receiver once sent
+ */
+final class Frame {
+
+    final byte[] data;
+    final byte[] signature; // signature of a client request (null if not signed)
+    final boolean useMAC; // whether the message would be sent with a MAC
+
+    Frame(byte[] data, byte[] signature, boolean useMAC) {
+        this.data = data;
+        this.signature = signature;
+        this.useMAC = useMAC;
+    }
+
+    int size() {
+        return data.length + (signature != null ? signature.length : 0);
+    }
+}
@@ -0,0 +1,135 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.loopback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import bftsmart.communication.client.CommunicationSystemClientSide;
+import bftsmart.communication.client.ReplyReceiver;
+import bftsmart.reconfiguration.ClientViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Client side of the client-server communication through the loopback
+ * network, used instead of Netty when system.communication.replicaTransport
+ * is set to loopback. A replica is reachable as long as it is running in
+ * the same JVM.
+ */
+public class LoopbackCommunicationSystemClientSide implements CommunicationSystemClientSide, LoopbackNetwork.Endpoint {
+
+    private final LoopbackNetwork network;
+    private final ClientViewController controller;
+    private final int clientId;
+    private ReplyReceiver trr;
+
+    public LoopbackCommunicationSystemClientSide(int clientId, ClientViewController controller) {
+        this.network = LoopbackNetwork.getDefault();
+        this.controller = controller;
+        this.clientId = clientId;
+
+        network.register(LoopbackNetwork.REPLIES, clientId, this);
+    }
+
+    @Override
+    public void setReplyReceiver(ReplyReceiver trr) {
+        this.trr = trr;
+    }
+
+    @Override
+    public void send(boolean sign, int[] targets, TOMMessage sm) {
+        if (sm.serializedMessage == null) {
+            sm.serializedMessage = serialize(sm);
+            if (sm.serializedMessage == null) return;
+        }
+
+        //produce signature
+        if (sign && sm.serializedMessageSignature == null) {
+            sm.serializedMessageSignature = TOMUtil.signMessage(
+                    controller.getStaticConf().getPrivateKey(), sm.serializedMessage);
+        }
+        sm.signed = sign;
+
+        Frame frame = new Frame(sm.serializedMessage, sign ? sm.serializedMessageSignature : null, false);
+        int sent = 0;
+        for (int i = targets.length - 1; i >= 0; i--) {
+            if (network.send(LoopbackNetwork.REQUESTS, clientId, targets[i], frame, frame.size())) {
+                sent++;
+            } else {
+                Logger.println("Replica " + targets[i] + " is not running");
+            }
+        }
+
+        if (targets.length > controller.getCurrentViewF() && sent < controller.getCurrentViewF() + 1) {
+            //if less than f+1 servers are connected send an exception to the client
+            throw new RuntimeException("Impossible to connect to servers!");
+        }
+        if (targets.length == 1 && sent == 0)
+            throw new RuntimeException("Server not connected");
+    }
+
+    @Override
+    public void sign(TOMMessage sm) {
+        sm.serializedMessage = serialize(sm);
+        sm.serializedMessageSignature = TOMUtil.signMessage(controller.getStaticConf().getPrivateKey(),
+                sm.serializedMessage);
+    }
+
+    @Override
+    public void close() {
+        network.unregister(LoopbackNetwork.REPLIES, clientId);
+    }
+
+    @Override
+    public void updateConnections() {
+        // replicas are reached through the network as soon as they are running
+    }
+
+    /**
+     * Called by the thread of this client in the loopback network for each
+     * reply received
+     */
+    public void receive(int from, Object message) {
+        Frame frame = (Frame) message;
+        TOMMessage sm = new TOMMessage();
+        try {
+            sm.rExternal(new DataInputStream(new ByteArrayInputStream(frame.data)));
+        } catch (Exception ex) {
+            Logger.println("Impossible to decode message: " + ex.getMessage());
+            return;
+        }
+        sm.serializedMessage = frame.data;
+        trr.replyReceived(sm);
+    }
+
+    private static byte[] serialize(TOMMessage sm) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            sm.wExternal(dos);
+            dos.flush();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            Logger.println("Impossible to serialize message: " + sm);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.loopback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import bftsmart.communication.client.CommunicationSystemServerSide;
+import bftsmart.communication.client.RequestReceiver;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.Logger;
+
+/**
+ * Server side of the client-server communication through the loopback
+ * network, used instead of Netty when system.communication.replicaTransport
+ * is set to loopback
+ */
+public class LoopbackCommunicationSystemServerSide implements CommunicationSystemServerSide, LoopbackNetwork.Endpoint {
+
+    private final LoopbackNetwork network;
+    private final int me;
+    private RequestReceiver requestReceiver;
+
+    public LoopbackCommunicationSystemServerSide(ServerViewController controller) {
+        this.network = LoopbackNetwork.getDefault();
+        this.me = controller.getStaticConf().getProcessId();
+
+        network.register(LoopbackNetwork.REQUESTS, me, this);
+
+        System.out.println("#Using the loopback network");
+        System.out.println("#myId " + me);
+        System.out.println("#n " + controller.getCurrentViewN());
+        System.out.println("#f " + controller.getCurrentViewF());
+    }
+
+    @Override
+    public void setRequestReceiver(RequestReceiver requestReceiver) {
+        this.requestReceiver = requestReceiver;
+    }
+
+    @Override
+    public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
+        byte[] data;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            sm.wExternal(dos);
+            dos.flush();
+            data = baos.toByteArray();
+            sm.serializedMessage = data;
+        } catch (IOException ex) {
+            Logger.println("Error enconding message.");
+            return;
+        }
+
+        //replies are not signed in the current JBP version
+        sm.signed = false;
+
+        for (int i = 0; i < targets.length; i++) {
+            if (!network.send(LoopbackNetwork.REPLIES, me, targets[i], new Frame(data, null, false), data.length)) {
+                Logger.println("(LoopbackCommunicationSystemServerSide.send) client " + targets[i] + " not running, sequence: " + sm.getSequence());
+            }
+        }
+    }
+
+    /**
+     * Called by the thread of this replica in the loopback network for each
+     * request received
+     */
+    public void receive(int from, Object message) {
+        Frame frame = (Frame) message;
+        TOMMessage sm = new TOMMessage();
+        try {
+            sm.rExternal(new DataInputStream(new ByteArrayInputStream(frame.data)));
+        } catch (Exception ex) {
+            Logger.println("Impossible to decode message: " + ex.getMessage());
+            return;
+        }
+        sm.serializedMessage = frame.data;
+        if (frame.signature != null) {
+            sm.serializedMessageSignature = frame.signature;
+            sm.signed = true;
+        }
+
+        if (requestReceiver == null) {
+            Logger.println("(LoopbackCommunicationSystemServerSide.receive) no request receiver set, discarding request from " + from);
+        } else {
+            requestReceiver.requestReceived(sm);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.loopback;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory network connecting the replicas and clients that run in the same
+ * JVM (system.communication.replicaTransport = loopback), so that a whole
+ * group can be run and measured in one process, without sockets nor key
+ * exchanges.
+ *
+ * Each process receives the messages of each channel (replica links,
+ * requests and replies) in its own thread, in the order they were sent by
+ * each sender. Links can be given a latency and a bandwidth, and processes
+ * can be partitioned: the messages between processes in different partitions
+ * are silently lost, as in a real network partition.
+ */
+public final class LoopbackNetwork {
+
+    /** Channel of the links between replicas */
+    public static final int SERVERS = 0;
+    /** Channel of the requests, from clients to replicas */
+    public static final int REQUESTS = 1;
+    /** Channel of the replies, from replicas to clients */
+    public static final int REPLIES = 2;
+
+    private static final String[] CHANNEL_NAMES = {"servers", "requests", "replies"};
+
+    private static final LoopbackNetwork DEFAULT = new LoopbackNetwork();
+
+    /**
+     * Process attached to a channel of the network
+     */
+    public interface Endpoint {
+        /**
+         * Called by the thread of the endpoint for each message sent to it
+         * @param from ID of the sender
+         * @param message the message (a copy owned by the receiver)
+         */
+        void receive(int from, Object message);
+    }
+
+    /**
+     * Delivery thread of an endpoint
+     */
+    private static final class Port {
+        final Endpoint endpoint;
+        final ScheduledThreadPoolExecutor executor;
+
+        Port(Endpoint endpoint, final String name) {
+            this.endpoint = endpoint;
+            this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Conditions and counters of the link from one process to another
+     */
+    private static final class Link {
+        long latency = -1; // microseconds (-1 for the default)
+        long bandwidth = -1; // bytes per second (-1 for the default, 0 for unlimited)
+        long busyUntil = 0; // when the last message sent finishes going through the link
+        long messages = 0;
+        long bytes = 0;
+        long lost = 0;
+        final ConcurrentLinkedQueue<?>[] inTransit = new ConcurrentLinkedQueue<?>[CHANNEL_NAMES.length]; // per channel
+
+        Link() {
+            for (int i = 0; i < inTransit.length; i++) inTransit[i] = new ConcurrentLinkedQueue<Object>();
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Port> ports = new ConcurrentHashMap<Long, Port>();
+    private final ConcurrentHashMap<Long, Link> links = new ConcurrentHashMap<Long, Link>();
+    private final ConcurrentHashMap<Integer, Integer> partitions = new ConcurrentHashMap<Integer, Integer>();
+    private volatile long defaultLatency = 0;
+    private volatile long defaultBandwidth = 0;
+
+    /**
+     * @return the network used by the replicas and clients of this JVM
+     */
+    public static LoopbackNetwork getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Attaches a process to a channel, replacing the endpoint it had before
+     * @param channel SERVERS, REQUESTS or REPLIES
+     * @param id ID of the process
+     * @param endpoint receives the messages sent to the process
+     */
+    public void register(int channel, int id, Endpoint endpoint) {
+        Port old = ports.put(key(channel, id), new Port(endpoint, "Loopback " + CHANNEL_NAMES[channel] + " " + id));
+        if (old != null) detach(old, channel, id);
+    }
+
+    /**
+     * Detaches a process from a channel. Messages in transit to it are lost.
+     */
+    public void unregister(int channel, int id) {
+        Port old = ports.remove(key(channel, id));
+        if (old != null) detach(old, channel, id);
+    }
+
+    private void detach(Port port, int channel, int id) {
+        port.executor.shutdownNow();
+        for (Map.Entry<Long, Link> e : links.entrySet()) {
+            if ((int) (long) e.getKey() == id) {
+                synchronized (e.getValue()) {
+                    e.getValue().inTransit[channel].clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the process is attached to the channel
+     */
+    public boolean isRegistered(int channel, int id) {
+        return ports.containsKey(key(channel, id));
+    }
+
+    /**
+     * Sends a message. It is delivered after the latency of the link, plus
+     * the time the messages sent before it take to go through the bandwidth
+     * of the link, unless the processes are partitioned.
+     *
+     * @param channel SERVERS, REQUESTS or REPLIES
+     * @param from ID of the sender
+     * @param to ID of the receiver
+     * @param message the message, not to be changed by the sender afterwards
+     * @param size size of the message in bytes
+     * @return false if the receiver is not attached to the channel
+     */
+    public boolean send(int channel, int from, int to, Object message, int size) {
+        Port port = ports.get(key(channel, to));
+        if (port == null) return false;
+
+        final Link link = getLink(from, to);
+        if (isPartitioned(from, to)) {
+            synchronized (link) {
+                link.lost++;
+            }
+            return true;
+        }
+
+        final Endpoint endpoint = port.endpoint;
+        final int sender = from;
+        @SuppressWarnings("unchecked")
+        final ConcurrentLinkedQueue<Object> inTransit = (ConcurrentLinkedQueue<Object>) link.inTransit[channel];
+        synchronized (link) {
+            long now = System.nanoTime();
+            long latency = link.latency >= 0 ? link.latency : defaultLatency;
+            long bandwidth = link.bandwidth >= 0 ? link.bandwidth : defaultBandwidth;
+
+            long start = Math.max(now, link.busyUntil);
+            link.busyUntil = start + (bandwidth > 0 ? size * 1000000000L / bandwidth : 0);
+            link.messages++;
+            link.bytes += size;
+
+            // each task delivers the oldest message of the link, so the order is kept
+            inTransit.add(message);
+            try {
+                port.executor.schedule(new Runnable() {
+                    public void run() {
+                        Object m = inTransit.poll();
+                        try {
+                            endpoint.receive(sender, m);
+                        } catch (RuntimeException ex) {
+                            ex.printStackTrace(System.err);
+                        }
+                    }
+                }, link.busyUntil - now + latency * 1000, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                inTransit.remove(message); // the receiver was detached meanwhile
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the latency and bandwidth of the links without their own
+     * @param latency one-way latency in microseconds
+     * @param bandwidth bytes per second (0 for unlimited)
+     */
+    public void setDefaultLink(long latency, long bandwidth) {
+        this.defaultLatency = Math.max(0, latency);
+        this.defaultBandwidth = Math.max(0, bandwidth);
+    }
+
+    /**
+     * Sets the latency and bandwidth of the link from one process to another
+     * @param from ID of the sender
+     * @param to ID of the receiver
+     * @param latency one-way latency in microseconds (-1 for the default)
+     * @param bandwidth bytes per second (0 for unlimited, -1 for the default)
+     */
+    public void setLink(int from, int to, long latency, long bandwidth) {
+        Link link = getLink(from, to);
+        synchronized (link) {
+            link.latency = latency;
+            link.bandwidth = bandwidth;
+        }
+    }
+
+    /**
+     * Partitions the network: processes in different groups cannot
+     * communicate. Processes not in any group reach all the others.
+     * @param groups IDs of the processes of each group
+     */
+    public void partition(int[]... groups) {
+        partitions.clear();
+        for (int i = 0; i < groups.length; i++) {
+            for (int id : groups[i]) partitions.put(id, i);
+        }
+    }
+
+    /**
+     * Removes the partitions
+     */
+    public void heal() {
+        partitions.clear();
+    }
+
+    /**
+     * @return true if the messages from one process to the other are lost
+     */
+    public boolean isPartitioned(int from, int to) {
+        Integer a = partitions.get(from);
+        Integer b = partitions.get(to);
+        return a != null && b != null && !a.equals(b);
+    }
+
+    /**
+     * Detaches all processes and restores the default conditions
+     */
+    public void reset() {
+        for (Iterator<Port> i = ports.values().iterator(); i.hasNext();) {
+            i.next().executor.shutdownNow();
+            i.remove();
+        }
+        links.clear();
+        partitions.clear();
+        defaultLatency = 0;
+        defaultBandwidth = 0;
+    }
+
+    /**
+     * @return the messages and bytes sent, and the messages lost, of each link
+     */
+    public String getStats() {
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<Long, Link> e : links.entrySet()) {
+            Link link = e.getValue();
+            synchronized (link) {
+                str.append((int) (e.getKey() >> 32)).append("->").append((int) (long) e.getKey())
+                        .append(": messages=").append(link.messages)
+                        .append(", bytes=").append(link.bytes)
+                        .append(", lost=").append(link.lost).append("\n");
+            }
+        }
+        return str.toString();
+    }
+
+    private Link getLink(int from, int to) {
+        Long k = key(from, to);
+        Link link = links.get(k);
+        if (link == null) {
+            Link l = new Link();
+            link = links.putIfAbsent(k, l);
+            if (link == null) link = l;
+        }
+        return link;
+    }
+
+    private static Long key(int a, int b) {
+        return ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+}
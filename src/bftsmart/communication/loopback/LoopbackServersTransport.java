@@ -0,0 +1,155 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.loopback;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import bftsmart.communication.InboundStage;
+import bftsmart.communication.MessageCodec;
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.MacVectorAuthenticator;
+import bftsmart.communication.server.OutboundMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.util.Logger;
+
+/**
+ * Transport for the links between replicas that run in the same JVM, used by
+ * ServersCommunicationLayer when system.communication.replicaTransport is
+ * set to loopback. Messages are encoded and decoded as with the other
+ * transports, but go through a LoopbackNetwork instead of sockets.
+ *
+ * There is no key exchange: the key shared by two replicas (used for the MAC
+ * vectors of ACCEPTs) is derived from their IDs, and the link itself is
+ * trusted, so a message sent with a MAC is received as authenticated.
+ */
+public class LoopbackServersTransport implements LoopbackNetwork.Endpoint {
+
+    private final ServerViewController controller;
+    private final InboundStage inbound;
+    private final ServiceReplica replica;
+    private final MacVectorAuthenticator authenticator;
+    private final LoopbackNetwork network;
+    private final int me;
+    private final boolean useMACs;
+    private final ConcurrentHashMap<Integer, SecretKey> keys = new ConcurrentHashMap<Integer, SecretKey>();
+
+    public LoopbackServersTransport(ServerViewController controller, InboundStage inbound,
+            ServiceReplica replica, MacVectorAuthenticator authenticator) {
+
+        this.controller = controller;
+        this.inbound = inbound;
+        this.replica = replica;
+        this.authenticator = authenticator;
+        this.network = LoopbackNetwork.getDefault();
+        this.me = controller.getStaticConf().getProcessId();
+        this.useMACs = controller.getStaticConf().getUseMACs() == 1;
+
+        network.register(LoopbackNetwork.SERVERS, me, this);
+    }
+
+    public SecretKey getSecretKey(int id) {
+        SecretKey key = keys.get(id);
+        if (key == null) {
+            try {
+                SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
+                String str = Math.min(me, id) + ":" + Math.max(me, id);
+                key = fac.generateSecret(new PBEKeySpec(str.toCharArray()));
+                keys.put(id, key);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Sends a message to a replica, taking over the reference to the message
+     * held by the caller
+     */
+    public void send(int remoteId, OutboundMessage msg) {
+        byte[] data = new byte[msg.length()];
+        msg.copyTo(data, 0);
+        boolean useMAC = msg.isUseMAC();
+        msg.release();
+
+        if (!network.send(LoopbackNetwork.SERVERS, me, remoteId, new Frame(data, null, useMAC), data.length)) {
+            Logger.println("(LoopbackServersTransport.send) replica " + remoteId + " not running (message discarded).");
+        }
+    }
+
+    /**
+     * Called by the thread of this replica in the loopback network for each
+     * message received from another replica
+     */
+    public void receive(int from, Object message) {
+        Frame frame = (Frame) message;
+        SystemMessage sm;
+        try {
+            sm = MessageCodec.decode(frame.data, 0, frame.data.length, controller.getCurrentViewN());
+        } catch (Exception ex) {
+            Logger.println("(LoopbackServersTransport.receive) invalid message from " + from + ": " + ex);
+            return;
+        }
+
+        if (from == controller.getStaticConf().getTTPId()) {
+            // messages indicating the entrance into the system, coming from the TTP
+            if (sm.getSender() == from) {
+                replica.joinMsgReceived((VMMessage) sm);
+            }
+            return;
+        }
+
+        sm.authenticated = useMACs && frame.useMAC;
+        if (!sm.authenticated && !authenticator.authenticate(sm, from, me)) {
+            Logger.println("(LoopbackServersTransport.receive) WARNING: invalid MAC vector from " + from);
+            System.out.println("(LoopbackServersTransport.receive) WARNING: invalid MAC vector from " + from);
+        } else if (sm.getSender() == from) {
+            if (!inbound.offer(sm)) {
+                Logger.println("(LoopbackServersTransport.receive) in queue full (message from " + from + " discarded).");
+                System.out.println("(LoopbackServersTransport.receive) in queue full (message from " + from + " discarded).");
+            }
+        }
+    }
+
+    public void updateConnections() {
+        // links are not established, messages are sent to whoever is running
+    }
+
+    public void joinViewReceived() {
+    }
+
+    public void shutdown() {
+        network.unregister(LoopbackNetwork.SERVERS, me);
+    }
+
+    /**
+     * @return the counters of the links of the loopback network
+     */
+    public String getLinkStats() {
+        return network.getStats();
+    }
+
+    @Override
+    public String toString() {
+        return inbound.toString();
+    }
+}
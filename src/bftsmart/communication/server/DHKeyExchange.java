@@ -0,0 +1,259 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Diffie-Hellman exchange used to establish the secret key shared by two
+ * replicas when they connect. Each replica sends its DH public key, signed
+ * with its RSA private key, and derives the shared key from the public key
+ * of the other.
+ *
+ * Both DH keys of a replica are derived from its RSA private key, so the key
+ * shared with another replica only changes if one of them changes its RSA
+ * keys. One exchange is shared by all the connections of a replica, and its
+ * public key, signature and shared keys are cached (in the sessionKeyCache
+ * file, if configured, to be used after a restart), so each modPow is only
+ * done once.
+ */
+public class DHKeyExchange {
+
+    private final ServerViewController controller;
+    private final BigInteger DHPrivKey;
+    private final byte[] publicKey;
+    private final byte[] signature;
+    private final String cacheFile; // null if the keys are only cached in memory
+    private final byte[] cacheId; // digest of the RSA private key and DH parameters the cached keys come from
+    private final Map<Integer, CachedKey> cache = new Hashtable<Integer, CachedKey>();
+
+    public DHKeyExchange(ServerViewController controller) {
+        this.controller = controller;
+
+        //Derive DH private key from replica's own RSA private key
+        PrivateKey RSAprivKey = controller.getStaticConf().getRSAPrivateKey();
+        this.DHPrivKey = new BigInteger(RSAprivKey.getEncoded());
+
+        this.cacheFile = controller.getStaticConf().getSessionKeyCacheFile();
+        this.cacheId = digest(RSAprivKey.getEncoded(), controller.getStaticConf().getDHG().toByteArray(),
+                controller.getStaticConf().getDHP().toByteArray());
+        byte[][] cached = loadCache();
+
+        if (cached != null) {
+            this.publicKey = cached[0];
+            this.signature = cached[1];
+        } else {
+            //Create DH public key and turn it into a byte array
+            BigInteger myDHPubKey =
+                    controller.getStaticConf().getDHG().modPow(DHPrivKey, controller.getStaticConf().getDHP());
+            this.publicKey = myDHPubKey.toByteArray();
+            this.signature = TOMUtil.signMessage(RSAprivKey, publicKey);
+        }
+    }
+
+    private static byte[] digest(byte[]... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : parts) {
+                md.update(part);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return the DH public key of this replica, to be sent to the other
+     */
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * @return the signature of the DH public key of this replica
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * Creates the secret key shared with another replica
+     *
+     * @param remoteId ID of the other replica
+     * @param remoteBytes DH public key received from it
+     * @param remoteSignature signature of that key
+     * @return the secret key, or null if the signature is invalid
+     * @throws Exception if the key cannot be created
+     */
+    public SecretKey establishKey(int remoteId, byte[] remoteBytes, byte[] remoteSignature) throws Exception {
+        //verify signature
+        PublicKey remoteRSAPubkey = controller.getStaticConf().getRSAPublicKey(remoteId);
+
+        if (!TOMUtil.verifySignature(remoteRSAPubkey, remoteBytes, remoteSignature)) {
+            System.out.println(remoteId + " sent an invalid signature!");
+            return null;
+        }
+
+        String secret;
+        CachedKey cached = cache.get(remoteId);
+        if (cached != null && Arrays.equals(cached.remoteKey, remoteBytes)) {
+            secret = cached.secret;
+            Logger.println("Diffie-Hellman key of " + remoteId + " taken from the cache");
+        } else {
+            BigInteger remoteDHPubKey = new BigInteger(remoteBytes);
+
+            //Create secret key
+            BigInteger secretKey =
+                    remoteDHPubKey.modPow(DHPrivKey, controller.getStaticConf().getDHP());
+            secret = secretKey.toString();
+
+            cache.put(remoteId, new CachedKey(remoteBytes, secret));
+            saveCache();
+        }
+
+        System.out.println("#Diffie-Hellman complete with " + remoteId);
+
+        SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
+        PBEKeySpec spec = new PBEKeySpec(secret.toCharArray());
+        return fac.generateSecret(spec);
+    }
+
+    /**
+     * Reads the keys cached by a previous run, unless they were established
+     * with other keys of this replica
+     * @return the DH public key of this replica and its signature, or null
+     * if they are not cached
+     */
+    private byte[][] loadCache() {
+        if (cacheFile == null || !new File(cacheFile).exists()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(cacheFile));
+            byte[] id = new byte[in.readInt()];
+            in.readFully(id);
+            if (!Arrays.equals(id, cacheId)) return null;
+
+            byte[] ownKey = new byte[in.readInt()];
+            in.readFully(ownKey);
+            byte[] ownSignature = new byte[in.readInt()];
+            in.readFully(ownSignature);
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int remoteId = in.readInt();
+                byte[] remoteKey = new byte[in.readInt()];
+                in.readFully(remoteKey);
+                cache.put(remoteId, new CachedKey(remoteKey, in.readUTF()));
+            }
+            return new byte[][]{ownKey, ownSignature};
+        } catch (IOException ex) {
+            System.out.println("Could not read the session keys from " + cacheFile + ": " + ex);
+            cache.clear();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the keys cached to a new file, readable only by its owner, that
+     * then replaces the old one
+     */
+    private synchronized void saveCache() {
+        if (cacheFile == null) return;
+
+        File tmp = new File(cacheFile + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            out.writeInt(cacheId.length);
+            out.write(cacheId);
+            out.writeInt(publicKey.length);
+            out.write(publicKey);
+            out.writeInt(signature.length);
+            out.write(signature);
+
+            Map<Integer, CachedKey> copy = new Hashtable<Integer, CachedKey>(cache);
+            out.writeInt(copy.size());
+            for (Map.Entry<Integer, CachedKey> e : copy.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeInt(e.getValue().remoteKey.length);
+                out.write(e.getValue().remoteKey);
+                out.writeUTF(e.getValue().secret);
+            }
+            out.close();
+            out = null;
+
+            File file = new File(cacheFile);
+            if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+                throw new IOException("cannot replace " + cacheFile);
+            }
+        } catch (IOException ex) {
+            System.out.println("Could not write the session keys to " + cacheFile + ": " + ex);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Key shared with another replica, and the DH public key it was derived from
+     */
+    private static class CachedKey {
+
+        final byte[] remoteKey;
+        final String secret;
+
+        CachedKey(byte[] remoteKey, String secret) {
+            this.remoteKey = remoteKey;
+            this.secret = secret;
+        }
+    }
+}
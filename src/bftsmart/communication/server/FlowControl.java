@@ -0,0 +1,150 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bftsmart.reconfiguration.ServerViewController;
+
+/**
+ * Credit-based flow control of the link with another replica.
+ *
+ * Each replica grants the other a window of credits, one per message it is
+ * able to hold in its in queue, right after the connection is established.
+ * The sender spends a credit for each message it writes, and stops writing
+ * when it has none (the messages wait in the out queues, and are discarded
+ * only when these fill up). The receiver gives the credits back, in groups
+ * of a quarter of the window, as the messages are taken from the in queue.
+ *
+ * This class keeps the receiver side of the window and the counters of the
+ * link; the credits of the sender are kept by the transport.
+ */
+public class FlowControl {
+
+    /** Grant that disables flow control (the sender never stalls) */
+    public static final int UNLIMITED = ServerConnection.CHUNK_LENGTH_MASK;
+
+    private final int window;
+    private final int threshold;
+    private final AtomicInteger consumed = new AtomicInteger(0);
+
+    private final AtomicLong droppedConsensus = new AtomicLong(0);
+    private final AtomicLong droppedBulk = new AtomicLong(0);
+    private final AtomicLong receiveDropped = new AtomicLong(0);
+    private final AtomicLong stalls = new AtomicLong(0);
+    private final AtomicLong stallNanos = new AtomicLong(0);
+
+    /**
+     * @param controller the view controller of this replica
+     * @param remoteId ID of the remote replica
+     */
+    public FlowControl(ServerViewController controller, int remoteId) {
+        int ttp = controller.getStaticConf().getTTPId();
+        if (controller.getStaticConf().isTheTTP() || remoteId == ttp) {
+            this.window = -1; // no flow control with the TTP
+        } else if (controller.getStaticConf().getCreditWindow() >= 0) {
+            this.window = controller.getStaticConf().getCreditWindow();
+        } else {
+            // share the in queue among the other replicas
+            this.window = Math.max(1, controller.getStaticConf().getInQueueSize() /
+                    Math.max(1, controller.getCurrentViewN() - 1));
+        }
+        this.threshold = Math.max(1, window / 4);
+    }
+
+    /**
+     * @return false if no credits are exchanged in this link
+     */
+    public boolean isEnabled() {
+        return window >= 0;
+    }
+
+    /**
+     * @return credits granted to the remote replica when the connection is established
+     */
+    public int initialGrant() {
+        return window == 0 ? UNLIMITED : window;
+    }
+
+    /**
+     * Starts the window of a new connection
+     */
+    public void reset() {
+        consumed.set(0);
+    }
+
+    /**
+     * Called when a message of the remote replica leaves the in queue, or is
+     * discarded when received
+     * @return credits to give back to the remote replica now (0 if none)
+     */
+    public int consumed() {
+        if (window <= 0) return 0;
+        if (consumed.incrementAndGet() < threshold) return 0;
+        return consumed.getAndSet(0);
+    }
+
+    /**
+     * Records a message discarded because the out queue for the remote replica was full
+     */
+    public void dropped(boolean bulk) {
+        (bulk ? droppedBulk : droppedConsensus).incrementAndGet();
+    }
+
+    /**
+     * Records a message of the remote replica discarded because the in queue was full
+     */
+    public void receiveDropped() {
+        receiveDropped.incrementAndGet();
+    }
+
+    /**
+     * Records a period in which the sender waited for credits
+     */
+    public void stalled(long nanos) {
+        stalls.incrementAndGet();
+        stallNanos.addAndGet(nanos);
+    }
+
+    public long getDroppedConsensus() {
+        return droppedConsensus.get();
+    }
+
+    public long getDroppedBulk() {
+        return droppedBulk.get();
+    }
+
+    public long getReceiveDropped() {
+        return receiveDropped.get();
+    }
+
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    public long getStallMillis() {
+        return stallNanos.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "window=" + (window == 0 ? "unlimited" : String.valueOf(window)) +
+                ", dropped consensus/bulk=" + droppedConsensus.get() + "/" + droppedBulk.get() +
+                ", receive drops=" + receiveDropped.get() +
+                ", stalls=" + stalls.get() + " (" + getStallMillis() + " ms)";
+    }
+}
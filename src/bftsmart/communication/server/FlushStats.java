@@ -0,0 +1,72 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the writes (flushes) made by the sender of a connection to another
+ * replica, and how many messages were coalesced into each one.
+ */
+public class FlushStats {
+
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final AtomicLong messages = new AtomicLong(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    private volatile int maxMessages = 0;
+
+    /**
+     * Records a flush
+     * @param messages number of messages written
+     * @param bytes number of bytes written
+     */
+    public void flushed(int messages, int bytes) {
+        this.flushes.incrementAndGet();
+        this.messages.addAndGet(messages);
+        this.bytes.addAndGet(bytes);
+        if (messages > maxMessages) maxMessages = messages; // only one sender updates it
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public int getMaxMessagesPerFlush() {
+        return maxMessages;
+    }
+
+    public double getMessagesPerFlush() {
+        long f = flushes.get();
+        return f == 0 ? 0 : (double) messages.get() / f;
+    }
+
+    @Override
+    public String toString() {
+        long f = flushes.get();
+        return "flushes=" + f + ", messages=" + messages.get() +
+                ", msgs/flush=" + String.format("%.2f", getMessagesPerFlush()) +
+                ", max msgs/flush=" + maxMessages +
+                ", bytes/flush=" + (f == 0 ? 0 : bytes.get() / f);
+    }
+}
@@ -0,0 +1,235 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.MacVector;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+
+/**
+ * Authenticates consensus messages at the algorithm level, with the secret
+ * keys shared with each replica.
+ *
+ * The MACs are computed over a fixed-layout encoding of the message
+ * (sender, eid, round, type, length of the value and the value itself),
+ * which is the same sequence of fields PaxosMessage writes to the wire
+ * before its proof. The receiver thus checks the MAC over the fields and
+ * value it already deserialized, without encoding the message again, and
+ * the MAC vector stays valid when the message is forwarded in a leader
+ * change. Each replica has its own Mac object, which is only initialized
+ * again when the key shared with it changes.
+ */
+public final class MacVectorAuthenticator {
+
+    private static final int HEADER_SIZE = 20; // 5 ints
+
+    /**
+     * MAC engine for the key shared with one replica
+     */
+    private static final class PeerMac {
+        SecretKey key = null;
+        final Mac mac;
+        final byte[] header = new byte[HEADER_SIZE];
+        final byte[] result;
+
+        PeerMac() throws NoSuchAlgorithmException {
+            mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+            result = new byte[mac.getMacLength()];
+        }
+    }
+
+    private final ServersCommunicationLayer serversConn;
+    private final ConcurrentHashMap<Integer, PeerMac> peers = new ConcurrentHashMap<Integer, PeerMac>();
+    private final int macLength;
+
+    public MacVectorAuthenticator(ServersCommunicationLayer serversConn) throws NoSuchAlgorithmException {
+        this.serversConn = serversConn;
+        this.macLength = Mac.getInstance(ServerConnection.MAC_ALGORITHM).getMacLength();
+    }
+
+    /**
+     * Creates the vector of MACs for a message, one for each of the specified replicas.
+     * Waits until there is a secret key shared with each of them.
+     *
+     * @param pm the message
+     * @param processes IDs of the replicas
+     * @return the MAC vector
+     */
+    public MacVector createMacVector(PaxosMessage pm, int[] processes) {
+        MacVector vector = new MacVector(processes, macLength);
+
+        for (int i = 0; i < processes.length; i++) {
+            int id = processes[i];
+            try {
+                SecretKey key = null;
+                do {
+                    key = serversConn.getSecretKey(id);
+                    if (key == null) {
+                        System.out.println("I don't have yet a secret key with " + id + ". Retrying.");
+                        Thread.sleep(1000);
+                    }
+
+                } while (key == null); // JCS: This loop is to solve a race condition where a
+                                       // replica might have already been insert in the view or
+                                       // recovered after a crash, but it still did not concluded
+                                       // the diffie helman protocol. Not an elegant solution,
+                                       // but for now it will do
+
+                PeerMac peer = getPeer(id);
+                synchronized (peer) {
+                    init(peer, key);
+                    update(peer, pm);
+                    peer.mac.doFinal(vector.getMacs(), i * macLength);
+                }
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            } catch (InvalidKeyException ex) {
+                System.out.println("Problem with secret key from " + id);
+                ex.printStackTrace();
+            } catch (ShortBufferException ex) {
+                ex.printStackTrace();
+            } catch (NoSuchAlgorithmException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        return vector;
+    }
+
+    /**
+     * Verifies the MAC that the sender of a message computed for this replica
+     *
+     * @param pm the message
+     * @param vector MAC vector received with the message
+     * @param me ID of this replica
+     * @return true if the MAC is valid, false otherwise
+     */
+    public boolean verify(PaxosMessage pm, MacVector vector, int me) {
+        int offset = vector.getOffset(me);
+        if (offset < 0 || vector.getMacLength() != macLength) return false;
+
+        SecretKey key = serversConn.getSecretKey(pm.getSender());
+        if (key == null) return false;
+
+        try {
+            PeerMac peer = getPeer(pm.getSender());
+            synchronized (peer) {
+                init(peer, key);
+                update(peer, pm);
+                peer.mac.doFinal(peer.result, 0);
+
+                byte[] macs = vector.getMacs();
+                int diff = 0;
+                for (int i = 0; i < macLength; i++) {
+                    diff |= macs[offset + i] ^ peer.result[i];
+                }
+                return diff == 0;
+            }
+        } catch (InvalidKeyException ex) {
+            ex.printStackTrace();
+        } catch (ShortBufferException ex) {
+            ex.printStackTrace();
+        } catch (NoSuchAlgorithmException ex) {
+            ex.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Authenticates, at the algorithm level, an ACCEPT received from a replica
+     * without a channel MAC. This is done by the thread that receives the
+     * messages of that replica, so that the thread that orders the messages
+     * only has to check the 'authenticated' flag, which is set if the MAC
+     * vector is valid.
+     *
+     * @param sm the message received
+     * @param remoteId ID of the replica from which it was received
+     * @param me ID of this replica
+     * @return false if the message is an ACCEPT whose MAC vector is invalid, true otherwise
+     */
+    public boolean authenticate(SystemMessage sm, int remoteId, int me) {
+        if (!(sm instanceof PaxosMessage)) return true;
+
+        PaxosMessage pm = (PaxosMessage) sm;
+        if (pm.getPaxosType() != MessageFactory.ACCEPT || pm.getSender() != remoteId) return true;
+
+        pm.authenticated = pm.getProof() instanceof MacVector && verify(pm, (MacVector) pm.getProof(), me);
+        return pm.authenticated;
+    }
+
+    /**
+     * Encodes the authenticated fields of a message, so that they can be signed
+     * (when MACs are not enough)
+     *
+     * @param pm the message
+     * @return the same bytes over which the MACs are computed
+     */
+    public static byte[] encode(PaxosMessage pm) {
+        byte[] value = pm.getValue();
+        int length = value == null ? 0 : value.length;
+        byte[] data = new byte[HEADER_SIZE + length];
+        writeHeader(data, pm);
+        if (length > 0) System.arraycopy(value, 0, data, HEADER_SIZE, length);
+        return data;
+    }
+
+    private PeerMac getPeer(int id) throws NoSuchAlgorithmException {
+        PeerMac peer = peers.get(id);
+        if (peer == null) {
+            peer = new PeerMac();
+            PeerMac other = peers.putIfAbsent(id, peer);
+            if (other != null) peer = other;
+        }
+        return peer;
+    }
+
+    private static void init(PeerMac peer, SecretKey key) throws InvalidKeyException {
+        if (peer.key != key) { // the key changes when the connection is established again
+            peer.mac.init(key);
+            peer.key = key;
+        }
+    }
+
+    private static void update(PeerMac peer, PaxosMessage pm) {
+        writeHeader(peer.header, pm);
+        peer.mac.update(peer.header);
+        if (pm.getValue() != null) peer.mac.update(pm.getValue());
+    }
+
+    private static void writeHeader(byte[] buf, PaxosMessage pm) {
+        putInt(buf, 0, pm.getSender());
+        putInt(buf, 4, pm.getNumber());
+        putInt(buf, 8, pm.getRound());
+        putInt(buf, 12, pm.getPaxosType());
+        putInt(buf, 16, pm.getValue() == null ? -1 : pm.getValue().length);
+    }
+
+    private static void putInt(byte[] buf, int offset, int v) {
+        buf[offset] = (byte) (v >>> 24);
+        buf[offset + 1] = (byte) (v >>> 16);
+        buf[offset + 2] = (byte) (v >>> 8);
+        buf[offset + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import javax.crypto.Mac;
+
+import bftsmart.communication.MessageCodec;
+import bftsmart.communication.SystemMessage;
+
+/**
+ * An encoded message to be sent to other replicas. The message is encoded
+ * once, into a buffer taken from a pool, and the same (read-only) buffer is
+ * put in the queues of all its destinations.
+ *
+ * The buffer is reference counted: each destination holds a reference
+ * (retain) and gives it back (release) after writing the message, or when
+ * discarding it. The buffer returns to the pool after the last release.
+ *
+ * Messages of the bulk lane are written after the consensus ones queued for
+ * the same replica, and in pieces if they are large.
+ */
+public final class OutboundMessage implements ReferenceCounted {
+
+    private static final int INITIAL_SIZE = 256;
+
+    private final ByteBuf data;
+    private final boolean useMAC;
+    private final boolean bulk;
+
+    private OutboundMessage(ByteBuf data, boolean useMAC, boolean bulk) {
+        this.data = data;
+        this.useMAC = useMAC;
+        this.bulk = bulk;
+    }
+
+    /**
+     * Encodes a message into a pooled buffer
+     * @param sm the message
+     * @param useMAC whether the message should be sent with a MAC
+     * @param bulk whether the message goes through the bulk lane
+     * @return the encoded message, with one reference held by the caller
+     * @throws IOException if the message cannot be encoded
+     */
+    public static OutboundMessage encode(SystemMessage sm, boolean useMAC, boolean bulk) throws IOException {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer(INITIAL_SIZE);
+        try {
+            MessageCodec.encode(sm, new ByteBufOutputStream(buf));
+        } catch (IOException ex) {
+            buf.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            buf.release();
+            throw ex;
+        }
+        return new OutboundMessage(buf, useMAC, bulk);
+    }
+
+    /**
+     * Wraps an already encoded message (not pooled), sent through the
+     * consensus lane
+     * @param data the encoded message
+     * @param useMAC whether the message should be sent with a MAC
+     * @return the message, with one reference held by the caller
+     */
+    public static OutboundMessage wrap(byte[] data, boolean useMAC) {
+        return new OutboundMessage(Unpooled.wrappedBuffer(data), useMAC, false);
+    }
+
+    public boolean isUseMAC() {
+        return useMAC;
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * @return the length of the encoded message
+     */
+    public int length() {
+        return data.readableBytes();
+    }
+
+    /**
+     * Copies the encoded message to an array
+     * @param dst the array
+     * @param offset where the message is copied to
+     */
+    public void copyTo(byte[] dst, int offset) {
+        copyTo(0, dst, offset, data.readableBytes());
+    }
+
+    /**
+     * Copies part of the encoded message to an array
+     * @param from position in the message of the first byte copied
+     * @param dst the array
+     * @param offset where the bytes are copied to
+     * @param length number of bytes copied
+     */
+    public void copyTo(int from, byte[] dst, int offset, int length) {
+        data.getBytes(data.readerIndex() + from, dst, offset, length);
+    }
+
+    /**
+     * @return a read-only view of the encoded message, holding a new
+     * reference to it (to be released by whoever consumes the view)
+     */
+    public ByteBuf retainedData() {
+        return data.duplicate().retain();
+    }
+
+    /**
+     * @param from position in the message of the first byte of the view
+     * @param length length of the view
+     * @return a read-only view of part of the encoded message, holding a new
+     * reference to it
+     */
+    public ByteBuf retainedSlice(int from, int length) {
+        return data.slice(data.readerIndex() + from, length).retain();
+    }
+
+    /**
+     * Computes the MAC of the encoded message
+     * @param mac the Mac object, already initialized
+     * @return the MAC
+     */
+    public byte[] computeMAC(Mac mac) {
+        if (data.hasArray()) {
+            mac.update(data.array(), data.arrayOffset() + data.readerIndex(), data.readableBytes());
+        } else {
+            mac.update(data.nioBuffer());
+        }
+        return mac.doFinal();
+    }
+
+    public int refCnt() {
+        return data.refCnt();
+    }
+
+    public OutboundMessage retain() {
+        data.retain();
+        return this;
+    }
+
+    public OutboundMessage retain(int increment) {
+        data.retain(increment);
+        return this;
+    }
+
+    public boolean release() {
+        return data.release();
+    }
+
+    public boolean release(int decrement) {
+        return data.release(decrement);
+    }
+}
@@ -0,0 +1,236 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import bftsmart.reconfiguration.ServerViewController;
+
+/**
+ * Keeps the messages sent to another replica until it acknowledges them, so
+ * that they are written again, instead of lost, when a connection breaks and
+ * the session is resumed.
+ *
+ * The messages are numbered implicitly: both replicas count the messages
+ * written and read since the session started, in the order of their last
+ * frame (a bulk message counts when its last piece is written; credits and
+ * acknowledgments are not counted). The receiver acknowledges what it read,
+ * in groups of a quarter of the window, with a frame [ACK][count (long)].
+ * At most MAX_KEPT_BYTES are kept, besides the last message.
+ *
+ * A session starts with the Diffie-Hellman exchange. When a connection is
+ * re-established and both replicas still have the key of the session, they
+ * resume it instead: each sends a nonce, and then the number of messages it
+ * read, the first message it still keeps, and a MAC of these with the key of
+ * the session (see resumeProof). Each replica then writes again the messages
+ * the other did not read, before any other. Messages no longer kept (the
+ * window is full) are skipped, and lost as before.
+ */
+public class RetransmitBuffer {
+
+    /** Length of the nonces sent to resume a session */
+    public static final int NONCE_LENGTH = 16;
+    /** Bytes of the messages kept, so that a few large states do not hold all the memory */
+    public static final long MAX_KEPT_BYTES = 16 << 20;
+
+    private final OutboundMessage[] window; // message n is at n % window.length
+    private final int threshold;
+
+    // guarded by this
+    private long first = 0; // number of the oldest message kept
+    private long next = 0; // number of the next message sent
+    private long bytes = 0; // length of the messages kept
+    private long received = 0; // messages read from the remote replica
+    private int unacked = 0; // messages read since the last acknowledgment
+    private int session = 0;
+    private long resumed = 0;
+    private long replayed = 0;
+    private long evicted = 0;
+
+    /**
+     * @param controller the view controller of this replica
+     * @param remoteId ID of the remote replica
+     */
+    public RetransmitBuffer(ServerViewController controller, int remoteId) {
+        int size = controller.getStaticConf().getRetransmitWindow();
+        if (controller.getStaticConf().isTheTTP() || remoteId == controller.getStaticConf().getTTPId()) {
+            size = 0; // the TTP only sends reconfiguration messages
+        }
+        this.window = new OutboundMessage[size];
+        this.threshold = Math.max(1, size / 4);
+    }
+
+    /**
+     * @return false if the messages are not numbered nor kept in this link
+     */
+    public boolean isEnabled() {
+        return window.length > 0;
+    }
+
+    /**
+     * @return the current session (changes when a session starts or is resumed)
+     */
+    public synchronized int getSession() {
+        return session;
+    }
+
+    /**
+     * Numbers a message, and keeps it (with a new reference) until it is
+     * acknowledged. The oldest messages are dropped if the window is full.
+     * @param session session of the connection through which it is sent
+     * @return false if the session is over (the message is not kept)
+     */
+    public synchronized boolean add(OutboundMessage msg, int session) {
+        if (window.length == 0 || session != this.session) return false;
+
+        while (first < next && (next - first == window.length || bytes + msg.length() > MAX_KEPT_BYTES)) {
+            drop();
+            evicted++;
+        }
+        window[(int) (next % window.length)] = msg.retain();
+        bytes += msg.length();
+        next++;
+        return true;
+    }
+
+    private void drop() {
+        OutboundMessage msg = window[(int) (first % window.length)];
+        window[(int) (first % window.length)] = null;
+        bytes -= msg.length();
+        msg.release();
+        first++;
+    }
+
+    /**
+     * Called when the remote replica acknowledges messages
+     * @param count number of messages it read in this session
+     */
+    public synchronized void acked(long count) {
+        while (first < next && first < count) {
+            drop();
+        }
+    }
+
+    /**
+     * Called for each message read from the remote replica (after the last
+     * piece, for a bulk message)
+     * @param session session of the connection through which it was read
+     * @return true if an acknowledgment should be sent now
+     */
+    public synchronized boolean received(int session) {
+        if (window.length == 0 || session != this.session) return false;
+
+        received++;
+        if (++unacked < threshold) return false;
+        unacked = 0;
+        return true;
+    }
+
+    /**
+     * @return number of messages read from the remote replica in this session
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * Ends the session of a broken connection, to resume it in a new one:
+     * from now on, messages are neither numbered nor counted until resume
+     * or restart is called
+     * @return the messages read from the remote replica, and the oldest message kept
+     */
+    public synchronized long[] suspend() {
+        session++;
+        return new long[]{received, first};
+    }
+
+    /**
+     * Resumes the session with the values sent by the remote replica, after suspend
+     * @param remoteReceived messages it read in the session
+     * @param remoteFirst oldest message it keeps
+     * @return the messages to write again, in order, each with a new reference
+     */
+    public synchronized OutboundMessage[] resume(long remoteReceived, long remoteFirst) {
+        resumed++;
+        unacked = 0;
+        // the messages the remote replica no longer keeps are skipped
+        received = Math.max(received, remoteFirst);
+        acked(remoteReceived);
+        return unacknowledged();
+    }
+
+    /**
+     * @return the messages kept, to be written when a connection is
+     * established, each with a new reference
+     */
+    public synchronized OutboundMessage[] unacknowledged() {
+        OutboundMessage[] messages = new OutboundMessage[(int) (next - first)];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = window[(int) ((first + i) % window.length)].retain();
+        }
+        replayed += messages.length;
+        return messages;
+    }
+
+    /**
+     * Starts a new session: the messages kept are dropped, and the counters
+     * restart from zero
+     */
+    public synchronized void restart() {
+        session++;
+        for (int i = 0; i < window.length; i++) {
+            if (window[i] != null) {
+                window[i].release();
+                window[i] = null;
+            }
+        }
+        first = 0;
+        next = 0;
+        bytes = 0;
+        received = 0;
+        unacked = 0;
+    }
+
+    /**
+     * Computes the proof that a replica has the key of the session it resumes
+     * @param key the key of the session
+     * @param senderId ID of the replica that sends the proof
+     * @param senderNonce nonce sent by it
+     * @param receiverNonce nonce sent by the other replica
+     * @param received messages the sender read in the session
+     * @param first oldest message the sender keeps
+     * @return the MAC of all these
+     */
+    public static byte[] resumeProof(SecretKey key, int senderId, byte[] senderNonce, byte[] receiverNonce,
+            long received, long first) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+        mac.init(key);
+        ByteBuffer buf = ByteBuffer.allocate(4 + senderNonce.length + receiverNonce.length + 16);
+        buf.putInt(senderId).put(senderNonce).put(receiverNonce).putLong(received).putLong(first);
+        return mac.doFinal(buf.array());
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (window.length == 0) return "retransmission disabled";
+        return "retransmit window=" + window.length + ", kept=" + (next - first) +
+                ", resumed=" + resumed + ", replayed=" + replayed + ", evicted=" + evicted;
+    }
+}
@@ -15,40 +15,64 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 
+import bftsmart.communication.InboundStage;
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
-import java.math.BigInteger;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.util.HashSet;
 
 /**
  * This class represents a connection with other server.
  *
- * ServerConnections are created by ServerCommunicationLayer.
+ * ServerConnections are created by ServerCommunicationLayer, and connect
+ * (or wait for the remote server to connect) once connect is called, so that
+ * the connections to all servers are established at the same time.
+ *
+ * Messages are sent through two lanes: the consensus lane (outQueue) is
+ * always written first, and the messages of the bulk lane are written
+ * in pieces of bulkChunkSize, with the consensus messages queued meanwhile
+ * written between them. A frame is [length][data][has MAC][MAC], or, for a
+ * piece of a bulk message, [CHUNK_MORE | length][data] followed by more
+ * pieces, or [CHUNK_LAST | length][data][has MAC][MAC of the whole message].
+ * A frame [CREDIT | n][number of the frame (long)][MAC] grants n credits
+ * to the sender (see FlowControl), and a frame [ACK][count (long)][MAC]
+ * acknowledges the messages read (see RetransmitBuffer). The MACs of these
+ * control frames are computed with the session key, like the ones of the
+ * messages, and the CREDIT frames are numbered, so that none is applied
+ * twice. The messages written again when a session is resumed take the
+ * first credits granted through the new connection.
+ *
+ * A lost connection is re-established after a pause that starts at
+ * MIN_RECONNECT_TIME and doubles up to POOL_TIME. The messages queued
+ * meanwhile are kept, and after a pause of POOL_TIME move to the
+ * retransmission window (the oldest ones may be discarded then). If both
+ * servers still have the key of the previous connection, the session is
+ * resumed instead of running the Diffie-Hellman exchange again, and the
+ * messages the remote server did not read are written again.
  *
  * @author alysson
  */
@@ -56,67 +80,91 @@ public class ServerConnection {
 
     public static final String MAC_ALGORITHM = "HmacMD5";
     private static final long POOL_TIME = 5000;
+    private static final long MIN_RECONNECT_TIME = 10; // first pause before reconnecting (milliseconds)
+    /** Sent instead of the length of the DH public key to resume the session, followed by a nonce */
+    public static final int RESUME = -1;
+    /** Flag of the length of a frame with a piece of a bulk message, followed by more pieces */
+    public static final int CHUNK_MORE = 0x40000000;
+    /** Flag of the length of a frame with the last piece of a bulk message */
+    public static final int CHUNK_LAST = 0x20000000;
+    /** Flag of a frame (with no data) that grants credits to the remote replica */
+    public static final int CREDIT = 0x10000000;
+    /** Flag of a frame that acknowledges the consensus messages read (see RetransmitBuffer) */
+    public static final int ACK = 0x08000000;
+    public static final int CHUNK_LENGTH_MASK = 0x07FFFFFF;
+    /** Length of a control (CREDIT or ACK) frame, without its MAC */
+    public static final int CONTROL_LENGTH = 12;
+    private static final int MAX_RETAINED_BUFFER = 1 << 20; // larger receive buffers are dropped after use
     //private static final int SEND_QUEUE_SIZE = 50;
     private ServerViewController controller;
     private Socket socket;
     private DataOutputStream socketOutStream = null;
-    private DataInputStream socketInStream = null;
+    private volatile DataInputStream socketInStream = null;
     private int remoteId;
     private boolean useSenderThread;
-    protected LinkedBlockingQueue<byte[]> outQueue;// = new LinkedBlockingQueue<byte[]>(SEND_QUEUE_SIZE);
-    private HashSet<Integer> noMACs = null; // this is used to keep track of data to be sent without a MAC.
-                                            // It uses the reference id for that same data
-    private LinkedBlockingQueue<SystemMessage> inQueue;
+    protected LinkedBlockingQueue<OutboundMessage> outQueue;// = new LinkedBlockingQueue<byte[]>(SEND_QUEUE_SIZE);
+    protected LinkedBlockingQueue<OutboundMessage> bulkQueue; // bulk lane
+    private final Semaphore queued = new Semaphore(0); // released for each message put in a lane
+    private final Semaphore credits = new Semaphore(0); // messages the remote replica can still receive
+    private volatile boolean unlimitedCredits = false;
+    private int creditDebt = 0; // credits owed for the messages written again (only used by the receiver thread once published)
+    private long creditFrames = 0; // CREDIT frames written through the socket (with the write lock held)
+    private final FlowControl flowControl;
+    private final long blockTime; // milliseconds a consensus message waits for room in the out queue
+    private final Lock writeLock = new ReentrantLock(); // writes of the sender, of the credits and of the acknowledgments
+    private final RetransmitBuffer retransmit;
+    private volatile int session; // session of the retransmit buffer to which the socket belongs
+    private volatile boolean ackPending = false; // an acknowledgment waits for the write lock
+    private volatile long reconnectTime = MIN_RECONNECT_TIME;
+    private final SecureRandom random = new SecureRandom();
+    private InboundStage inbound;
+    private MacVectorAuthenticator authenticator; // verifies the MAC vectors of ACCEPTs from the remote server
     private SecretKey authKey = null;
     private Mac macSend;
     private Mac macReceive;
+    private Mac macControl; // for the control frames written (with the write lock held)
     private int macSize;
     private Lock connectLock = new ReentrantLock();
+    private final Condition established = connectLock.newCondition(); // signaled when a connection is established
+    private final DHKeyExchange keyExchange;
     /** Only used when there is no sender Thread */
     private Lock sendLock;
     private boolean doWork = true;
-
-    public ServerConnection(ServerViewController controller, Socket socket, int remoteId,
-            LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica) {
+    private final int flushBytes; // a batch of messages is written once it reaches this size
+    private final long flushDelay; // nanoseconds the sender waits for more messages before writing a batch
+    private byte[] sendBuffer = new byte[1024]; // reused to frame the messages written together
+    private final int bulkChunkSize;
+    private OutboundMessage[] batch = new OutboundMessage[16]; // only used by the sender thread
+    private byte[] receiveBuffer = new byte[1024]; // reused to read the messages received
+    private byte[] bulkBuffer = new byte[1024]; // where the pieces of a bulk message are put together
+    private int bulkLength = 0;
+    private final FlushStats flushStats = new FlushStats();
+
+    public ServerConnection(ServerViewController controller, int remoteId,
+            InboundStage inbound, ServiceReplica replica,
+            MacVectorAuthenticator authenticator, DHKeyExchange keyExchange) {
 
         this.controller = controller;
 
-        this.socket = socket;
+        this.authenticator = authenticator;
 
-        this.remoteId = remoteId;
+        this.keyExchange = keyExchange;
 
-        this.inQueue = inQueue;
+        this.remoteId = remoteId;
 
-        this.outQueue = new LinkedBlockingQueue<byte[]>(this.controller.getStaticConf().getOutQueueSize());
+        this.inbound = inbound;
 
-        this.noMACs = new HashSet<Integer>();
-        // Connect to the remote process or just wait for the connection?
-        if (isToConnect()) {
-            //I have to connect to the remote server
-            try {
-                this.socket = new Socket(this.controller.getStaticConf().getHost(remoteId),
-                        this.controller.getStaticConf().getServerToServerPort(remoteId));
-                ServersCommunicationLayer.setSocketOptions(this.socket);
-                new DataOutputStream(this.socket.getOutputStream()).writeInt(this.controller.getStaticConf().getProcessId());
+        this.outQueue = new LinkedBlockingQueue<OutboundMessage>(this.controller.getStaticConf().getOutQueueSize());
+        this.bulkQueue = new LinkedBlockingQueue<OutboundMessage>(this.controller.getStaticConf().getOutQueueSize());
 
-            } catch (UnknownHostException ex) {
-                ex.printStackTrace();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-        //else I have to wait a connection from the remote server
+        this.flushBytes = this.controller.getStaticConf().getFlushBytes();
+        this.flushDelay = TimeUnit.MICROSECONDS.toNanos(this.controller.getStaticConf().getFlushDelay());
+        this.bulkChunkSize = this.controller.getStaticConf().getBulkChunkSize();
+        this.blockTime = this.controller.getStaticConf().getBlockTime();
+        this.flowControl = new FlowControl(controller, remoteId);
+        this.retransmit = new RetransmitBuffer(controller, remoteId);
+        this.socket = null; // set once the handshake is done
 
-        if (this.socket != null) {
-            try {
-                socketOutStream = new DataOutputStream(this.socket.getOutputStream());
-                socketInStream = new DataInputStream(this.socket.getInputStream());
-            } catch (IOException ex) {
-                Logger.println("Error creating connection to "+remoteId);
-                ex.printStackTrace();
-            }
-        }
-               
        //******* EDUARDO BEGIN **************//
         this.useSenderThread = this.controller.getStaticConf().isUseSenderThread();
 
@@ -125,8 +173,7 @@ public class ServerConnection {
         } else {
             sendLock = new ReentrantLock();
         }
-        authenticateAndEstablishAuthKey();
-        
+
         if (!this.controller.getStaticConf().isTheTTP()) {
             if (this.controller.getStaticConf().getTTPId() == remoteId) {
                 //Uma thread "diferente" para as msgs recebidas da TTP
@@ -141,6 +188,43 @@ public class ServerConnection {
     public SecretKey getSecretKey() {
         return authKey;
     }
+
+    /**
+     * Connects to the remote server, if this server is the one that connects
+     * (see isToConnect), and establishes the key of the connection. Otherwise
+     * the connection is established when the remote server connects.
+     */
+    public void connect() {
+        reconnect(null);
+    }
+
+    /**
+     * @return true if the connection to the remote server is established
+     */
+    public boolean isConnected() {
+        return socketInStream != null;
+    }
+
+    /**
+     * @return statistics about the messages written together to the remote server
+     */
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * @return the flow control of the link with the remote server
+     */
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * @return the consensus messages kept for the remote server until it reads them
+     */
+    public RetransmitBuffer getRetransmitBuffer() {
+        return retransmit;
+    }
     
     /**
      * Stop message sending and reception.
@@ -150,84 +234,443 @@ public class ServerConnection {
         
         doWork = false;
         closeSocket();
+        retransmit.restart(); // releases the messages kept
     }
 
     /**
      * Used to send packets to the remote server.
      */
     public final void send(byte[] data, boolean useMAC) throws InterruptedException {
+        send(OutboundMessage.wrap(data, useMAC));
+    }
+
+    /**
+     * Used to send packets to the remote server. The connection takes over the
+     * reference to the message held by the caller, and releases it once the
+     * message is written or discarded, or when the caller is interrupted
+     * while waiting for room in the queue.
+     */
+    public final void send(OutboundMessage msg) throws InterruptedException {
         if (useSenderThread) {
-            //only enqueue messages if there queue is not full
-            if (!useMAC) {
-                Logger.println("(ServerConnection.send) Not sending defaultMAC " + System.identityHashCode(data));
-                noMACs.add(System.identityHashCode(data));
+            //only enqueue messages if there queue is not full: consensus messages wait
+            //up to blockTime for room, bulk messages are discarded at once
+            boolean queuedMsg;
+            try {
+                queuedMsg = msg.isBulk() ? bulkQueue.offer(msg) :
+                        outQueue.offer(msg, blockTime, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) { // not queued, so the reference is ours to release
+                msg.release();
+                throw ex;
             }
-
-            if (!outQueue.offer(data)) {
-                Logger.println("(ServerConnection.send) out queue for " + remoteId + " full (message discarded).");
+            if (queuedMsg) {
+                queued.release();
+            } else {
+                Logger.println("(ServerConnection.send) " + (msg.isBulk() ? "bulk" : "out") + " queue for " +
+                        remoteId + " full (message discarded).");
+                flowControl.dropped(msg.isBulk());
+                msg.release();
             }
         } else {
             sendLock.lock();
-            sendBytes(data, useMAC);
-            sendLock.unlock();
+            try {
+                sendBytes(new OutboundMessage[]{msg}, 1);
+            } finally {
+                msg.release();
+                sendLock.unlock();
+            }
         }
     }
 
     /**
-     * try to send a message through the socket
+     * try to send a batch of messages through the socket, framed into a single
+     * buffer and written at once, so that small messages share TCP segments
      * if some problem is detected, a reconnection is done
+     * @return false if the messages could not be written
      */
-    private final void sendBytes(byte[] messageData, boolean useMAC) {       
-        boolean abort = false;
-        do {
-            if (abort) return; // if there is a need to reconnect, abort this method
-            if (socket != null && socketOutStream != null) {
-                try {
-                    //do an extra copy of the data to be sent, but on a single out stream write
-                    byte[] mac = (useMAC && this.controller.getStaticConf().getUseMACs() == 1)?macSend.doFinal(messageData):null;
-                    byte[] data = new byte[5 +messageData.length+((mac!=null)?mac.length:0)];
-                    int value = messageData.length;
-
-                    System.arraycopy(new byte[]{(byte)(value >>> 24),(byte)(value >>> 16),(byte)(value >>> 8),(byte)value},0,data,0,4);
-                    System.arraycopy(messageData,0,data,4,messageData.length);
-                    if(mac != null) {
-                        //System.arraycopy(mac,0,data,4+messageData.length,mac.length);
-                        System.arraycopy(new byte[]{ (byte) 1},0,data,4+messageData.length,1);
-                        System.arraycopy(mac,0,data,5+messageData.length,mac.length);
-                    } else {
-                        System.arraycopy(new byte[]{(byte) 0},0,data,4+messageData.length,1);                        
+    private final boolean sendBytes(OutboundMessage[] messages, int count) {
+        if ((socket == null || socketOutStream == null) && keep(messages, count)) {
+            waitAndConnect(); // written once the connection is re-established
+            return false;
+        }
+
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length = frame(messages[i], computeMAC(messages[i]), length);
+        }
+        return write(length, count, messages, true);
+    }
+
+    /**
+     * Numbers messages that cannot be written, because there is no
+     * connection, and keeps them to be written when it is re-established
+     * (they are discarded if retransmission is disabled)
+     * @return false if the connection was re-established meanwhile (the
+     * messages are to be written now)
+     */
+    private boolean keep(OutboundMessage[] messages, int count) {
+        writeLock.lock();
+        try {
+            if (socketOutStream != null) return false;
+            for (int i = 0; i < count; i++) {
+                retransmit.add(messages[i], retransmit.getSession());
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a batch of messages of the consensus lane, starting with a given
+     * one. The batch is written when it reaches flushBytes, or when no other
+     * message arrives within flushDelay of its first message (0 means as soon
+     * as the consensus lane is empty), or when there are no credits for more
+     * messages. The credit of the first message was already taken. Only
+     * called by the sender thread.
+     * @return false if the messages could not be written
+     */
+    private boolean sendConsensus(OutboundMessage data) {
+        long deadline = System.nanoTime() + flushDelay;
+        int count = 0;
+        int bytes = 0;
+
+        while (data != null) {
+            if (count == batch.length) {
+                batch = Arrays.copyOf(batch, 2 * count);
+            }
+
+            batch[count] = data;
+            count++;
+            bytes += data.length();
+
+            if (bytes >= flushBytes || !takeCredit(false)) break;
+
+            data = outQueue.poll();
+            if (data == null) {
+                long wait = deadline - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        data = outQueue.poll(wait, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException ex) {
                     }
+                }
+            }
+            if (data != null) {
+                queued.tryAcquire();
+            } else {
+                returnCredit();
+            }
+        }
 
-                    socketOutStream.write(data);
+        boolean sent = sendBytes(batch, count);
+        for (int i = 0; i < count; i++) {
+            batch[i].release();
+            batch[i] = null;
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a message of the bulk lane in pieces of bulkChunkSize, writing
+     * the consensus messages queued meanwhile (and for which there are
+     * credits) between them. The credit of the message was already taken.
+     * Only called by the sender thread.
+     */
+    private void sendBulk(OutboundMessage msg) {
+        int length = msg.length();
+        if (bulkChunkSize == 0 || length <= bulkChunkSize) {
+            batch[0] = msg;
+            sendBytes(batch, 1);
+            batch[0] = null;
+            return;
+        }
 
+        OutboundMessage[] numbered = new OutboundMessage[]{msg}; // once its last piece is written
+        byte[] mac = null;
+        for (int from = 0; from < length && doWork;) {
+            if (from == 0) {
+                if ((socket == null || socketOutStream == null) && keep(numbered, 1)) {
+                    waitAndConnect();
                     return;
+                }
+                mac = computeMAC(msg);
+            }
+
+            int size = Math.min(bulkChunkSize, length - from);
+            boolean last = from + size == length;
+            if (!write(frameChunk(msg, from, size, last, mac), 1, numbered, last)) {
+                if (last || keep(numbered, 1)) return;
+                from = 0; // already re-established: the whole message is written again
+                continue;
+            }
+            from += size;
+
+            if (!last && takeCredit(false)) {
+                OutboundMessage data = outQueue.poll();
+                if (data != null) {
+                    queued.tryAcquire();
+                    if (!sendConsensus(data)) return;
+                } else {
+                    returnCredit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the credit to write a message
+     * @param block whether to wait for credits if there are none
+     * @return false if there are no credits (or the connection is shutting down)
+     */
+    private boolean takeCredit(boolean block) {
+        if (unlimitedCredits || !flowControl.isEnabled() || credits.tryAcquire()) return true;
+        if (!block) return false;
+
+        long start = System.nanoTime();
+        try {
+            while (doWork && !unlimitedCredits) {
+                if (credits.tryAcquire(POOL_TIME, TimeUnit.MILLISECONDS)) {
+                    flowControl.stalled(System.nanoTime() - start);
+                    return true;
+                }
+            }
+        } catch (InterruptedException ex) {
+        }
+        flowControl.stalled(System.nanoTime() - start);
+        return unlimitedCredits;
+    }
+
+    private void returnCredit() {
+        if (!unlimitedCredits && flowControl.isEnabled()) credits.release();
+    }
+
+    /**
+     * Called when the remote server grants credits
+     */
+    private void granted(int n) {
+        if (n != FlowControl.UNLIMITED && creditDebt > 0) { // taken by the messages written again
+            int paid = Math.min(n, creditDebt);
+            creditDebt -= paid;
+            n -= paid;
+        }
+        if (n == FlowControl.UNLIMITED) {
+            unlimitedCredits = true;
+            credits.release(); // wakes up the sender, if it is waiting
+        } else {
+            credits.release(n);
+        }
+    }
+
+    /**
+     * Called when a message from the remote server leaves the in queue (or is
+     * discarded), to give its credit back
+     */
+    public void consumed() {
+        int n = flowControl.consumed();
+        if (n > 0) sendCredit(n);
+    }
+
+    /**
+     * Writes a frame granting credits to the remote server
+     */
+    private void sendCredit(int n) {
+        writeLock.lock();
+        try {
+            DataOutputStream out = socketOutStream;
+            if (out != null) out.write(controlFrame(CREDIT | n, ++creditFrames, getControlMac()));
+        } catch (IOException ex) {
+            Logger.println("Error sending credits to " + remoteId); // the connection is re-established by the threads
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Called for each message read, to acknowledge them in groups
+     * @param session session of the socket from which it was read
+     */
+    private void received(int session) {
+        if (retransmit.received(session)) {
+            ackPending = true;
+            //written now if the lock is free, or by the sender with its next frames
+            if (writeLock.tryLock()) {
+                try {
+                    DataOutputStream out = socketOutStream;
+                    if (out != null && ackPending) writeAck(out);
                 } catch (IOException ex) {
-                    closeSocket();
-                    waitAndConnect();
-                    abort = true;
+                    Logger.println("Error sending acknowledgment to " + remoteId); // the connection is re-established by the threads
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a frame acknowledging the consensus messages read (with the write lock held)
+     */
+    private void writeAck(DataOutputStream out) throws IOException {
+        ackPending = false;
+        out.write(controlFrame(ACK, retransmit.getReceived(), getControlMac()));
+    }
+
+    private Mac getControlMac() {
+        return (controller.getStaticConf().getUseMACs() == 1) ? macControl : null;
+    }
+
+    /**
+     * Builds a control frame: its header, a value (the messages read, for an
+     * ACK, or the number of the frame in the connection, for a CREDIT) and,
+     * if a Mac is given, the MAC of both
+     */
+    public static byte[] controlFrame(int header, long value, Mac mac) {
+        byte[] frame = new byte[CONTROL_LENGTH + (mac != null ? mac.getMacLength() : 0)];
+        ByteBuffer.wrap(frame).putInt(header).putLong(value);
+        if (mac != null) {
+            mac.update(frame, 0, CONTROL_LENGTH);
+            System.arraycopy(mac.doFinal(), 0, frame, CONTROL_LENGTH, frame.length - CONTROL_LENGTH);
+        }
+        return frame;
+    }
+
+    /**
+     * Checks the MAC of a control frame (true if no Mac is given)
+     */
+    public static boolean isControlFrameValid(byte[] frame, Mac mac) {
+        if (mac == null) return true;
+        mac.update(frame, 0, CONTROL_LENGTH);
+        return Arrays.equals(mac.doFinal(), Arrays.copyOfRange(frame, CONTROL_LENGTH, frame.length));
+    }
+
+    private byte[] computeMAC(OutboundMessage msg) {
+        return computeMAC(msg, macSend);
+    }
+
+    private byte[] computeMAC(OutboundMessage msg, Mac mac) {
+        return (msg.isUseMAC() && controller.getStaticConf().getUseMACs() == 1) ? msg.computeMAC(mac) : null;
+    }
+
+    /**
+     * Writes the first bytes of the send buffer to the socket
+     * @param length number of bytes to write
+     * @param count number of frames in them
+     * @param messages the messages framed in them, to be numbered and kept
+     * until acknowledged
+     * @param complete false if the bytes are not the last piece of a bulk
+     * message (then the message is not numbered yet)
+     * @return false if the connection was lost (a reconnection is done)
+     */
+    private boolean write(int length, int count, OutboundMessage[] messages, boolean complete) {
+        boolean written = false;
+        Socket s = null;
+        writeLock.lock();
+        try {
+            //numbered even if not written, to be written again when the connection is re-established
+            if (complete) {
+                for (int i = 0; i < count; i++) {
+                    retransmit.add(messages[i], retransmit.getSession());
                 }
-            } else {
-                waitAndConnect();
-                abort = true;
             }
-        } while (doWork);
+            DataOutputStream out = socketOutStream;
+            s = socket;
+            if (out != null) { // null if closed by the receiver thread
+                if (ackPending) writeAck(out);
+                out.write(sendBuffer, 0, length);
+                flushStats.flushed(count, length);
+                written = true;
+            }
+        } catch (IOException ex) {
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (!written) {
+            closeSocket(s);
+            waitAndConnect();
+        }
+        return written;
+    }
+
+    /**
+     * Writes [length][data][has MAC][MAC] to the send buffer, at a given offset
+     * @return the offset after the frame
+     */
+    private int frame(OutboundMessage message, byte[] mac, int offset) {
+        int value = message.length();
+        int size = 5 + value + ((mac != null) ? mac.length : 0);
+        if (offset + size > sendBuffer.length) {
+            sendBuffer = Arrays.copyOf(sendBuffer, Math.max(2 * sendBuffer.length, offset + size));
+        }
+
+        sendBuffer[offset++] = (byte) (value >>> 24);
+        sendBuffer[offset++] = (byte) (value >>> 16);
+        sendBuffer[offset++] = (byte) (value >>> 8);
+        sendBuffer[offset++] = (byte) value;
+        message.copyTo(sendBuffer, offset);
+        offset += value;
+        if (mac != null) {
+            sendBuffer[offset++] = (byte) 1;
+            System.arraycopy(mac, 0, sendBuffer, offset, mac.length);
+            offset += mac.length;
+        } else {
+            sendBuffer[offset++] = (byte) 0;
+        }
+        return offset;
+    }
+
+    /**
+     * Writes a piece of a bulk message to the beginning of the send buffer
+     * @return the length of the frame
+     */
+    private int frameChunk(OutboundMessage message, int from, int length, boolean last, byte[] mac) {
+        int size = 5 + length + ((mac != null) ? mac.length : 0);
+        if (size > sendBuffer.length) {
+            sendBuffer = new byte[Math.max(2 * sendBuffer.length, size)];
+        }
+
+        int value = length | (last ? CHUNK_LAST : CHUNK_MORE);
+        sendBuffer[0] = (byte) (value >>> 24);
+        sendBuffer[1] = (byte) (value >>> 16);
+        sendBuffer[2] = (byte) (value >>> 8);
+        sendBuffer[3] = (byte) value;
+        message.copyTo(from, sendBuffer, 4, length);
+        int offset = 4 + length;
+        if (!last) return offset;
+
+        if (mac != null) {
+            sendBuffer[offset++] = (byte) 1;
+            System.arraycopy(mac, 0, sendBuffer, offset, mac.length);
+            offset += mac.length;
+        } else {
+            sendBuffer[offset++] = (byte) 0;
+        }
+        return offset;
     }
 
     //******* EDUARDO BEGIN **************//
     //return true of a process shall connect to the remote process, false otherwise
-    private boolean isToConnect() {
-        if (this.controller.getStaticConf().getTTPId() == remoteId) {
+    public boolean isToConnect() {
+        return isToConnect(controller, remoteId);
+    }
+
+    /**
+     * @param controller the view controller of this process
+     * @param remoteId ID of the remote process
+     * @return true if this process shall connect to the remote process, false if it waits for its connection
+     */
+    public static boolean isToConnect(ServerViewController controller, int remoteId) {
+        if (controller.getStaticConf().getTTPId() == remoteId) {
             //Need to wait for the connection request from the TTP, do not tray to connect to it
             return false;
-        } else if (this.controller.getStaticConf().getTTPId() == this.controller.getStaticConf().getProcessId()) {
+        } else if (controller.getStaticConf().getTTPId() == controller.getStaticConf().getProcessId()) {
             //If this is a TTP, one must connect to the remote process
             return true;
         }
         boolean ret = false;
-        if (this.controller.isInCurrentView()) {
+        if (controller.isInCurrentView()) {
             
              //in this case, the node with higher ID starts the connection
-             if (this.controller.getStaticConf().getProcessId() > remoteId) {
+             if (controller.getStaticConf().getProcessId() > remoteId) {
                  ret = true;
              }
                 
@@ -238,14 +681,14 @@ public class ServerConnection {
             
             /**
             
-            boolean me = this.controller.isInLastJoinSet(this.controller.getStaticConf().getProcessId());
-            boolean remote = this.controller.isInLastJoinSet(remoteId);
+            boolean me = controller.isInLastJoinSet(controller.getStaticConf().getProcessId());
+            boolean remote = controller.isInLastJoinSet(remoteId);
 
             //either both endpoints are old in the system (entered the system in a previous view),
             //or both entered during the last reconfiguration
             if ((me && remote) || (!me && !remote)) {
                 //in this case, the node with higher ID starts the connection
-                if (this.controller.getStaticConf().getProcessId() > remoteId) {
+                if (controller.getStaticConf().getProcessId() > remoteId) {
                     ret = true;
                 }
             //this process is the older one, and the other one entered in the last reconfiguration
@@ -273,136 +716,263 @@ public class ServerConnection {
         
         connectLock.lock();
 
-        if (socket == null || !socket.isConnected()) {
+        try {
+            if (newSocket != null && socket != null) {
+                //the remote server connected again, so the connection it had is gone
+                closeSocket();
+            }
+
+            if (socket == null || !socket.isConnected()) {
 
-            try {
+                Socket s = null;
+                try {
 
-                //******* EDUARDO BEGIN **************//
-                if (isToConnect()) {
+                    //******* EDUARDO BEGIN **************//
+                    if (isToConnect()) {
 
-                    socket = new Socket(this.controller.getStaticConf().getHost(remoteId),
-                            this.controller.getStaticConf().getServerToServerPort(remoteId));
-                    ServersCommunicationLayer.setSocketOptions(socket);
-                    new DataOutputStream(socket.getOutputStream()).writeInt(this.controller.getStaticConf().getProcessId());
+                        s = new Socket(this.controller.getStaticConf().getHost(remoteId),
+                                this.controller.getStaticConf().getServerToServerPort(remoteId));
+                        ServersCommunicationLayer.setSocketOptions(s);
+                        new DataOutputStream(s.getOutputStream()).writeInt(this.controller.getStaticConf().getProcessId());
 
-                //******* EDUARDO END **************//
-                } else {
-                    socket = newSocket;
+                    //******* EDUARDO END **************//
+                    } else {
+                        s = newSocket;
+                    }
+                } catch (UnknownHostException ex) {
+                    ex.printStackTrace();
+                } catch (IOException ex) {
+
+                    System.out.println("Impossible to reconnect to replica " + remoteId);
+                    //ex.printStackTrace();
                 }
-            } catch (UnknownHostException ex) {
-                ex.printStackTrace();
-            } catch (IOException ex) {
-                
-                System.out.println("Impossible to reconnect to replica " + remoteId);
-                //ex.printStackTrace();
-            }
 
-            if (socket != null) {
-                try {
-                    socketOutStream = new DataOutputStream(socket.getOutputStream());
-                    socketInStream = new DataInputStream(socket.getInputStream());
-                    
-                    authKey = null;
-                    authenticateAndEstablishAuthKey();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
+                if (s != null) {
+                    establish(s);
                 }
             }
+        } finally {
+            connectLock.unlock();
         }
-
-        connectLock.unlock();
     }
 
-    //TODO!
-    public void authenticateAndEstablishAuthKey() {
-        if (authKey != null || socketOutStream == null || socketInStream == null) {
-            return;
+    /**
+     * Runs the handshake through a new socket and, if it succeeds, makes it
+     * the connection to the remote server, writing first the messages to be
+     * replayed. Called with the connect lock held.
+     */
+    private void establish(Socket s) {
+        OutboundMessage[] replay = null;
+        try {
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            DataInputStream in = new DataInputStream(s.getInputStream());
+
+            //the credits of the previous connection are lost with it
+            credits.drainPermits();
+            unlimitedCredits = false;
+            creditDebt = 0;
+            flowControl.reset();
+
+            long[] resumed = handshake(out, in);
+            if (resumed == null) {
+                s.close();
+                return;
+            }
+
+            //the receiver thread starts reading at once, while the replayed messages are written
+            writeLock.lock();
+            try {
+                //taken with the lock held, so that no message is numbered after them and before the socket is published
+                replay = resumed.length == 0 ? retransmit.unacknowledged() : retransmit.resume(resumed[0], resumed[1]);
+                session = retransmit.getSession();
+                creditFrames = 0;
+                //the messages written again are charged against the first credits granted
+                if (flowControl.isEnabled()) creditDebt = replay.length;
+                socketOutStream = out;
+                socketInStream = in;
+                socket = s;
+                reconnectTime = MIN_RECONNECT_TIME;
+                established.signalAll();
+
+                if (replay.length > 0) {
+                    Logger.println("Writing " + replay.length + " messages kept for " + remoteId);
+                    writeReplay(out, replay);
+                }
+                if (flowControl.isEnabled()) {
+                    sendCredit(flowControl.initialGrant());
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException ex) {
+            closeSocket(s);
+        } finally {
+            if (replay != null) {
+                for (OutboundMessage msg : replay) msg.release();
+            }
         }
+    }
 
+    /**
+     * Establishes the key of the connection: resumes the session if both
+     * servers still have the key of the previous one (see RetransmitBuffer),
+     * or starts a new one with the Diffie-Hellman exchange.
+     * @return the messages read and the oldest message kept by the remote
+     * server, to resume the session (none for a new session), or null if the
+     * handshake failed
+     */
+    private long[] handshake(DataOutputStream out, DataInputStream in) throws IOException {
         try {
-            //if (conf.getProcessId() > remoteId) {
-            // I asked for the connection, so I'm first on the auth protocol
-            //DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            //} else {
-            // I received a connection request, so I'm second on the auth protocol
-            //DataInputStream dis = new DataInputStream(socket.getInputStream());
-            //}
-            
-            //Derive DH private key from replica's own RSA private key
-            
-            PrivateKey RSAprivKey = controller.getStaticConf().getRSAPrivateKey();
-            BigInteger DHPrivKey =
-                    new BigInteger(RSAprivKey.getEncoded());
-            
-            //Create DH public key
-            BigInteger myDHPubKey =
-                    controller.getStaticConf().getDHG().modPow(DHPrivKey, controller.getStaticConf().getDHP());
-            
-            //turn it into a byte array
-            byte[] bytes = myDHPubKey.toByteArray();
-            
-            byte[] signature = TOMUtil.signMessage(RSAprivKey, bytes);
-            
-            //send my DH public key and signature
-            socketOutStream.writeInt(bytes.length);
-            socketOutStream.write(bytes);
-            
-            socketOutStream.writeInt(signature.length);
-            socketOutStream.write(signature);
-            
-            //receive remote DH public key and signature
-            int dataLength = socketInStream.readInt();
-            bytes = new byte[dataLength];
-            int read = 0;
-            do {
-                read += socketInStream.read(bytes, read, dataLength - read);
-                
-            } while (read < dataLength);
-            
-            byte[] remote_Bytes = bytes;
+            SecretKey key = authKey;
+            DHKeyExchange exchange = null;
+            byte[] nonce = null;
+            long[] state = null;
 
-            dataLength = socketInStream.readInt();
-            bytes = new byte[dataLength];
-            read = 0;
-            do {
-                read += socketInStream.read(bytes, read, dataLength - read);
-                
-            } while (read < dataLength);
-            
-            byte[] remote_Signature = bytes;
-            
-            //verify signature
-            PublicKey remoteRSAPubkey = controller.getStaticConf().getRSAPublicKey(remoteId);
-            
-            if (!TOMUtil.verifySignature(remoteRSAPubkey, remote_Bytes, remote_Signature)) {
-                
-                System.out.println(remoteId + " sent an invalid signature!");
-                shutdown();
-                return;
+            if (key != null) {
+                writeLock.lock(); // no more messages are numbered in the old session
+                try {
+                    state = retransmit.suspend();
+                } finally {
+                    writeLock.unlock();
+                }
+                nonce = new byte[RetransmitBuffer.NONCE_LENGTH];
+                random.nextBytes(nonce);
+                out.writeInt(RESUME);
+                out.write(nonce);
+            } else {
+                exchange = keyExchange;
+                writePublicKey(out, exchange);
             }
-            
-            BigInteger remoteDHPubKey = new BigInteger(remote_Bytes);
+            out.flush();
 
-            //Create secret key
-            BigInteger secretKey =
-                    remoteDHPubKey.modPow(DHPrivKey, controller.getStaticConf().getDHP());
-            
-           System.out.println("#Diffie-Hellman complete with " + remoteId);
-            
-            SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-            PBEKeySpec spec = new PBEKeySpec(secretKey.toString().toCharArray());
-            
-            //PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray());
-            authKey = fac.generateSecret(spec);
-
-            macSend = Mac.getInstance(MAC_ALGORITHM);
-            macSend.init(authKey);
-            macReceive = Mac.getInstance(MAC_ALGORITHM);
-            macReceive.init(authKey);
-            macSize = macSend.getMacLength();
+            int dataLength = in.readInt();
+            byte[] remoteNonce = null;
+            if (dataLength == RESUME) {
+                remoteNonce = new byte[RetransmitBuffer.NONCE_LENGTH];
+                in.readFully(remoteNonce);
+            }
+
+            if (key != null && remoteNonce != null) {
+                int myId = controller.getStaticConf().getProcessId();
+                out.writeLong(state[0]);
+                out.writeLong(state[1]);
+                out.write(RetransmitBuffer.resumeProof(key, myId, nonce, remoteNonce, state[0], state[1]));
+                out.flush();
+
+                long remoteReceived = in.readLong();
+                long remoteFirst = in.readLong();
+                byte[] proof = new byte[Mac.getInstance(MAC_ALGORITHM).getMacLength()];
+                in.readFully(proof);
+                if (!Arrays.equals(proof, RetransmitBuffer.resumeProof(key, remoteId, remoteNonce, nonce,
+                        remoteReceived, remoteFirst))) {
+                    Logger.println("Invalid session resumption from " + remoteId);
+                    authKey = null; // the next connection starts a new session
+                    return null;
+                }
+                initMACs(key);
+                return new long[]{remoteReceived, remoteFirst};
+            }
+
+            //one of the servers does not have the key: new session
+            if (exchange == null) {
+                exchange = keyExchange;
+                writePublicKey(out, exchange);
+                out.flush();
+            }
+            if (remoteNonce != null) {
+                dataLength = in.readInt();
+            }
+            byte[] remoteBytes = new byte[dataLength];
+            in.readFully(remoteBytes);
+            byte[] remoteSignature = new byte[in.readInt()];
+            in.readFully(remoteSignature);
+
+            key = exchange.establishKey(remoteId, remoteBytes, remoteSignature);
+            if (key == null) {
+                shutdown();
+                return null;
+            }
+            authKey = key;
+            initMACs(key);
+            retransmit.restart();
+            return new long[0];
+        } catch (IOException ex) {
+            throw ex;
         } catch (Exception ex) {
             ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writePublicKey(DataOutputStream out, DHKeyExchange exchange) throws IOException {
+        //send my DH public key and signature
+        byte[] bytes = exchange.getPublicKey();
+        byte[] signature = exchange.getSignature();
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+
+        out.writeInt(signature.length);
+        out.write(signature);
+    }
+
+    private void initMACs(SecretKey key) throws GeneralSecurityException {
+        //new objects, as the sender may still be using the old ones
+        Mac send = Mac.getInstance(MAC_ALGORITHM);
+        send.init(key);
+        Mac receive = Mac.getInstance(MAC_ALGORITHM);
+        receive.init(key);
+        Mac control = Mac.getInstance(MAC_ALGORITHM);
+        control.init(key);
+        macSize = send.getMacLength();
+        macSend = send;
+        macReceive = receive;
+        writeLock.lock();
+        try {
+            macControl = control;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes again the messages the remote server did not read (with the write lock held)
+     */
+    private void writeReplay(DataOutputStream socketOut, OutboundMessage[] messages) throws IOException {
+        Mac mac;
+        try {
+            mac = Mac.getInstance(MAC_ALGORITHM); // the one of the sender is not shared
+            mac.init(authKey);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socketOut, 65536));
+        byte[] data = new byte[1024];
+        for (OutboundMessage msg : messages) {
+            int length = msg.length();
+            if (length > data.length) data = new byte[Math.max(length, 2 * data.length)];
+            msg.copyTo(data, 0);
+
+            byte[] msgMac = computeMAC(msg, mac);
+            if (length <= CHUNK_LENGTH_MASK) {
+                out.writeInt(length);
+                out.write(data, 0, length);
+            } else { // only bulk messages, in pieces
+                for (int from = 0; from < length; from += CHUNK_LENGTH_MASK) {
+                    int size = Math.min(CHUNK_LENGTH_MASK, length - from);
+                    out.writeInt(size | (from + size == length ? CHUNK_LAST : CHUNK_MORE));
+                    out.write(data, from, size);
+                }
+            }
+            if (msgMac != null) {
+                out.writeByte(1);
+                out.write(msgMac);
+            } else {
+                out.writeByte(0);
+            }
         }
+        out.flush();
     }
 
     private void closeSocket() {
@@ -422,14 +992,61 @@ public class ServerConnection {
         }
     }
 
+    /**
+     * Closes a socket in which an error happened, if it was not already replaced
+     */
+    private void closeSocket(Socket failed) {
+        if (failed == null) return;
+
+        if (failed == socket) {
+            closeSocket();
+        } else {
+            try {
+                failed.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Waits before trying to reconnect, twice as long as the last time (up to
+     * POOL_TIME), unless the connection is established meanwhile (e.g., when
+     * the remote server connects). The messages queued leave the queues only
+     * after a wait of POOL_TIME, when the remote server has been unreachable
+     * for a while, and are then kept only in the retransmission window.
+     */
     private void waitAndConnect() {
         if (doWork) {
+            long pause = reconnectTime;
+            boolean connected;
+            connectLock.lock();
             try {
-                Thread.sleep(POOL_TIME);
+                if (socket == null) {
+                    established.await(pause, TimeUnit.MILLISECONDS);
+                }
             } catch (InterruptedException ie) {
+            } finally {
+                connected = socket != null;
+                connectLock.unlock();
             }
+            if (connected) return;
+
+            reconnectTime = Math.min(2 * pause, POOL_TIME);
 
-            outQueue.clear();
+            if (pause >= POOL_TIME) {
+                //the messages move to the retransmission window, to be written if the session is resumed
+                writeLock.lock();
+                try {
+                    OutboundMessage msg;
+                    while (socketOutStream == null && ((msg = outQueue.poll()) != null || (msg = bulkQueue.poll()) != null)) {
+                        queued.tryAcquire();
+                        retransmit.add(msg, retransmit.getSession());
+                        msg.release();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
             reconnect(null);
         }
     }
@@ -443,23 +1060,31 @@ public class ServerConnection {
             super("Sender for " + remoteId);
         }
 
+        /**
+         * Takes the messages to be sent, always from the consensus lane
+         * first, and writes them as long as there are credits for them
+         */
         @Override
         public void run() {
-            byte[] data = null;
-
             while (doWork) {
-                //get a message to be sent
+                //wait for a message to be sent
                 try {
-                    data = outQueue.poll(POOL_TIME, TimeUnit.MILLISECONDS);
+                    if (!queued.tryAcquire(POOL_TIME, TimeUnit.MILLISECONDS)) continue;
                 } catch (InterruptedException ex) {
+                    continue;
                 }
 
-                if (data != null) {
-                    //sendBytes(data, noMACs.contains(System.identityHashCode(data)));
-                    int ref = System.identityHashCode(data);
-                    boolean sendMAC = !noMACs.remove(ref);
-                    Logger.println("(ServerConnection.run) " + (sendMAC ? "Sending" : "Not sending") + " MAC for data " + ref);
-                    sendBytes(data, sendMAC);
+                OutboundMessage data = outQueue.poll();
+                if (data == null) data = bulkQueue.poll();
+                if (data == null) continue;
+
+                if (!takeCredit(true)) { // shutting down
+                    data.release();
+                } else if (!data.isBulk()) {
+                    sendConsensus(data);
+                } else {
+                    sendBulk(data);
+                    data.release();
                 }
             }
 
@@ -467,6 +1092,15 @@ public class ServerConnection {
         }
     }
 
+    /**
+     * Verifies the MAC vector of an ACCEPT received without a channel MAC, in
+     * the thread that receives the messages of the remote server.
+     */
+    private boolean verifyMacVector(SystemMessage sm) {
+        return authenticator == null ||
+                authenticator.authenticate(sm, remoteId, controller.getStaticConf().getProcessId());
+    }
+
     /**
      * Thread used to receive packets from the remote server.
      */
@@ -485,52 +1119,107 @@ public class ServerConnection {
                 ex.printStackTrace();
             }
 
+            DataInputStream current = null;
+            long lastCreditFrame = 0; // of the current socket
             while (doWork) {
-                if (socket != null && socketInStream != null) {
+                Socket s = socket;
+                DataInputStream in = socketInStream;
+                int session = ServerConnection.this.session; // messages read from an old socket are not counted
+                if (s != null && in != null && in == socketInStream) {
+                    if (in != current) {
+                        current = in;
+                        lastCreditFrame = 0;
+                    }
                     try {
                         //read data length
-                        int dataLength = socketInStream.readInt();
-                        byte[] data = new byte[dataLength];
+                        int header = in.readInt();
+                        if ((header & (ACK | CREDIT)) != 0) {
+                            Mac mac = (controller.getStaticConf().getUseMACs() == 1) ? macReceive : null;
+                            byte[] frame = new byte[CONTROL_LENGTH + (mac != null ? mac.getMacLength() : 0)];
+                            ByteBuffer.wrap(frame).putInt(header);
+                            in.readFully(frame, 4, frame.length - 4);
+                            long value = ByteBuffer.wrap(frame).getLong(4);
+                            if (!isControlFrameValid(frame, mac)) {
+                                Logger.println("WARNING: invalid MAC in control frame from " + remoteId);
+                            } else if ((header & ACK) != 0) {
+                                retransmit.acked(value);
+                            } else if (value > lastCreditFrame) { // not applied before
+                                lastCreditFrame = value;
+                                granted(header & CHUNK_LENGTH_MASK);
+                            }
+                            continue;
+                        }
 
-                        //read data
-                        int read = 0;
-                        do {
-                            read += socketInStream.read(data, read, dataLength - read);
-                        } while (read < dataLength);
+                        byte[] data;
+                        int dataLength;
+                        if ((header & (CHUNK_MORE | CHUNK_LAST)) == 0) {
+                            dataLength = header;
+                            if (dataLength > receiveBuffer.length) {
+                                receiveBuffer = new byte[Math.max(dataLength, 2 * receiveBuffer.length)];
+                            }
+                            data = receiveBuffer;
+
+                            //read data
+                            in.readFully(data, 0, dataLength);
+                        } else {
+                            //read a piece of a bulk message
+                            int chunkLength = header & CHUNK_LENGTH_MASK;
+                            if (bulkLength + chunkLength > bulkBuffer.length) {
+                                bulkBuffer = Arrays.copyOf(bulkBuffer, Math.max(bulkLength + chunkLength, 2 * bulkBuffer.length));
+                            }
+                            in.readFully(bulkBuffer, bulkLength, chunkLength);
+                            bulkLength += chunkLength;
+                            if ((header & CHUNK_MORE) != 0) continue;
+
+                            data = bulkBuffer;
+                            dataLength = bulkLength;
+                            bulkLength = 0;
+                            if (bulkBuffer.length > MAX_RETAINED_BUFFER) bulkBuffer = new byte[1024];
+                        }
 
                         //read mac
                         boolean result = true;
                         
-                        byte hasMAC = socketInStream.readByte();
+                        byte hasMAC = in.readByte();
                         if (controller.getStaticConf().getUseMACs() == 1 && hasMAC == 1) {
-                            read = 0;
-                            do {
-                                read += socketInStream.read(receivedMac, read, macSize - read);
-                            } while (read < macSize);
+                            in.readFully(receivedMac, 0, macSize);
 
-                            result = Arrays.equals(macReceive.doFinal(data), receivedMac);
+                            macReceive.update(data, 0, dataLength);
+                            result = Arrays.equals(macReceive.doFinal(), receivedMac);
                         }
+                        received(session);
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = MessageCodec.decode(data, 0, dataLength, controller.getCurrentViewN());
                             sm.authenticated = (controller.getStaticConf().getUseMACs() == 1 && hasMAC == 1);
-                            
-                            if (sm.getSender() == remoteId) {
-                                if (!inQueue.offer(sm)) {
+
+                            if (!sm.authenticated && !verifyMacVector(sm)) {
+                                Logger.println("(ReceiverThread.run) WARNING: invalid MAC vector from " + remoteId);
+                                System.out.println("(ReceiverThread.run) WARNING: invalid MAC vector from " + remoteId);
+                                consumed();
+                            } else if (sm.getSender() == remoteId) {
+                                if (!inbound.offer(sm)) {
                                     Logger.println("(ReceiverThread.run) in queue full (message from " + remoteId + " discarded).");
                                     System.out.println("(ReceiverThread.run) in queue full (message from " + remoteId + " discarded).");
+                                    flowControl.receiveDropped();
+                                    consumed();
                                 }
+                            } else {
+                                consumed();
                             }
                         } else {
                             //TODO: violation of authentication... we should do something
                             Logger.println("WARNING: Violation of authentication in message received from " + remoteId);
+                            consumed();
                         }
                     } catch (ClassNotFoundException ex) {
                         //invalid message sent, just ignore;
+                        consumed();
                     } catch (IOException ex) {
+                        bulkLength = 0; // a bulk message being received is lost with the connection
                         if (doWork) {
                             Logger.println("Closing socket and reconnecting");
-                            closeSocket();
+                            closeSocket(s);
                             waitAndConnect();
                         }
                     }
@@ -596,7 +1285,7 @@ public class ServerConnection {
                         }
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = MessageCodec.decode(data, 0, data.length, controller.getCurrentViewN());
 
                             if (sm.getSender() == remoteId) {
                                 //System.out.println("Mensagem recebia de: "+remoteId);
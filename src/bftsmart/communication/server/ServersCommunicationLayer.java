@@ -15,33 +15,49 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import bftsmart.communication.InboundStage;
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.loopback.LoopbackServersTransport;
+import bftsmart.communication.server.netty.NettyServersTransport;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.timer.ForwardedMessage;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
 
 /**
+ * Connections to the other replicas. The server socket is bound first, and
+ * then the connections to all replicas are established at the same time by
+ * a pool of connector threads, which also run the handshakes of the
+ * connections accepted, so that a slow replica does not delay the others.
  *
  * @author alysson
  */
@@ -49,6 +65,7 @@ public class ServersCommunicationLayer extends Thread {
 
     private ServerViewController controller;
     private LinkedBlockingQueue<SystemMessage> inQueue;
+    private InboundStage inbound;
     private Hashtable<Integer, ServerConnection> connections = new Hashtable<Integer, ServerConnection>();
     private ServerSocket serverSocket;
     private int me;
@@ -59,46 +76,121 @@ public class ServersCommunicationLayer extends Thread {
     private List<PendingConnection> pendingConn = new LinkedList<PendingConnection>();
     private ServiceReplica replica;
     private SecretKey selfPwd;
+    private MacVectorAuthenticator authenticator;
+    private NettyServersTransport nettyTransport = null; // used instead of sockets, if configured
+    private LoopbackServersTransport loopbackTransport = null; // used when all replicas run in this JVM
+    private DHKeyExchange keyExchange;
+    private ExecutorService connectors; // connect to the replicas, and run the handshakes of accepted connections
     private static final String PASSWORD = "commsyst";
 
     public ServersCommunicationLayer(ServerViewController controller,
-            LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica) throws Exception {
+            InboundStage inbound, ServiceReplica replica) throws Exception {
 
         this.controller = controller;
-        this.inQueue = inQueue;
+        this.inbound = inbound;
+        this.inQueue = inbound.getInQueue();
         this.me = controller.getStaticConf().getProcessId();
         this.replica = replica;
+        this.authenticator = new MacVectorAuthenticator(this);
+
+        long start = System.nanoTime();
+        SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
+        PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray());
+        selfPwd = fac.generateSecret(spec);
+
+        if (controller.getStaticConf().getReplicaTransport().equals("netty")) {
+            nettyTransport = new NettyServersTransport(controller, inbound, replica, authenticator);
+            return;
+        }
+        if (controller.getStaticConf().getReplicaTransport().equals("loopback")) {
+            loopbackTransport = new LoopbackServersTransport(controller, inbound, replica, authenticator);
+            return;
+        }
+
+        keyExchange = new DHKeyExchange(controller);
+        connectors = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Connector " + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long keys = System.nanoTime();
+
+        //accept the connections of the other replicas while connecting to them
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true); // so that a restarted replica can bind at once
+        serverSocket.bind(new InetSocketAddress(controller.getStaticConf().getServerToServerPort(
+                controller.getStaticConf().getProcessId())));
+        serverSocket.setSoTimeout(10000);
+
+        start();
+        long bound = System.nanoTime();
 
         //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
+        String links = "";
         if (controller.isInCurrentView()) {
             int[] initialV = controller.getCurrentViewAcceptors();
+            List<Future<Long>> pending = new ArrayList<Future<Long>>(initialV.length);
             for (int i = 0; i < initialV.length; i++) {
-                if (initialV[i] != me) {
-                    getConnection(initialV[i]);
-                }
+                pending.add(initialV[i] != me ? connect(getConnection(initialV[i], false)) : null);
+            }
+            for (int i = 0; i < initialV.length; i++) {
+                if (pending.get(i) == null) continue;
+                long time = pending.get(i).get();
+                links += ", " + initialV[i] + ": " + (time >= 0 ? TimeUnit.NANOSECONDS.toMillis(time) + " ms" :
+                        getConnection(initialV[i]).isConnected() ? "accepted" : "waiting");
             }
         }
+        long end = System.nanoTime();
 
-        serverSocket = new ServerSocket(controller.getStaticConf().getServerToServerPort(
-                controller.getStaticConf().getProcessId()));
-
-        SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-        PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray());
-        selfPwd = fac.generateSecret(spec);
-
-        serverSocket.setSoTimeout(10000);
-        serverSocket.setReuseAddress(true);
+        System.out.println("-- Replica links started in " + TimeUnit.NANOSECONDS.toMillis(end - start) +
+                " ms (keys: " + TimeUnit.NANOSECONDS.toMillis(keys - start) +
+                " ms, bind: " + TimeUnit.NANOSECONDS.toMillis(bound - keys) +
+                " ms, connections: " + TimeUnit.NANOSECONDS.toMillis(end - bound) + " ms" + links + ")");
+    }
 
-        start();
+    /**
+     * Establishes a connection in a connector thread
+     * @return the time it took to connect, or -1 if this replica did not
+     * connect (the remote replica connects to it, or is unreachable)
+     */
+    private Future<Long> connect(final ServerConnection conn) {
+        return connectors.submit(new Callable<Long>() {
+            public Long call() {
+                long start = System.nanoTime();
+                if (!conn.isToConnect()) return -1L;
+                conn.connect();
+                return conn.isConnected() ? System.nanoTime() - start : -1L;
+            }
+        });
     }
 
     public SecretKey getSecretKey(int id) {
         if (id == controller.getStaticConf().getProcessId()) return selfPwd;
-        else return connections.get(id).getSecretKey();
+        if (nettyTransport != null) return nettyTransport.getSecretKey(id);
+        if (loopbackTransport != null) return loopbackTransport.getSecretKey(id);
+        ServerConnection conn = connections.get(id);
+        return conn != null ? conn.getSecretKey() : null;
+    }
+
+    public MacVectorAuthenticator getAuthenticator() {
+        return authenticator;
     }
 
     //******* EDUARDO BEGIN **************//
     public void updateConnections() {
+        if (nettyTransport != null) {
+            nettyTransport.updateConnections();
+            return;
+        }
+        if (loopbackTransport != null) {
+            loopbackTransport.updateConnections();
+            return;
+        }
+
         connectionsLock.lock();
 
         if (this.controller.isInCurrentView()) {
@@ -133,49 +225,87 @@ public class ServersCommunicationLayer extends Thread {
     }
 
     private ServerConnection getConnection(int remoteId) {
+        return getConnection(remoteId, true);
+    }
+
+    /**
+     * @param connect whether to connect in a connector thread, if the connection is created
+     */
+    private ServerConnection getConnection(int remoteId, boolean connect) {
         connectionsLock.lock();
         ServerConnection ret = this.connections.get(remoteId);
-        if (ret == null) {
-            ret = new ServerConnection(controller, null, remoteId, this.inQueue, this.replica);
+        boolean created = ret == null;
+        if (created) {
+            ret = new ServerConnection(controller, remoteId, this.inbound, this.replica, authenticator, keyExchange);
             this.connections.put(remoteId, ret);
         }
         connectionsLock.unlock();
+        if (created && connect) connect(ret);
         return ret;
     }
     //******* EDUARDO END **************//
 
 
     public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        //the message is encoded once, and the same buffer is queued for all targets
+        OutboundMessage data = null;
         try {
-            new ObjectOutputStream(bOut).writeObject(sm);
+            data = OutboundMessage.encode(sm, useMAC, isBulk(sm));
         } catch (IOException ex) {
             Logger.getLogger(ServerConnection.class.getName()).log(Level.SEVERE, null, ex);
+            return;
         }
 
-        byte[] data = bOut.toByteArray();
-
-        for (int i : targets) {
-            try {
-                if (i == me) {
-                    sm.authenticated = true;
-                    inQueue.put(sm);
-                } else {
-                    //System.out.println("Going to send message to: "+i);
-                    //******* EDUARDO BEGIN **************//
-                    //connections[i].send(data);
-                    getConnection(i).send(data, useMAC);
-                    //******* EDUARDO END **************//
+        try {
+            for (int i : targets) {
+                try {
+                    if (i == me) {
+                        sm.authenticated = true;
+                        inQueue.put(sm);
+                    } else {
+                        //System.out.println("Going to send message to: "+i);
+                        //******* EDUARDO BEGIN **************//
+                        //connections[i].send(data);
+                        data.retain(); // released by the connection
+                        if (nettyTransport != null) {
+                            nettyTransport.send(i, data);
+                        } else if (loopbackTransport != null) {
+                            loopbackTransport.send(i, data);
+                        } else {
+                            getConnection(i).send(data);
+                        }
+                        //******* EDUARDO END **************//
+                    }
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
                 }
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
             }
+        } finally {
+            data.release();
         }
     }
 
+    /**
+     * Routes messages to the lanes of the connections: state transfer,
+     * forwarded and fetched requests go through the bulk lane, so that they
+     * do not delay the consensus and leader change messages
+     */
+    private static boolean isBulk(SystemMessage sm) {
+        return sm instanceof SMMessage || sm instanceof ForwardedMessage || sm instanceof RequestFetchMessage;
+    }
+
     public void shutdown() {
         doWork = false;
 
+        if (nettyTransport != null) {
+            nettyTransport.shutdown();
+            return;
+        }
+        if (loopbackTransport != null) {
+            loopbackTransport.shutdown();
+            return;
+        }
+
         //******* EDUARDO BEGIN **************//
         int[] activeServers = controller.getCurrentViewAcceptors();
 
@@ -192,6 +322,15 @@ public class ServersCommunicationLayer extends Thread {
 
     //******* EDUARDO BEGIN **************//
     public void joinViewReceived() {
+        if (nettyTransport != null) {
+            nettyTransport.joinViewReceived();
+            return;
+        }
+        if (loopbackTransport != null) {
+            loopbackTransport.joinViewReceived();
+            return;
+        }
+
         waitViewLock.lock();
         for (int i = 0; i < pendingConn.size(); i++) {
             PendingConnection pc = pendingConn.get(i);
@@ -227,7 +366,17 @@ public class ServersCommunicationLayer extends Thread {
                     pendingConn.add(new PendingConnection(newSocket, remoteId));
                     waitViewLock.unlock();
                 } else {
-                    establishConnection(newSocket, remoteId);
+                    final Socket socket = newSocket;
+                    final int id = remoteId;
+                    connectors.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                establishConnection(socket, id);
+                            } catch (IOException ex) {
+                                Logger.getLogger(ServersCommunicationLayer.class.getName()).log(Level.SEVERE, null, ex);
+                            }
+                        }
+                    });
                 }
                 //******* EDUARDO END **************//
 
@@ -250,17 +399,10 @@ public class ServersCommunicationLayer extends Thread {
     //******* EDUARDO BEGIN **************//
     private void establishConnection(Socket newSocket, int remoteId) throws IOException {
         if ((this.controller.getStaticConf().getTTPId() == remoteId) || this.controller.isCurrentViewMember(remoteId)) {
-            connectionsLock.lock();
             //System.out.println("Vai se conectar com: "+remoteId);
-            if (this.connections.get(remoteId) == null) { //This must never happen!!!
-                //first time that this connection is being established
-                //System.out.println("THIS DOES NOT HAPPEN....."+remoteId);
-                this.connections.put(remoteId, new ServerConnection(controller, newSocket, remoteId, inQueue, replica));
-            } else {
-                //reconnection
-                this.connections.get(remoteId).reconnect(newSocket);
-            }
-            connectionsLock.unlock();
+            //created if this is the first time that this connection is being established, and the
+            //handshake is run outside the lock, so that the connections to other replicas are not delayed
+            getConnection(remoteId, false).reconnect(newSocket);
 
         } else {
             //System.out.println("Closing connection of: "+remoteId);
@@ -277,9 +419,49 @@ public class ServersCommunicationLayer extends Thread {
         }
     }
 
+    /**
+     * Called when a message from another replica leaves the in queue, so that
+     * its credit is given back
+     */
+    public void consumed(SystemMessage sm) {
+        if (sm.getSender() == me) return;
+        if (nettyTransport != null) {
+            nettyTransport.consumed(sm);
+            return;
+        }
+        if (loopbackTransport != null) return; // no flow control in the loopback network
+
+        ServerConnection conn = connections.get(sm.getSender());
+        if (conn != null) conn.consumed();
+    }
+
+    /**
+     * @return the flush, flow control and retransmission statistics of the connections to the other replicas
+     */
+    public String getLinkStats() {
+        if (nettyTransport != null) return nettyTransport.getLinkStats();
+        if (loopbackTransport != null) return loopbackTransport.getLinkStats();
+
+        String str = "";
+        int[] activeServers = controller.getCurrentViewAcceptors();
+
+        for (int i = 0; i < activeServers.length; i++) {
+            if (me != activeServers[i]) {
+                str += "connections[" + activeServers[i] + "]: " + getConnection(activeServers[i]).getFlushStats() + "; " +
+                        getConnection(activeServers[i]).getFlowControl() + "; " +
+                        getConnection(activeServers[i]).getRetransmitBuffer() + "\n";
+            }
+        }
+
+        return str;
+    }
+
     @Override
     public String toString() {
-        String str = "inQueue=" + inQueue.toString();
+        if (nettyTransport != null) return nettyTransport.toString();
+        if (loopbackTransport != null) return loopbackTransport.toString();
+
+        String str = inbound.toString();
 
         int[] activeServers = controller.getCurrentViewAcceptors();
 
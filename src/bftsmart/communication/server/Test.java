@@ -17,6 +17,7 @@ package bftsmart.communication.server;
 
 import java.util.concurrent.LinkedBlockingQueue;
 
+import bftsmart.communication.InboundStage;
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
@@ -32,7 +33,7 @@ public class Test {
         //******* EDUARDO BEGIN **************//
         ServerViewController controller = new ServerViewController(Integer.parseInt(args[0]));
         LinkedBlockingQueue<SystemMessage> inQueue = new LinkedBlockingQueue<SystemMessage>();
-        ServersCommunicationLayer scl = new ServersCommunicationLayer(controller, inQueue,null);
+        ServersCommunicationLayer scl = new ServersCommunicationLayer(controller, new InboundStage(0, inQueue, null), null);
 
         int id = controller.getStaticConf().getProcessId();
         int n = controller.getCurrentViewN();
@@ -0,0 +1,841 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import bftsmart.communication.MessageCodec;
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.DHKeyExchange;
+import bftsmart.communication.server.FlowControl;
+import bftsmart.communication.server.OutboundMessage;
+import bftsmart.communication.server.RetransmitBuffer;
+import bftsmart.communication.server.ServerConnection;
+import bftsmart.tom.util.Logger;
+
+/**
+ * Handles one channel between two replicas. It speaks the same protocol as
+ * ServerConnection: the replica that connects first sends its ID, then both
+ * replicas resume the session of the previous channel, or run the
+ * Diffie-Hellman exchange to establish the MAC key of a new one (see
+ * RetransmitBuffer), and after that every message is framed as
+ * [length (int)][data][has MAC (byte)][MAC, if present]. When a session is
+ * resumed, the messages the remote replica did not read are written again
+ * before any other.
+ *
+ * Outbound messages are framed (and their MAC computed) by the encoder of
+ * this handler, in the event loop of the channel, so the Mac objects are
+ * only used by one thread. They are flushed together, like the batches of
+ * the sender thread of ServerConnection: once flushBytes are pending, or
+ * flushDelay after the first pending message.
+ *
+ * Messages of the bulk lane are kept in this handler, and written one
+ * piece of bulkChunkSize per event loop task, only while the channel is
+ * writable, so the consensus messages written meanwhile go out between the
+ * pieces (see ServerConnection for the framing of the pieces).
+ *
+ * Each message written takes a credit granted by the remote replica (see
+ * FlowControl). Without credits, the messages wait in this handler until the
+ * remote replica grants more. The messages written again when a session is
+ * resumed take the first credits granted. The CREDIT and ACK frames carry a
+ * MAC, like the messages (see ServerConnection).
+ */
+class NettyServerChannelHandler extends ByteToMessageDecoder {
+
+    private static final int READ_ID = 0; // waiting for the ID of the replica that connected
+    private static final int READ_HELLO = 1; // waiting for the DH public key of the remote replica, or RESUME
+    private static final int READ_DH = 2; // waiting for the DH public key, after a RESUME that cannot be used
+    private static final int READ_PROOF = 3; // waiting for the proof that the remote replica has the session key
+    private static final int READ_FRAMES = 4; // connection established
+    private static final int ESTABLISHING_KEY = 5; // the DH key is being computed, out of the event loop
+    private static final int MAX_RETAINED_BUFFER = 1 << 20; // larger receive buffers are dropped after use
+
+    /**
+     * A message waiting for credits, or of the bulk lane being written
+     */
+    private static final class PendingWrite {
+        final OutboundMessage msg;
+        final ChannelFutureListener listener;
+        boolean credited = false;
+        int from = 0; // next byte of the message to be written
+        byte[] mac = null;
+
+        PendingWrite(OutboundMessage msg, ChannelFutureListener listener) {
+            this.msg = msg;
+            this.listener = listener;
+        }
+    }
+
+    private final NettyServersTransport transport;
+    private final boolean outbound;
+    private final Encoder encoder = new Encoder();
+    private final boolean useMACs;
+    private final int flushBytes;
+    private final long flushDelay;
+    private final int bulkChunkSize;
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushPending = false;
+            flush();
+        }
+    };
+    private final Runnable bulkTask = new Runnable() {
+        public void run() {
+            bulkPending = false;
+            writeBulk();
+        }
+    };
+
+    private int state;
+    private NettyServerConnection connection = null;
+    private SecretKey resumeKey = null; // key of the session this replica tries to resume
+    private byte[] nonce;
+    private byte[] remoteNonce;
+    private long[] suspended; // what was sent to resume the session (see RetransmitBuffer.suspend)
+    private int session; // session of the retransmit buffer to which this channel belongs
+    private Mac macSend;
+    private Mac macReceive;
+    private int macSize;
+    private Channel channel;
+    private byte[] receiveBuffer = new byte[1024]; // used if the received buffers are not backed by arrays
+    private byte[] receivedMac;
+    private byte[] bulkBuffer = new byte[1024]; // where the pieces of a bulk message are put together
+    private int bulkLength = 0;
+
+    // only accessed by the event loop of the channel
+    private boolean flushPending = false;
+    private int unflushed = 0;
+    private int unflushedBytes = 0;
+    private final ArrayDeque<PendingWrite> bulkQueue = new ArrayDeque<PendingWrite>();
+    private boolean bulkPending = false;
+    private final ArrayDeque<PendingWrite> consensusQueue = new ArrayDeque<PendingWrite>(); // waiting for credits
+    private int credits = 0;
+    private int creditDebt = 0; // credits owed for the messages written again
+    private boolean unlimitedCredits = false;
+    private long creditFrames = 0; // CREDIT frames written
+    private long lastCreditFrame = 0; // last CREDIT frame read
+    private long stallStart = 0;
+
+    /**
+     * @param transport the transport to which the channel belongs
+     * @param connection the connection for which the channel was created,
+     * or null if the channel was accepted (the remote ID is not known yet)
+     */
+    NettyServerChannelHandler(NettyServersTransport transport, NettyServerConnection connection) {
+        this.transport = transport;
+        this.connection = connection;
+        this.outbound = connection != null;
+        this.state = outbound ? READ_HELLO : READ_ID;
+        this.useMACs = transport.getController().getStaticConf().getUseMACs() == 1;
+        this.flushBytes = transport.getController().getStaticConf().getFlushBytes();
+        this.flushDelay = TimeUnit.MICROSECONDS.toNanos(transport.getController().getStaticConf().getFlushDelay());
+        this.bulkChunkSize = transport.getController().getStaticConf().getBulkChunkSize();
+    }
+
+    Channel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.channel = ctx.channel();
+        super.handlerAdded(ctx);
+    }
+
+    /**
+     * Writes a message to the channel, to be flushed together with the other
+     * messages written before the flush is triggered
+     */
+    void write(final OutboundMessage msg, final ChannelFutureListener listener) {
+        if (channel.eventLoop().inEventLoop()) {
+            doWrite(msg, listener);
+        } else {
+            try {
+                channel.eventLoop().execute(new Runnable() {
+                    public void run() {
+                        doWrite(msg, listener);
+                    }
+                });
+            } catch (RejectedExecutionException ex) { // the transport is shutting down
+                msg.release();
+            }
+        }
+    }
+
+    private void doWrite(OutboundMessage msg, ChannelFutureListener listener) {
+        if (!channel.isActive()) {
+            connection.unwritten(msg, this);
+        } else if (msg.isBulk()) {
+            bulkQueue.add(new PendingWrite(msg, listener));
+            scheduleBulk();
+        } else if (!consensusQueue.isEmpty() || !takeCredit()) {
+            consensusQueue.add(new PendingWrite(msg, listener));
+        } else {
+            writeConsensus(msg, listener);
+        }
+    }
+
+    private void writeConsensus(OutboundMessage msg, ChannelFutureListener listener) {
+        if (!number(msg)) {
+            connection.unwritten(msg, this);
+            return;
+        }
+        channel.write(msg).addListener(listener);
+        unflushed++;
+        unflushedBytes += 5 + msg.length() + ((msg.isUseMAC() && useMACs) ? macSize : 0);
+
+        if (unflushedBytes >= flushBytes) {
+            flush();
+        } else if (!flushPending) {
+            flushPending = true;
+            if (flushDelay == 0) {
+                channel.eventLoop().execute(flushTask);
+            } else {
+                channel.eventLoop().schedule(flushTask, flushDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void flush() {
+        if (unflushed == 0) return;
+
+        channel.flush();
+        if (connection != null) connection.getFlushStats().flushed(unflushed, unflushedBytes);
+        unflushed = 0;
+        unflushedBytes = 0;
+    }
+
+    private void scheduleBulk() {
+        if (!bulkPending) {
+            bulkPending = true;
+            channel.eventLoop().execute(bulkTask);
+        }
+    }
+
+    /**
+     * Writes the next piece of the bulk lane, if the channel is writable, and
+     * schedules the following one after the writes already submitted to the
+     * event loop
+     */
+    private void writeBulk() {
+        if (!channel.isActive()) {
+            discardPending();
+            return;
+        }
+        // resumed by granted or channelWritabilityChanged
+        if (bulkQueue.isEmpty() || !consensusQueue.isEmpty() || !channel.isWritable()) return;
+
+        PendingWrite w = bulkQueue.peek();
+        if (!w.credited) {
+            if (!takeCredit()) return;
+            w.credited = true;
+        }
+        OutboundMessage msg = w.msg;
+        int length = msg.length();
+        int size = (bulkChunkSize > 0) ? Math.min(bulkChunkSize, length - w.from) : length;
+
+        if (size == length) { // small enough to be written whole
+            bulkQueue.poll();
+            if (!number(msg)) {
+                connection.unwritten(msg, this);
+                return;
+            }
+            channel.write(msg).addListener(w.listener);
+            unflushedBytes += 5 + length + ((msg.isUseMAC() && useMACs) ? macSize : 0);
+        } else {
+            if (w.from == 0 && msg.isUseMAC() && useMACs) {
+                w.mac = msg.computeMAC(macSend);
+            }
+            boolean last = w.from + size == length;
+
+            ByteBuf header = channel.alloc().buffer(4);
+            header.writeInt(size | (last ? ServerConnection.CHUNK_LAST : ServerConnection.CHUNK_MORE));
+            channel.write(header);
+            channel.write(msg.retainedSlice(w.from, size));
+            unflushedBytes += 4 + size;
+            w.from += size;
+
+            if (last) {
+                bulkQueue.poll();
+                if (!number(msg)) { // written whole through the channel that took over
+                    connection.unwritten(msg, this);
+                    return;
+                }
+                ByteBuf trailer = channel.alloc().buffer(1 + (w.mac != null ? w.mac.length : 0));
+                if (w.mac != null) {
+                    trailer.writeByte(1);
+                    trailer.writeBytes(w.mac);
+                } else {
+                    trailer.writeByte(0);
+                }
+                channel.write(trailer).addListener(w.listener);
+                unflushedBytes += trailer.readableBytes();
+                msg.release();
+            }
+        }
+        unflushed++;
+        flush();
+
+        if (!bulkQueue.isEmpty()) scheduleBulk();
+    }
+
+    /**
+     * Numbers a message written in the session of this channel (see RetransmitBuffer)
+     * @return false if a newer channel took over the session
+     */
+    private boolean number(OutboundMessage msg) {
+        RetransmitBuffer retransmit = connection.getRetransmitBuffer();
+        return !retransmit.isEnabled() || retransmit.add(msg, session);
+    }
+
+    private void discardPending() {
+        PendingWrite w;
+        while ((w = consensusQueue.poll()) != null || (w = bulkQueue.poll()) != null) {
+            connection.unwritten(w.msg, this);
+        }
+    }
+
+    /**
+     * Takes the credit to write a message (only called by the event loop)
+     * @return false if there are no credits
+     */
+    private boolean takeCredit() {
+        if (unlimitedCredits || !connection.getFlowControl().isEnabled()) return true;
+        if (credits > 0) {
+            credits--;
+            return true;
+        }
+        if (stallStart == 0) stallStart = System.nanoTime();
+        return false;
+    }
+
+    /**
+     * Called when the remote replica grants credits, to write the messages
+     * that were waiting for them
+     */
+    private void granted(int n) {
+        if (n != FlowControl.UNLIMITED && creditDebt > 0) { // taken by the messages written again
+            int paid = Math.min(n, creditDebt);
+            creditDebt -= paid;
+            n -= paid;
+        }
+        if (n == FlowControl.UNLIMITED) {
+            unlimitedCredits = true;
+        } else {
+            credits += n;
+        }
+        if (stallStart != 0) {
+            connection.getFlowControl().stalled(System.nanoTime() - stallStart);
+            stallStart = 0;
+        }
+
+        while (!consensusQueue.isEmpty() && takeCredit()) {
+            PendingWrite w = consensusQueue.poll();
+            writeConsensus(w.msg, w.listener);
+        }
+        if (!bulkQueue.isEmpty()) scheduleBulk();
+    }
+
+    /**
+     * Grants credits to the remote replica
+     */
+    void writeCredit(final int n) {
+        Runnable task = new Runnable() {
+            public void run() {
+                channel.writeAndFlush(Unpooled.wrappedBuffer(ServerConnection.controlFrame(
+                        ServerConnection.CREDIT | n, ++creditFrames, useMACs ? macSend : null)));
+            }
+        };
+        if (channel.eventLoop().inEventLoop()) {
+            task.run();
+        } else {
+            try {
+                channel.eventLoop().execute(task);
+            } catch (RejectedExecutionException ex) { // the transport is shutting down
+            }
+        }
+    }
+
+    /**
+     * Writes a (bulk) message too large for a frame, in pieces
+     */
+    private void writeWhole(OutboundMessage msg) {
+        byte[] mac = (msg.isUseMAC() && useMACs) ? msg.computeMAC(macSend) : null;
+        int length = msg.length();
+        for (int from = 0; from < length; from += ServerConnection.CHUNK_LENGTH_MASK) {
+            int size = Math.min(ServerConnection.CHUNK_LENGTH_MASK, length - from);
+            boolean last = from + size == length;
+            ByteBuf header = channel.alloc().buffer(4);
+            header.writeInt(size | (last ? ServerConnection.CHUNK_LAST : ServerConnection.CHUNK_MORE));
+            channel.write(header);
+            channel.write(msg.retainedSlice(from, size));
+        }
+        ByteBuf trailer = channel.alloc().buffer(1 + (mac != null ? mac.length : 0));
+        trailer.writeByte(mac != null ? 1 : 0);
+        if (mac != null) trailer.writeBytes(mac);
+        channel.write(trailer);
+        msg.release();
+    }
+
+    /**
+     * Acknowledges the messages read (only called by the event loop)
+     */
+    private void writeAck() {
+        channel.writeAndFlush(Unpooled.wrappedBuffer(ServerConnection.controlFrame(
+                ServerConnection.ACK, connection.getRetransmitBuffer().getReceived(), useMACs ? macSend : null)));
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (channel.isWritable() && !bulkQueue.isEmpty()) scheduleBulk();
+        super.channelWritabilityChanged(ctx);
+    }
+
+    MessageToMessageEncoder<OutboundMessage> getEncoder() {
+        return encoder;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (outbound) {
+            ByteBuf id = ctx.alloc().buffer(4);
+            id.writeInt(transport.getController().getStaticConf().getProcessId());
+            ctx.write(id);
+            sendHello(ctx);
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        discardPending();
+        if (connection != null) {
+            connection.channelClosed(this);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof ClosedChannelException || cause instanceof IOException) {
+            Logger.println("Closing channel to " + (connection != null ? connection.getRemoteId() : "unknown replica")
+                    + ": " + cause.getMessage());
+        } else {
+            cause.printStackTrace(System.err);
+        }
+        ctx.close();
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        while (true) {
+            if (state == READ_ID) {
+                if (in.readableBytes() < 4) return;
+                int remoteId = in.readInt();
+
+                connection = transport.accepted(ctx.channel(), remoteId);
+                if (connection == null) { // not allowed, or parked until this replica joins the view
+                    return;
+                }
+                state = READ_HELLO;
+                sendHello(ctx);
+            } else if (state == READ_HELLO) {
+                if (in.readableBytes() < 4) return;
+                if (in.getInt(in.readerIndex()) == ServerConnection.RESUME) {
+                    if (in.readableBytes() < 4 + RetransmitBuffer.NONCE_LENGTH) return;
+                    in.skipBytes(4);
+                    remoteNonce = new byte[RetransmitBuffer.NONCE_LENGTH];
+                    in.readBytes(remoteNonce);
+                    if (resumeKey != null) {
+                        sendProof(ctx);
+                        state = READ_PROOF;
+                    } else {
+                        state = READ_DH; // sent by the remote replica after our public key
+                    }
+                } else {
+                    if (resumeKey != null) { // the remote replica starts a new session
+                        resumeKey = null;
+                        sendPublicKey(ctx);
+                    }
+                    state = READ_DH;
+                }
+            } else if (state == READ_DH) {
+                if (!readPublicKey(ctx, in)) return;
+            } else if (state == ESTABLISHING_KEY) {
+                return; // the rest is decoded once the key is established
+            } else if (state == READ_PROOF) {
+                if (!readProof(ctx, in)) return;
+            } else {
+                if (!readFrame(in)) return;
+            }
+        }
+    }
+
+    /**
+     * Resumes the handshake of a channel that was accepted before this
+     * replica knew the view (see NettyServersTransport.joinViewReceived)
+     */
+    void resumeAccepted(ChannelHandlerContext ctx, NettyServerConnection connection) {
+        this.connection = connection;
+        this.state = READ_HELLO;
+        sendHello(ctx);
+    }
+
+    /**
+     * Starts the handshake: tries to resume the session if this replica
+     * still has its key, or sends the DH public key otherwise
+     */
+    private void sendHello(ChannelHandlerContext ctx) {
+        resumeKey = connection.getSecretKey();
+        if (resumeKey == null) {
+            sendPublicKey(ctx);
+            return;
+        }
+
+        suspended = connection.getRetransmitBuffer().suspend();
+        nonce = new byte[RetransmitBuffer.NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        ByteBuf buf = ctx.alloc().buffer(4 + nonce.length);
+        buf.writeInt(ServerConnection.RESUME);
+        buf.writeBytes(nonce);
+        ctx.writeAndFlush(buf);
+    }
+
+    private void sendProof(ChannelHandlerContext ctx) throws Exception {
+        int myId = transport.getController().getStaticConf().getProcessId();
+        byte[] proof = RetransmitBuffer.resumeProof(resumeKey, myId, nonce, remoteNonce, suspended[0], suspended[1]);
+
+        ByteBuf buf = ctx.alloc().buffer(16 + proof.length);
+        buf.writeLong(suspended[0]);
+        buf.writeLong(suspended[1]);
+        buf.writeBytes(proof);
+        ctx.writeAndFlush(buf);
+    }
+
+    /**
+     * Reads the proof of the remote replica, and resumes the session if it is valid
+     * @return false if the proof was not received yet, or is invalid (the channel is closed)
+     */
+    private boolean readProof(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        Mac mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+        mac.init(resumeKey);
+        if (in.readableBytes() < 16 + mac.getMacLength()) return false;
+
+        long remoteReceived = in.readLong();
+        long remoteFirst = in.readLong();
+        byte[] proof = new byte[mac.getMacLength()];
+        in.readBytes(proof);
+        if (!Arrays.equals(proof, RetransmitBuffer.resumeProof(resumeKey, connection.getRemoteId(), remoteNonce, nonce,
+                remoteReceived, remoteFirst))) {
+            Logger.println("Invalid session resumption from " + connection.getRemoteId());
+            connection.setSecretKey(null); // the next channel starts a new session
+            ctx.close();
+            return false;
+        }
+
+        initMACs(resumeKey);
+        established(new long[]{remoteReceived, remoteFirst});
+        return true;
+    }
+
+    /**
+     * Completes the handshake, writing first the messages kept for the remote
+     * replica (the other messages reach the event loop after these)
+     * @param resumed what the remote replica sent to resume the session (null for a new one)
+     */
+    private void established(long[] resumed) {
+        state = READ_FRAMES;
+        session = connection.getRetransmitBuffer().getSession();
+        OutboundMessage[] replay = connection.channelEstablished(this, resumed);
+        if (replay.length > 0) {
+            Logger.println("Writing " + replay.length + " messages kept for " + connection.getRemoteId());
+            for (OutboundMessage msg : replay) {
+                if (msg.length() <= ServerConnection.CHUNK_LENGTH_MASK) {
+                    channel.write(msg); // not numbered again, and charged to the first credits granted
+                } else {
+                    writeWhole(msg);
+                }
+            }
+            channel.flush();
+            if (connection.getFlowControl().isEnabled()) creditDebt = replay.length;
+        }
+        if (connection.getFlowControl().isEnabled()) {
+            writeCredit(connection.getFlowControl().initialGrant());
+        }
+    }
+
+    private void sendPublicKey(ChannelHandlerContext ctx) {
+        DHKeyExchange exchange = transport.getKeyExchange();
+        byte[] bytes = exchange.getPublicKey();
+        byte[] signature = exchange.getSignature();
+
+        ByteBuf buf = ctx.alloc().buffer(8 + bytes.length + signature.length);
+        buf.writeInt(bytes.length);
+        buf.writeBytes(bytes);
+        buf.writeInt(signature.length);
+        buf.writeBytes(signature);
+        ctx.writeAndFlush(buf);
+    }
+
+    /**
+     * Reads the DH public key of the remote replica, and hands the signature
+     * verification and the computation of the key to the handshake threads
+     * of the transport, so the event loop is not held by them. Nothing else
+     * is read from the channel until the key is established
+     * @return false if the key was not received yet
+     */
+    private boolean readPublicKey(final ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        in.markReaderIndex();
+
+        final byte[] remoteBytes = readBlock(in);
+        final byte[] remoteSignature = remoteBytes != null ? readBlock(in) : null;
+        if (remoteSignature == null) {
+            in.resetReaderIndex();
+            return false;
+        }
+
+        state = ESTABLISHING_KEY;
+        channel.config().setAutoRead(false);
+        try {
+            transport.getHandshakeExecutor().execute(new Runnable() {
+                public void run() {
+                    SecretKey key = null;
+                    try {
+                        key = transport.getKeyExchange().establishKey(connection.getRemoteId(), remoteBytes, remoteSignature);
+                    } catch (Exception ex) {
+                        Logger.println("Could not establish the key of " + connection.getRemoteId() + ": " + ex);
+                    }
+
+                    final SecretKey established = key;
+                    try {
+                        channel.eventLoop().execute(new Runnable() {
+                            public void run() {
+                                keyEstablished(ctx, established);
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) { // the transport is shutting down
+                        channel.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) { // the transport is shutting down
+            ctx.close();
+        }
+        return true;
+    }
+
+    /**
+     * Completes the handshake of a new session, in the event loop, and
+     * decodes what was received meanwhile
+     * @param key the key established, or null if the remote replica sent an invalid one
+     */
+    private void keyEstablished(ChannelHandlerContext ctx, SecretKey key) {
+        if (!channel.isActive()) return;
+        if (key == null) {
+            ctx.close();
+            return;
+        }
+
+        try {
+            initMACs(key);
+        } catch (Exception ex) {
+            exceptionCaught(ctx, ex);
+            return;
+        }
+        connection.setSecretKey(key);
+        connection.getRetransmitBuffer().restart();
+        established(null);
+
+        channel.config().setAutoRead(true);
+        channel.pipeline().fireChannelRead(Unpooled.EMPTY_BUFFER);
+    }
+
+    private void initMACs(SecretKey key) throws Exception {
+        macSend = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+        macSend.init(key);
+        macReceive = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
+        macReceive.init(key);
+        macSize = macSend.getMacLength();
+        receivedMac = new byte[macSize];
+    }
+
+    private static byte[] readBlock(ByteBuf in) {
+        if (in.readableBytes() < 4) return null;
+        int length = in.readInt();
+        if (in.readableBytes() < length) return null;
+        byte[] block = new byte[length];
+        in.readBytes(block);
+        return block;
+    }
+
+    private boolean readFrame(ByteBuf in) throws Exception {
+        if (in.readableBytes() < 4) return false;
+
+        int start = in.readerIndex();
+        int dataLength = in.getInt(start);
+        if ((dataLength & (ServerConnection.ACK | ServerConnection.CREDIT)) != 0) {
+            byte[] frame = new byte[ServerConnection.CONTROL_LENGTH + (useMACs ? macSize : 0)];
+            if (in.readableBytes() < frame.length) return false;
+            in.readBytes(frame);
+            long value = in.getLong(start + 4);
+            if (!ServerConnection.isControlFrameValid(frame, useMACs ? macReceive : null)) {
+                Logger.println("WARNING: invalid MAC in control frame from " + connection.getRemoteId());
+            } else if ((dataLength & ServerConnection.ACK) != 0) {
+                connection.getRetransmitBuffer().acked(value);
+            } else if (value > lastCreditFrame) { // not applied before
+                lastCreditFrame = value;
+                granted(dataLength & ServerConnection.CHUNK_LENGTH_MASK);
+            }
+            return true;
+        }
+        if ((dataLength & (ServerConnection.CHUNK_MORE | ServerConnection.CHUNK_LAST)) != 0) {
+            return readChunk(in, dataLength);
+        }
+        if (in.readableBytes() < 5) return false;
+        if (in.readableBytes() < 5 + dataLength) return false;
+
+        boolean hasMAC = in.getByte(start + 4 + dataLength) == 1;
+        boolean readMAC = useMACs && hasMAC;
+        if (in.readableBytes() < 5 + dataLength + (readMAC ? macSize : 0)) return false;
+
+        //the message is decoded (and its MAC computed) straight from the received buffer
+        byte[] data;
+        int offset;
+        if (in.hasArray()) {
+            data = in.array();
+            offset = in.arrayOffset() + start + 4;
+        } else {
+            if (dataLength > receiveBuffer.length) {
+                receiveBuffer = new byte[Math.max(dataLength, 2 * receiveBuffer.length)];
+            }
+            data = receiveBuffer;
+            offset = 0;
+            in.getBytes(start + 4, data, 0, dataLength);
+        }
+        in.skipBytes(5 + dataLength);
+        if (connection.getRetransmitBuffer().received(session)) writeAck();
+
+        return deliver(in, data, offset, dataLength, readMAC);
+    }
+
+    /**
+     * Reads a frame with a piece of a bulk message, and delivers the message
+     * after its last piece
+     */
+    private boolean readChunk(ByteBuf in, int header) throws Exception {
+        int start = in.readerIndex();
+        int chunkLength = header & ServerConnection.CHUNK_LENGTH_MASK;
+        boolean last = (header & ServerConnection.CHUNK_LAST) != 0;
+        boolean readMAC = false;
+        if (last) {
+            if (in.readableBytes() < 5 + chunkLength) return false;
+            readMAC = useMACs && in.getByte(start + 4 + chunkLength) == 1;
+            if (in.readableBytes() < 5 + chunkLength + (readMAC ? macSize : 0)) return false;
+        } else if (in.readableBytes() < 4 + chunkLength) {
+            return false;
+        }
+
+        if (bulkLength + chunkLength > bulkBuffer.length) {
+            bulkBuffer = Arrays.copyOf(bulkBuffer, Math.max(bulkLength + chunkLength, 2 * bulkBuffer.length));
+        }
+        in.skipBytes(4);
+        in.readBytes(bulkBuffer, bulkLength, chunkLength);
+        bulkLength += chunkLength;
+        if (!last) return true;
+
+        in.skipBytes(1);
+        if (connection.getRetransmitBuffer().received(session)) writeAck();
+        byte[] data = bulkBuffer;
+        int dataLength = bulkLength;
+        bulkLength = 0;
+        if (bulkBuffer.length > MAX_RETAINED_BUFFER) bulkBuffer = new byte[1024];
+
+        return deliver(in, data, 0, dataLength, readMAC);
+    }
+
+    /**
+     * Checks the MAC of a message (read from the channel) and decodes it
+     */
+    private boolean deliver(ByteBuf in, byte[] data, int offset, int dataLength, boolean readMAC) throws Exception {
+        boolean result = true;
+        if (readMAC) {
+            in.readBytes(receivedMac);
+            macReceive.update(data, offset, dataLength);
+            result = Arrays.equals(macReceive.doFinal(), receivedMac);
+        }
+
+        if (result) {
+            SystemMessage sm;
+            try {
+                sm = MessageCodec.decode(data, offset, dataLength, transport.getController().getCurrentViewN());
+            } catch (ClassNotFoundException ex) {
+                return true; //invalid message sent, just ignore;
+            }
+            sm.authenticated = readMAC;
+            connection.received(sm);
+        } else {
+            //TODO: violation of authentication... we should do something
+            Logger.println("WARNING: Violation of authentication in message received from " + connection.getRemoteId());
+        }
+        return true;
+    }
+
+    /**
+     * Frames the messages sent through the channel. The (shared) buffer of the
+     * message is not copied: it is written between a header with its length
+     * and a trailer with its MAC, in a single gathering write when flushed.
+     */
+    private class Encoder extends MessageToMessageEncoder<OutboundMessage> {
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, OutboundMessage msg, List<Object> out) throws Exception {
+            byte[] mac = (msg.isUseMAC() && useMACs) ? msg.computeMAC(macSend) : null;
+
+            ByteBuf header = ctx.alloc().buffer(4);
+            header.writeInt(msg.length());
+            out.add(header);
+
+            out.add(msg.retainedData());
+
+            ByteBuf trailer = ctx.alloc().buffer(1 + (mac != null ? mac.length : 0));
+            if (mac != null) {
+                trailer.writeByte(1);
+                trailer.writeBytes(mac);
+            } else {
+                trailer.writeByte(0);
+            }
+            out.add(trailer);
+        }
+    }
+}
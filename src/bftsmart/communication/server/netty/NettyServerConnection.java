@@ -0,0 +1,293 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.FlowControl;
+import bftsmart.communication.server.FlushStats;
+import bftsmart.communication.server.OutboundMessage;
+import bftsmart.communication.server.RetransmitBuffer;
+import bftsmart.communication.server.ServerConnection;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.util.Logger;
+
+/**
+ * Link to another replica over the Netty transport. It keeps the semantics of
+ * ServerConnection: the replica with the higher ID connects, a lost connection
+ * is re-established after a pause that doubles up to POOL_TIME, resuming the
+ * session (see RetransmitBuffer), and at most outQueueSize messages can be
+ * waiting to be written (including the ones waiting for credits, see
+ * FlowControl). Messages that cannot be written while the link is down are
+ * kept with the ones written and not acknowledged, and all are written again
+ * when the session is resumed.
+ */
+public class NettyServerConnection {
+
+    private static final long POOL_TIME = 5000;
+    private static final long MIN_RECONNECT_TIME = 10;
+
+    private final NettyServersTransport transport;
+    private final int remoteId;
+    private final int outQueueSize;
+    private final long blockTime;
+    private final Semaphore slots; // room for messages waiting to be written
+    private final ChannelFutureListener written = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) {
+            slots.release();
+        }
+    };
+
+    private final FlushStats flushStats = new FlushStats();
+    private final FlowControl flowControl;
+    private final RetransmitBuffer retransmit;
+    private volatile long reconnectTime = MIN_RECONNECT_TIME;
+
+    private volatile NettyServerChannelHandler handler = null; // handler of the established channel, if any
+    private volatile SecretKey authKey = null;
+    private volatile boolean doWork = true;
+
+    NettyServerConnection(NettyServersTransport transport, int remoteId) {
+        this.transport = transport;
+        this.remoteId = remoteId;
+        this.outQueueSize = transport.getController().getStaticConf().getOutQueueSize();
+        this.blockTime = transport.getController().getStaticConf().getBlockTime();
+        this.slots = new Semaphore(outQueueSize);
+        this.flowControl = new FlowControl(transport.getController(), remoteId);
+        this.retransmit = new RetransmitBuffer(transport.getController(), remoteId);
+
+        if (isToConnect()) {
+            connect();
+        }
+    }
+
+    public int getRemoteId() {
+        return remoteId;
+    }
+
+    public SecretKey getSecretKey() {
+        return authKey;
+    }
+
+    void setSecretKey(SecretKey authKey) {
+        this.authKey = authKey;
+    }
+
+    /**
+     * @return statistics about the messages flushed together to the remote server
+     */
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * @return the flow control of the link with the remote server
+     */
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * @return the consensus messages kept for the remote server until it reads them
+     */
+    public RetransmitBuffer getRetransmitBuffer() {
+        return retransmit;
+    }
+
+    /**
+     * Used to send packets to the remote server. The connection takes over the
+     * reference to the message held by the caller, and releases it once the
+     * message is written or discarded.
+     */
+    public void send(OutboundMessage msg) {
+        //consensus messages wait up to blockTime for room, bulk messages are discarded at once
+        boolean room = false;
+        try {
+            room = msg.isBulk() ? slots.tryAcquire() : slots.tryAcquire(blockTime, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+        }
+        if (!room) {
+            Logger.println("(NettyServerConnection.send) out queue for " + remoteId + " full (message discarded).");
+            flowControl.dropped(msg.isBulk());
+            msg.release();
+            return;
+        }
+
+        NettyServerChannelHandler h = handler;
+        if (h == null || !h.getChannel().isActive()) {
+            unwritten(msg, h);
+        } else {
+            h.write(msg, written);
+        }
+    }
+
+    /**
+     * Called for a message that a channel cannot write (it is closed, or a
+     * newer channel took over the session), holding its room in the out
+     * queue: the message is kept to be written when the session is resumed,
+     * or written through the channel that replaced the old one
+     * @param from handler of the channel that did not write it, if any
+     */
+    void unwritten(OutboundMessage msg, NettyServerChannelHandler from) {
+        NettyServerChannelHandler h;
+        synchronized (this) {
+            h = handler;
+            if (h == null || h == from || !h.getChannel().isActive()) {
+                h = null;
+                if (!doWork || !retransmit.add(msg, retransmit.getSession())) {
+                    Logger.println("(NettyServerConnection.unwritten) not connected to " + remoteId + " (message discarded).");
+                }
+            }
+        }
+
+        if (h != null) {
+            h.write(msg, written);
+        } else {
+            msg.release();
+            slots.release();
+        }
+    }
+
+    /**
+     * @return number of messages waiting to be written
+     */
+    public int getQueued() {
+        return outQueueSize - slots.availablePermits();
+    }
+
+    /**
+     * Called when a message from the remote server leaves the in queue (or is
+     * discarded), to give its credit back
+     */
+    public void consumed() {
+        int n = flowControl.consumed();
+        NettyServerChannelHandler h = handler;
+        if (n > 0 && h != null) h.writeCredit(n);
+    }
+
+    /**
+     * Stop message sending and reception.
+     */
+    public void shutdown() {
+        Logger.println("SHUTDOWN for " + remoteId);
+
+        doWork = false;
+        NettyServerChannelHandler h = handler;
+        if (h != null) h.getChannel().close();
+        retransmit.restart(); // releases the messages kept
+    }
+
+    private boolean isToConnect() {
+        return ServerConnection.isToConnect(transport.getController(), remoteId);
+    }
+
+    private void connect() {
+        if (!doWork) return;
+
+        transport.connect(this).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    System.out.println("Impossible to connect to replica " + remoteId);
+                    reconnectLater(future.channel());
+                }
+            }
+        });
+    }
+
+    private void reconnectLater(Channel ch) {
+        if (!doWork || transport.isShutdown()) return;
+
+        long pause = reconnectTime;
+        reconnectTime = Math.min(2 * pause, POOL_TIME);
+        ch.eventLoop().schedule(new Runnable() {
+            public void run() {
+                connect();
+            }
+        }, pause, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when the handshake of a channel to the remote replica completes
+     * @param resumed the messages read and the oldest message kept by the
+     * remote replica, if the session was resumed (null for a new session)
+     * @return the messages to be written before any other, each with a new
+     * reference
+     */
+    OutboundMessage[] channelEstablished(NettyServerChannelHandler h, long[] resumed) {
+        NettyServerChannelHandler old;
+        OutboundMessage[] replay;
+        synchronized (this) { // no message is kept after these are taken and before the channel is published
+            replay = resumed == null ? retransmit.unacknowledged() : retransmit.resume(resumed[0], resumed[1]);
+            old = handler;
+            flowControl.reset();
+            reconnectTime = MIN_RECONNECT_TIME;
+            handler = h;
+        }
+        if (old != null && old != h) old.getChannel().close();
+        return replay;
+    }
+
+    /**
+     * Called when a channel to the remote replica is closed
+     */
+    void channelClosed(NettyServerChannelHandler h) {
+        if (handler != null && handler != h) return; // an old channel, already replaced
+
+        Logger.println("Closing socket and reconnecting");
+        handler = null;
+
+        if (isToConnect()) {
+            reconnectLater(h.getChannel());
+        }
+    }
+
+    /**
+     * Called by the event loop of the channel for each message received
+     */
+    void received(SystemMessage sm) {
+        if (remoteId == transport.getController().getStaticConf().getTTPId()) {
+            // messages indicating the entrance into the system, coming from the TTP
+            if (sm.getSender() == remoteId) {
+                transport.getReplica().joinMsgReceived((VMMessage) sm);
+            }
+            return;
+        }
+
+        if (!sm.authenticated && !transport.getAuthenticator().authenticate(sm, remoteId,
+                transport.getController().getStaticConf().getProcessId())) {
+            Logger.println("(NettyServerConnection.received) WARNING: invalid MAC vector from " + remoteId);
+            System.out.println("(NettyServerConnection.received) WARNING: invalid MAC vector from " + remoteId);
+            consumed();
+        } else if (sm.getSender() == remoteId) {
+            if (!transport.getInbound().offer(sm)) {
+                Logger.println("(NettyServerConnection.received) in queue full (message from " + remoteId + " discarded).");
+                System.out.println("(NettyServerConnection.received) in queue full (message from " + remoteId + " discarded).");
+                flowControl.receiveDropped();
+                consumed();
+            }
+        } else {
+            consumed();
+        }
+    }
+}
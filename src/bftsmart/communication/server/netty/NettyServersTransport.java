@@ -0,0 +1,373 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.net.InetSocketAddress;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.SecretKey;
+
+import bftsmart.communication.InboundStage;
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.DHKeyExchange;
+import bftsmart.communication.server.MacVectorAuthenticator;
+import bftsmart.communication.server.OutboundMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.ServiceReplica;
+
+/**
+ * Non-blocking transport for the links between replicas, used by
+ * ServersCommunicationLayer when system.communication.replicaTransport is
+ * set to netty. All links share a small group of event loop threads, instead
+ * of having a sender and a receiver thread per replica, and incoming
+ * connections are accepted by the same event loops. The signature checks
+ * and the Diffie-Hellman computations of the handshakes run in separate
+ * threads, so they do not delay the messages of the other links.
+ *
+ * The wire protocol (handshake, framing and MACs) is the same as the one of
+ * ServerConnection, so both transports can talk to each other.
+ */
+public class NettyServersTransport {
+
+    private final ServerViewController controller;
+    private final InboundStage inbound;
+    private final ServiceReplica replica;
+    private final MacVectorAuthenticator authenticator;
+    private final DHKeyExchange keyExchange;
+    private final int me;
+
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final ExecutorService handshakes; // establish the keys of new sessions
+    private final Bootstrap bootstrap;
+    private Channel serverChannel;
+
+    private final Hashtable<Integer, NettyServerConnection> connections = new Hashtable<Integer, NettyServerConnection>();
+    private final ReentrantLock connectionsLock = new ReentrantLock();
+    private final ReentrantLock waitViewLock = new ReentrantLock();
+    private final List<PendingChannel> pendingConn = new LinkedList<PendingChannel>();
+    private volatile boolean doWork = true;
+
+    public NettyServersTransport(ServerViewController controller, InboundStage inbound,
+            ServiceReplica replica, MacVectorAuthenticator authenticator) throws Exception {
+
+        this.controller = controller;
+        this.inbound = inbound;
+        this.replica = replica;
+        this.authenticator = authenticator;
+        this.me = controller.getStaticConf().getProcessId();
+        long start = System.nanoTime();
+        this.keyExchange = new DHKeyExchange(controller);
+        long keys = System.nanoTime();
+
+        this.bossGroup = new NioEventLoopGroup(1);
+        this.workerGroup = new NioEventLoopGroup(controller.getStaticConf().getNumberOfNIOThreads());
+        this.handshakes = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Handshake " + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        this.bootstrap = new Bootstrap();
+        bootstrap.group(workerGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true);
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        NettyServerChannelHandler handler = new NettyServerChannelHandler(NettyServersTransport.this, null);
+                        ch.pipeline().addLast(handler);
+                        ch.pipeline().addLast(handler.getEncoder());
+                    }
+                })
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true);
+
+        serverChannel = b.bind(new InetSocketAddress(controller.getStaticConf().getServerToServerPort(me))).sync().channel();
+        long bound = System.nanoTime();
+
+        //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
+        if (controller.isInCurrentView()) {
+            int[] initialV = controller.getCurrentViewAcceptors();
+            for (int i = 0; i < initialV.length; i++) {
+                if (initialV[i] != me) {
+                    getConnection(initialV[i]);
+                }
+            }
+        }
+
+        //the channels connect in the event loops
+        System.out.println("-- Replica links started in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) +
+                " ms (keys: " + TimeUnit.NANOSECONDS.toMillis(keys - start) +
+                " ms, bind: " + TimeUnit.NANOSECONDS.toMillis(bound - keys) + " ms)");
+    }
+
+    ServerViewController getController() {
+        return controller;
+    }
+
+    ServiceReplica getReplica() {
+        return replica;
+    }
+
+    MacVectorAuthenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    InboundStage getInbound() {
+        return inbound;
+    }
+
+    DHKeyExchange getKeyExchange() {
+        return keyExchange;
+    }
+
+    ExecutorService getHandshakeExecutor() {
+        return handshakes;
+    }
+
+    boolean isShutdown() {
+        return !doWork;
+    }
+
+    public SecretKey getSecretKey(int id) {
+        NettyServerConnection conn = connections.get(id);
+        return conn != null ? conn.getSecretKey() : null;
+    }
+
+    /**
+     * Sends a message to a replica, taking over the reference to the message
+     * held by the caller
+     */
+    public void send(int remoteId, OutboundMessage msg) {
+        getConnection(remoteId).send(msg);
+    }
+
+    public void updateConnections() {
+        connectionsLock.lock();
+
+        if (this.controller.isInCurrentView()) {
+
+            Iterator<Integer> it = this.connections.keySet().iterator();
+            List<Integer> toRemove = new LinkedList<Integer>();
+            while (it.hasNext()) {
+                int rm = it.next();
+                if (!this.controller.isCurrentViewMember(rm)) {
+                    toRemove.add(rm);
+                }
+            }
+            for (int i = 0; i < toRemove.size(); i++) {
+                this.connections.remove(toRemove.get(i)).shutdown();
+            }
+
+            int[] newV = controller.getCurrentViewAcceptors();
+            for (int i = 0; i < newV.length; i++) {
+                if (newV[i] != me) {
+                    getConnection(newV[i]);
+                }
+            }
+        } else {
+
+            Iterator<Integer> it = this.connections.keySet().iterator();
+            while (it.hasNext()) {
+                this.connections.get(it.next()).shutdown();
+            }
+        }
+
+        connectionsLock.unlock();
+    }
+
+    private NettyServerConnection getConnection(int remoteId) {
+        connectionsLock.lock();
+        NettyServerConnection ret = this.connections.get(remoteId);
+        if (ret == null) {
+            ret = new NettyServerConnection(this, remoteId);
+            this.connections.put(remoteId, ret);
+        }
+        connectionsLock.unlock();
+        return ret;
+    }
+
+    /**
+     * Opens a new channel to a replica
+     */
+    ChannelFuture connect(final NettyServerConnection conn) {
+        Bootstrap b = bootstrap.clone();
+        b.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                NettyServerChannelHandler handler = new NettyServerChannelHandler(NettyServersTransport.this, conn);
+                ch.pipeline().addLast(handler);
+                ch.pipeline().addLast(handler.getEncoder());
+            }
+        });
+        return b.connect(controller.getStaticConf().getHost(conn.getRemoteId()),
+                controller.getStaticConf().getServerToServerPort(conn.getRemoteId()));
+    }
+
+    /**
+     * Called (by the event loop of the channel) when a replica that connected
+     * to this one sends its ID.
+     *
+     * @return the connection to the replica, or null if the channel was closed,
+     * or parked until this replica receives the view
+     */
+    NettyServerConnection accepted(Channel ch, int remoteId) {
+        if (!this.controller.isInCurrentView() &&
+                (this.controller.getStaticConf().getTTPId() != remoteId)) {
+            waitViewLock.lock();
+            ch.config().setAutoRead(false);
+            pendingConn.add(new PendingChannel(ch, remoteId));
+            waitViewLock.unlock();
+            return null;
+        }
+
+        if ((this.controller.getStaticConf().getTTPId() == remoteId) || this.controller.isCurrentViewMember(remoteId)) {
+            return getConnection(remoteId);
+        }
+
+        ch.close();
+        return null;
+    }
+
+    public void joinViewReceived() {
+        waitViewLock.lock();
+        for (final PendingChannel pc : pendingConn) {
+            final NettyServerChannelHandler handler = pc.channel.pipeline().get(NettyServerChannelHandler.class);
+
+            if (handler == null || !this.controller.isCurrentViewMember(pc.remoteId)) {
+                pc.channel.close();
+                continue;
+            }
+
+            final NettyServerConnection conn = getConnection(pc.remoteId);
+            pc.channel.eventLoop().execute(new Runnable() {
+                public void run() {
+                    handler.resumeAccepted(pc.channel.pipeline().context(handler), conn);
+                    pc.channel.config().setAutoRead(true);
+                    // decode what was already received
+                    pc.channel.pipeline().fireChannelRead(Unpooled.EMPTY_BUFFER);
+                }
+            });
+        }
+
+        pendingConn.clear();
+
+        waitViewLock.unlock();
+    }
+
+    public void shutdown() {
+        doWork = false;
+
+        connectionsLock.lock();
+        for (NettyServerConnection conn : connections.values()) {
+            conn.shutdown();
+        }
+        connectionsLock.unlock();
+
+        serverChannel.close();
+        handshakes.shutdown();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+
+    /**
+     * Called when a message from another replica leaves the in queue, so that
+     * its credit is given back
+     */
+    public void consumed(SystemMessage sm) {
+        NettyServerConnection conn = connections.get(sm.getSender());
+        if (conn != null) conn.consumed();
+    }
+
+    /**
+     * @return the flush, flow control and retransmission statistics of the connections to the other replicas
+     */
+    public String getLinkStats() {
+        String str = "";
+        int[] activeServers = controller.getCurrentViewAcceptors();
+
+        for (int i = 0; i < activeServers.length; i++) {
+            if (me != activeServers[i]) {
+                str += "connections[" + activeServers[i] + "]: " + getConnection(activeServers[i]).getFlushStats() + "; " +
+                        getConnection(activeServers[i]).getFlowControl() + "; " +
+                        getConnection(activeServers[i]).getRetransmitBuffer() + "\n";
+            }
+        }
+
+        return str;
+    }
+
+    @Override
+    public String toString() {
+        String str = inbound.toString();
+
+        int[] activeServers = controller.getCurrentViewAcceptors();
+
+        for (int i = 0; i < activeServers.length; i++) {
+            if (me != activeServers[i]) {
+                str += ", connections[" + activeServers[i] + "]: queued=" + getConnection(activeServers[i]).getQueued();
+            }
+        }
+
+        return str;
+    }
+
+    /**
+     * Channel accepted before this replica learned the current view
+     */
+    private static class PendingChannel {
+
+        final Channel channel;
+        final int remoteId;
+
+        PendingChannel(Channel channel, int remoteId) {
+            this.channel = channel;
+            this.remoteId = remoteId;
+        }
+    }
+}
@@ -18,7 +18,6 @@ package bftsmart.consensus;
 import bftsmart.consensus.executionmanager.Execution;
 import bftsmart.consensus.messages.PaxosMessage;
 import java.io.Serializable;
-import java.util.Arrays;
 import org.apache.commons.codec.binary.Base64;
 
 import bftsmart.reconfiguration.ServerViewController;
@@ -37,10 +36,8 @@ public class Round implements Serializable {
     
     private int number; // Round's number
     private int me; // Process ID
-    private boolean[] writeSetted;
-    private boolean[] acceptSetted;
-    private byte[][] write; // WRITE values from other processes
-    private byte[][] accept; // accepted values from other processes
+    private VoteTally write; // WRITE values from other processes
+    private VoteTally accept; // accepted values from other processes
     
     private boolean alreadyRemoved = false; // indicates if this round was removed from its execution
 
@@ -49,8 +46,6 @@ public class Round implements Serializable {
     public byte[] propValueHash = null; // proposed value hash
     public HashSet<PaxosMessage> proof; // proof from other processes
 
-    private View lastView = null;
-
     private ServerViewController controller;
 
     /**
@@ -66,74 +61,32 @@ public class Round implements Serializable {
         this.proof = new HashSet<PaxosMessage>();
         //ExecutionManager manager = execution.getManager();
 
-        this.lastView = controller.getCurrentView();
         this.me = controller.getStaticConf().getProcessId();
 
-        //int[] acceptors = manager.getAcceptors();
-        int n = controller.getCurrentViewN();
-
-        writeSetted = new boolean[n];
-        acceptSetted = new boolean[n];
-
-        Arrays.fill(writeSetted, false);
-        Arrays.fill(acceptSetted, false);
+        View view = controller.getCurrentView();
 
         if (number == 0) {
-            this.write = new byte[n][];
-            this.accept = new byte[n][];
-
-            Arrays.fill((Object[]) write, null);
-            Arrays.fill((Object[]) accept, null);
+            this.write = new VoteTally(view);
+            this.accept = new VoteTally(view);
         } else {
             Round previousRound = execution.getRound(number - 1, controller);
 
-            this.write = previousRound.getWrite();
-            this.accept = previousRound.getAccept();
+            this.write = previousRound.write;
+            this.accept = previousRound.accept;
+
+            rebind(view);
         }
     }
 
-    // If a view change takes place and concurrentely this consensus is still
-    // receiving messages, the write and accept arrays must be updated
-    private void updateArrays() {
-        
-        if (lastView.getId() != controller.getCurrentViewId()) {
-            
-            int n = controller.getCurrentViewN();
-            
-            byte[][] write = new byte[n][];
-            byte[][] accept = new byte[n][];
-            
-            boolean[] writeSetted = new boolean[n];
-            boolean[] acceptSetted = new boolean[n];
-
-            Arrays.fill(writeSetted, false);
-            Arrays.fill(acceptSetted, false);
-        
-            for (int pid : lastView.getProcesses()) {
-                
-                if (controller.isCurrentViewMember(pid)) {
-                    
-                    int currentPos = controller.getCurrentViewPos(pid);
-                    int lastPos = lastView.getPos(pid);
-                    
-                    write[currentPos] = this.write[lastPos];
-                    accept[currentPos] = this.accept[lastPos];
-
-                    writeSetted[currentPos] = this.writeSetted[lastPos];
-                    acceptSetted[currentPos] = this.acceptSetted[lastPos];
-
-                }
-            }
-            
-            this.write = write;
-            this.accept = accept;
-
-            this.writeSetted = writeSetted;
-            this.acceptSetted = acceptSetted;
-
-            lastView = controller.getCurrentView();
-            
-        }
+    /**
+     * If a view change takes place and concurrently this consensus is still
+     * receiving messages, the write and accept values must be rebound to the
+     * positions of the replicas in the new view
+     * @param view The new view
+     */
+    public void rebind(View view) {
+        write.rebind(view);
+        accept.rebind(view);
     }
             
     /**
@@ -189,17 +142,7 @@ public class Round implements Serializable {
      * @return True if there is a WRITE value from a replica, false otherwise
      */
     public boolean isWriteSetted(int acceptor) {
-        
-        updateArrays();
-        
-        //******* EDUARDO BEGIN **************//
-        int p = this.controller.getCurrentViewPos(acceptor);
-        if(p >= 0){
-            return write[p] != null;
-        }else{
-            return false;
-        }
-        //******* EDUARDO END **************//
+        return write.isSet(acceptor);
     }
 
     /**
@@ -208,17 +151,7 @@ public class Round implements Serializable {
      * @return True if there is a accepted value from a replica, false otherwise
      */
     public boolean isAcceptSetted(int acceptor) {
-        
-        updateArrays();
-        
-        //******* EDUARDO BEGIN **************//
-        int p = this.controller.getCurrentViewPos(acceptor);
-        if(p >= 0){
-            return accept[p] != null;
-        }else{
-            return false;
-        }
-        //******* EDUARDO END **************//
+        return accept.isSet(acceptor);
     }
 
     /**
@@ -227,17 +160,7 @@ public class Round implements Serializable {
      * @return The value from the specified replica
      */
     public byte[] getWrite(int acceptor) {
-        
-        updateArrays();
-        
-        //******* EDUARDO BEGIN **************//
-        int p = this.controller.getCurrentViewPos(acceptor);
-        if(p >= 0){        
-            return this.write[p];
-        }else{
-            return null;
-        }
-        //******* EDUARDO END **************//
+        return write.get(acceptor);
     }
 
     /**
@@ -245,7 +168,7 @@ public class Round implements Serializable {
      * @return The values from all replicas
      */
     public byte[][] getWrite() {
-        return this.write;
+        return write.getVotes();
     }
 
     /**
@@ -253,17 +176,8 @@ public class Round implements Serializable {
      * @param acceptor The replica ID
      * @param value The valuefrom the specified replica
      */
-    public void setWrite(int acceptor, byte[] value) { // TODO: Race condition?
-        
-        updateArrays();
-        
-        //******* EDUARDO BEGIN **************//
-        int p = this.controller.getCurrentViewPos(acceptor);
-        if (p >=0 /*&& !writeSetted[p] && !isFrozen() */) { //it can only be setted once
-            write[p] = value;
-            writeSetted[p] = true;
-        }
-        //******* EDUARDO END **************//
+    public void setWrite(int acceptor, byte[] value) {
+        write.set(acceptor, value);
     }
 
     /**
@@ -272,17 +186,7 @@ public class Round implements Serializable {
      * @return The value accepted from the specified replica
      */
     public byte[] getAccept(int acceptor) {
-        
-        updateArrays();
-        
-        //******* EDUARDO BEGIN **************//
-         int p = this.controller.getCurrentViewPos(acceptor);
-        if(p >= 0){        
-        return accept[p];
-        }else{
-            return null;
-        }
-        //******* EDUARDO END **************//
+        return accept.get(acceptor);
     }
 
     /**
@@ -290,7 +194,7 @@ public class Round implements Serializable {
      * @return The values accepted from all replicas
      */
     public byte[][] getAccept() {
-        return accept;
+        return accept.getVotes();
     }
 
     /**
@@ -298,17 +202,8 @@ public class Round implements Serializable {
      * @param acceptor The replica ID
      * @param value The value accepted from the specified replica
      */
-    public void setAccept(int acceptor, byte[] value) { // TODO: race condition?
-        
-        updateArrays();
-        
-        //******* EDUARDO BEGIN **************//
-        int p = this.controller.getCurrentViewPos(acceptor);
-        if (p >= 0 /*&& !strongSetted[p] && !isFrozen()*/) { //it can only be setted once
-            accept[p] = value;
-            acceptSetted[p] = true;
-        }
-        //******* EDUARDO END **************//
+    public void setAccept(int acceptor, byte[] value) {
+        accept.set(acceptor, value);
     }
 
     /**
@@ -317,7 +212,7 @@ public class Round implements Serializable {
      * @return Amount of replicas from which this process received the specified value
      */
     public int countWrite(byte[] value) {
-        return count(writeSetted,write, value);
+        return write.count(value);
     }
 
     /**
@@ -326,26 +221,7 @@ public class Round implements Serializable {
      * @return Amount of replicas from which this process accepted the specified value
      */
     public int countAccept(byte[] value) {
-        return count(acceptSetted,accept, value);
-    }
-
-    /**
-     * Counts how many times 'value' occurs in 'array'
-     * @param array Array where to count
-     * @param value Value to count
-     * @return Ammount of times that 'value' was find in 'array'
-     */
-    private int count(boolean[] arraySetted,byte[][] array, byte[] value) {
-        if (value != null) {
-            int counter = 0;
-            for (int i = 0; i < array.length; i++) {
-                if (arraySetted != null && arraySetted[i] && Arrays.equals(value, array[i])) {
-                    counter++;
-                }
-            }
-            return counter;
-        }
-        return 0;
+        return accept.count(value);
     }
 
     /*************************** DEBUG METHODS *******************************/
@@ -362,6 +238,9 @@ public class Round implements Serializable {
         buffAccept.append("S=(");
         buffDecide.append("D=(");
 
+        byte[][] write = getWrite();
+        byte[][] accept = getAccept();
+
         for (int i = 0; i < write.length - 1; i++) {
             buffWrite.append(str(write[i]) + " [" + (write[i] != null ? write[i].length : 0) + " bytes] ,");
             buffAccept.append(str(accept[i]) + " [" + (accept[i] != null ? accept[i].length : 0) + " bytes] ,");
@@ -391,19 +270,10 @@ public class Round implements Serializable {
      */
     public void clear() {
 
-        int n = controller.getCurrentViewN();
-        
-        writeSetted = new boolean[n];
-        acceptSetted = new boolean[n];
-
-        Arrays.fill(writeSetted, false);
-        Arrays.fill(acceptSetted, false);
-
-        this.write = new byte[n][];
-        this.accept = new byte[n][];
+        View view = controller.getCurrentView();
 
-        Arrays.fill((Object[]) write, null);
-        Arrays.fill((Object[]) accept, null);
+        this.write = new VoteTally(view);
+        this.accept = new VoteTally(view);
         
         this.proof = new HashSet<PaxosMessage>();
     }
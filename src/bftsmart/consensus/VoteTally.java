@@ -0,0 +1,176 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import bftsmart.reconfiguration.views.View;
+
+/**
+ * Votes (WRITE or ACCEPT values) received from the replicas of a view.
+ *
+ * Each distinct value is stored once, together with the number of replicas
+ * that voted for it, so counting the votes for a value does not need to go
+ * through the votes of every replica. The votes are indexed by the position
+ * of the replicas in the view the tally is bound to; when the view changes,
+ * the tally must be explicitly rebound to the new one.
+ */
+public class VoteTally implements Serializable {
+
+    private static final long serialVersionUID = 2461930283470251537L;
+
+    private View view; // view to which the positions refer
+    private byte[][] votes; // vote of each replica (by position in the view)
+    private int[] voteIndex; // index in 'values' of the vote of each replica (-1 if none)
+    private byte[][] values; // distinct values voted
+    private int[] counts; // number of votes for each distinct value
+    private int numValues = 0;
+
+    /**
+     * Creates a new, empty, tally
+     * @param view view whose replicas vote
+     */
+    public VoteTally(View view) {
+        this.view = view;
+        int n = view.getN();
+        this.votes = new byte[n][];
+        this.voteIndex = new int[n];
+        Arrays.fill(voteIndex, -1);
+        this.values = new byte[n][];
+        this.counts = new int[n];
+    }
+
+    /**
+     * @return the view to which this tally is bound
+     */
+    public synchronized View getView() {
+        return view;
+    }
+
+    /**
+     * Informs if there is a vote from a replica
+     * @param pid The replica ID
+     * @return True if the replica voted, false otherwise
+     */
+    public synchronized boolean isSet(int pid) {
+        int p = view.getPos(pid);
+        return p >= 0 && votes[p] != null;
+    }
+
+    /**
+     * Retrieves the vote of a replica
+     * @param pid The replica ID
+     * @return The value voted by the replica, or null if it did not vote yet
+     */
+    public synchronized byte[] get(int pid) {
+        int p = view.getPos(pid);
+        return p >= 0 ? votes[p] : null;
+    }
+
+    /**
+     * @return the votes of all replicas, by position in the view
+     */
+    public synchronized byte[][] getVotes() {
+        return votes;
+    }
+
+    /**
+     * Sets the vote of a replica (replacing its previous vote, if any).
+     * Votes from replicas that do not belong to the view are ignored.
+     * @param pid The replica ID
+     * @param value The value voted by the replica
+     */
+    public synchronized void set(int pid, byte[] value) {
+        int p = view.getPos(pid);
+        if (p < 0) return;
+        setAt(p, value);
+    }
+
+    /**
+     * Retrieves the amount of replicas that voted for a value
+     * @param value The value in question
+     * @return Amount of replicas that voted for the value
+     */
+    public synchronized int count(byte[] value) {
+        if (value == null) return 0;
+        int i = indexOf(value);
+        return i >= 0 ? counts[i] : 0;
+    }
+
+    /**
+     * Binds this tally to a new view, keeping the votes of the replicas that
+     * belong to both views. Does nothing if the tally is already bound to it.
+     * @param newView The new view
+     */
+    public synchronized void rebind(View newView) {
+        if (newView.getId() == view.getId()) return;
+
+        byte[][] oldVotes = votes;
+        View oldView = view;
+
+        int n = newView.getN();
+        this.view = newView;
+        this.votes = new byte[n][];
+        this.voteIndex = new int[n];
+        Arrays.fill(voteIndex, -1);
+        this.values = new byte[n][];
+        this.counts = new int[n];
+        this.numValues = 0;
+
+        for (int pid : oldView.getProcesses()) {
+            int p = newView.getPos(pid);
+            byte[] vote = oldVotes[oldView.getPos(pid)];
+            if (p >= 0 && vote != null) setAt(p, vote);
+        }
+    }
+
+    private void setAt(int p, byte[] value) {
+        int old = voteIndex[p];
+        votes[p] = value;
+
+        if (value == null) {
+            voteIndex[p] = -1;
+            if (old >= 0) counts[old]--;
+            return;
+        }
+
+        if (old >= 0 && Arrays.equals(values[old], value)) return; // same vote as before
+
+        if (old >= 0) counts[old]--;
+
+        int i = indexOf(value);
+        if (i < 0) {
+            if (numValues < values.length) {
+                i = numValues++;
+            } else { // n votes, so some value has no votes left
+                i = 0;
+                while (counts[i] > 0) i++;
+            }
+            values[i] = value;
+        }
+        counts[i]++;
+        voteIndex[p] = i;
+    }
+
+    private int indexOf(byte[] value) {
+        // replicas usually vote for the same value, so there are very few distinct values
+        for (int i = 0; i < numValues; i++) {
+            if (Arrays.equals(values[i], value)) return i;
+        }
+        return -1;
+    }
+}
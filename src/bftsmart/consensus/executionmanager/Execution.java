@@ -24,6 +24,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Consensus;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.views.View;
 
 
 
@@ -111,6 +112,20 @@ public class Execution {
 
         return round;
     }
+
+    /**
+     * Rebinds the rounds of this execution to a new view
+     * @param view The new view
+     */
+    public void rebind(View view) {
+        roundsLock.lock();
+
+        for (Round round : rounds.values()) {
+            round.rebind(view);
+        }
+
+        roundsLock.unlock();
+    }
     
     /**
      * Increment the ETS of this replica
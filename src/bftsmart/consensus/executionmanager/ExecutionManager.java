@@ -23,7 +23,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Consensus;
@@ -32,6 +31,7 @@ import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.consensus.roles.Proposer;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.views.View;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.util.Logger;
 
@@ -52,13 +52,18 @@ public final class ExecutionManager {
     //private int[] acceptors; // Process ID's of all replicas, including this one
     //private int[] otherAcceptors; // Process ID's of all replicas, except this one
     //******* EDUARDO END **************//
-    private Map<Integer, Execution> executions = new TreeMap<Integer, Execution>(); // Executions
-    private ReentrantLock executionsLock = new ReentrantLock(); //lock for executions table
-    // Paxos messages that were out of context (that didn't belong to the execution that was/is is progress
-    private Map<Integer, List<PaxosMessage>> outOfContext = new HashMap<Integer, List<PaxosMessage>>();
-    // Proposes that were out of context (that belonged to future executions, and not the one running at the time)
-    private Map<Integer, PaxosMessage> outOfContextProposes = new HashMap<Integer, PaxosMessage>();
-    private ReentrantLock outOfContextLock = new ReentrantLock(); //lock for out of context
+    // Executions table, indexed by eid modulo its size (a power of two that covers all live executions)
+    private ExecutionSlot[] executions;
+    // Paxos messages that were out of context (that didn't belong to the execution that was/is is progress),
+    // indexed the same way as the executions table
+    private OutOfContextSlot[] outOfContext;
+    private int mask; // size of both tables minus one
+    // Executions and out of context messages that do not fit in the tables (e.g., messages beyond the
+    // paxos high mark, or an execution whose slot is still used by an older one that is not stable yet)
+    private Map<Integer, Execution> overflowExecutions = new HashMap<Integer, Execution>();
+    private Map<Integer, OutOfContextSlot> overflowOutOfContext = new HashMap<Integer, OutOfContextSlot>();
+    private volatile boolean overflow = false; // is there anything in the overflow maps?
+    private ReentrantLock overflowLock = new ReentrantLock(); //lock for the overflow maps (always taken after a slot lock)
     private boolean stopped = false; // Is the execution manager stopped?
     // When the execution manager is stopped, incoming paxos messages are stored here
     private Queue<PaxosMessage> stoppedMsgs = new LinkedList<PaxosMessage>();
@@ -69,6 +74,7 @@ public final class ExecutionManager {
     /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
     private int revivalHighMark; // Paxos high mark for consensus instances when this replica EID equals 0
     private int timeoutHighMark; // Paxos high mark for a timed-out replica
+    private int pipelineDepth; // Maximum number of consensus in execution at the same time
     
     /******************************************************************/
     /**
@@ -94,7 +100,52 @@ public final class ExecutionManager {
         this.revivalHighMark = this.controller.getStaticConf().getRevivalHighMark();
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
         /******************************************************************/
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
         //******* EDUARDO END **************//
+
+        // live executions go from the last stable one to the paxos high mark
+        int size = Integer.highestOneBit(paxosHighMark + STABLE_DISTANCE) << 1;
+        this.mask = size - 1;
+        this.executions = new ExecutionSlot[size];
+        this.outOfContext = new OutOfContextSlot[size];
+        for (int i = 0; i < size; i++) {
+            executions[i] = new ExecutionSlot();
+            outOfContext[i] = new OutOfContextSlot();
+        }
+    }
+
+    /**
+     * Number of decided executions that are kept after the last executed one
+     * (the delivery thread removes execution eid - STABLE_DISTANCE when eid is delivered)
+     */
+    private static final int STABLE_DISTANCE = 3;
+
+    /**
+     * Entry of the executions table
+     */
+    private static final class ExecutionSlot {
+        final ReentrantLock lock = new ReentrantLock(); // taken to create or remove the execution
+        volatile Execution execution = null;
+    }
+
+    /**
+     * Entry of the out of context table, holding the messages of consensus eid
+     */
+    private static final class OutOfContextSlot {
+        final ReentrantLock lock = new ReentrantLock();
+        int eid = -1;
+        // Propose that was out of context (that belonged to a future execution, and not the one running at the time)
+        PaxosMessage propose = null;
+        List<PaxosMessage> messages = null; // Other paxos messages that were out of context
+
+        boolean isEmpty() {
+            return propose == null && (messages == null || messages.isEmpty());
+        }
+
+        void clear() {
+            propose = null;
+            messages = null;
+        }
     }
 
     /**
@@ -180,15 +231,18 @@ public final class ExecutionManager {
      * @return true in case the message can be executed, false otherwise
      */
     public final boolean checkLimits(PaxosMessage msg) {
-        outOfContextLock.lock();
+        OutOfContextSlot slot = outOfContext[msg.getNumber() & mask];
+        slot.lock.lock();
         
         int lastConsId = tomLayer.getLastExec();
         
         int inExec = tomLayer.getInExec();
         
+        int lastStarted = tomLayer.getLastStarted();
+        
         Logger.println("(ExecutionManager.checkLimits) Received message  " + msg);
         Logger.println("(ExecutionManager.checkLimits) I'm at execution " + 
-                inExec + " and my last execution is " + lastConsId);
+                inExec + " (last started " + lastStarted + ") and my last execution is " + lastConsId);
         
         boolean isRetrievingState = tomLayer.isRetrievingState();
 
@@ -217,9 +271,9 @@ public final class ExecutionManager {
                 stoppedMsgsLock.unlock();
             } else {
                 if (isRetrievingState || 
-                        msg.getNumber() > (lastConsId + 1) || 
-                        (inExec != -1 && inExec < msg.getNumber()) || 
-                        (inExec == -1 && msg.getPaxosType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
+                        msg.getNumber() > (lastConsId + pipelineDepth) || //beyond the pipeline
+                        (msg.getNumber() > lastStarted && 
+                        (msg.getNumber() != lastStarted + 1 || msg.getPaxosType() != MessageFactory.PROPOSE))) { //not propose message for the next consensus
                     Logger.println("(ExecutionManager.checkLimits) Message for execution " + 
                             msg.getNumber() + " is out of context, adding it to out of context set");
                     
@@ -262,7 +316,7 @@ public final class ExecutionManager {
             /******************************************************************/
         }
         
-        outOfContextLock.unlock();
+        slot.lock.unlock();
 
         return canProcessTheMessage;
     }
@@ -273,11 +327,13 @@ public final class ExecutionManager {
      * @return True if there are still messages to be processed, false otherwise
      */
     public boolean receivedOutOfContextPropose(int eid) {
-        outOfContextLock.lock();
+        OutOfContextSlot slot = outOfContext[eid & mask];
+        slot.lock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        boolean result = outOfContextProposes.get(eid) != null;
+        OutOfContextSlot entry = getOutOfContext(slot, eid, false);
+        boolean result = entry != null && entry.propose != null;
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        slot.lock.unlock();
 
         return result;
     }
@@ -288,20 +344,45 @@ public final class ExecutionManager {
      * @return The consensus's execution that was removed
      */
     public Execution removeExecution(int id) {
-        executionsLock.lock();
+        ExecutionSlot slot = executions[id & mask];
+        slot.lock.lock();
         /******* BEGIN EXECUTIONS CRITICAL SECTION *******/
-        Execution execution = executions.remove(id);
+        Execution execution = slot.execution;
+        if (execution != null && execution.getId() == id) {
+            slot.execution = null;
+        } else {
+            execution = null;
+        }
 
+        if (overflow) {
+            overflowLock.lock();
+            // also drop the overflown executions that became stable
+            for (Iterator<Map.Entry<Integer, Execution>> i = overflowExecutions.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<Integer, Execution> e = i.next();
+                if (e.getKey() <= id) {
+                    if (e.getKey() == id) execution = e.getValue();
+                    i.remove();
+                }
+            }
+            updateOverflow();
+            overflowLock.unlock();
+        }
         /******* END EXECUTIONS CRITICAL SECTION *******/
-        executionsLock.unlock();
+        slot.lock.unlock();
 
-        outOfContextLock.lock();
+        OutOfContextSlot oocSlot = outOfContext[id & mask];
+        oocSlot.lock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextProposes.remove(id);
-        outOfContext.remove(id);
+        if (oocSlot.eid == id) oocSlot.clear();
 
+        if (overflow) {
+            overflowLock.lock();
+            overflowOutOfContext.remove(id);
+            updateOverflow();
+            overflowLock.unlock();
+        }
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        oocSlot.lock.unlock();
 
         return execution;
     }
@@ -309,26 +390,23 @@ public final class ExecutionManager {
     /** THIS IS JOAO'S CODE, FOR HANDLING THE STATE TRANSFER */
     public void removeOutOfContexts(int id) {
 
-        outOfContextLock.lock();
-        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        Integer[] keys = new Integer[outOfContextProposes.keySet().size()];
-        outOfContextProposes.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContextProposes.remove(keys[i]);
-            }
+        for (int i = 0; i < outOfContext.length; i++) {
+            OutOfContextSlot slot = outOfContext[i];
+            slot.lock.lock();
+            /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
+            if (slot.eid <= id) slot.clear();
+            /******* END OUTOFCONTEXT CRITICAL SECTION *******/
+            slot.lock.unlock();
         }
 
-        keys = new Integer[outOfContext.keySet().size()];
-        outOfContext.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContext.remove(keys[i]);
+        if (overflow) {
+            overflowLock.lock();
+            for (Iterator<Integer> i = overflowOutOfContext.keySet().iterator(); i.hasNext();) {
+                if (i.next() <= id) i.remove();
             }
+            updateOverflow();
+            overflowLock.unlock();
         }
-
-        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
     }
 
     /********************************************************/
@@ -339,79 +417,139 @@ public final class ExecutionManager {
      * @return The consensus execution specified
      */
     public Execution getExecution(int eid) {
-        executionsLock.lock();
-        /******* BEGIN EXECUTIONS CRITICAL SECTION *******/
-        
-        Execution execution = executions.get(eid);
+        ExecutionSlot slot = executions[eid & mask];
 
-        if (execution == null) {//there is no execution created with the given eid
-            //let's create one...
-            Consensus cons = new Consensus(eid);
+        Execution execution = slot.execution;
+        if (execution != null && execution.getId() == eid) return execution;
 
-            execution = new Execution(this, cons);
+        slot.lock.lock();
+        /******* BEGIN EXECUTIONS CRITICAL SECTION *******/
+        execution = slot.execution;
+
+        if (execution == null || execution.getId() != eid) {
+            execution = null;
+            if (overflow) {
+                overflowLock.lock();
+                execution = overflowExecutions.get(eid);
+                overflowLock.unlock();
+            }
 
-            //...and add it to the executions table
-            executions.put(eid, execution);
+            if (execution == null) {//there is no execution created with the given eid
+                //let's create one...
+                Consensus cons = new Consensus(eid);
+
+                execution = new Execution(this, cons);
+
+                //...and add it to the executions table
+                if (slot.execution == null || isStable(slot.execution.getId())) {
+                    slot.execution = execution;
+                } else {
+                    Logger.println("(ExecutionManager.getExecution) slot of execution " + eid
+                            + " is used by execution " + slot.execution.getId());
+                    overflowLock.lock();
+                    overflowExecutions.put(eid, execution);
+                    overflow = true;
+                    overflowLock.unlock();
+                }
+            }
         }
 
         /******* END EXECUTIONS CRITICAL SECTION *******/
-        executionsLock.unlock();
+        slot.lock.unlock();
 
         return execution;
     }
-    
+
+    /**
+     * Rebinds the rounds of the executions in this manager to a new view.
+     * Must be called whenever the current view changes.
+     *
+     * @param view The new view
+     */
+    public void rebindRounds(View view) {
+        for (ExecutionSlot slot : executions) {
+            Execution execution = slot.execution;
+            if (execution != null) execution.rebind(view);
+        }
+
+        if (overflow) {
+            overflowLock.lock();
+            for (Execution execution : overflowExecutions.values()) {
+                execution.rebind(view);
+            }
+            overflowLock.unlock();
+        }
+    }
+
     public boolean isDecidable(int eid) {
-        if (receivedOutOfContextPropose(eid)) {
-            Execution exec = getExecution(eid);
-            PaxosMessage prop = outOfContextProposes.get(exec.getId());
-            Round round = exec.getRound(prop.getRound(), controller);
-            byte[] propHash = tomLayer.computeHash(prop.getValue());
-            List<PaxosMessage> msgs = outOfContext.get(eid);
-            int countWrites = 0;
-            int countAccepts = 0;
-            if (msgs != null) {
-                for (PaxosMessage msg : msgs) {
-                    
-                    if (msg.getRound() == round.getNumber() &&
-                            Arrays.equals(propHash, msg.getValue())) {
-                        
-                        if (msg.getPaxosType() == MessageFactory.WRITE) countWrites++;
-                        else if (msg.getPaxosType() == MessageFactory.ACCEPT) countAccepts++;
+        OutOfContextSlot slot = outOfContext[eid & mask];
+        slot.lock.lock();
+        try {
+            OutOfContextSlot entry = getOutOfContext(slot, eid, false);
+            if (entry != null && entry.propose != null) {
+                Execution exec = getExecution(eid);
+                PaxosMessage prop = entry.propose;
+                Round round = exec.getRound(prop.getRound(), controller);
+                byte[] propHash = tomLayer.computeHash(prop.getValue());
+                List<PaxosMessage> msgs = entry.messages;
+                int countWrites = 0;
+                int countAccepts = 0;
+                if (msgs != null) {
+                    for (PaxosMessage msg : msgs) {
+
+                        if (msg.getRound() == round.getNumber() &&
+                                Arrays.equals(propHash, msg.getValue())) {
+
+                            if (msg.getPaxosType() == MessageFactory.WRITE) countWrites++;
+                            else if (msg.getPaxosType() == MessageFactory.ACCEPT) countAccepts++;
+                        }
                     }
                 }
+
+                if(controller.getStaticConf().isBFT()){
+                	return ((countWrites > (2*controller.getCurrentViewF())) &&
+                			(countAccepts > (2*controller.getCurrentViewF())));
+                }else{
+                	return (countAccepts > controller.getQuorumAccept());
+                }
             }
-            
-            if(controller.getStaticConf().isBFT()){
-            	return ((countWrites > (2*controller.getCurrentViewF())) &&
-            			(countAccepts > (2*controller.getCurrentViewF())));
-            }else{
-            	return (countAccepts > controller.getQuorumAccept());
-            }
+            return false;
+        } finally {
+            slot.lock.unlock();
         }
-        return false;
     }
     public void processOutOfContextPropose(Execution execution) {
-        outOfContextLock.lock();
+        OutOfContextSlot slot = outOfContext[execution.getId() & mask];
+        slot.lock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        
-        PaxosMessage prop = outOfContextProposes.remove(execution.getId());
-        if (prop != null) {
+
+        OutOfContextSlot entry = getOutOfContext(slot, execution.getId(), false);
+        if (entry != null && entry.propose != null) {
+            PaxosMessage prop = entry.propose;
+            entry.propose = null;
+            releaseOutOfContext(slot, entry);
+
             Logger.println("(ExecutionManager.createExecution) (" + execution.getId()
                     + ") Processing out of context propose");
             acceptor.processMessage(prop);
         }
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        slot.lock.unlock();
     }
 
     public void processOutOfContext(Execution execution) {
-        outOfContextLock.lock();
+        OutOfContextSlot slot = outOfContext[execution.getId() & mask];
+        slot.lock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        
+
         //then we have to put the pending paxos messages
-        List<PaxosMessage> messages = outOfContext.remove(execution.getId());
-        if (messages != null) {
+        OutOfContextSlot entry = getOutOfContext(slot, execution.getId(), false);
+        if (entry != null && entry.messages != null) {
+            List<PaxosMessage> messages = entry.messages;
+            entry.messages = null;
+            releaseOutOfContext(slot, entry);
+
             Logger.println("(createExecution) (" + execution.getId()
                     + ") Processing other " + messages.size()
                     + " out of context messages.");
@@ -429,7 +567,7 @@ public final class ExecutionManager {
         }
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        slot.lock.unlock();
     }
 
     /**
@@ -439,24 +577,87 @@ public final class ExecutionManager {
      * @param m Out of context message to be stored
      */
     public void addOutOfContextMessage(PaxosMessage m) {
-        outOfContextLock.lock();
+        OutOfContextSlot slot = outOfContext[m.getNumber() & mask];
+        slot.lock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
+        OutOfContextSlot entry = getOutOfContext(slot, m.getNumber(), true);
         if (m.getPaxosType() == MessageFactory.PROPOSE) {
             Logger.println("(ExecutionManager.addOutOfContextMessage) adding " + m);
-            outOfContextProposes.put(m.getNumber(), m);
+            entry.propose = m;
         } else {
-            List<PaxosMessage> messages = outOfContext.get(m.getNumber());
-            if (messages == null) {
-                messages = new LinkedList<PaxosMessage>();
-                outOfContext.put(m.getNumber(), messages);
+            if (entry.messages == null) {
+                entry.messages = new LinkedList<PaxosMessage>();
             }
             Logger.println("(ExecutionManager.addOutOfContextMessage) adding " + m);
-            messages.add(m);
+            entry.messages.add(m);
 
         }
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        slot.lock.unlock();
+    }
+
+    /**
+     * Finds the out of context messages of a consensus. The lock of its slot must be held.
+     *
+     * @param slot slot of the consensus in the out of context table
+     * @param eid consensus ID
+     * @param create if true, an empty entry is created when there is none
+     * @return the entry for the consensus (either the slot itself or an
+     * overflow entry), or null if there is none and create is false
+     */
+    private OutOfContextSlot getOutOfContext(OutOfContextSlot slot, int eid, boolean create) {
+        if (slot.eid == eid) return slot;
+
+        OutOfContextSlot entry = null;
+        if (overflow) {
+            overflowLock.lock();
+            entry = overflowOutOfContext.get(eid);
+            overflowLock.unlock();
+        }
+
+        if (entry == null && create) {
+            if (slot.isEmpty() || slot.eid <= tomLayer.getLastExec()) {
+                slot.clear();
+                slot.eid = eid;
+                entry = slot;
+            } else {
+                entry = new OutOfContextSlot();
+                entry.eid = eid;
+                overflowLock.lock();
+                overflowOutOfContext.put(eid, entry);
+                overflow = true;
+                overflowLock.unlock();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Drops an overflow entry that became empty. The lock of its slot must be held.
+     */
+    private void releaseOutOfContext(OutOfContextSlot slot, OutOfContextSlot entry) {
+        if (entry != slot && entry.isEmpty()) {
+            overflowLock.lock();
+            overflowOutOfContext.remove(entry.eid);
+            updateOverflow();
+            overflowLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called with the overflow lock held
+     */
+    private void updateOverflow() {
+        overflow = !overflowExecutions.isEmpty() || !overflowOutOfContext.isEmpty();
+    }
+
+    /**
+     * An execution is stable (and its slot can be reused) once it is not
+     * among the last ones kept by the delivery thread
+     */
+    private boolean isStable(int eid) {
+        return tomLayer != null && eid <= tomLayer.getLastExec() - STABLE_DISTANCE;
     }
 
     @Override
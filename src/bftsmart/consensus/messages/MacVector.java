@@ -0,0 +1,129 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.messages;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Vector of MACs that authenticates an ACCEPT message to each replica.
+ * The MACs are kept in a single array, in the same order as the replica IDs.
+ */
+public final class MacVector implements Externalizable {
+
+    private static final long serialVersionUID = 8149989316122408235L;
+
+    /** Bounds used when the vector is read without knowing the view (Java serialization) */
+    public static final int DEFAULT_MAX_IDS = 1024;
+    public static final int DEFAULT_MAX_MAC_LENGTH = 64; // HmacSHA512
+
+    private int[] ids; // replica IDs
+    private int macLength; // length of each MAC
+    private byte[] macs; // MAC for replica ids[i] starts at i * macLength
+
+    /**
+     * Creates an empty MAC vector. Used only for deserialization.
+     */
+    public MacVector() {
+    }
+
+    /**
+     * Creates a MAC vector to be filled by the authenticator
+     * @param ids IDs of the replicas
+     * @param macLength length of each MAC
+     */
+    public MacVector(int[] ids, int macLength) {
+        this.ids = ids;
+        this.macLength = macLength;
+        this.macs = new byte[ids.length * macLength];
+    }
+
+    public int[] getIds() {
+        return ids;
+    }
+
+    public int getMacLength() {
+        return macLength;
+    }
+
+    /**
+     * @return the array where all MACs are stored
+     */
+    public byte[] getMacs() {
+        return macs;
+    }
+
+    /**
+     * @param id replica ID
+     * @return the offset of the MAC for the replica in the array of MACs, or -1 if there is none
+     */
+    public int getOffset(int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) return i * macLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @param id replica ID
+     * @return a copy of the MAC for the replica, or null if there is none
+     */
+    public byte[] get(int id) {
+        int offset = getOffset(id);
+        if (offset < 0) return null;
+        byte[] mac = new byte[macLength];
+        System.arraycopy(macs, offset, mac, 0, macLength);
+        return mac;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(ids.length);
+        for (int id : ids) {
+            out.writeInt(id);
+        }
+        out.writeInt(macLength);
+        out.write(macs);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        readExternal(in, DEFAULT_MAX_IDS, DEFAULT_MAX_MAC_LENGTH);
+    }
+
+    /**
+     * Reads a MAC vector, checking its sizes before allocating anything, since
+     * they come from the remote replica and the MACs are not verified yet
+     * @param in where the vector is read from
+     * @param maxIds maximum number of replica IDs (the size of the view)
+     * @param maxMacLength maximum length of each MAC (the length of the MAC algorithm)
+     * @throws IOException if the vector is larger than the bounds
+     */
+    public void readExternal(ObjectInput in, int maxIds, int maxMacLength) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > maxIds) throw new IOException("Invalid number of MACs " + size);
+        ids = new int[size];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readInt();
+        }
+        macLength = in.readInt();
+        if (macLength < 0 || macLength > maxMacLength) throw new IOException("Invalid MAC length " + macLength);
+        macs = new byte[ids.length * macLength];
+        in.readFully(macs);
+    }
+}
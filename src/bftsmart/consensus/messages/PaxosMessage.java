@@ -20,6 +20,7 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.tom.core.messages.TOMMessage;
 
 
 
@@ -35,6 +36,10 @@ public class PaxosMessage extends SystemMessage {
     private Object proof; // Proof used when message type is COLLECT
                               // Can be either a MAC vector or a RSA signature
 
+    // computed from the value of a PROPOSE by the inbound stage (not sent)
+    private transient byte[] valueHash = null;
+    private transient TOMMessage[] requests = null;
+
     /**
      * Creates a paxos message. Not used. TODO: How about making it private?
      */
@@ -158,6 +163,36 @@ public class PaxosMessage extends SystemMessage {
 
     }
 
+    /**
+     * Keeps what was computed from the value of a PROPOSE before it reached
+     * the consensus thread
+     * @param valueHash hash of the value
+     * @param requests requests of the value, already deserialized and with
+     * their signatures verified (null if not available)
+     */
+    public void setPrepared(byte[] valueHash, TOMMessage[] requests) {
+        this.valueHash = valueHash;
+        this.requests = requests;
+    }
+
+    /**
+     * @return hash of the value, if computed by the inbound stage (null otherwise)
+     */
+    public byte[] getValueHash() {
+        return valueHash;
+    }
+
+    /**
+     * Takes the requests deserialized by the inbound stage. They are given
+     * only once, since they are then accounted by the clients manager.
+     * @return the requests of the value (null if not available)
+     */
+    public TOMMessage[] takeRequests() {
+        TOMMessage[] r = requests;
+        requests = null;
+        return r;
+    }
+
     public void setProof(Object proof) {
         
         this.proof = proof;
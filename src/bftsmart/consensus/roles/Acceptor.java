@@ -16,12 +16,10 @@ limitations under the License.
 package bftsmart.consensus.roles;
 
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import bftsmart.communication.ServerCommunicationSystem;
-import bftsmart.communication.server.ServerConnection;
+import bftsmart.communication.server.MacVectorAuthenticator;
 import bftsmart.consensus.executionmanager.Execution;
 import bftsmart.consensus.executionmanager.ExecutionManager;
 import bftsmart.consensus.executionmanager.LeaderModule;
@@ -34,13 +32,7 @@ import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.security.PrivateKey;
-import java.util.HashMap;
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
 
 /**
  * This class represents the acceptor role in the consensus protocol.
@@ -59,7 +51,7 @@ public final class Acceptor {
     private TOMLayer tomLayer; // TOM layer
     private ServerViewController controller;
     //private Cipher cipher;
-    private Mac mac;
+    private int pipelineDepth; // Maximum number of consensus in execution at the same time
 
     /**
      * Creates a new instance of Acceptor.
@@ -75,13 +67,7 @@ public final class Acceptor {
         this.factory = factory;
         this.leaderModule = lm;
         this.controller = controller;
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            //this.cipher = Cipher.getInstance(ServerConnection.MAC_ALGORITHM);
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
-        }
+        this.pipelineDepth = controller.getStaticConf().getPipelineDepth();
     }
 
     public MessageFactory getFactory() {
@@ -115,6 +101,11 @@ public final class Acceptor {
         if (executionManager.checkLimits(msg)) {
             Logger.println("processing paxos msg with id " + msg.getNumber());
             processMessage(msg);
+            
+            // the propose may have opened room for the next consensus of the pipeline
+            if (pipelineDepth > 1 && msg.getPaxosType() == MessageFactory.PROPOSE) {
+                tomLayer.processOutOfContext();
+            }
         } else {
             Logger.println("out of context msg with id " + msg.getNumber());
             tomLayer.processOutOfContext();
@@ -156,7 +147,16 @@ public final class Acceptor {
         int eid = round.getExecution().getId();
     	Logger.println("(Acceptor.proposeReceived) PROPOSE for consensus " + eid);
     	if (msg.getSender() == leaderModule.getCurrentLeader()) {
-    		executePropose(round, msg.getValue());
+    		byte[] value = msg.getValue();
+    		if (controller.getStaticConf().isHashProposals() && round.propValue == null) {
+    			// rebuild the batch from the hashes of the requests
+    			value = tomLayer.expandProposedValue(msg);
+    			if (value == null) return;
+    			executePropose(round, value, null, null);
+    		} else {
+    			// use the hash and requests already computed by the inbound stage, if any
+    			executePropose(round, value, msg.getValueHash(), msg.takeRequests());
+    		}
     	} else {
     		Logger.println("Propose received is not from the expected leader");
     	}
@@ -167,8 +167,10 @@ public final class Acceptor {
      *
      * @param round the current round of the execution
      * @param value Value that is proposed
+     * @param hash Hash of the value (null if not computed yet)
+     * @param requests Requests of the value, deserialized and verified (null if not available)
      */
-    private void executePropose(Round round, byte[] value) {
+    private void executePropose(Round round, byte[] value, byte[] hash, TOMMessage[] requests) {
         int eid = round.getExecution().getId();
         Logger.println("(Acceptor.executePropose) executing propose for " + eid + "," + round.getNumber());
 
@@ -177,17 +179,19 @@ public final class Acceptor {
         
         if(round.propValue == null) { //only accept one propose per round
             round.propValue = value;
-            round.propValueHash = tomLayer.computeHash(value);
+            round.propValueHash = (hash != null) ? hash : tomLayer.computeHash(value);
             
             /*** LEADER CHANGE CODE ********/
             round.getExecution().addWritten(value);
             /*****************************************/
 
             //start this execution if it is not already running
-            if (eid == tomLayer.getLastExec() + 1) {
+            if (pipelineDepth > 1) {
+                tomLayer.setStartedExec(eid);
+            } else if (eid == tomLayer.getLastExec() + 1) {
                 tomLayer.setInExec(eid);
             }
-            round.deserializedPropValue = tomLayer.checkProposedValue(value, true);
+            round.deserializedPropValue = tomLayer.checkProposedValue(value, requests, true);
 
             if (round.deserializedPropValue != null && !round.isWriteSetted(me)) {
                 if(round.getExecution().getLearner().firstMessageProposed == null) {
@@ -214,23 +218,90 @@ public final class Acceptor {
                     Logger.println("(Acceptor.executePropose) WRITE computed for " + eid);
                 
                 } else {
-                 	round.setAccept(me, round.propValueHash);
                  	round.getExecution().getLearner().firstMessageProposed.writeSentTime = System.nanoTime();
-                        round.getExecution().getLearner().firstMessageProposed.acceptSentTime = System.nanoTime();
-                 	/**** LEADER CHANGE CODE! ******/
- 	                round.getExecution().setQuorumWrites(round.propValueHash);
- 	                /*****************************************/
-
-                        communication.send(this.controller.getCurrentViewOtherAcceptors(),
- 	                    factory.createAccept(eid, round.getNumber(), round.propValueHash));
 
-                        computeAccept(eid, round, round.propValueHash);
+                        acceptPropose(eid, round);
                 }
                 executionManager.processOutOfContext(round.getExecution());
             }
         } 
     }
 
+    /**
+     * Sends the ACCEPT for a proposed value without waiting for WRITEs (used
+     * when the system is not BFT).
+     *
+     * @param eid Execution ID of the propose
+     * @param round the current round of the execution
+     */
+    private void acceptPropose(int eid, Round round) {
+        if (round.isAcceptSetted(me)) return;
+        
+        if (!canSendAccept(eid)) {
+            Logger.println("(Acceptor.acceptPropose) holding ACCEPT for " + eid + " until the previous consensus is decided");
+            return;
+        }
+        
+        round.setAccept(me, round.propValueHash);
+        round.getExecution().getLearner().firstMessageProposed.acceptSentTime = System.nanoTime();
+        /**** LEADER CHANGE CODE! ******/
+        round.getExecution().setQuorumWrites(round.propValueHash);
+        /*****************************************/
+
+        communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                factory.createAccept(eid, round.getNumber(), round.propValueHash));
+
+        computeAccept(eid, round, round.propValueHash);
+    }
+
+    /**
+     * Checks if this replica can send an ACCEPT for the specified consensus. When
+     * consensus are pipelined, PROPOSEs and WRITEs of several consensus can be in
+     * execution, but ACCEPTs are only sent for the consensus that follows the last
+     * one decided. This way, at most one consensus may be decided without the others
+     * being decided before it, which is what the leader change protocol expects.
+     *
+     * @param eid Execution ID
+     * @return true if the ACCEPT can be sent now, false otherwise
+     */
+    private boolean canSendAccept(int eid) {
+        return pipelineDepth == 1 || eid == tomLayer.getLastExec() + 1;
+    }
+
+    /**
+     * Sends the ACCEPT held for the consensus that follows the last executed one.
+     * Called by the delivery thread when the last executed consensus advances after
+     * its decision, i.e., when a reconfiguration is executed (see decide)
+     */
+    public void lastExecAdvanced() {
+        if (pipelineDepth > 1) {
+            releaseAccept(tomLayer.getLastExec() + 1);
+        }
+    }
+
+    /**
+     * Sends the ACCEPT that was held for the specified consensus, if this replica
+     * already has enough WRITEs for the proposed value.
+     *
+     * @param eid Execution ID
+     */
+    private void releaseAccept(int eid) {
+        Execution execution = executionManager.getExecution(eid);
+
+        execution.lock.lock();
+        Round round = execution.getLastRound();
+        if (round != null && round.propValueHash != null && round.deserializedPropValue != null
+                && !execution.isDecided()) {
+            Logger.println("(Acceptor.releaseAccept) releasing ACCEPT for " + eid);
+            if (controller.getStaticConf().isBFT()) {
+                computeWrite(eid, round, round.propValueHash);
+            } else {
+                acceptPropose(eid, round);
+            }
+        }
+        execution.lock.unlock();
+    }
+
     /**
      * Called when a WRITE message is received
      *
@@ -262,7 +333,9 @@ public final class Acceptor {
 
         if (writeAccepted > controller.getQuorumAccept() && Arrays.equals(value, round.propValueHash)) {
                         
-            if (!round.isAcceptSetted(me)) {
+            if (!round.isAcceptSetted(me) && !canSendAccept(eid)) {
+                Logger.println("(Acceptor.computeWrite) holding ACCEPT for " + eid + " until the previous consensus is decided");
+            } else if (!round.isAcceptSetted(me)) {
                 
                 Logger.println("(Acceptor.computeWrite) sending WRITE for " + eid);
 
@@ -279,18 +352,6 @@ public final class Acceptor {
                         
                 PaxosMessage pm = factory.createAccept(eid, round.getNumber(), value);
 
-                // override default authentication and create a vector of MACs
-                ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-                try {
-                    new ObjectOutputStream(bOut).writeObject(pm);
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-
-                byte[] data = bOut.toByteArray();
-        
-                //byte[] hash = tomLayer.computeHash(data);
-                
                 // check if consensus contains reconfiguration request
                 TOMMessage [] msgs = round.deserializedPropValue;
                 boolean hasReconf = false;
@@ -306,45 +367,16 @@ public final class Acceptor {
                 // signatures...
                 if (hasReconf) {
                     
-                    PrivateKey RSAprivKey = controller.getStaticConf().getRSAPrivateKey();
+                    PrivateKey RSAprivKey = controller.getStaticConf().getPrivateKey();
                     
-                    byte[] signature = TOMUtil.signMessage(RSAprivKey, data);
+                    byte[] signature = TOMUtil.signMessage(RSAprivKey, MacVectorAuthenticator.encode(pm));
                                        
                     pm.setProof(signature);
                 
-                } else { //... if not, we can use MAC vectores
+                } else { //... if not, we can use MAC vectores (overriding the default authentication)
                     int[] processes = this.controller.getCurrentViewAcceptors();
                 
-                    HashMap<Integer, byte[]> macVector = new HashMap<Integer, byte[]>();
-                
-                    for (int id : processes) {
-                        try {
-                        
-                            SecretKey key = null;
-                            do {
-                                key = communication.getServersConn().getSecretKey(id);
-                                if (key == null) {
-                                    System.out.println("I don't have yet a secret key with " + id + ". Retrying.");
-                                    Thread.sleep(1000);
-                                }
-
-                            } while (key == null); // JCS: This loop is to solve a race condition where a
-                                                   // replica might have already been insert in the view or
-                                                   // recovered after a crash, but it still did not concluded
-                                                   // the diffie helman protocol. Not an elegant solution,
-                                                   // but for now it will do
-                            this.mac.init(key);
-                          macVector.put(id, this.mac.doFinal(data));
-                        } catch (InterruptedException ex) {
-                            ex.printStackTrace();
-                        } catch (InvalidKeyException ex) {
-                            
-                           System.out.println("Problem with secret key from " + id);
-                           ex.printStackTrace();
-                        } 
-                    }
-                
-                    pm.setProof(macVector);
+                    pm.setProof(communication.getServersConn().getAuthenticator().createMacVector(pm, processes));
                 }
                 
                 int[] targets = this.controller.getCurrentViewOtherAcceptors();
@@ -404,5 +436,12 @@ public final class Acceptor {
                 round.getNumber())*/);
 
         round.getExecution().decided(round, value);
+        
+        // the next consensus of the pipeline may have an ACCEPT waiting for this decision
+        // (if the decision has a reconfiguration, the last executed consensus only advances
+        // once it is executed, and the ACCEPT is released then, see lastExecAdvanced)
+        if (pipelineDepth > 1) {
+            releaseAccept(tomLayer.getLastExec() + 1);
+        }
     }
 }
@@ -0,0 +1,99 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import bftsmart.communication.loopback.LoopbackNetwork;
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.ServiceProxy;
+import bftsmart.tom.util.Storage;
+
+/**
+ * Runs a whole group (replicas and clients) in this JVM, connected by the
+ * loopback network, and reports the throughput and latency seen by the
+ * clients. Requires system.communication.replicaTransport = loopback.
+ *
+ * Usage: LoopbackBenchmark <replicas> <clients> <operations per client> <request size> [latency (us)] [bandwidth (bytes/s)]
+ */
+public class LoopbackBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: java ...LoopbackBenchmark <replicas> <clients> <operations per client> <request size> [latency (us)] [bandwidth (bytes/s)]");
+            System.exit(-1);
+        }
+
+        if (!new TOMConfiguration(0).getReplicaTransport().equals("loopback")) {
+            System.out.println("system.communication.replicaTransport must be set to loopback");
+            System.exit(-1);
+        }
+
+        int replicas = Integer.parseInt(args[0]);
+        int clients = Integer.parseInt(args[1]);
+        final int ops = Integer.parseInt(args[2]);
+        final int requestSize = Integer.parseInt(args[3]);
+        long latency = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        long bandwidth = args.length > 5 ? Long.parseLong(args[5]) : 0;
+
+        LoopbackNetwork.getDefault().setDefaultLink(latency, bandwidth);
+
+        // a replica is only created after hearing from the others, so they are started together
+        final int interval = clients * ops;
+        Thread[] starters = new Thread[replicas];
+        for (int i = 0; i < replicas; i++) {
+            final int id = i;
+            starters[i] = new Thread("Replica " + id) {
+                public void run() {
+                    new ThroughputLatencyServer(id, interval, 0, 0, false);
+                }
+            };
+            starters[i].start();
+        }
+        for (Thread t : starters) t.join();
+
+        final Storage[] latencies = new Storage[clients];
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final int c = i;
+            latencies[c] = new Storage(ops);
+            threads[c] = new Thread("Client " + (1001 + c)) {
+                public void run() {
+                    ServiceProxy proxy = new ServiceProxy(1001 + c);
+                    byte[] request = new byte[requestSize];
+                    for (int j = 0; j < ops; j++) {
+                        long start = System.nanoTime();
+                        proxy.invokeOrdered(request);
+                        latencies[c].store(System.nanoTime() - start);
+                    }
+                    proxy.close();
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        long time = System.nanoTime() - start;
+
+        long average = 0;
+        for (Storage st : latencies) average += st.getAverage(false);
+
+        System.out.println("Operations: " + (clients * ops) + " in " + (time / 1000000) + " ms");
+        System.out.println("Throughput: " + ((long) clients * ops * 1000000000L / time) + " ops/s");
+        System.out.println("Average latency: " + (average / clients / 1000) + " us");
+        System.out.println(LoopbackNetwork.getDefault().getStats());
+        System.exit(0);
+    }
+}
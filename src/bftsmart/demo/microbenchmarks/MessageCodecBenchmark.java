@@ -0,0 +1,113 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import bftsmart.communication.MessageCodec;
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.MacVector;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+
+/**
+ * Compares the time, size and allocation of encoding and decoding consensus
+ * messages with MessageCodec and with Java serialization.
+ *
+ * Usage: MessageCodecBenchmark [iterations]
+ */
+public class MessageCodecBenchmark {
+
+    private interface Codec {
+        byte[] encode(SystemMessage sm) throws Exception;
+        SystemMessage decode(byte[] data) throws Exception;
+    }
+
+    private static volatile int sink; // keeps the decoded messages from being optimized away
+
+    private static final Codec BINARY = new Codec() {
+        public byte[] encode(SystemMessage sm) throws Exception {
+            return MessageCodec.encode(sm);
+        }
+
+        public SystemMessage decode(byte[] data) throws Exception {
+            return MessageCodec.decode(data);
+        }
+    };
+
+    private static final Codec JAVA = new Codec() {
+        public byte[] encode(SystemMessage sm) throws Exception {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+            new ObjectOutputStream(bOut).writeObject(sm);
+            return bOut.toByteArray();
+        }
+
+        public SystemMessage decode(byte[] data) throws Exception {
+            return (SystemMessage) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        MessageFactory factory = new MessageFactory(0);
+        byte[] hash = new byte[16];
+
+        PaxosMessage write = factory.createWrite(1000, 0, hash);
+        PaxosMessage accept = factory.createAccept(1000, 0, hash);
+        accept.setProof(new MacVector(new int[]{0, 1, 2, 3}, 16));
+        PaxosMessage propose = factory.createPropose(1000, 0, new byte[1024]);
+
+        System.out.println("message\tcodec\tbytes\tns/op\talloc B/op");
+        for (int round = 0; round < 2; round++) { // the first round is the warm-up
+            boolean print = round == 1;
+            run("WRITE", write, BINARY, "binary", iterations, print);
+            run("WRITE", write, JAVA, "java", iterations, print);
+            run("ACCEPT", accept, BINARY, "binary", iterations, print);
+            run("ACCEPT", accept, JAVA, "java", iterations, print);
+            run("PROPOSE", propose, BINARY, "binary", iterations, print);
+            run("PROPOSE", propose, JAVA, "java", iterations, print);
+        }
+    }
+
+    private static void run(String name, SystemMessage sm, Codec codec, String codecName,
+            int iterations, boolean print) throws Exception {
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        boolean allocation = mx instanceof com.sun.management.ThreadMXBean;
+        long id = Thread.currentThread().getId();
+
+        int size = codec.encode(sm).length;
+
+        long allocated = allocation ? ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(id) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += codec.decode(codec.encode(sm)).getSender();
+        }
+        long time = System.nanoTime() - start;
+        if (allocation) allocated = ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(id) - allocated;
+
+        if (print) {
+            System.out.println(name + "\t" + codecName + "\t" + size + "\t" + (time / iterations) + "\t" +
+                    (allocation ? String.valueOf(allocated / iterations) : "n/a"));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package bftsmart.demo.microbenchmarks;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.tom.CoalescingServiceProxy;
+import bftsmart.tom.MultiplexedServiceProxy;
+import bftsmart.tom.ReplyFuture;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.Storage;
+
+/**
+ * Client that keeps up to <outstanding> requests waiting for replies through
+ * a single MultiplexedServiceProxy, and reports the throughput and latency.
+ * Given an envelope delay, a CoalescingServiceProxy packs the ordered
+ * requests sent within that many microseconds into envelopes.
+ * Runs against ThroughputLatencyServer or LatencyServer.
+ */
+public class MultiplexedClient {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.out.println("Usage: java ...MultiplexedClient <process id> <number of operations> <request size> <outstanding requests> <read only?> [<envelope delay (us)>]");
+			System.exit(-1);
+		}
+
+		int numberOfOps = Integer.parseInt(args[1]);
+		int requestSize = Integer.parseInt(args[2]);
+		final Semaphore window = new Semaphore(Integer.parseInt(args[3]));
+		TOMMessageType reqType = Boolean.parseBoolean(args[4]) ? TOMMessageType.UNORDERED_REQUEST : TOMMessageType.ORDERED_REQUEST;
+
+		MultiplexedServiceProxy proxy;
+		if (args.length > 5) {
+			CoalescingServiceProxy coalescing = new CoalescingServiceProxy(Integer.parseInt(args[0]));
+			coalescing.setMaxDelay(Long.parseLong(args[5]));
+			proxy = coalescing;
+		} else {
+			proxy = new MultiplexedServiceProxy(Integer.parseInt(args[0]));
+		}
+		final Storage st = new Storage(numberOfOps);
+		final AtomicInteger failed = new AtomicInteger(0);
+		byte[] request = new byte[requestSize];
+
+		System.out.println("Executing experiment for " + numberOfOps + " ops");
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numberOfOps; i++) {
+			window.acquire();
+			final long sent = System.nanoTime();
+			proxy.invoke(request, reqType).addCallback(new ReplyFuture.Callback() {
+
+				public void completed(byte[] reply) {
+					synchronized (st) {
+						st.store(System.nanoTime() - sent);
+					}
+					window.release();
+				}
+
+				public void failed(Throwable cause) {
+					System.out.println("Request failed: " + cause);
+					failed.incrementAndGet();
+					window.release();
+				}
+			});
+		}
+		window.acquire(Integer.parseInt(args[3])); // waits for the last replies
+		long time = System.nanoTime() - start;
+
+		System.out.println("Operations: " + numberOfOps + " in " + (time / 1000000) + " ms (" + failed.get() + " failed)");
+		System.out.println("Throughput: " + ((long) numberOfOps * 1000000000L / time) + " ops/s");
+		System.out.println("Average latency: " + (st.getAverage(false) / 1000) + " us");
+
+		proxy.close();
+		System.exit(0);
+	}
+}
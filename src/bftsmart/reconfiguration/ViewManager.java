@@ -16,10 +16,8 @@ limitations under the License.
 package bftsmart.reconfiguration;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
@@ -27,6 +25,8 @@ import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import bftsmart.communication.MessageCodec;
+import bftsmart.communication.server.DHKeyExchange;
 import bftsmart.communication.server.ServerConnection;
 import bftsmart.reconfiguration.views.View;
 
@@ -40,6 +40,7 @@ public class ViewManager {
     private Reconfiguration rec = null;
     //private Hashtable<Integer, ServerConnection> connections = new Hashtable<Integer, ServerConnection>();
     private ServerViewController controller;
+    private DHKeyExchange keyExchange = null;
     //Need only inform those that are entering the systems, as those already
     //in the system will execute the reconfiguration request
     private List<Integer> addIds = new LinkedList<Integer>();
@@ -121,20 +122,22 @@ public class ViewManager {
     }
 
     private ServerConnection getConnection(int remoteId) {
-         return new ServerConnection(controller, null, remoteId, null, null);
+         if (keyExchange == null) keyExchange = new DHKeyExchange(controller);
+         ServerConnection conn = new ServerConnection(controller, remoteId, null, null, null, keyExchange);
+         conn.connect();
+         return conn;
     }
 
     public void sendResponse(Integer[] targets, VMMessage sm) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        byte[] data = null;
 
         try {
-            new ObjectOutputStream(bOut).writeObject(sm);
+            data = MessageCodec.encode(sm);
         } catch (IOException ex) {
             Logger.getLogger(ServerConnection.class.getName()).log(Level.SEVERE, null, ex);
+            return;
         }
 
-        byte[] data = bOut.toByteArray();
-
         for (Integer i : targets) {
             //br.ufsc.das.tom.util.Logger.println("(ServersCommunicationLayer.send) Sending msg to replica "+i);
             try {
@@ -20,6 +20,7 @@ import java.security.PublicKey;
 import java.util.StringTokenizer;
 
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.SignatureScheme;
 
 public class TOMConfiguration extends Configuration {
 
@@ -32,16 +33,39 @@ public class TOMConfiguration extends Configuration {
     protected int timeoutHighMark;
     protected int replyVerificationTime;
     protected int maxBatchSize;
+    protected int pipelineDepth;
+    protected int maxBatchBytes;
+    protected int batchTimeout;
+    protected boolean adaptiveBatching;
+    protected boolean hashProposals;
+    protected String digestAlgorithm;
+    protected int digestChunkSize;
     protected int numberOfNonces;
     protected int inQueueSize;
     protected int outQueueSize;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
     protected RSAKeyLoader rsaLoader;
+    protected ECDSAKeyLoader ecdsaLoader;
+    protected String signatureScheme;
     private int debug;
     private int numNIOThreads;
+    private String replicaTransport;
+    private int flushBytes;
+    private int flushDelay;
+    private int bulkChunkSize;
+    private int creditWindow;
+    private int blockTime;
+    private int inboundThreads;
+    private int retransmitWindow;
+    private boolean sessionKeyCache;
+    private int clientEventLoops;
+    private boolean clientEpoll;
+    private boolean sharedClientConnections;
+    private int readHedgePercentile;
     private int useMACs;
     private int useSignatures;
+    private int signatureVerificationThreads;
     private boolean stateTransferEnabled;
     private int checkpointPeriod;
     private int globalCheckpointPeriod;
@@ -141,6 +165,55 @@ public class TOMConfiguration extends Configuration {
                 maxBatchSize = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.maxbatchbytes");
+            if (s == null) {
+                maxBatchBytes = 0;
+            } else {
+                maxBatchBytes = Integer.parseInt(s);
+                if (maxBatchBytes < 0) {
+                    maxBatchBytes = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batch_timeout");
+            if (s == null) {
+                batchTimeout = 0;
+            } else {
+                batchTimeout = Integer.parseInt(s);
+                if (batchTimeout < 0) {
+                    batchTimeout = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.adaptive_batching");
+            adaptiveBatching = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.totalordermulticast.hash_proposals");
+            hashProposals = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.totalordermulticast.pipeline_depth");
+            if (s == null) {
+                pipelineDepth = 1;
+            } else {
+                pipelineDepth = Integer.parseInt(s);
+                if (pipelineDepth < 1) {
+                    pipelineDepth = 1;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.digest");
+            digestAlgorithm = (s != null) ? s.trim() : "MD5";
+
+            s = (String) configs.remove("system.totalordermulticast.digest_chunk_size");
+            if (s == null) {
+                digestChunkSize = 0;
+            } else {
+                digestChunkSize = Integer.parseInt(s);
+                if (digestChunkSize < 0) {
+                    digestChunkSize = 0;
+                }
+            }
+
             s = (String) configs.remove("system.debug");
             if (s == null) {
                 Logger.debug = false;
@@ -195,6 +268,107 @@ public class TOMConfiguration extends Configuration {
                 useSignatures = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.communication.replicaTransport");
+            if (s != null && s.trim().equalsIgnoreCase("netty")) {
+                replicaTransport = "netty";
+            } else if (s != null && s.trim().equalsIgnoreCase("loopback")) {
+                replicaTransport = "loopback";
+            } else {
+                replicaTransport = "socket";
+            }
+
+            s = (String) configs.remove("system.communication.flushBytes");
+            if (s == null) {
+                flushBytes = 65536;
+            } else {
+                flushBytes = Integer.parseInt(s);
+                if (flushBytes < 1) {
+                    flushBytes = 65536;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.flushDelay");
+            if (s == null) {
+                flushDelay = 0;
+            } else {
+                flushDelay = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.bulkChunkSize");
+            if (s == null) {
+                bulkChunkSize = 65536;
+            } else {
+                bulkChunkSize = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.creditWindow");
+            if (s == null) {
+                creditWindow = -1;
+            } else {
+                creditWindow = Math.max(-1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.blockTime");
+            if (s == null) {
+                blockTime = 100;
+            } else {
+                blockTime = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.inboundThreads");
+            if (s == null) {
+                inboundThreads = 2;
+            } else {
+                inboundThreads = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.retransmitWindow");
+            if (s == null) {
+                retransmitWindow = 1024;
+            } else {
+                retransmitWindow = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.sessionKeyCache");
+            if (s == null) {
+                sessionKeyCache = true;
+            } else {
+                sessionKeyCache = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.communication.clientEventLoops");
+            if (s == null) {
+                clientEventLoops = 0;
+            } else {
+                clientEventLoops = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.clientEpoll");
+            clientEpoll = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.communication.sharedClientConnections");
+            sharedClientConnections = (s != null) ? Boolean.parseBoolean(s) : true;
+
+            s = (String) configs.remove("system.communication.readHedgePercentile");
+            readHedgePercentile = (s != null) ? Math.max(0, Math.min(100, Integer.parseInt(s))) : 0;
+
+            s = (String) configs.remove("system.communication.signatureScheme");
+            if (s == null) {
+                signatureScheme = SignatureScheme.RSA;
+            } else {
+                signatureScheme = SignatureScheme.getInstance(s.trim()).getName();
+            }
+
+            s = (String) configs.remove("system.communication.signatureVerificationThreads");
+            if (s == null) {
+                signatureVerificationThreads = 0;
+            } else {
+                signatureVerificationThreads = Integer.parseInt(s);
+            }
+            if (signatureVerificationThreads <= 0) {
+                signatureVerificationThreads = Runtime.getRuntime().availableProcessors();
+            }
+
             s = (String) configs.remove("system.totalordermulticast.state_transfer");
             if (s == null) {
                 stateTransferEnabled = false;
@@ -324,6 +498,7 @@ public class TOMConfiguration extends Configuration {
             }
             
             rsaLoader = new RSAKeyLoader(processId, TOMConfiguration.configHome);
+            ecdsaLoader = new ECDSAKeyLoader(processId, TOMConfiguration.configHome);
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
@@ -384,6 +559,34 @@ public class TOMConfiguration extends Configuration {
         return maxBatchSize;
     }
 
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public int getBatchTimeout() {
+        return batchTimeout;
+    }
+
+    public boolean isAdaptiveBatching() {
+        return adaptiveBatching;
+    }
+
+    public boolean isHashProposals() {
+        return hashProposals;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public int getDigestChunkSize() {
+        return digestChunkSize;
+    }
+
     public boolean isShutdownHookEnabled() {
         return shutdownHookEnabled;
     }
@@ -411,6 +614,115 @@ public class TOMConfiguration extends Configuration {
         return numNIOThreads;
     }
 
+    /**
+     * Transport used between replicas: "socket" (a sender and a receiver
+     * thread per replica), "netty" (event loops shared by all replicas) or
+     * "loopback" (replicas and clients running in the same JVM)
+     */
+    public String getReplicaTransport() {
+        return replicaTransport;
+    }
+
+    /**
+     * Number of bytes after which the messages queued for a replica are
+     * written, even if more are waiting
+     */
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    /**
+     * Microseconds the sender of a connection waits for more messages before
+     * writing the ones it has (0 writes them as soon as the queue is empty)
+     */
+    public int getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Size of the pieces in which messages of the bulk lane (state transfer,
+     * forwarded and fetched requests) are written, so that consensus messages
+     * are written between them (0 writes bulk messages whole)
+     */
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    /**
+     * Credits (messages) this replica grants to each other replica: -1 shares
+     * the in queue among them, 0 disables flow control
+     */
+    public int getCreditWindow() {
+        return creditWindow;
+    }
+
+    /**
+     * Milliseconds a consensus message waits for room in the out queue of a
+     * replica before being discarded (bulk messages are discarded at once)
+     */
+    public int getBlockTime() {
+        return blockTime;
+    }
+
+    /**
+     * Threads that verify and decode the messages of the other replicas
+     * before the consensus thread processes them (0 leaves it all to it)
+     */
+    public int getInboundThreads() {
+        return inboundThreads;
+    }
+
+    /**
+     * Messages kept for each replica until it acknowledges them, to be
+     * written again after a reconnection (0 disables)
+     */
+    public int getRetransmitWindow() {
+        return retransmitWindow;
+    }
+
+    /**
+     * File where the keys established with the other replicas are kept, so
+     * that they need not be derived again after a restart (null if disabled)
+     */
+    public String getSessionKeyCacheFile() {
+        if (!sessionKeyCache) return null;
+        String sep = System.getProperty("file.separator");
+        return (configHome.equals("") ? "config" : configHome) + sep + "keys" + sep + "sessionkeys" + processId;
+    }
+
+    /**
+     * Event loops shared by all the clients of the JVM to talk with the
+     * replicas (0 uses twice the number of processors)
+     */
+    public int getClientEventLoops() {
+        return clientEventLoops;
+    }
+
+    /**
+     * Indicates if the client event loops should use native epoll when it
+     * is available, instead of NIO
+     */
+    public boolean isClientEpoll() {
+        return clientEpoll;
+    }
+
+    /**
+     * Indicates if the clients of the JVM share one connection to each
+     * replica, instead of opening their own
+     */
+    public boolean isSharedClientConnections() {
+        return sharedClientConnections;
+    }
+
+    /**
+     * Percentile of the latencies of the last reads after which a client
+     * sends a read, first sent to the fastest reply quorum, to the other
+     * replicas too (0 sends reads to all the replicas at once)
+     */
+    public int getReadHedgePercentile() {
+        return readHedgePercentile;
+    }
+
     /**     * @return the numberOfNonces     */
     public int getNumberOfNonces() {
         return numberOfNonces;
@@ -423,6 +735,13 @@ public class TOMConfiguration extends Configuration {
         return useSignatures;
     }
 
+    /**
+     * Number of threads used to verify the client signatures of a proposed batch
+     */
+    public int getSignatureVerificationThreads() {
+        return signatureVerificationThreads;
+    }
+
     /**
      * Indicates if MACs should be used (1) or not (0) to authenticate client-server and server-server messages
      */
@@ -505,6 +824,52 @@ public class TOMConfiguration extends Configuration {
         }
     }
 
+    /**
+     * Scheme used to sign client requests and the messages signed by replicas (RSA or ECDSA)
+     */
+    public String getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    /**
+     * Public key of this process, for the configured signature scheme
+     */
+    public PublicKey getPublicKey() {
+        if (!SignatureScheme.ECDSA.equals(signatureScheme)) return getRSAPublicKey();
+        try {
+            return ecdsaLoader.loadPublicKey();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Public key of a process, for the configured signature scheme
+     */
+    public PublicKey getPublicKey(int id) {
+        if (!SignatureScheme.ECDSA.equals(signatureScheme)) return getRSAPublicKey(id);
+        try {
+            return ecdsaLoader.loadPublicKey(id);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Private key of this process, for the configured signature scheme
+     */
+    public PrivateKey getPrivateKey() {
+        if (!SignatureScheme.ECDSA.equals(signatureScheme)) return getRSAPrivateKey();
+        try {
+            return ecdsaLoader.loadPrivateKey();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
     public boolean isBFT(){
     	if(this.isBFT)
     		Logger.println("----------------ISBFT--------------");
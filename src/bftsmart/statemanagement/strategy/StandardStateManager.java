@@ -225,6 +225,7 @@ public class StandardStateManager extends BaseStateManager {
                         if (SVController.getCurrentViewId() != currentView.getId()) {
                             System.out.println("Installing current view!");
                             SVController.reconfigureTo(currentView);
+                            tomLayer.execManager.rebindRounds(currentView);
                         }
                         
 						isInitializing = false;
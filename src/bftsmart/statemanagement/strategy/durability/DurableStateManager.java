@@ -329,6 +329,7 @@ public class DurableStateManager extends BaseStateManager {
 						if (SVController.getCurrentViewId() != currentView.getId()) {
 							System.out.println("Installing current view!");
 							SVController.reconfigureTo(currentView);
+							tomLayer.execManager.rebindRounds(currentView);
 						}
 						
 						isInitializing = false;
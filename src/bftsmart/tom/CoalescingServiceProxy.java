@@ -0,0 +1,215 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package bftsmart.tom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.Envelope;
+import bftsmart.tom.util.Logger;
+
+/**
+ * A MultiplexedServiceProxy that packs the ordered operations invoked at about
+ * the same time (by any number of threads) into envelopes, each sent as a
+ * single ORDERED_BATCH_REQUEST. The replicas deliver the operations of an
+ * envelope to the application one by one, as if they were sent separately,
+ * and answer with an envelope of their replies, which is voted as a whole.
+ *
+ * An envelope is sent when it has maxOperations operations or maxBytes bytes,
+ * or maxDelay microseconds after its first operation was invoked. Envelopes
+ * are sent in the order they are closed, so the operations invoked by a
+ * thread are ordered as they were invoked. Unordered operations are sent at
+ * once, as in MultiplexedServiceProxy.
+ */
+public class CoalescingServiceProxy extends MultiplexedServiceProxy {
+
+	private final ScheduledThreadPoolExecutor flusher;
+	private volatile int maxOperations = 64;
+	private volatile int maxBytes = 65536;
+	private volatile long maxDelay = 1000; // microseconds
+
+	// guarded by this
+	private List<Operation> queued = new ArrayList<Operation>();
+	private int queuedBytes = 0;
+	private ScheduledFuture<?> flush = null;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			synchronized (CoalescingServiceProxy.this) {
+				flush = null;
+				if (!queued.isEmpty()) {
+					send(takeQueued());
+				}
+			}
+		}
+	};
+
+	public CoalescingServiceProxy(int processId) {
+		this(processId, null);
+	}
+
+	public CoalescingServiceProxy(int processId, String configHome) {
+		super(processId, configHome, null, null);
+
+		flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Envelopes of " + getProcessId());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flusher.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @param maxOperations the operations that close an envelope
+	 */
+	public void setMaxOperations(int maxOperations) {
+		this.maxOperations = Math.max(1, maxOperations);
+	}
+
+	/**
+	 * @param maxBytes the size of the operations that closes an envelope
+	 */
+	public void setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param maxDelay the time (in microseconds) an operation waits for others
+	 * to join its envelope (0 sends each operation at once, in an envelope of its own)
+	 */
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = Math.max(0, maxDelay);
+	}
+
+	/**
+	 * Queues an ordered operation in the next envelope, or sends any other
+	 * request at once. This method is thread-safe.
+	 *
+	 * @return the future reply to the operation
+	 */
+	@Override
+	public ReplyFuture invoke(byte[] request, TOMMessageType reqType, long timeout) {
+		if (reqType != TOMMessageType.ORDERED_REQUEST) {
+			return super.invoke(request, reqType, timeout);
+		}
+
+		ReplyFuture future = new ReplyFuture();
+		synchronized (this) {
+			queued.add(new Operation(request, future, System.currentTimeMillis() + timeout));
+			queuedBytes += 4 + request.length;
+
+			if (queued.size() >= maxOperations || queuedBytes >= maxBytes || maxDelay == 0) {
+				send(takeQueued());
+			} else if (flush == null) {
+				flush = flusher.schedule(flushTask, maxDelay, TimeUnit.MICROSECONDS);
+			}
+		}
+		return future;
+	}
+
+	// called with the lock held
+	private List<Operation> takeQueued() {
+		List<Operation> operations = queued;
+		queued = new ArrayList<Operation>();
+		queuedBytes = 0;
+		if (flush != null) {
+			flush.cancel(false);
+			flush = null;
+		}
+		return operations;
+	}
+
+	// called with the lock held, so that the envelopes are numbered in the order they are closed
+	private void send(List<Operation> closed) {
+		final List<Operation> operations = new ArrayList<Operation>(closed.size());
+		long deadline = Long.MAX_VALUE;
+		for (Operation op : closed) {
+			if (!op.future.isDone()) { // not cancelled
+				operations.add(op);
+				deadline = Math.min(deadline, op.deadline);
+			}
+		}
+		if (operations.isEmpty()) return;
+
+		byte[][] requests = new byte[operations.size()][];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = operations.get(i).request;
+		}
+
+		Logger.println("Sending an envelope of " + requests.length + " operations");
+		ReplyFuture envelope = super.invoke(Envelope.pack(requests), TOMMessageType.ORDERED_BATCH_REQUEST,
+				Math.max(0, deadline - System.currentTimeMillis()));
+		envelope.addCallback(new ReplyFuture.Callback() {
+
+			public void completed(byte[] reply) {
+				byte[][] replies = Envelope.unpack(reply);
+				if (replies == null || replies.length != operations.size()) {
+					failed(new RuntimeException("Malformed reply to an envelope of " + operations.size() + " operations"));
+					return;
+				}
+				for (int i = 0; i < replies.length; i++) {
+					operations.get(i).future.complete(replies[i]);
+				}
+			}
+
+			public void failed(Throwable cause) {
+				for (Operation op : operations) {
+					op.future.fail(cause);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Fails the operations not sent yet and the requests still waiting for
+	 * replies, and closes the connections
+	 */
+	@Override
+	public void close() {
+		List<Operation> operations;
+		synchronized (this) {
+			operations = takeQueued();
+		}
+		flusher.shutdownNow();
+		for (Operation op : operations) {
+			op.future.fail(new IllegalStateException("Proxy closed"));
+		}
+		super.close();
+	}
+
+	/**
+	 * An ordered operation waiting to be sent in an envelope
+	 */
+	private static class Operation {
+
+		final byte[] request;
+		final ReplyFuture future;
+		final long deadline;
+
+		Operation(byte[] request, ReplyFuture future, long deadline) {
+			this.request = request;
+			this.future = future;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,361 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package bftsmart.tom;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import bftsmart.reconfiguration.views.View;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.Extractor;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * A proxy that can have many requests waiting for replies at the same time,
+ * instead of one, as ServiceProxy. Each request gets a ReplyFuture, and the
+ * replies are matched to it by their sequence number, in a table of pending
+ * requests. The replies of a request are voted as in ServiceProxy: the
+ * reply is extracted once replyQuorum of them match, an unordered request
+ * without matching replies, or answered in another view, is sent again as
+ * an ordered one, and an ordered request answered in a newer view is sent
+ * again after installing it. A request fails if it has no reply within its
+ * timeout.
+ *
+ * Ordered requests are numbered and sent under the sequence lock of
+ * TOMSender, so they reach the replicas in order even when sent by many
+ * threads. Only ordered and unordered requests, and envelopes of ordered
+ * operations (ORDERED_BATCH_REQUEST, see CoalescingServiceProxy), are supported.
+ */
+public class MultiplexedServiceProxy extends TOMSender {
+
+	private final ConcurrentHashMap<Integer, PendingRequest> ordered = new ConcurrentHashMap<Integer, PendingRequest>();
+	private final ConcurrentHashMap<Integer, PendingRequest> unordered = new ConcurrentHashMap<Integer, PendingRequest>();
+	private final ScheduledThreadPoolExecutor timer;
+	private final Comparator<byte[]> comparator;
+	private final Extractor extractor;
+	private volatile long invokeTimeout = 40000; // milliseconds
+
+	public MultiplexedServiceProxy(int processId) {
+		this(processId, null, null, null);
+	}
+
+	public MultiplexedServiceProxy(int processId, String configHome) {
+		this(processId, configHome, null, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param processId Process id for this client (should be different from replicas)
+	 * @param configHome Configuration directory for BFT-SMART
+	 * @param replyComparator used for comparing replies from different servers
+	 *                        to extract one returned by f+1
+	 * @param replyExtractor used for extracting the response from the matching
+	 *                       quorum of replies
+	 */
+	public MultiplexedServiceProxy(int processId, String configHome,
+			Comparator<byte[]> replyComparator, Extractor replyExtractor) {
+		if (configHome == null) {
+			init(processId);
+		} else {
+			init(processId, configHome);
+		}
+
+		comparator = (replyComparator != null) ? replyComparator : new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] o1, byte[] o2) {
+				return Arrays.equals(o1, o2) ? 0 : -1;
+			}
+		};
+
+		extractor = (replyExtractor != null) ? replyExtractor : new Extractor() {
+
+			@Override
+			public TOMMessage extractResponse(TOMMessage[] replies, int sameContent, int lastReceived) {
+				return replies[lastReceived];
+			}
+		};
+
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Request timeouts of " + getProcessId());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @return the time (in milliseconds) a request waits for replies before failing
+	 */
+	public long getInvokeTimeout() {
+		return invokeTimeout;
+	}
+
+	/**
+	 * @param invokeTimeout the time (in milliseconds) a request waits for
+	 * replies before failing, used by the requests sent from now on
+	 */
+	public void setInvokeTimeout(long invokeTimeout) {
+		this.invokeTimeout = invokeTimeout;
+	}
+
+	/**
+	 * @return the number of requests waiting for replies
+	 */
+	public int getPendingRequests() {
+		return ordered.size() + unordered.size();
+	}
+
+	public ReplyFuture invokeOrdered(byte[] request) {
+		return invoke(request, TOMMessageType.ORDERED_REQUEST);
+	}
+
+	public ReplyFuture invokeUnordered(byte[] request) {
+		return invoke(request, TOMMessageType.UNORDERED_REQUEST);
+	}
+
+	public ReplyFuture invoke(byte[] request, TOMMessageType reqType) {
+		return invoke(request, reqType, invokeTimeout);
+	}
+
+	/**
+	 * Sends a request to the replicas, without waiting for the replies.
+	 * This method is thread-safe.
+	 *
+	 * @param request Request to be sent
+	 * @param reqType ORDERED_REQUEST, UNORDERED_REQUEST or ORDERED_BATCH_REQUEST
+	 * @param timeout milliseconds to wait for the replies
+	 * @return the future reply
+	 */
+	public ReplyFuture invoke(byte[] request, TOMMessageType reqType, long timeout) {
+		if (!isOrdered(reqType) && reqType != TOMMessageType.UNORDERED_REQUEST) {
+			throw new IllegalArgumentException("Unsupported request type: " + reqType);
+		}
+
+		ReplyFuture future = new ReplyFuture();
+		send(new PendingRequest(request, reqType, future, System.currentTimeMillis() + timeout));
+		return future;
+	}
+
+	private void send(final PendingRequest p) {
+		ConcurrentHashMap<Integer, PendingRequest> table = getTable(p.type);
+
+		lockSequence();
+		try {
+			p.reqId = generateRequestId(p.type);
+			table.put(p.reqId, p); // before sending, as the replies may arrive at once
+			TOMulticast(p.request, p.reqId, generateOperationId(), p.type);
+		} catch (RuntimeException ex) {
+			table.remove(p.reqId, p);
+			p.future.fail(ex);
+			return;
+		} finally {
+			unlockSequence();
+		}
+
+		Logger.println("Sending request (" + p.type + ") with reqId=" + p.reqId);
+		p.timeout = timer.schedule(new Runnable() {
+			public void run() {
+				if (getTable(p.type).remove(p.reqId, p)) {
+					Logger.println("Reply timeout for reqId=" + p.reqId);
+					p.future.fail(new TimeoutException("Replies received: " + p.receivedReplies));
+				}
+			}
+		}, Math.max(0, p.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		if (table.get(p.reqId) != p) {
+			p.timeout.cancel(false); // already completed, so that it does not wait in the timer until the deadline
+		}
+	}
+
+	private ConcurrentHashMap<Integer, PendingRequest> getTable(TOMMessageType type) {
+		return isOrdered(type) ? ordered : unordered;
+	}
+
+	/**
+	 * @return true for the request types numbered with the ordered sequence
+	 */
+	private static boolean isOrdered(TOMMessageType type) {
+		return type == TOMMessageType.ORDERED_REQUEST || type == TOMMessageType.ORDERED_BATCH_REQUEST;
+	}
+
+	/**
+	 * This is the method invoked by the client side communication system.
+	 *
+	 * @param reply The reply delivered by the client side communication system
+	 */
+	@Override
+	public void replyReceived(TOMMessage reply) {
+		if (!isOrdered(reply.getReqType()) && reply.getReqType() != TOMMessageType.UNORDERED_REQUEST) {
+			return;
+		}
+
+		ConcurrentHashMap<Integer, PendingRequest> table = getTable(reply.getReqType());
+		PendingRequest p = table.get(reply.getSequence());
+		if (p == null || p.type != reply.getReqType()) { //no request waiting for it
+			Logger.println("throwing out reply: sender=" + reply.getSender() + " reqId=" + reply.getSequence());
+			return;
+		}
+
+		int pos = getViewManager().getCurrentViewPos(reply.getSender());
+		if (pos < 0 || pos >= p.replies.length) { //ignore messages that don't come from replicas
+			return;
+		}
+
+		if (!p.replyReceived(pos, reply)) return;
+
+		if (table.remove(p.reqId, p)) {
+			if (p.timeout != null) p.timeout.cancel(false);
+			completed(p);
+		}
+	}
+
+	/**
+	 * Delivers the response of a request, or sends it again, as invoke in ServiceProxy
+	 */
+	private void completed(PendingRequest p) {
+		TOMMessage response = p.response;
+		if (response == null) {
+			//the response can be null if n-f replies are received but there isn't
+			//a replyQuorum of matching replies
+			if (p.type == TOMMessageType.UNORDERED_REQUEST) {
+				//invoke the operation again, whitout the read-only flag
+				Logger.println("Received n-f replies and no response could be extracted: sending it again as ordered");
+				resend(p, TOMMessageType.ORDERED_REQUEST);
+			} else {
+				p.future.fail(new RuntimeException("Received n-f replies without f+1 of them matching."));
+			}
+		} else if (response.getViewID() == getViewManager().getCurrentViewId()) {
+			p.future.complete(response.getContent());
+		} else if (isOrdered(p.type)) {
+			//updated view received
+			reconfigureTo((View) TOMUtil.getObject(response.getContent()));
+			resend(p, p.type);
+		} else {
+			resend(p, TOMMessageType.ORDERED_REQUEST);
+		}
+	}
+
+	private void resend(PendingRequest p, TOMMessageType type) {
+		if (p.future.isDone()) return; // cancelled
+		send(new PendingRequest(p.request, type, p.future, p.deadline));
+	}
+
+	private synchronized void reconfigureTo(View v) {
+		if (v.getId() <= getViewManager().getCurrentViewId()) return; // installed by another reply
+		Logger.println("Installing a most up-to-date view with id=" + v.getId());
+		getViewManager().reconfigureTo(v);
+		getViewManager().getViewStore().storeView(v);
+		getCommunicationSystem().updateConnections();
+	}
+
+	/**
+	 * Fails the requests still waiting for replies, and closes the connections
+	 */
+	@Override
+	public void close() {
+		timer.shutdownNow();
+		for (PendingRequest p : ordered.values()) p.future.fail(new IllegalStateException("Proxy closed"));
+		for (PendingRequest p : unordered.values()) p.future.fail(new IllegalStateException("Proxy closed"));
+		ordered.clear();
+		unordered.clear();
+		super.close();
+	}
+
+	private int getReplyQuorum() {
+		if (getViewManager().getStaticConf().isBFT()) {
+			return (int) Math.ceil((getViewManager().getCurrentViewN()
+					+ getViewManager().getCurrentViewF()) / 2) + 1;
+		} else {
+			return (int) Math.ceil((getViewManager().getCurrentViewN()) / 2) + 1;
+		}
+	}
+
+	/**
+	 * A request waiting for replies, and the replies received for it
+	 */
+	private class PendingRequest {
+
+		final byte[] request;
+		final TOMMessageType type;
+		final ReplyFuture future;
+		final long deadline; // of the first send, kept when sent again
+		final TOMMessage[] replies = new TOMMessage[getViewManager().getCurrentViewN()];
+		final int replyQuorum = getReplyQuorum();
+		volatile int reqId;
+		volatile ScheduledFuture<?> timeout = null;
+
+		// guarded by this
+		int receivedReplies = 0;
+		boolean finished = false;
+		TOMMessage response = null;
+
+		PendingRequest(byte[] request, TOMMessageType type, ReplyFuture future, long deadline) {
+			this.request = request;
+			this.type = type;
+			this.future = future;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Votes a reply, as replyReceived in ServiceProxy
+		 * @param pos position of its sender in the view
+		 * @return true if the request is finished: a response was extracted,
+		 * or there will be no replyQuorum of matching replies
+		 */
+		synchronized boolean replyReceived(int pos, TOMMessage reply) {
+			if (finished) return false;
+
+			Logger.println("Receiving reply from " + reply.getSender()
+					+ " with reqId:" + reply.getSequence() + ". Putting on pos=" + pos);
+
+			if (replies[pos] == null) {
+				receivedReplies++;
+			}
+			replies[pos] = reply;
+
+			// Compare the reply just received, to the others
+			int sameContent = 1;
+			for (int i = 0; i < replies.length; i++) {
+				if ((i != pos || replies.length == 1) && replies[i] != null
+						&& (comparator.compare(replies[i].getContent(), reply.getContent()) == 0)) {
+					sameContent++;
+					if (sameContent >= replyQuorum) {
+						response = extractor.extractResponse(replies, sameContent, pos);
+						finished = true;
+						return true;
+					}
+				}
+			}
+
+			if (isOrdered(type)) {
+				finished = receivedReplies == replies.length;
+			} else { // UNORDERED
+				finished = receivedReplies != sameContent;
+			}
+			return finished;
+		}
+	}
+}
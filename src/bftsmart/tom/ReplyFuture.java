@@ -0,0 +1,145 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package bftsmart.tom;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a request sent by a MultiplexedServiceProxy: the reply extracted
+ * from a quorum of matching replies, or the reason why there is none (a
+ * TimeoutException if the request timed out, or the exception thrown when
+ * sending it or when the replies do not match).
+ */
+public class ReplyFuture implements Future<byte[]> {
+
+	/**
+	 * Called when the request completes. The callbacks run in the thread that
+	 * delivered the last reply (or detected the timeout), so they must not block.
+	 */
+	public interface Callback {
+
+		public void completed(byte[] reply);
+
+		public void failed(Throwable cause);
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private List<Callback> callbacks = new LinkedList<Callback>(); // null once completed
+	private byte[] reply = null;
+	private Throwable cause = null;
+	private boolean cancelled = false;
+
+	/**
+	 * Adds a callback, called at once if the request is already completed
+	 */
+	public void addCallback(Callback callback) {
+		synchronized (this) {
+			if (callbacks != null) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notify(callback);
+	}
+
+	/**
+	 * @return true if the reply was delivered
+	 */
+	boolean complete(byte[] reply) {
+		return finish(reply, null, false);
+	}
+
+	/**
+	 * @return true if the failure was delivered
+	 */
+	boolean fail(Throwable cause) {
+		return finish(null, cause, false);
+	}
+
+	private boolean finish(byte[] reply, Throwable cause, boolean cancelled) {
+		List<Callback> toNotify;
+		synchronized (this) {
+			if (callbacks == null) return false;
+			this.reply = reply;
+			this.cause = cause;
+			this.cancelled = cancelled;
+			toNotify = callbacks;
+			callbacks = null;
+		}
+		done.countDown();
+		for (Callback callback : toNotify) {
+			notify(callback);
+		}
+		return true;
+	}
+
+	private void notify(Callback callback) {
+		try {
+			if (cancelled) {
+				callback.failed(new CancellationException());
+			} else if (cause != null) {
+				callback.failed(cause);
+			} else {
+				callback.completed(reply);
+			}
+		} catch (RuntimeException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops waiting for the reply (the request may still be executed by the replicas)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, null, true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public byte[] get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) throw new TimeoutException();
+		return result();
+	}
+
+	private synchronized byte[] result() throws ExecutionException {
+		if (cancelled) throw new CancellationException();
+		if (cause != null) throw new ExecutionException(cause);
+		return reply;
+	}
+}
@@ -17,7 +17,6 @@ package bftsmart.tom;
 
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Random;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -28,6 +27,7 @@ import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.Extractor;
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.ReplicaLatencies;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -52,10 +52,21 @@ public class ServiceProxy extends TOMSender {
 	private int invokeTimeout = 40;
 	private Comparator<byte[]> comparator;
 	private Extractor extractor;
-	private Random rand = new Random(System.currentTimeMillis());
 	private int replyServer;
 	private HashResponseController hashResponseController;
 	private int invokeUnorderedHashedTimeout = 10;
+	private boolean orderedHashed; // only the replyServer sends the full reply to this ordered request
+	private TOMMessage fullRepliesRequest; // the request sent again to ask for the full replies
+	private boolean fullRepliesAsked;
+	private ReplicaLatencies latencies = new ReplicaLatencies();
+	private long[] sendTimes; // when the last request was sent to each replica (by view position), 0 once it replied
+	private int sentReqId = -1; // the last request
+	private TOMMessageType sentType;
+	private int readHedgePercentile;
+	private TOMMessage hedgedRead; // the read sent only to the fastest replicas
+	private int[] hedgeTargets; // the replicas it was not sent to yet
+	private long hedgeDelay; // nanoseconds
+	private long sendTime;
 
 	/**
 	 * Constructor
@@ -94,6 +105,8 @@ public class ServiceProxy extends TOMSender {
 		}
 
 		replies = new TOMMessage[getViewManager().getCurrentViewN()];
+		sendTimes = new long[getViewManager().getCurrentViewN()];
+		readHedgePercentile = getViewManager().getStaticConf().getReadHedgePercentile();
 
 		comparator = (replyComparator != null) ? replyComparator : new Comparator<byte[]>() {
 			@Override
@@ -151,6 +164,22 @@ public class ServiceProxy extends TOMSender {
 		return invoke(request, TOMMessageType.UNORDERED_HASHED_REQUEST);
 	}
 
+	/**
+	 * Invokes an ordered request to which only one replica, the one that has
+	 * been answering fastest, replies with the full response, while the others
+	 * reply with its hash. The replies are compared by their hashes, not with
+	 * the reply comparator. If the full reply does not match a quorum of
+	 * hashes, or does not arrive within invokeUnorderedHashedTimeout seconds,
+	 * the request is sent again to ask the replicas for their full replies,
+	 * which they keep for this purpose, so it is not executed twice.
+	 *
+	 * @param request Request to be sent
+	 * @return The reply from the replicas related to request
+	 */
+	public byte[] invokeOrderedHashed(byte[] request) {
+		return invoke(request, TOMMessageType.ORDERED_REQUEST, true);
+	}
+
 	/**
 	 * This method sends a request to the replicas, and returns the related reply.
 	 * If the servers take more than invokeTimeout seconds the method returns null.
@@ -162,6 +191,10 @@ public class ServiceProxy extends TOMSender {
 	 * @return The reply from the replicas related to request
 	 */
 	public byte[] invoke(byte[] request, TOMMessageType reqType) {
+		return invoke(request, reqType, false);
+	}
+
+	private byte[] invoke(byte[] request, TOMMessageType reqType, boolean hashed) {
 		canSendLock.lock();
 
 		// Clean all statefull data to prepare for receiving next replies
@@ -170,30 +203,68 @@ public class ServiceProxy extends TOMSender {
 		response = null;
 		replyQuorum = getReplyQuorum();
 
-		// Send the request to the replicas, and get its ID
-		reqId = generateRequestId(reqType);
-		operationId = generateOperationId();
-		requestType = reqType;
+		// Send the request to the replicas, and get its ID (see TOMSender.lockSequence)
+		lockSequence();
+		try {
+			reqId = generateRequestId(reqType);
+			operationId = generateOperationId();
+			requestType = reqType;
 
-		replyServer = -1;
-		hashResponseController = null;
+			replyServer = -1;
+			hashResponseController = null;
+			orderedHashed = hashed && requestType == TOMMessageType.ORDERED_REQUEST;
+			fullRepliesRequest = null;
+			fullRepliesAsked = false;
 
-		if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST){
+			TOMMessage sm = new TOMMessage(getProcessId(), getSession(), reqId, operationId, request,
+					getViewManager().getCurrentViewId(), requestType);
+			int[] targets = getViewManager().getCurrentViewProcesses();
+			boolean read = requestType == TOMMessageType.UNORDERED_REQUEST
+					|| requestType == TOMMessageType.UNORDERED_HASHED_REQUEST;
 
-			replyServer = getRandomlyServerId();
-			Logger.println("["+this.getClass().getName()+"] replyServerId("+replyServer+") "
-					+ "pos("+getViewManager().getCurrentViewPos(replyServer)+")");
+			if(orderedHashed || read){
+				targets = latencies.rank(targets);
+			}
 
-			hashResponseController = new HashResponseController(getViewManager().getCurrentViewPos(replyServer),
-					getViewManager().getCurrentViewProcesses().length);
+			if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST || orderedHashed){
 
-			TOMMessage sm = new TOMMessage(getProcessId(),getSession(), reqId, operationId, request,
-					getViewManager().getCurrentViewId(), requestType);
-			sm.setReplyServer(replyServer);
+				replyServer = targets[0];
+				Logger.println("["+this.getClass().getName()+"] replyServerId("+replyServer+") "
+						+ "pos("+getViewManager().getCurrentViewPos(replyServer)+")");
+
+				hashResponseController = new HashResponseController(getViewManager().getCurrentViewPos(replyServer),
+						getViewManager().getCurrentViewProcesses().length);
+
+				sm.setReplyServer(replyServer);
+
+				if (orderedHashed) {
+					// the same request, with no reply server
+					fullRepliesRequest = new TOMMessage(getProcessId(), getSession(), reqId, operationId, request,
+							sm.getViewID(), requestType);
+				}
+			}
 
-			TOMulticast(sm);
-		}else{
-			TOMulticast(request, reqId, operationId, reqType);
+			// a read goes first to the fastest reply quorum, and to the others once it takes
+			// longer than readHedgePercentile of the previous reads
+			hedgedRead = null;
+			hedgeTargets = null;
+			hedgeDelay = (read && readHedgePercentile > 0) ? latencies.getReadPercentile(readHedgePercentile) : -1;
+			if (hedgeDelay >= 0 && replyQuorum < targets.length) {
+				hedgedRead = sm;
+				hedgeTargets = Arrays.copyOfRange(targets, replyQuorum, targets.length);
+				targets = Arrays.copyOfRange(targets, 0, replyQuorum);
+			}
+
+			canReceiveLock.lock();
+			Arrays.fill(sendTimes, 0);
+			sentReqId = reqId;
+			sentType = requestType;
+			canReceiveLock.unlock();
+
+			sendTime = System.nanoTime();
+			send(sm, targets);
+		} finally {
+			unlockSequence();
 		}
 
 		Logger.println("Sending request (" + reqType + ") with reqId=" + reqId);
@@ -202,15 +273,41 @@ public class ServiceProxy extends TOMSender {
 		// This instruction blocks the thread, until a response is obtained.
 		// The thread will be unblocked when the method replyReceived is invoked
 		// by the client side communication system
+		boolean replied = false;
 		try {
+			if (hedgedRead != null) {
+				replied = this.sm.tryAcquire(hedgeDelay, TimeUnit.NANOSECONDS);
+				if (!replied) {
+					Logger.println("Sending reqId=" + reqId + " to " + Arrays.toString(hedgeTargets) + " too");
+					try {
+						send(hedgedRead, hedgeTargets);
+					} catch (RuntimeException ex) {
+						Logger.println("Could not send reqId=" + reqId + " to the other replicas: " + ex.getMessage());
+					}
+				}
+			}
+
 			if(reqType == TOMMessageType.UNORDERED_HASHED_REQUEST){
-				if (!this.sm.tryAcquire(invokeUnorderedHashedTimeout, TimeUnit.SECONDS)) {
+				if (!replied && !this.sm.tryAcquire(invokeUnorderedHashedTimeout, TimeUnit.SECONDS)) {
 					System.out.println("######## UNORDERED HASHED REQUEST TIMOUT ########");
 					canSendLock.unlock();
 					return invoke(request,TOMMessageType.ORDERED_REQUEST);
 				}
 			}else{ 
-				if (!this.sm.tryAcquire(invokeTimeout, TimeUnit.SECONDS)) {
+				int timeout = invokeTimeout;
+				if (orderedHashed) {
+					replied = this.sm.tryAcquire(invokeUnorderedHashedTimeout, TimeUnit.SECONDS);
+					if (!replied) {
+						Logger.println("Ordered hashed request reqId=" + reqId + " timed out, asking for the full replies");
+						canReceiveLock.lock();
+						if (reqId != -1 && !fullRepliesAsked) {
+							askFullReplies(getViewManager().getCurrentViewProcesses());
+						}
+						canReceiveLock.unlock();
+						timeout = Math.max(0, invokeTimeout - invokeUnorderedHashedTimeout);
+					}
+				}
+				if (!replied && !this.sm.tryAcquire(timeout, TimeUnit.SECONDS)) {
 					Logger.println("###################TIMEOUT#######################");
 					Logger.println("Reply timeout for reqId=" + reqId);
 					System.out.print(getProcessId() + " // " + reqId + " // TIMEOUT // ");
@@ -226,6 +323,11 @@ public class ServiceProxy extends TOMSender {
 
 		Logger.println("Response extracted = " + response);
 
+		if (response != null && (reqType == TOMMessageType.UNORDERED_REQUEST
+				|| reqType == TOMMessageType.UNORDERED_HASHED_REQUEST)) {
+			latencies.readCompleted(System.nanoTime() - sendTime);
+		}
+
 		byte[] ret = null;
 
 		if (response == null) {
@@ -253,7 +355,7 @@ public class ServiceProxy extends TOMSender {
 					reconfigureTo((View) TOMUtil.getObject(response.getContent()));
 
 					canSendLock.unlock();
-					return invoke(request, reqType);
+					return invoke(request, reqType, hashed);
 				}
 			} else if (reqType == TOMMessageType.UNORDERED_REQUEST || reqType == TOMMessageType.UNORDERED_HASHED_REQUEST){
 				if (response.getViewID() == getViewManager().getCurrentViewId()) {
@@ -295,6 +397,7 @@ public class ServiceProxy extends TOMSender {
 		getViewManager().reconfigureTo(v);
 		getViewManager().getViewStore().storeView(v);
 		replies = new TOMMessage[getViewManager().getCurrentViewN()];
+		sendTimes = new long[getViewManager().getCurrentViewN()];
 		getCommunicationSystem().updateConnections();
 	}
 	//******* EDUARDO END **************//
@@ -308,6 +411,8 @@ public class ServiceProxy extends TOMSender {
 	public void replyReceived(TOMMessage reply) {
 		try {
 			canReceiveLock.lock();
+			recordLatency(reply);
+
 			if (reqId == -1) {//no message being expected
 				Logger.println("throwing out request: sender=" + reply.getSender() + " reqId=" + reply.getSequence());
 				canReceiveLock.unlock();
@@ -327,7 +432,7 @@ public class ServiceProxy extends TOMSender {
 				Logger.println("Receiving reply from " + reply.getSender()
 						+ " with reqId:" + reply.getSequence() + ". Putting on pos=" + pos);
 
-				if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST)
+				if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST || orderedHashed)
 				{
 					response = hashResponseController.getResponse(pos,reply);
 					if(response !=null){
@@ -337,6 +442,15 @@ public class ServiceProxy extends TOMSender {
 						return;
 					}
 
+					if (orderedHashed) {
+						if (fullRepliesAsked && reply.getReplyServer() >= 0) {
+							// this replica may have executed the request after being asked for its full reply
+							askFullReplies(new int[] { reply.getSender() });
+						} else if (!fullRepliesAsked && hashResponseController.isFullReplyRejected()) {
+							askFullReplies(getViewManager().getCurrentViewProcesses());
+						}
+					}
+
 				}else{
 					if (replies[pos] == null) {
 						receivedReplies++;
@@ -362,7 +476,14 @@ public class ServiceProxy extends TOMSender {
 				}
 				
 				if (response == null) {
-					if (requestType.equals(TOMMessageType.ORDERED_REQUEST)) {
+					if (orderedHashed) {
+						// keeps waiting for a full reply while a quorum of hashes matches
+						if (hashResponseController.getNumberReplies() == getViewManager().getCurrentViewN()
+								&& !hashResponseController.hasQuorum()) {
+							reqId = -1;
+							this.sm.release(); // resumes the thread that is executing the "invoke" method
+						}
+					} else if (requestType.equals(TOMMessageType.ORDERED_REQUEST)) {
 						if (receivedReplies == getViewManager().getCurrentViewN()) {
 							reqId = -1;
 							this.sm.release(); // resumes the thread that is executing the "invoke" method
@@ -399,15 +520,64 @@ public class ServiceProxy extends TOMSender {
 		}
 	}
 
-	private int getRandomlyServerId(){
-		int numServers = super.getViewManager().getCurrentViewProcesses().length;
-		int pos = rand.nextInt(numServers);
+	/**
+	 * Sends the current ordered hashed request again, with no reply server,
+	 * so that the replicas that executed it reply with the full response.
+	 * Called with canReceiveLock held.
+	 *
+	 * @param targets The replicas to ask
+	 */
+	private void askFullReplies(int[] targets) {
+		Logger.println("Asking replicas " + Arrays.toString(targets) + " for the full reply to reqId=" + reqId);
+		fullRepliesAsked = true;
+		try {
+			sendMessageToTargets(fullRepliesRequest, targets);
+		} catch (RuntimeException ex) {
+			Logger.println("Could not ask for the full reply: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Sends the current request to some replicas, noting when it was sent to
+	 * each one
+	 */
+	private void send(TOMMessage sm, int[] targets) {
+		canReceiveLock.lock();
+		long now = System.nanoTime();
+		for (int target : targets) {
+			int pos = getViewManager().getCurrentViewPos(target);
+			if (pos >= 0 && sendTimes[pos] == 0) {
+				sendTimes[pos] = now;
+				latencies.sent(target);
+			}
+		}
+		canReceiveLock.unlock();
 
-		return super.getViewManager().getCurrentViewProcesses()[pos];
+		sendMessageToTargets(sm, targets);
 	}
 
+	/**
+	 * Updates the latency of the replica that sent a reply to the last
+	 * request, even if the response was already extracted. Called with
+	 * canReceiveLock held.
+	 */
+	private void recordLatency(TOMMessage reply) {
+		int pos = getViewManager().getCurrentViewPos(reply.getSender());
+		if (pos >= 0 && pos < sendTimes.length && sendTimes[pos] != 0
+				&& reply.getSequence() == sentReqId && reply.getReqType() == sentType) {
+			latencies.replied(reply.getSender(), System.nanoTime() - sendTimes[pos]);
+			sendTimes[pos] = 0;
+		}
+	}
+
+	/**
+	 * Votes on the replies to a hashed request. Replies marked with a reply
+	 * server carry only the hash of the response; the others carry the full
+	 * response. The response is the first full reply whose hash matches a
+	 * reply quorum.
+	 */
 	private class HashResponseController{
-		private TOMMessage reply;
+		private TOMMessage [] fullReplies;
 		private byte [][] hashReplies;
 		private int replyServerPos;
 		private int countHashReplies;
@@ -415,7 +585,7 @@ public class ServiceProxy extends TOMSender {
 		public HashResponseController(int replyServerPos, int length) {
 			this.replyServerPos = replyServerPos;
 			this.hashReplies = new byte[length][];
-			this.reply = null;
+			this.fullReplies = new TOMMessage[length];
 			this.countHashReplies = 0;
 		}
 
@@ -426,29 +596,52 @@ public class ServiceProxy extends TOMSender {
 				countHashReplies++;
 			}
 
-			if(replyServerPos == pos){
-				reply = tomMessage;
-				hashReplies[pos] = TOMUtil.computeHash(tomMessage.getContent());
+			if(tomMessage.getReplyServer() < 0){
+				fullReplies[pos] = tomMessage;
+				hashReplies[pos] = TOMUtil.computeHash(tomMessage.getContent() != null ? tomMessage.getContent() : new byte[0]);
 			}else{
 				hashReplies[pos] = tomMessage.getContent();
 			}
 			Logger.println("["+this.getClass().getName()+"] hashReplies["+pos+"]="+Arrays.toString(hashReplies[pos]));
 
-			if(hashReplies[replyServerPos]!=null){
-				int sameContent = 1;
-				for (int i = 0; i < replies.length; i++) {
-					if ((i != replyServerPos || getViewManager().getCurrentViewN() == 1) && hashReplies[i] != null
-							&& (Arrays.equals(hashReplies[i], hashReplies[replyServerPos]))) {
-						sameContent++;
-						if (sameContent >= replyQuorum) {
-							return reply;
-						}
-					}
-				}	
+			for (int i = 0; i < fullReplies.length; i++) {
+				if (fullReplies[i] != null && countSameHash(hashReplies[i]) >= replyQuorum) {
+					return fullReplies[i];
+				}
 			}
 			return null;
 		}
 
+		/**
+		 * @return true if a reply quorum sent the same hash
+		 */
+		public boolean hasQuorum() {
+			for (int i = 0; i < hashReplies.length; i++) {
+				if (hashReplies[i] != null && countSameHash(hashReplies[i]) >= replyQuorum) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if a reply quorum agrees on a hash that the full reply
+		 * from the reply server does not match (or that reply is no full one)
+		 */
+		public boolean isFullReplyRejected() {
+			return hashReplies[replyServerPos] != null && hasQuorum()
+					&& (fullReplies[replyServerPos] == null || countSameHash(hashReplies[replyServerPos]) < replyQuorum);
+		}
+
+		private int countSameHash(byte[] hash) {
+			int sameContent = 0;
+			for (int i = 0; i < hashReplies.length; i++) {
+				if (hashReplies[i] != null && Arrays.equals(hashReplies[i], hash)) {
+					sameContent++;
+				}
+			}
+			return sameContent;
+		}
 
 		public int getNumberReplies(){
 			return countHashReplies;
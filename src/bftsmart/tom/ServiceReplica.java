@@ -44,6 +44,7 @@ import bftsmart.tom.server.Replier;
 import bftsmart.tom.server.SingleExecutable;
 
 import bftsmart.tom.server.defaultservices.DefaultReplier;
+import bftsmart.tom.util.Envelope;
 import bftsmart.tom.util.ShutdownHookThread;
 import bftsmart.tom.util.TOMUtil;
 
@@ -215,14 +216,8 @@ public class ServiceReplica {
 		} else
 			response = executor.executeUnordered(message.getContent(), msgCtx);
 
-		if(message.getReqType()==TOMMessageType.UNORDERED_HASHED_REQUEST && 
-				message.getReplyServer()!= this.id){
-				response = TOMUtil.computeHash(response);
-		}
-		
 		// build the reply and send it to the client
-		message.reply = new TOMMessage(id, message.getSession(), message.getSequence(),
-				response, SVController.getCurrentViewId(), message.getReqType());
+		message.reply = createReply(message, response);
 		
 		if (SVController.getStaticConf().getNumRepliers() > 0)
 			repMan.send(message);
@@ -234,6 +229,8 @@ public class ServiceReplica {
 		int numRequests = 0;
 		int consensusCount = 0;
 		List<TOMMessage> toBatch = new ArrayList<TOMMessage>();
+		List<Integer> operationCounts = new ArrayList<Integer>();
+		List<byte[]> commands = new ArrayList<byte[]>();
 		List<MessageContext> msgCtxts = new ArrayList<MessageContext>();
                 //Set<Integer> appEids = new HashSet<Integer>();
                 boolean noop = true;
@@ -247,34 +244,47 @@ public class ServiceReplica {
                                                     
 				if (request.getViewID() == SVController.getCurrentViewId()) {	
                                     
-					if (request.getReqType() == TOMMessageType.ORDERED_REQUEST) {
-                                            
-                                                noop = false;
+					if (request.getReqType() == TOMMessageType.ORDERED_REQUEST
+							|| request.getReqType() == TOMMessageType.ORDERED_BATCH_REQUEST) {
+
+						// the operations of an envelope are delivered one by one, as if sent
+						// in separate requests, and their replies packed in a single one
+						byte[][] operations = getOperations(request);
+						if (operations.length > 0) {
+							noop = false;
+						}
                                             
 						numRequests++;
-						MessageContext msgCtx = new MessageContext(firstRequest.timestamp, firstRequest.nonces,	regency, consId[consensusCount], request.getSender(), firstRequest);
-						if(requestCount + 1 == requestsFromConsensus.length) {
+						request.deliveryTime = System.nanoTime();
+						byte[][] responses = new byte[operations.length][];
+						MessageContext msgCtx = null;
+						for (int i = 0; i < operations.length; i++) {
+							msgCtx = new MessageContext(firstRequest.timestamp, firstRequest.nonces, regency, consId[consensusCount], request.getSender(), firstRequest);
+							if(requestCount + 1 == requestsFromConsensus.length && i + 1 == operations.length) {
                                                  
                                                     msgCtx.setLastInBatch();
                                                 }
-						request.deliveryTime = System.nanoTime();
+							if(executor instanceof BatchExecutable) {
+								msgCtxts.add(msgCtx);
+								commands.add(operations[i]);
+							} else if(executor instanceof FIFOExecutable) {                                                    
+								responses[i] = ((FIFOExecutable)executor).executeOrderedFIFO(operations[i], msgCtx, request.getSender(), request.getOperationId());
+							} else if(executor instanceof SingleExecutable) {                                                      
+								responses[i] = ((SingleExecutable)executor).executeOrdered(operations[i], msgCtx);
+							} else {                                                       
+								throw new UnsupportedOperationException("Interface not existent");
+							}
+						}
 						if(executor instanceof BatchExecutable) {
-							msgCtxts.add(msgCtx);
 							toBatch.add(request);
-						} else if(executor instanceof FIFOExecutable) {                                                    
-							byte[]response = ((FIFOExecutable)executor).executeOrderedFIFO(request.getContent(), msgCtx, request.getSender(), request.getOperationId());
-							request.reply = new TOMMessage(id, request.getSession(),
-									request.getSequence(), response, SVController.getCurrentViewId());
+							operationCounts.add(operations.length);
+						} else {
+							request.reply = createReply(request, getResponse(request, responses));
 							bftsmart.tom.util.Logger.println("(ServiceReplica.receiveMessages) sending reply to " + request.getSender());
+							if (msgCtx == null) { // empty envelope
+								msgCtx = new MessageContext(firstRequest.timestamp, firstRequest.nonces, regency, consId[consensusCount], request.getSender(), firstRequest);
+							}
 							replier.manageReply(request, msgCtx);
-						} else if(executor instanceof SingleExecutable) {                                                      
-							byte[]response = ((SingleExecutable)executor).executeOrdered(request.getContent(), msgCtx);
-							request.reply = new TOMMessage(id, request.getSession(),
-									request.getSequence(), response, SVController.getCurrentViewId());
-							bftsmart.tom.util.Logger.println("(ServiceReplica.receiveMessages) sending reply to " + request.getSender());
-							replier.manageReply(request, msgCtx);
-						} else {                                                       
-							throw new UnsupportedOperationException("Interface not existent");
 						}
 					} else if (request.getReqType() == TOMMessageType.RECONFIG) {
 						SVController.enqueueUpdate(request);                                                
@@ -284,7 +294,7 @@ public class ServiceReplica {
 				} else if (request.getViewID() < SVController.getCurrentViewId()) {
 					// message sender had an old view, resend the message to
 					// him (but only if it came from consensus an not state transfer)
-                                        tomLayer.getCommunication().send(new int[] { request.getSender() }, new TOMMessage(SVController.getStaticConf().getProcessId(), request.getSession(), request.getSequence(), TOMUtil.getBytes(SVController.getCurrentView()),	SVController.getCurrentViewId()));
+                                        tomLayer.getCommunication().send(new int[] { request.getSender() }, new TOMMessage(SVController.getStaticConf().getProcessId(), request.getSession(), request.getSequence(), TOMUtil.getBytes(SVController.getCurrentView()),	SVController.getCurrentViewId(), request.getReqType()));
 				}
 				requestCount++;
 			}
@@ -305,26 +315,23 @@ public class ServiceReplica {
 
                 if(executor instanceof BatchExecutable && numRequests > 0){
 			//Make new batch to deliver
-			byte[][] batch = new byte[numRequests][];
-
-			//Put messages in the batch
-			int line = 0;
-			for(TOMMessage m : toBatch){
-				batch[line] = m.getContent();
-				line++;
-			}
+			byte[][] batch = new byte[commands.size()][];
+			batch = commands.toArray(batch);
 
 			MessageContext[] msgContexts = new MessageContext[msgCtxts.size()];
 			msgContexts = msgCtxts.toArray(msgContexts);
 
 			//Deliver the batch and wait for replies
-			byte[][] replies = ((BatchExecutable) executor).executeBatch(batch, msgContexts);
+			byte[][] replies = (batch.length > 0) ? ((BatchExecutable) executor).executeBatch(batch, msgContexts) : new byte[0][];
 
 			//Send the replies back to the client
+			int line = 0;
 			for(int index = 0; index < toBatch.size(); index++){                               
-				TOMMessage request = toBatch.get(index);                
-				request.reply = new TOMMessage(id, request.getSession(), request.getSequence(),
-						replies[index], SVController.getCurrentViewId());                       
+				TOMMessage request = toBatch.get(index);
+				byte[][] responses = new byte[operationCounts.get(index)][];
+				System.arraycopy(replies, line, responses, 0, responses.length);
+				line += responses.length;
+				request.reply = createReply(request, getResponse(request, responses));
                                 
 				if (SVController.getStaticConf().getNumRepliers() > 0) {                                    
 					repMan.send(request);
@@ -338,6 +345,49 @@ public class ServiceReplica {
 		}
 	}
 
+	/**
+	 * Builds the reply to a request. If the client designated another replica
+	 * to send the full response (see ServiceProxy.invokeOrderedHashed), the
+	 * reply carries only its hash, marked with the id of that replica. The
+	 * full reply is kept with it, to be sent if the client asks for it.
+	 */
+	private TOMMessage createReply(TOMMessage request, byte[] response) {
+		TOMMessage reply = new TOMMessage(id, request.getSession(), request.getSequence(),
+				response, SVController.getCurrentViewId(), request.getReqType());
+		if (request.getReplyServer() < 0 || request.getReplyServer() == id) {
+			return reply;
+		}
+
+		TOMMessage hashed = new TOMMessage(id, request.getSession(), request.getSequence(),
+				TOMUtil.computeHash(response != null ? response : new byte[0]), SVController.getCurrentViewId(), request.getReqType());
+		hashed.setReplyServer(request.getReplyServer());
+		hashed.fullReply = reply;
+		return hashed;
+	}
+
+	/**
+	 * @return the operations of an ordered request: its content, or the
+	 * operations packed in it if it is an envelope (none if malformed)
+	 */
+	private byte[][] getOperations(TOMMessage request) {
+		if (request.getReqType() != TOMMessageType.ORDERED_BATCH_REQUEST) {
+			return new byte[][] { request.getContent() };
+		}
+		byte[][] operations = Envelope.unpack(request.getContent());
+		return (operations != null) ? operations : new byte[0][];
+	}
+
+	/**
+	 * @return the content of the reply to an ordered request, given the
+	 * responses to its operations
+	 */
+	private byte[] getResponse(TOMMessage request, byte[][] responses) {
+		if (request.getReqType() != TOMMessageType.ORDERED_BATCH_REQUEST) {
+			return responses[0];
+		}
+		return Envelope.pack(responses);
+	}
+
 	/**
 	 * This method makes the replica leave the group
 	 */
@@ -99,7 +99,7 @@ public abstract class TOMSender implements ReplyReceiver {
 	public int generateRequestId(TOMMessageType type) {
 		lock.lock();
 		int id;
-		if(type == TOMMessageType.ORDERED_REQUEST)
+		if(type == TOMMessageType.ORDERED_REQUEST || type == TOMMessageType.ORDERED_BATCH_REQUEST)
 			id = sequence++;
 		else
 			id = unorderedMessageSequence++; 
@@ -112,6 +112,22 @@ public abstract class TOMSender implements ReplyReceiver {
 		return opCounter.getAndIncrement();
 	}
 
+	/**
+	 * Replicas only accept the ordered request that follows the last one they
+	 * received from a client, so a request overtaken by the next one (e.g.,
+	 * because two threads send requests at the same time) is discarded. A
+	 * thread that numbers a request with generateRequestId and sends it
+	 * between lockSequence and unlockSequence is sure that no request with a
+	 * higher number is sent before it.
+	 */
+	protected void lockSequence() {
+		lock.lock();
+	}
+
+	protected void unlockSequence() {
+		lock.unlock();
+	}
+
 	//******* EDUARDO BEGIN **************//
 	/**
 	 * Multicast data to the group of replicas
@@ -167,6 +183,16 @@ public abstract class TOMSender implements ReplyReceiver {
 				new TOMMessage(me, session, reqId, operationId, m, viewController.getCurrentViewId(), type));
 	}
 
+	/**
+	 * Sends a TOMMessage to some of the replicas
+	 *
+	 * @param sm Message to be sent
+	 * @param targets The replicas to send it to
+	 */
+	public void sendMessageToTargets(TOMMessage sm, int[] targets) {
+		cs.send(useSignatures, targets, sm);
+	}
+
 	public int getSession(){
 		return session;
 	}
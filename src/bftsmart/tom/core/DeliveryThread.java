@@ -16,6 +16,8 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import java.util.concurrent.locks.Condition;
@@ -46,6 +48,9 @@ public final class DeliveryThread extends Thread {
     private ServerViewController controller;
     private Lock decidedLock = new ReentrantLock();
     private Condition notEmptyQueue = decidedLock.newCondition();
+    // consensus decided before the previous ones (when consensus are pipelined)
+    private TreeMap<Integer, Consensus> outOfOrder = new TreeMap<Integer, Consensus>();
+    private ReentrantLock outOfOrderLock = new ReentrantLock();
 
     /**
      * Creates a new instance of DeliveryThread
@@ -70,17 +75,49 @@ public final class DeliveryThread extends Thread {
     }
    
     /**
-     * Invoked by the TOM layer, to deliver a decide consensus
+     * Invoked by the TOM layer, to deliver a decide consensus. If consensus are
+     * pipelined, decisions are kept until all previous consensus are decided,
+     * so that they are delivered in order.
      * @param cons Consensus established as being decided
      */
     public void delivery(Consensus cons) {
+        if (controller.getStaticConf().getPipelineDepth() == 1) {
+            deliveryInOrder(cons);
+            return;
+        }
+
+        outOfOrderLock.lock();
+        if (cons.getId() > tomLayer.getLastExec() + 1) {
+            Logger.println("(DeliveryThread.delivery) Consensus " + cons.getId() + " decided before " + (tomLayer.getLastExec() + 1) + ", holding it");
+            outOfOrder.put(cons.getId(), cons);
+        } else {
+            deliveryInOrder(cons);
+            deliverOutOfOrder();
+        }
+        outOfOrderLock.unlock();
+    }
+
+    /**
+     * Delivers the held decisions that now follow the last executed consensus
+     */
+    private void deliverOutOfOrder() {
+        outOfOrderLock.lock();
+        Consensus next = outOfOrder.remove(tomLayer.getLastExec() + 1);
+        while (next != null) {
+            deliveryInOrder(next);
+            next = outOfOrder.remove(tomLayer.getLastExec() + 1);
+        }
+        outOfOrderLock.unlock();
+    }
+
+    private void deliveryInOrder(Consensus cons) {
         if (!containsGoodReconfig(cons)) {
 
             Logger.println("(DeliveryThread.delivery) Consensus ID " + cons.getId() + " does not contain good reconfiguration");
             //set this consensus as the last executed
             tomLayer.setLastExec(cons.getId());
-            //define that end of this execution
-            tomLayer.setInExec(-1);
+            //define that end of this execution (the next consensus of the pipeline may already be running)
+            tomLayer.advanceInExec();
         } //else if (tomLayer.controller.getStaticConf().getProcessId() == 0) System.exit(0);
         try {
         	decidedLock.lock();
@@ -139,6 +176,13 @@ public final class DeliveryThread extends Thread {
         System.out.println("Setting last EID to " + lastEid);
         tomLayer.setLastExec(lastEid);
 
+        //discard the held decisions already covered by the state
+        outOfOrderLock.lock();
+        for (Iterator<Integer> i = outOfOrder.keySet().iterator(); i.hasNext();) {
+            if (i.next() <= lastEid) i.remove();
+        }
+        outOfOrderLock.unlock();
+
         //define the last stable consensus... the stable consensus can
         //be removed from the leaderManager and the executionManager
         if (lastEid > 2) {
@@ -209,8 +253,14 @@ public final class DeliveryThread extends Thread {
   							// set this consensus as the last executed
   							tomLayer.setLastExec(lastConsensus.getId());
   							// define that end of this execution
-  							tomLayer.setInExec(-1);
+  							tomLayer.advanceInExec();
   							// ******* EDUARDO END **************//
+  							
+  							// decisions held while the reconfiguration was not executed
+  							deliverOutOfOrder();
+
+  							// the ACCEPT of the next consensus of the pipeline was held for this one
+  							tomLayer.acceptor.lastExecAdvanced();
   						}
   					}
 
@@ -269,6 +319,7 @@ public final class DeliveryThread extends Thread {
 
     private void processReconfigMessages(int consId, int decisionRoundNumber) {
         byte[] response = controller.executeUpdates(consId, decisionRoundNumber);
+        tomLayer.execManager.rebindRounds(controller.getCurrentView());
         TOMMessage[] dests = controller.clearUpdates();
 
         for (int i = 0; i < dests.length; i++) {
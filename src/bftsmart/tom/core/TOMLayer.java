@@ -21,12 +21,17 @@ import java.io.ObjectOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignedObject;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -48,6 +53,7 @@ import bftsmart.consensus.roles.Acceptor;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.statemanagement.StateManager;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.core.messages.RequestFetchMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.core.timer.ForwardedMessage;
@@ -59,7 +65,10 @@ import bftsmart.tom.leaderchange.LastEidData;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.BatchSizeController;
+import bftsmart.tom.util.DigestService;
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.SignatureScheme;
 import bftsmart.tom.util.TOMUtil;
 import java.util.Set;
 
@@ -86,12 +95,16 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	/** The id of the consensus being executed (or -1 if there is none) */
 	private int inExecution = -1;
 	private int lastExecuted = -1;
+	/** The id of the highest consensus started in the pipeline (meaningful only while inExecution != -1) */
+	private int lastStarted = -1;
+	private int pipelineDepth; // maximum number of consensus in execution at the same time
 
-	private MessageDigest md;
+	private DigestService digestService;
 	private Signature engine;
 
 	//the next two are used to generate non-deterministic data in a deterministic way (by the leader)
 	private BatchBuilder bb = new BatchBuilder();
+	private BatchSizeController batchController; // defines the size of the batches proposed
 
 	/* The locks and conditions used to wait upon creating a propose */
 	private ReentrantLock leaderLock = new ReentrantLock();
@@ -101,6 +114,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	private ReentrantLock proposeLock = new ReentrantLock();
 	private Condition canPropose = proposeLock.newCondition();
 
+	/* Proposes (of batches of hashes) waiting for requests fetched from the leader */
+	private Map<Integer, WaitingPropose> waitingProposes = new HashMap<Integer, WaitingPropose>();
+	private Map<Integer, Integer> fetchedRequests = new HashMap<Integer, Integer>(); // eid -> round
+	private ReentrantLock fetchLock = new ReentrantLock();
+
 	/** THIS IS JOAO'S CODE, RELATED TO LEADER CHANGE */
 	private LCManager lcManager;
 	/*************************************************************/
@@ -132,6 +150,9 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		this.acceptor = a;
 		this.communication = cs;
 		this.controller = controller;
+		this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
+		this.batchController = new BatchSizeController(this.controller.getStaticConf().getMaxBatchSize(),
+				this.controller.getStaticConf().isAdaptiveBatching());
 
 		//do not create a timer manager if the timeout is 0
 		if (this.controller.getStaticConf().getRequestTimeout() == 0){
@@ -141,40 +162,24 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 		this.clientsManager = new ClientsManager(this.controller, requestsTimer); // Create clients manager
 
-		try {
-			this.md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-		} catch (Exception e) {
-			e.printStackTrace(System.out);
-		}
-
-		try {
-			this.engine = Signature.getInstance("SHA1withRSA");
-		} catch (Exception e) {
-			e.printStackTrace(System.err);
-		}
+		this.digestService = new DigestService(this.controller.getStaticConf());
 
-		this.prk = this.controller.getStaticConf().getRSAPrivateKey();
-		this.lcManager = new LCManager(this,controller, md);
+		this.prk = this.controller.getStaticConf().getPrivateKey();
+		this.engine = SignatureScheme.forKey(prk).newEngine();
+		this.lcManager = new LCManager(this,controller, digestService);
 		this.dt = new DeliveryThread(this, receiver, recoverer, this.controller); // Create delivery thread
 		this.dt.start();
 		this.stateManager = recoverer.getStateManager();
 		stateManager.init(this, dt);
 	}
 
-	ReentrantLock hashLock = new ReentrantLock();
-
 	/**
 	 * Computes an hash for a TOM message
 	 * @param data Data from which to generate the hash
 	 * @return Hash for the specified TOM message
 	 */
 	public final byte[] computeHash(byte[] data) {
-		byte[] ret = null;
-		hashLock.lock();
-		ret = md.digest(data);
-		hashLock.unlock();
-
-		return ret;
+		return digestService.digest(data);
 	}
 
 	public SignedObject sign(Serializable obj) {
@@ -194,7 +199,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 */
 	public boolean verifySignature(SignedObject so, int sender) {
 		try {
-			return so.verify(controller.getStaticConf().getRSAPublicKey(sender), engine);
+			return so.verify(controller.getStaticConf().getPublicKey(sender), engine);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -240,12 +245,121 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		proposeLock.lock();
 		Logger.println("(TOMLayer.setInExec) modifying inExec from " + this.inExecution + " to " + inEx);
 		this.inExecution = inEx;
-		if (inEx == -1  && !isRetrievingState()) {
+		if (inEx == -1) {
+			this.lastStarted = this.lastExecuted;
+			if (!isRetrievingState()) canPropose.signalAll();
+		} else if (inEx > this.lastStarted) {
+			this.lastStarted = inEx;
+		}
+		proposeLock.unlock();
+	}
+
+	/**
+	 * Marks a consensus as started by this replica, if it is the one that follows
+	 * the last consensus started (i.e., it extends the pipeline of consensus in execution).
+	 *
+	 * @param eid ID of the consensus whose propose was accepted
+	 */
+	public void setStartedExec(int eid) {
+		proposeLock.lock();
+		if (this.inExecution == -1) {
+			if (eid == this.lastExecuted + 1) {
+				Logger.println("(TOMLayer.setStartedExec) modifying inExec from -1 to " + eid);
+				this.inExecution = eid;
+				this.lastStarted = eid;
+			}
+		} else if (eid == this.lastStarted + 1 && eid <= this.lastExecuted + pipelineDepth) {
+			Logger.println("(TOMLayer.setStartedExec) consensus " + eid + " added to the pipeline");
+			this.lastStarted = eid;
+		}
+		proposeLock.unlock();
+	}
+
+	/**
+	 * Invoked after the last executed consensus is updated. The next consensus of the pipeline
+	 * (if any was already started) becomes the one in execution, otherwise there is no
+	 * consensus in execution.
+	 */
+	public void advanceInExec() {
+		proposeLock.lock();
+		int next = this.lastExecuted + 1;
+		if (this.inExecution != -1 && this.lastStarted >= next) {
+			Logger.println("(TOMLayer.advanceInExec) modifying inExec from " + this.inExecution + " to " + next);
+			this.inExecution = next;
+		} else {
+			Logger.println("(TOMLayer.advanceInExec) modifying inExec from " + this.inExecution + " to -1");
+			this.inExecution = -1;
+			this.lastStarted = this.lastExecuted;
+		}
+		if (!isRetrievingState()) {
 			canPropose.signalAll();
 		}
 		proposeLock.unlock();
 	}
 
+	/**
+	 * Discards the consensus of the pipeline started after the specified one, which
+	 * were not decided yet. This is used by the leader change protocol: since ACCEPTs
+	 * are only sent for the lowest consensus in execution, none of those values could
+	 * have been decided, and the new leader will propose them again.
+	 *
+	 * @param eid ID of the consensus being executed after the leader change
+	 */
+	public void abortPipeline(int eid) {
+		proposeLock.lock();
+		int last = this.lastStarted;
+		if (this.lastStarted > eid) this.lastStarted = eid;
+		proposeLock.unlock();
+
+		for (int i = eid + 1; i <= last; i++) {
+			if (!execManager.getExecution(i).isDecided()) {
+				Logger.println("(TOMLayer.abortPipeline) discarding consensus " + i);
+				execManager.removeExecution(i);
+			}
+		}
+	}
+
+	/**
+	 * Gets the ID of the last consensus started by this replica. If no consensus
+	 * is being executed, this is the last consensus executed.
+	 *
+	 * @return ID of the last consensus started
+	 */
+	public int getLastStarted() {
+		proposeLock.lock();
+		int last = (this.inExecution == -1 ? this.lastExecuted : Math.max(this.inExecution, this.lastStarted));
+		proposeLock.unlock();
+		return last;
+	}
+
+	/**
+	 * Checks if the leader can start a new consensus, i.e., if the number of consensus
+	 * in execution is below the configured pipeline depth
+	 */
+	private boolean canStartExec() {
+		return this.inExecution == -1 || this.lastStarted - this.lastExecuted < pipelineDepth;
+	}
+
+	/**
+	 * Reserves the ID of the next consensus to be proposed by the leader
+	 *
+	 * @return ID of the consensus to propose
+	 */
+	private int nextExecToPropose() {
+		proposeLock.lock();
+		int eid;
+		if (this.inExecution == -1) {
+			eid = this.lastExecuted + 1;
+			this.inExecution = eid;
+		} else {
+			eid = Math.max(this.inExecution, this.lastStarted) + 1;
+		}
+		this.lastStarted = eid;
+		Logger.println("(TOMLayer.nextExecToPropose) starting consensus " + eid + " (inExec=" + this.inExecution + ")");
+		proposeLock.unlock();
+		return eid;
+	}
+
 	/**
 	 * This method blocks until the PaW algorithm is finished
 	 */
@@ -294,8 +408,19 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 * @return A value to be proposed to the acceptors
 	 */
 	private byte[] createPropose(Consensus cons) {
+		return createPropose(cons, false);
+	}
+
+	/**
+	 * Creates a value to be proposed to the acceptors. Invoked if this replica is the leader
+	 * @param useHashes if true, the value contains only the ids and hashes of the requests
+	 * @return A value to be proposed to the acceptors
+	 */
+	private byte[] createPropose(Consensus cons, boolean useHashes) {
 		// Retrieve a set of pending requests from the clients manager
-		RequestList pendingRequests = clientsManager.getPendingRequests();
+		int targetBatchSize = batchController.getTargetBatchSize();
+		RequestList pendingRequests = clientsManager.getPendingRequests(targetBatchSize,
+				this.controller.getStaticConf().getMaxBatchBytes());
 
 		int numberOfMessages = pendingRequests.size(); // number of messages retrieved
 		int numberOfNonces = this.controller.getStaticConf().getNumberOfNonces(); // ammount of nonces to be generated
@@ -307,8 +432,12 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		}
 		cons.batchSize = numberOfMessages;
 
-		Logger.println("(TOMLayer.run) creating a PROPOSE with " + numberOfMessages + " msgs");
+		Logger.println("(TOMLayer.run) creating a PROPOSE with " + numberOfMessages + " msgs for consensus " +
+				cons.getId() + " (target batch size " + targetBatchSize + ")");
 
+		if (useHashes) {
+			return bb.makeHashBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(), controller);
+		}
 		return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(),controller);
 	}
 	/**
@@ -335,10 +464,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			// blocks until the current consensus finishes
 			proposeLock.lock();
 
-			if (getInExec() != -1) { //there is some consensus running
+			if (!canStartExec()) { //the pipeline of running consensus is full
 				Logger.println("(TOMLayer.run) Waiting for consensus " + getInExec() + " termination.");
 				canPropose.awaitUninterruptibly();
 			}
+			boolean canStart = canStartExec();
 			proposeLock.unlock();
 
 			Logger.println("(TOMLayer.run) I'm the leader.");
@@ -351,16 +481,18 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			messagesLock.unlock();
 			Logger.println("(TOMLayer.run) There are messages to be ordered.");
 
+			// blocks until there are enough requests to fill the batch (or the batch timeout expires)
+			waitToFillBatch();
+
 
 			Logger.println("(TOMLayer.run) I can try to propose.");
 
 			if ((lm.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
 					(clientsManager.havePendingRequests()) && //there are messages to be ordered
-					(getInExec() == -1)) { //there is no consensus in execution
+					canStart) { //there is room for another consensus in execution
 
 				// Sets the current execution
-				int execId = getLastExec() + 1;
-				setInExec(execId);
+				int execId = nextExecToPropose();
 
 				Consensus cons = execManager.getExecution(execId).getLearner();
 
@@ -386,17 +518,48 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 				}
 				execManager.getProposer().startExecution(execId,
-						createPropose(cons));
+						createPropose(cons, this.controller.getStaticConf().isHashProposals()));
 			}
 		}
 	}
 
+	/**
+	 * Waits, at most system.totalordermulticast.batch_timeout milliseconds, until there are
+	 * enough pending requests to fill a batch of the current target size.
+	 */
+	private void waitToFillBatch() {
+		int batchTimeout = this.controller.getStaticConf().getBatchTimeout();
+		if (batchTimeout <= 0) return;
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchTimeout);
+		long remaining = deadline - System.nanoTime();
+
+		messagesLock.lock();
+		try {
+			while (remaining > 0 &&
+					clientsManager.countPendingRequests() < batchController.getTargetBatchSize()) {
+				remaining = haveMessages.awaitNanos(remaining);
+			}
+		} catch (InterruptedException ex) {
+			ex.printStackTrace();
+		} finally {
+			messagesLock.unlock();
+		}
+	}
+
 	/**
 	 * Called by the current consensus's execution, to notify the TOM layer that a value was decided
 	 * @param cons The decided consensus
 	 */
 	public void decided(Consensus cons) {
 		this.dt.delivery(cons); // Delivers the consensus to the delivery thread
+
+		// feed the batch size controller with the consensus proposed by this replica
+		if (this.controller.getStaticConf().isAdaptiveBatching() && cons.batchSize > 0 &&
+				cons.firstMessageProposed != null && cons.firstMessageProposed.consensusStartTime > 0) {
+			batchController.update(cons.batchSize, System.nanoTime() - cons.firstMessageProposed.consensusStartTime,
+					clientsManager.countPendingRequests());
+		}
 	}
 
 	/**
@@ -409,24 +572,44 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 * @return Valid messages contained in the proposed value
 	 */
 	public TOMMessage[] checkProposedValue(byte[] proposedValue, boolean addToClientManager) {
-		Logger.println("(TOMLayer.isProposedValueValid) starting");
+		return checkProposedValue(proposedValue, null, addToClientManager);
+	}
 
-		BatchReader batchReader = new BatchReader(proposedValue, 
-				this.controller.getStaticConf().getUseSignatures() == 1);
+	/**
+	 * Verify if the value being proposed for a round is valid, reusing the
+	 * requests already deserialized by prepareProposedValue.
+	 *
+	 * @param proposedValue the value being proposed
+	 * @param prepared the requests of the value returned by prepareProposedValue
+	 * (null to deserialize them now)
+	 * @return Valid messages contained in the proposed value
+	 */
+	public TOMMessage[] checkProposedValue(byte[] proposedValue, TOMMessage[] prepared, boolean addToClientManager) {
+		Logger.println("(TOMLayer.isProposedValueValid) starting");
 
-		TOMMessage[] requests = null;
+		TOMMessage[] requests = prepared;
 
 		try {
-			//deserialize the message
-			//TODO: verify Timestamps and Nonces
-			requests = batchReader.deserialiseRequests(this.controller);
+			if (requests == null) {
+				//deserialize the message
+				//TODO: verify Timestamps and Nonces
+				BatchReader batchReader = new BatchReader(proposedValue,
+						this.controller.getStaticConf().getUseSignatures() == 1);
+				requests = batchReader.deserialiseRequests(this.controller);
+			}
 
 			if (addToClientManager) {
+				//verify all client signatures at once, before accounting the requests
+				if (!clientsManager.verifySignatures(requests)) {
+					Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
+					System.out.println("invalid signature in batch");
+					return null;
+				}
+
 				for (int i = 0; i < requests.length; i++) {
 					//notifies the client manager that this request was received and get
 					//the result of its validation
 					if (!clientsManager.requestReceived(requests[i], false)) {
-						clientsManager.getClientsLock().unlock();
 						Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
 						System.out.println("failure in deserialize batch");
 						return null;
@@ -436,7 +619,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 		} catch (Exception e) {
 			e.printStackTrace();
-			clientsManager.getClientsLock().unlock();
 			Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
 			return null;
 		}
@@ -445,6 +627,139 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		return requests;
 	}
 
+	/**
+	 * Deserializes a proposed value and verifies the client signatures of its
+	 * requests, without changing the state of this replica, so it can be done
+	 * before the PROPOSE reaches the consensus thread. The result is given to
+	 * checkProposedValue.
+	 *
+	 * @param proposedValue the value being proposed
+	 * @return the requests of the value, or null if it is not valid
+	 */
+	public TOMMessage[] prepareProposedValue(byte[] proposedValue) {
+		try {
+			BatchReader batchReader = new BatchReader(proposedValue,
+					this.controller.getStaticConf().getUseSignatures() == 1);
+			TOMMessage[] requests = batchReader.deserialiseRequests(this.controller);
+			// an invalid batch is left to checkProposedValue, which rejects it
+			return clientsManager.verifySignatures(requests) ? requests : null;
+		} catch (Exception e) {
+			Logger.println("(TOMLayer.prepareProposedValue) invalid proposed value: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Rebuilds a proposed batch of hashes with the requests received from the clients.
+	 * If some request is missing, it is asked to the replica that sent the propose, and
+	 * the propose is delivered again when the reply arrives.
+	 *
+	 * @param propose the PROPOSE message
+	 * @return the complete batch, or null if it cannot be rebuilt now
+	 */
+	public byte[] expandProposedValue(PaxosMessage propose) {
+		int eid = propose.getNumber();
+		byte[] value = null;
+		List<int[]> missing = null;
+		List<byte[]> hashes = null;
+
+		try {
+			BatchReader batchReader = new BatchReader(propose.getValue(),
+					this.controller.getStaticConf().getUseSignatures() == 1);
+			value = batchReader.expandBatch(clientsManager, controller);
+			missing = batchReader.getMissingRequests();
+			hashes = batchReader.getMissingHashes();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Logger.println("(TOMLayer.expandProposedValue) invalid batch of hashes for consensus " + eid);
+			return null;
+		}
+
+		if (value != null) return value;
+
+		fetchLock.lock();
+		// forget the consensus already finished
+		for (Iterator<Integer> i = fetchedRequests.keySet().iterator(); i.hasNext();) {
+			if (i.next() <= getLastExec()) i.remove();
+		}
+		for (Iterator<Integer> i = waitingProposes.keySet().iterator(); i.hasNext();) {
+			if (i.next() <= getLastExec()) i.remove();
+		}
+
+		Integer round = fetchedRequests.get(eid);
+		if (round != null && round == propose.getRound()) {
+			// the requests were already fetched, but do not match the hashes
+			Logger.println("(TOMLayer.expandProposedValue) " + missing.size() + " requests of consensus " + eid + " still missing, discarding propose");
+		} else {
+			Logger.println("(TOMLayer.expandProposedValue) fetching " + missing.size() + " requests of consensus " + eid + " from " + propose.getSender());
+			fetchedRequests.put(eid, propose.getRound());
+			waitingProposes.put(eid, new WaitingPropose(propose, new LinkedList<int[]>(missing),
+					new LinkedList<byte[]>(hashes)));
+			communication.send(new int[]{propose.getSender()},
+					new RequestFetchMessage(this.controller.getStaticConf().getProcessId(), eid, missing));
+		}
+		fetchLock.unlock();
+
+		return null;
+	}
+
+	/**
+	 * Processes a message of the protocol used to fetch requests of a batch of hashes
+	 * @param msg the fetch message
+	 */
+	public void fetchMessageReceived(RequestFetchMessage msg) {
+		if (msg.getType() == TOMUtil.FETCH_REQUEST) {
+
+			List<TOMMessage> found = new LinkedList<TOMMessage>();
+			for (int[] id : msg.getIds()) {
+				TOMMessage request = clientsManager.getRequest(id[0], id[1], id[2]);
+				if (request != null) found.add(request);
+			}
+
+			Logger.println("(TOMLayer.fetchMessageReceived) sending " + found.size() + " requests of consensus " + msg.getEid() + " to " + msg.getSender());
+			communication.send(new int[]{msg.getSender()},
+					new RequestFetchMessage(this.controller.getStaticConf().getProcessId(), msg.getEid(),
+							found.toArray(new TOMMessage[found.size()])));
+
+		} else if (msg.getType() == TOMUtil.FETCH_REPLY) {
+
+			fetchLock.lock();
+			WaitingPropose waiting = waitingProposes.get(msg.getEid());
+			if (waiting != null && waiting.propose.getSender() == msg.getSender()) {
+				waitingProposes.remove(msg.getEid());
+			} else {
+				waiting = null;
+			}
+			fetchLock.unlock();
+
+			if (waiting == null) {
+				Logger.println("(TOMLayer.fetchMessageReceived) unexpected requests for consensus " + msg.getEid() + " from " + msg.getSender());
+				return;
+			}
+
+			boolean useSignatures = this.controller.getStaticConf().getUseSignatures() == 1;
+			for (TOMMessage request : msg.getRequests()) {
+				if (useSignatures && request.serializedMessageSignature == null) {
+					Logger.println("(TOMLayer.fetchMessageReceived) unsigned request for consensus " + msg.getEid() + " from " + msg.getSender() + ", discarding reply");
+					return;
+				}
+				request.signed = useSignatures;
+			}
+
+			for (TOMMessage request : msg.getRequests()) {
+				// only the requests asked, with the hashes of the propose, are accounted
+				if (waiting.take(request)) {
+					clientsManager.requestReceived(request, false);
+				} else {
+					Logger.println("(TOMLayer.fetchMessageReceived) request not asked for consensus " + msg.getEid() + " from " + msg.getSender() + ", discarding it");
+				}
+			}
+
+			Logger.println("(TOMLayer.fetchMessageReceived) processing propose of consensus " + msg.getEid() + " again");
+			acceptor.deliver(waiting.propose);
+		}
+	}
+
 	public void forwardRequestToLeader(TOMMessage request) {
 		int leaderId = lm.getCurrentLeader();
 		if (this.controller.isCurrentViewMember(leaderId)) {
@@ -467,6 +782,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 		proposeLock.lock();
 		this.inExecution = -1;
+		this.lastStarted = this.lastExecuted;
 		//ot.addUpdate();
 		canPropose.signalAll();
 		proposeLock.unlock();
@@ -478,6 +794,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 				nextExecution = getLastExec() + 1) {
 			execManager.processOutOfContextPropose(execManager.getExecution(nextExecution));
 		}
+		// proposes for the following consensus of the pipeline
+		for (int nextExecution = getLastStarted() + 1;
+				nextExecution > getLastExec() + 1 && nextExecution <= getLastExec() + pipelineDepth &&
+				execManager.receivedOutOfContextPropose(nextExecution);
+				nextExecution = getLastStarted() + 1) {
+			execManager.processOutOfContextPropose(execManager.getExecution(nextExecution));
+		}
 	}
 
 	public StateManager getStateManager() {
@@ -1202,6 +1525,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			r.setWrite(me, hash);
 
 			// resume normal operation
+			abortPipeline(currentEid);
 			execManager.restart();
 			//leaderChanged = true;
 			setInExec(currentEid);
@@ -1220,4 +1544,43 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		else Logger.println("(TOMLayer.finalise) sync phase failed for regency" + regency);
 	}
 	/**************************************************************/
+
+	/**
+	 * A propose of a batch of hashes waiting for the requests fetched from its
+	 * sender, with the ids and hashes of the requests asked.
+	 */
+	private static class WaitingPropose {
+
+		private final PaxosMessage propose;
+		private final List<int[]> ids; // [sender, session, sequence] of the requests asked
+		private final List<byte[]> hashes; // hashes proposed for them, in the same order
+
+		WaitingPropose(PaxosMessage propose, List<int[]> ids, List<byte[]> hashes) {
+			this.propose = propose;
+			this.ids = ids;
+			this.hashes = hashes;
+		}
+
+		/**
+		 * Checks that a fetched request was asked and matches its proposed hash.
+		 * Each request asked is matched at most once.
+		 * @param request the fetched request
+		 * @return true if the request was asked and matches its hash
+		 */
+		boolean take(TOMMessage request) {
+			Iterator<int[]> i = ids.iterator();
+			Iterator<byte[]> h = hashes.iterator();
+			while (i.hasNext()) {
+				int[] id = i.next();
+				byte[] hash = h.next();
+				if (id[0] == request.getSender() && id[1] == request.getSession() && id[2] == request.getSequence()) {
+					if (!Arrays.equals(hash, TOMUtil.computeHash(request.serializedMessage))) return false;
+					i.remove();
+					h.remove();
+					return true;
+				}
+			}
+			return false;
+		}
+	}
 }
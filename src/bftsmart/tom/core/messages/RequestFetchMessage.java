@@ -0,0 +1,148 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core.messages;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.LinkedList;
+import java.util.List;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Message used to fetch the client requests of a batch of hashes that a replica
+ * did not receive from the clients (see BatchReader.expandBatch).
+ */
+public class RequestFetchMessage extends SystemMessage {
+
+    private static final long serialVersionUID = -8909592336239402179L;
+
+    private int type; // FETCH_REQUEST or FETCH_REPLY
+    private int eid; // consensus whose propose needs the requests
+    private List<int[]> ids; // [sender, session, sequence] of the requests asked
+    private TOMMessage[] requests; // requests sent in the reply
+
+    /**
+     * Empty constructor
+     */
+    public RequestFetchMessage() {
+    }
+
+    /**
+     * Creates a message asking for requests
+     * @param from replica that creates this message
+     * @param eid consensus whose propose needs the requests
+     * @param ids [sender, session, sequence] of the requests
+     */
+    public RequestFetchMessage(int from, int eid, List<int[]> ids) {
+        super(from);
+        this.type = TOMUtil.FETCH_REQUEST;
+        this.eid = eid;
+        this.ids = ids;
+    }
+
+    /**
+     * Creates a message with the requests asked
+     * @param from replica that creates this message
+     * @param eid consensus whose propose needs the requests
+     * @param requests the requests found by this replica
+     */
+    public RequestFetchMessage(int from, int eid, TOMMessage[] requests) {
+        super(from);
+        this.type = TOMUtil.FETCH_REPLY;
+        this.eid = eid;
+        this.requests = requests;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getEid() {
+        return eid;
+    }
+
+    public List<int[]> getIds() {
+        return ids;
+    }
+
+    public TOMMessage[] getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+
+        out.writeInt(type);
+        out.writeInt(eid);
+
+        if (type == TOMUtil.FETCH_REQUEST) {
+            out.writeInt(ids.size());
+            for (int[] id : ids) {
+                out.writeInt(id[0]);
+                out.writeInt(id[1]);
+                out.writeInt(id[2]);
+            }
+        } else {
+            out.writeInt(requests.length);
+            for (TOMMessage request : requests) {
+                out.writeInt(request.serializedMessage.length);
+                out.write(request.serializedMessage);
+                out.writeBoolean(request.serializedMessageSignature != null);
+                if (request.serializedMessageSignature != null) {
+                    out.writeInt(request.serializedMessageSignature.length);
+                    out.write(request.serializedMessageSignature);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+
+        type = in.readInt();
+        eid = in.readInt();
+
+        if (type == TOMUtil.FETCH_REQUEST) {
+            int size = in.readInt();
+            ids = new LinkedList<int[]>();
+            for (int i = 0; i < size; i++) {
+                ids.add(new int[]{in.readInt(), in.readInt(), in.readInt()});
+            }
+        } else {
+            requests = new TOMMessage[in.readInt()];
+            for (int i = 0; i < requests.length; i++) {
+                byte[] serReq = new byte[in.readInt()];
+                in.readFully(serReq);
+
+                requests[i] = TOMMessage.bytesToMessage(serReq);
+                if (requests[i] == null) throw new IOException("Invalid request in fetch reply");
+                requests[i].serializedMessage = serReq;
+
+                if (in.readBoolean()) {
+                    byte[] serReqSign = new byte[in.readInt()];
+                    in.readFully(serReqSign);
+                    requests[i].serializedMessageSignature = serReqSign;
+                    requests[i].signed = true;
+                }
+            }
+        }
+    }
+}
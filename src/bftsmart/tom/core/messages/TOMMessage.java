@@ -53,6 +53,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 
 	public transient int destination = -1; // message destination
 	public transient boolean signed = false; // is this message signed?
+	public transient boolean signatureVerified = false; // was the signature of this message already verified?
 
 	public transient long receptionTime;//the reception time of this message
 	public transient boolean timeout = false;//this message was timed out?
@@ -75,6 +76,8 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 
 	//the reply associated with this message
 	public transient TOMMessage reply = null;
+	//if this is a hashed reply, the full reply it was computed from
+	public transient TOMMessage fullReply = null;
 	public transient boolean alreadyProposed = false;
 	
 	private int replyServer = -1;
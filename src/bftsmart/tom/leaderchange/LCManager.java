@@ -15,9 +15,7 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
-import bftsmart.communication.server.ServerConnection;
 import java.io.IOException;
-import java.security.MessageDigest;
 import java.security.SignedObject;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -28,25 +26,22 @@ import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import bftsmart.communication.server.MacVectorAuthenticator;
 import bftsmart.consensus.executionmanager.TimestampValuePair;
+import bftsmart.consensus.messages.MacVector;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.DigestService;
 import bftsmart.tom.util.TOMUtil;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -72,20 +67,19 @@ public class LCManager {
 
     //stuff from the TOM layer that this object needss
     private ServerViewController SVController;
-    private MessageDigest md;
+    private DigestService digestService;
     private TOMLayer tomLayer;
     
     private int currentLeader;
     //private Cipher cipher;
-    private Mac mac;
     
     /**
      * Constructor
      *
      * @param reconfManager The reconfiguration manager from TOM layer
-     * @param md The message digest engine from TOM layer
+     * @param digestService The digest service from TOM layer
      */
-    public LCManager(TOMLayer tomLayer,ServerViewController SVController, MessageDigest md) {
+    public LCManager(TOMLayer tomLayer,ServerViewController SVController, DigestService digestService) {
         this.tomLayer = tomLayer;
         this.lastreg = 0;
         this.nextreg = 0;
@@ -96,15 +90,7 @@ public class LCManager {
         this.collects = new HashMap<Integer, HashSet<SignedObject>>();
 
         this.SVController = SVController;
-        this.md = md;
-
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            //this.cipher = Cipher.getInstance(ServerConnection.MAC_ALGORITHM);
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
-        }
+        this.digestService = digestService;
 
     }
     public int getNewLeader() {
@@ -667,7 +653,7 @@ public class LCManager {
             for (TimestampValuePair rv : c.getWriteSet()) {
 
                 if  (rv.getValue() != null && rv.getValue().length > 0)
-                    rv.setHashedValue(md.digest(rv.getValue()));
+                    rv.setHashedValue(digestService.digest(rv.getValue()));
                 else rv.setHashedValue(new byte[0]);
             }
         }
@@ -709,49 +695,23 @@ public class LCManager {
                                              // did not complete any consensus and cannot have
                                              // any proof
         
-        byte[] hashedValue = md.digest(led.getEidDecision());
+        byte[] hashedValue = digestService.digest(led.getEidDecision());
         Set<PaxosMessage> PaxosMessages = led.getEidProof();
         int myId = tomLayer.controller.getStaticConf().getProcessId();
         int certificateCurrentView = (2*tomLayer.controller.getCurrentViewF()) + 1;
         int certificateLastView = -1;
         if (tomLayer.controller.getLastView() != null) certificateLastView = (2*tomLayer.controller.getLastView().getF()) + 1;
         int countValid = 0;
-        SecretKey secretKey = null;
         PublicKey pubRSAKey = null;
             
         for (PaxosMessage paxosMsg : PaxosMessages) {
             
-            PaxosMessage pm = new PaxosMessage(MessageFactory.ACCEPT,paxosMsg.getNumber(),
-                    paxosMsg.getRound(), paxosMsg.getSender(), paxosMsg.getValue());
-
-            ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-            try {
-                new ObjectOutputStream(bOut).writeObject(pm);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-
-            byte[] data = bOut.toByteArray();
-
-            if (paxosMsg.getProof() instanceof HashMap) { // Certificate is made of MAC vector
+            if (paxosMsg.getProof() instanceof MacVector) { // Certificate is made of MAC vector
                 
                 System.out.println("Prova em MACs!");
             
-                HashMap<Integer, byte[]> macVector = (HashMap<Integer, byte[]>) paxosMsg.getProof();
-                               
-                byte[] recvMAC = macVector.get(myId);
-
-                byte[] myMAC = null;
-                                
-                secretKey = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender());
-                try {
-                    this.mac.init(secretKey);                   
-                   myMAC = this.mac.doFinal(data);
-                } catch (InvalidKeyException ex) {
-                    ex.printStackTrace();
-                }
-            
-                if (recvMAC != null && myMAC != null && Arrays.equals(recvMAC, myMAC) &&
+                if (tomLayer.getCommunication().getServersConn().getAuthenticator().verify(
+                        paxosMsg, (MacVector) paxosMsg.getProof(), myId) &&
                         Arrays.equals(paxosMsg.getValue(), hashedValue) &&
                         paxosMsg.getNumber() == led.getEid()) {
                 
@@ -760,11 +720,11 @@ public class LCManager {
             } else { // certificate is made of signatures
                 
                 System.out.println("Prova em SIGs!");
-                pubRSAKey = SVController.getStaticConf().getRSAPublicKey(paxosMsg.getSender());
+                pubRSAKey = SVController.getStaticConf().getPublicKey(paxosMsg.getSender());
                    
                 byte[] signature = (byte[]) paxosMsg.getProof();
                             
-                if (TOMUtil.verifySignature(pubRSAKey, data, signature)) countValid++;
+                if (TOMUtil.verifySignature(pubRSAKey, MacVectorAuthenticator.encode(paxosMsg), signature)) countValid++;
    
             }
         }
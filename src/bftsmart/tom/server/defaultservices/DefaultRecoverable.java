@@ -18,11 +18,8 @@
  */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
@@ -32,6 +29,7 @@ import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
+import bftsmart.tom.util.DigestService;
 import bftsmart.tom.util.Logger;
 
 /**
@@ -42,20 +40,15 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
     private int checkpointPeriod;
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
     private ReentrantLock stateLock = new ReentrantLock();
     private TOMConfiguration config;
-    private MessageDigest md;
+    private DigestService digestService;
     private StateLog log;
     private StateManager stateManager;
 
     public DefaultRecoverable() {
 
-        try {
-            md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-        } catch (NoSuchAlgorithmException ex) {
-            java.util.logging.Logger.getLogger(DefaultRecoverable.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        digestService = new DigestService("MD5", 0); // replaced by the configured one in setReplicaContext
     }
 
     public byte[][] executeBatch(byte[][] commands, MessageContext[] msgCtxs) {
@@ -155,12 +148,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     }
 
     public final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
-
-        return ret;
+        return digestService.digest(data);
     }
 
     private StateLog getLog() {
@@ -380,6 +368,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     @Override
     public void setReplicaContext(ReplicaContext replicaContext) {
         this.config = replicaContext.getStaticConfiguration();
+        this.digestService = new DigestService(config);
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
             byte[] state = getSnapshot();
@@ -15,12 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
@@ -30,6 +27,7 @@ import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.SingleExecutable;
+import bftsmart.tom.util.DigestService;
 import bftsmart.tom.util.Logger;
 
 /**
@@ -43,10 +41,9 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	private int checkpointPeriod;
 
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
     private ReentrantLock stateLock = new ReentrantLock();
     
-    private MessageDigest md;
+    private DigestService digestService;
         
     private StateLog log;
     private List<byte[]> commands = new ArrayList<byte[]>();
@@ -55,11 +52,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     
     public DefaultSingleRecoverable() {
 
-        try {
-            md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-        } catch (NoSuchAlgorithmException ex) {
-            java.util.logging.Logger.getLogger(DefaultSingleRecoverable.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        digestService = new DigestService("MD5", 0); // replaced by the configured one in setReplicaContext
     }
     
     public byte[] executeOrdered(byte[] command, MessageContext msgCtx) {
@@ -99,12 +92,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     }
     
     public final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
-
-        return ret;
+        return digestService.digest(data);
     }
     
     private StateLog getLog() {
@@ -216,6 +204,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	public void setReplicaContext(ReplicaContext replicaCtx) {
 		this.replicaContext = replicaCtx;
     	this.config = replicaCtx.getStaticConfiguration();
+    	this.digestService = new DigestService(config);
 	}
 
 	@Override
@@ -15,11 +15,8 @@ limitations under the License.
  */
 package bftsmart.tom.server.defaultservices.durability;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
@@ -32,8 +29,8 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.util.DigestService;
 import bftsmart.tom.util.Logger;
-import bftsmart.tom.util.TOMUtil;
 
 /**
  * Implements the Collaborative State Transfer protocol. In this protocol, instead of
@@ -50,12 +47,11 @@ import bftsmart.tom.util.TOMUtil;
 public abstract class DurabilityCoordinator implements Recoverable, BatchExecutable {
 
 	private ReentrantLock logLock = new ReentrantLock();
-	private ReentrantLock hashLock = new ReentrantLock();
 	private ReentrantLock stateLock = new ReentrantLock();
 
 	private TOMConfiguration config;
 
-	private MessageDigest md;
+	private DigestService digestService;
 
 	private DurableStateLog log;
 
@@ -67,11 +63,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	private int replicaCkpIndex;
 
 	public DurabilityCoordinator() {
-		try {
-			md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-		} catch (NoSuchAlgorithmException ex) {
-			java.util.logging.Logger.getLogger(DurabilityCoordinator.class.getName()).log(Level.SEVERE, null, ex);
-		}
+		digestService = new DigestService("MD5", 0); // replaced by the configured one in setReplicaContext
 	}
 
 	@Override
@@ -265,11 +257,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	}
 
 	private final byte[] computeHash(byte[] data) {
-		byte[] ret = null;
-		hashLock.lock();
-		ret = md.digest(data);
-		hashLock.unlock();
-		return ret;
+		return digestService.digest(data);
 	}
 
 	private void saveState(byte[] snapshot, int lastEid, int decisionRound, int leader) {
@@ -335,6 +323,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	@Override
 	public void setReplicaContext(ReplicaContext replicaContext) {
 		this.config = replicaContext.getStaticConfiguration();
+		this.digestService = new DigestService(config);
 		if(log == null) {
 			globalCheckpointPeriod = config.getGlobalCheckpointPeriod();
 			replicaCkpIndex = getCheckpointPortionIndex();
@@ -391,7 +380,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 
 	public byte[] getCurrentStateHash() {
 		byte[] currentState = getSnapshot();
-		byte[] currentStateHash = TOMUtil.computeHash(currentState);
+		byte[] currentStateHash = computeHash(currentState);
 		System.out.println("--- State size: " + currentState.length + " Current state Hash: " + Arrays.toString(currentStateHash));
 		return currentStateHash;
 	}
@@ -26,6 +26,9 @@ import bftsmart.tom.core.messages.TOMMessage;
  * Batch format: TIMESTAMP(long) + N_NONCES(int) + SEED(long) +
  *               N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte),SIG(byte)] +
  *
+ * In a batch of hashes, requests can also be represented by
+ * [0(int),SENDER(int),SESSION(int),SEQUENCE(int),HASHSIZE(int),HASH(byte)]
+ * (see BatchReader.expandBatch).
  *
  * The methods does not try to enforce any constraint, so be correct when using it.
  *
@@ -35,7 +38,7 @@ public final class BatchBuilder {
 	private Random rnd = new Random();
 
 	/** build buffer */
-	private byte[] createBatch(long timestamp, int numberOfNonces, int numberOfMessages, int totalMessagesSize,
+	static byte[] createBatch(long timestamp, int numberOfNonces, long seed, int numberOfMessages, int totalMessagesSize,
 			boolean useSignatures, byte[][] messages, byte[][] signatures, ServerViewController controller) {
 		int size = 20 + //timestamp 8, nonces 4, nummessages 4
 				(numberOfNonces > 0 ? 8 : 0) + //seed if needed
@@ -49,7 +52,7 @@ public final class BatchBuilder {
 		proposalBuffer.putInt(numberOfNonces);
 
 		if(numberOfNonces>0){
-			proposalBuffer.putLong(rnd.nextLong());
+			proposalBuffer.putLong(seed);
 		}
 
 		proposalBuffer.putInt(numberOfMessages);
@@ -61,7 +64,7 @@ public final class BatchBuilder {
 		return proposalBuffer.array();
 	}
 
-	private void putMessage(ByteBuffer proposalBuffer, byte[] message, boolean isHash, byte[] signature) {
+	private static void putMessage(ByteBuffer proposalBuffer, byte[] message, boolean isHash, byte[] signature) {
 		proposalBuffer.putInt(isHash?0:message.length);
 		proposalBuffer.put(message);
 
@@ -91,8 +94,70 @@ public final class BatchBuilder {
 		}
 
 		// return the batch
-		return createBatch(timestamp, numNounces, numMsgs, totalMessageSize,
+		return createBatch(timestamp, numNounces, (numNounces > 0 ? rnd.nextLong() : 0), numMsgs, totalMessageSize,
 				controller.getStaticConf().getUseSignatures() == 1, messages, signatures, controller);
 
 	}
+
+	/**
+	 * Creates a batch in which the requests are represented by their ids and hashes (unless
+	 * the request is smaller than that). Replicas rebuild the batch created by makeBatch
+	 * from the requests they received from the clients (see BatchReader.expandBatch).
+	 */
+	public byte[] makeHashBatch(Collection<TOMMessage> msgs, int numNounces, long timestamp, ServerViewController controller) {
+
+		boolean useSignatures = controller.getStaticConf().getUseSignatures() == 1;
+		int signatureSize = useSignatures ? TOMUtil.getSignatureSize(controller) : 0;
+
+		int numMsgs = msgs.size();
+		byte[][] messages = new byte[numMsgs][];
+		boolean[] isHash = new boolean[numMsgs];
+		int size = 20 + (numNounces > 0 ? 8 : 0); //timestamp 8, nonces 4, nummessages 4, seed if needed
+
+		int i = 0;
+		for (TOMMessage msg : msgs) {
+			byte[] hash = TOMUtil.computeHash(msg.serializedMessage);
+
+			if (msg.serializedMessage.length + signatureSize > 16 + hash.length) {
+				ByteBuffer id = ByteBuffer.allocate(16 + hash.length);
+				id.putInt(msg.getSender());
+				id.putInt(msg.getSession());
+				id.putInt(msg.getSequence());
+				id.putInt(hash.length);
+				id.put(hash);
+
+				messages[i] = id.array();
+				isHash[i] = true;
+				size += 4 + messages[i].length;
+			} else {
+				messages[i] = msg.serializedMessage;
+				size += 4 + messages[i].length + signatureSize;
+			}
+			i++;
+		}
+
+		ByteBuffer proposalBuffer = ByteBuffer.allocate(size);
+
+		proposalBuffer.putLong(timestamp);
+		proposalBuffer.putInt(numNounces);
+		if (numNounces > 0) {
+			proposalBuffer.putLong(rnd.nextLong());
+		}
+		proposalBuffer.putInt(numMsgs);
+
+		i = 0;
+		for (TOMMessage msg : msgs) {
+			if (isHash[i]) {
+				putMessage(proposalBuffer, messages[i], true, null);
+			} else {
+				putMessage(proposalBuffer, messages[i], false, msg.serializedMessageSignature);
+				if (useSignatures && msg.serializedMessageSignature == null) {
+					proposalBuffer.position(proposalBuffer.position() + signatureSize);
+				}
+			}
+			i++;
+		}
+
+		return proposalBuffer.array();
+	}
 }
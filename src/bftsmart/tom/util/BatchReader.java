@@ -18,8 +18,12 @@ package bftsmart.tom.util;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
+import bftsmart.clientsmanagement.ClientsManager;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 
@@ -32,6 +36,8 @@ public final class BatchReader {
 
     private ByteBuffer proposalBuffer;
     private boolean useSignatures;
+    private List<int[]> missing = new LinkedList<int[]>(); // requests not found by expandBatch
+    private List<byte[]> missingHashes = new LinkedList<byte[]>(); // hashes of the missing requests
 
     /** wrap buffer */
     public BatchReader(byte[] batch, boolean useSignatures) {
@@ -79,6 +85,7 @@ public final class BatchReader {
 
                 tm.serializedMessage = message;
                 tm.serializedMessageSignature = signature;
+                tm.signed = signature != null;
                 tm.nonces = nonces;
                 tm.timestamp = timestamp;
                 requests[i] = tm;
@@ -89,4 +96,87 @@ public final class BatchReader {
         }
         return requests;
     }
+
+    /**
+     * Rebuilds a batch created by BatchBuilder.makeHashBatch, replacing the ids and
+     * hashes of the requests by the requests stored in the clients manager. The
+     * result is the same batch that BatchBuilder.makeBatch would create.
+     *
+     * @param clientsManager where the requests received from the clients are stored
+     * @param controller
+     * @return the complete batch, or null if some request is missing (see getMissingRequests)
+     */
+    public byte[] expandBatch(ClientsManager clientsManager, ServerViewController controller) {
+
+        missing.clear();
+        missingHashes.clear();
+        int signatureSize = useSignatures ? TOMUtil.getSignatureSize(controller) : 0;
+
+        long timestamp = proposalBuffer.getLong();
+
+        int numberOfNonces = proposalBuffer.getInt();
+
+        long seed = 0;
+        if(numberOfNonces > 0){
+            seed = proposalBuffer.getLong();
+        }
+
+        int numberOfMessages = proposalBuffer.getInt();
+
+        byte[][] messages = new byte[numberOfMessages][];
+        byte[][] signatures = new byte[numberOfMessages][];
+        int totalMessagesSize = 0;
+
+        for (int i = 0; i < numberOfMessages; i++) {
+            int messageSize = proposalBuffer.getInt();
+
+            if (messageSize > 0) { // the request itself
+                messages[i] = new byte[messageSize];
+                proposalBuffer.get(messages[i]);
+
+                if (useSignatures) {
+                    signatures[i] = new byte[signatureSize];
+                    proposalBuffer.get(signatures[i]);
+                }
+            } else { // the id and hash of the request
+                int sender = proposalBuffer.getInt();
+                int session = proposalBuffer.getInt();
+                int sequence = proposalBuffer.getInt();
+                byte[] hash = new byte[proposalBuffer.getInt()];
+                proposalBuffer.get(hash);
+
+                TOMMessage request = clientsManager.getRequest(sender, session, sequence);
+
+                if (request == null || !Arrays.equals(hash, TOMUtil.computeHash(request.serializedMessage))) {
+                    missing.add(new int[]{sender, session, sequence});
+                    missingHashes.add(hash);
+                    continue;
+                }
+                messages[i] = request.serializedMessage;
+                signatures[i] = request.serializedMessageSignature;
+            }
+            totalMessagesSize += messages[i].length;
+        }
+
+        if (!missing.isEmpty()) return null;
+
+        return BatchBuilder.createBatch(timestamp, numberOfNonces, seed, numberOfMessages, totalMessagesSize,
+                useSignatures, messages, signatures, controller);
+    }
+
+    /**
+     * Requests that expandBatch did not find in the clients manager
+     * @return list of [sender, session, sequence] of the missing requests
+     */
+    public List<int[]> getMissingRequests() {
+        return missing;
+    }
+
+    /**
+     * Hashes proposed for the requests that expandBatch did not find
+     * @return list of hashes, in the same order as getMissingRequests
+     */
+    public List<byte[]> getMissingHashes() {
+        return missingHashes;
+    }
 }
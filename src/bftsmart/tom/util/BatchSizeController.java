@@ -0,0 +1,77 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+/**
+ * Defines the number of requests the leader tries to put in each batch.
+ *
+ * If adaptive batching is disabled, the target is always the configured
+ * maximum batch size. Otherwise, the target grows while requests accumulate
+ * in the clients manager faster than they are ordered (larger batches amortize
+ * the cost of each consensus), and shrinks when the load is light or the
+ * consensus latency goes up (smaller batches are proposed sooner).
+ */
+public final class BatchSizeController {
+
+    private final int maxBatchSize;
+    private final boolean adaptive;
+
+    private int target; // current target batch size
+    private long avgLatency = 0; // moving average of the consensus latency (ns)
+    private long minLatency = Long.MAX_VALUE; // lowest consensus latency observed (ns)
+
+    /**
+     * Creates a new controller
+     * @param maxBatchSize maximum number of requests in a batch
+     * @param adaptive if false, the target is always the maximum batch size
+     */
+    public BatchSizeController(int maxBatchSize, boolean adaptive) {
+        this.maxBatchSize = maxBatchSize;
+        this.adaptive = adaptive;
+        this.target = adaptive ? 1 : maxBatchSize;
+    }
+
+    /**
+     * @return the number of requests the next batch should have
+     */
+    public synchronized int getTargetBatchSize() {
+        return target;
+    }
+
+    /**
+     * Feeds the controller with the outcome of a consensus proposed by this replica
+     * @param batchSize number of requests in the decided batch
+     * @param latency time between the propose and the decision (ns)
+     * @param pending number of requests still waiting to be proposed
+     */
+    public synchronized void update(int batchSize, long latency, int pending) {
+        if (!adaptive || latency <= 0) return;
+
+        avgLatency = (avgLatency == 0) ? latency : (7 * avgLatency + latency) / 8;
+        if (latency < minLatency) minLatency = latency;
+
+        if (pending > target) {
+            // requests are arriving faster than they are ordered
+            target = Math.min(maxBatchSize, target * 2);
+        } else if (pending < target / 2 || avgLatency > 2 * minLatency) {
+            // light load or slow consensus: do not keep requests waiting for a large batch
+            target = Math.max(1, target - Math.max(1, target / 4));
+        }
+
+        Logger.println("(BatchSizeController.update) batch=" + batchSize + ", latency=" + latency / 1000 +
+                "us, pending=" + pending + ", target=" + target);
+    }
+}
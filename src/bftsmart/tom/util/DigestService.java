@@ -0,0 +1,237 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Computes the hashes of proposals, decisions and application snapshots.
+ *
+ * Each thread uses its own digest engine, so hashing needs no locks. Values larger
+ * than twice the chunk size are split in chunks that are hashed in parallel; the
+ * hash of the value is then the hash of the concatenation of the chunk hashes.
+ * Since the result depends on the algorithm and on the chunk size, all replicas
+ * must be configured with the same values for both.
+ */
+public final class DigestService {
+
+    /** Name of the (non-cryptographic) MurmurHash3 x64 128-bit digest */
+    public static final String MURMUR3 = "MURMUR3";
+
+    private static ExecutorService pool = null;
+
+    private final String algorithm;
+    private final int chunkSize;
+    private final ThreadLocal<MessageDigest> engines;
+
+    /**
+     * Creates a new digest service
+     * @param algorithm MessageDigest algorithm or MURMUR3
+     * @param chunkSize values larger than twice this number of bytes are hashed in
+     * parallel (0 disables chunked hashing)
+     */
+    public DigestService(final String algorithm, int chunkSize) {
+        this.algorithm = algorithm;
+        this.chunkSize = chunkSize;
+
+        if (isMurmur()) {
+            this.engines = null;
+        } else {
+            try {
+                MessageDigest.getInstance(algorithm); // fail now, not at the first hash
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, ex);
+            }
+            this.engines = new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance(algorithm);
+                    } catch (NoSuchAlgorithmException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Creates a new digest service with the algorithm and chunk size of the configuration
+     * @param conf replica configuration
+     */
+    public DigestService(TOMConfiguration conf) {
+        this(conf.getDigestAlgorithm(), conf.getDigestChunkSize());
+
+        if (isMurmur() && conf.isBFT()) {
+            System.out.println("WARNING: " + MURMUR3 + " is not a cryptographic digest and should not be used with system.bft = true");
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Computes the hash of a value
+     * @param data the value
+     * @return the hash of the value
+     */
+    public byte[] digest(byte[] data) {
+        if (chunkSize > 0 && data.length > 2 * chunkSize) {
+            return parallelDigest(data);
+        }
+        return digest(data, 0, data.length);
+    }
+
+    private byte[] digest(byte[] data, int offset, int length) {
+        if (isMurmur()) {
+            return murmur3(data, offset, length);
+        }
+        MessageDigest md = engines.get();
+        md.update(data, offset, length);
+        return md.digest();
+    }
+
+    private byte[] parallelDigest(final byte[] data) {
+        int chunks = (data.length + chunkSize - 1) / chunkSize;
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(chunks);
+
+        for (int i = 0; i < chunks; i++) {
+            final int offset = i * chunkSize;
+            final int length = Math.min(chunkSize, data.length - offset);
+            results.add(getPool().submit(new Callable<byte[]>() {
+                public byte[] call() {
+                    return digest(data, offset, length);
+                }
+            }));
+        }
+
+        byte[] hashes = null;
+        int pos = 0;
+        try {
+            for (Future<byte[]> result : results) {
+                byte[] hash = result.get();
+                if (hashes == null) hashes = new byte[hash.length * chunks];
+                System.arraycopy(hash, 0, hashes, pos, hash.length);
+                pos += hash.length;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+
+        return digest(hashes, 0, hashes.length);
+    }
+
+    private boolean isMurmur() {
+        return MURMUR3.equalsIgnoreCase(algorithm);
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count = 0;
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Digest worker " + (count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * MurmurHash3 x64 128-bit (seed 0)
+     */
+    private static byte[] murmur3(byte[] data, int offset, int length) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            int p = offset + i * 16;
+            long k1 = getLong(data, p);
+            long k2 = getLong(data, p + 8);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = offset + blocks * 16;
+        int rem = length & 15;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = rem - 1; i >= 8; i--) {
+            k2 ^= ((long) data[tail + i] & 0xff) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(rem, 8) - 1; i >= 0; i--) {
+            k1 ^= ((long) data[tail + i] & 0xff) << (i * 8);
+        }
+        if (rem > 8) {
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+        }
+        if (rem > 0) {
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+        }
+
+        h1 ^= length; h2 ^= length;
+        h1 += h2; h2 += h1;
+        h1 = fmix(h1); h2 = fmix(h2);
+        h1 += h2; h2 += h1;
+
+        byte[] hash = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            hash[i] = (byte) (h1 >>> (i * 8));
+            hash[i + 8] = (byte) (h2 >>> (i * 8));
+        }
+        return hash;
+    }
+
+    private static long getLong(byte[] b, int p) {
+        return ((long) b[p] & 0xff) | (((long) b[p + 1] & 0xff) << 8) | (((long) b[p + 2] & 0xff) << 16)
+                | (((long) b[p + 3] & 0xff) << 24) | (((long) b[p + 4] & 0xff) << 32) | (((long) b[p + 5] & 0xff) << 40)
+                | (((long) b[p + 6] & 0xff) << 48) | (((long) b[p + 7] & 0xff) << 56);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the operations of an ORDERED_BATCH_REQUEST, or their replies, into
+ * the content of a single message.
+ *
+ * Envelope format: N_OPERATIONS(int) + N_OPERATIONS*[OPSIZE(int),OP(byte)],
+ * where OPSIZE is -1 for a null operation (e.g., a null reply)
+ */
+public final class Envelope {
+
+    private Envelope() {
+    }
+
+    public static byte[] pack(byte[][] operations) {
+        int size = 4;
+        for (byte[] op : operations) {
+            size += 4 + (op == null ? 0 : op.length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(operations.length);
+        for (byte[] op : operations) {
+            if (op == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(op.length);
+                buffer.put(op);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the operations, or null if the envelope is malformed
+     */
+    public static byte[][] unpack(byte[] envelope) {
+        if (envelope == null) return null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(envelope);
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4) return null;
+
+            byte[][] operations = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                int size = buffer.getInt();
+                if (size == -1) continue;
+                if (size < 0 || size > buffer.remaining()) return null;
+                operations[i] = new byte[size];
+                buffer.get(operations[i]);
+            }
+            return buffer.hasRemaining() ? null : operations;
+        } catch (BufferUnderflowException ex) {
+            return null;
+        }
+    }
+}
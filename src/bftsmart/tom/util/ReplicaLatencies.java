@@ -0,0 +1,130 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Response latencies of the replicas, as seen by a client. For each replica,
+ * keeps an exponentially weighted moving average of the time it takes to
+ * reply, and the requests it has not answered since its last reply. Replicas
+ * are ranked by their average times one plus their unanswered requests, so
+ * that a replica that stops replying (e.g., while collecting garbage) falls
+ * behind the others at once. Also keeps the latencies of the last reads.
+ *
+ * All times are in nanoseconds.
+ */
+public class ReplicaLatencies {
+
+    private static final double ALPHA = 0.2; // weight of a new sample in the average
+    private static final int MIN_READS = 16; // reads needed before a percentile is given
+
+    private final Map<Integer, Replica> replicas = new HashMap<Integer, Replica>();
+    private final long[] reads = new long[128];
+    private int readCount = 0;
+
+    /**
+     * Notes that a request was sent to a replica
+     */
+    public synchronized void sent(int replica) {
+        getReplica(replica).unanswered++;
+    }
+
+    /**
+     * Notes that a replica replied to the last request sent to it
+     *
+     * @param latency The time since the request was sent
+     */
+    public synchronized void replied(int replica, long latency) {
+        Replica r = getReplica(replica);
+        r.unanswered = 0;
+        r.average = r.measured ? ALPHA * latency + (1 - ALPHA) * r.average : latency;
+        r.measured = true;
+    }
+
+    /**
+     * Notes the time a read took to get its response
+     */
+    public synchronized void readCompleted(long latency) {
+        reads[readCount++ % reads.length] = latency;
+    }
+
+    /**
+     * @return The given percentile of the latencies of the last reads, or -1
+     * if too few reads completed yet
+     */
+    public synchronized long getReadPercentile(int percentile) {
+        int count = Math.min(readCount, reads.length);
+        if (count < MIN_READS) return -1;
+
+        long[] sorted = Arrays.copyOf(reads, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * @return The given replicas, fastest first. Replicas no request was sent
+     * to yet come first (in random order), so that they are measured
+     */
+    public synchronized int[] rank(int[] processes) {
+        List<Integer> ranked = new ArrayList<Integer>(processes.length);
+        for (int p : processes) {
+            ranked.add(p);
+        }
+        Collections.shuffle(ranked); // breaks ties at random
+        Collections.sort(ranked, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer p1, Integer p2) {
+                return Double.compare(getScore(p1), getScore(p2));
+            }
+        });
+
+        int[] result = new int[processes.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ranked.get(i);
+        }
+        return result;
+    }
+
+    private double getScore(int replica) {
+        Replica r = replicas.get(replica);
+        if (r == null) return 0;
+        if (!r.measured) return (r.unanswered == 0) ? 0 : Double.MAX_VALUE; // never replied
+        return r.average * (1 + r.unanswered);
+    }
+
+    private Replica getReplica(int replica) {
+        Replica r = replicas.get(replica);
+        if (r == null) {
+            r = new Replica();
+            replicas.put(replica, r);
+        }
+        return r;
+    }
+
+    private static class Replica {
+        double average = 0;
+        boolean measured = false;
+        int unanswered = 0;
+    }
+}
@@ -63,6 +63,7 @@ public class ShutdownHookThread extends Thread {
                 System.err.println("State of the round in execution: "+r2.toString());
             }
         }
+        System.err.print("Replica links:\n" + scs.getServersConn().getLinkStats());
         //System.err.println("Execution manager: "+ tomLayer.execManager);
         //System.err.println("Server communication system queues: "+scs.toString());
         //System.err.println("Pending requests: " +
@@ -0,0 +1,254 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.math.BigInteger;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+
+/**
+ * Signature scheme used by clients and replicas, selected with
+ * system.communication.signatureScheme.
+ *
+ * RSA signs with SHA1withRSA, as before. ECDSA signs with SHA256withECDSA,
+ * which is much cheaper to sign with than RSA. Since the requests of a batch
+ * and the client messages are framed with a fixed signature size, ECDSA
+ * signatures are not kept in their (variable length) DER encoding, but as
+ * the concatenation of r and s, each padded to the size of the curve.
+ *
+ * Each thread has its own Signature engine for each scheme, so signing and
+ * verifying do not need to be serialized.
+ */
+public final class SignatureScheme {
+
+    public static final String RSA = "RSA";
+    public static final String ECDSA = "ECDSA";
+
+    private static final SignatureScheme rsaScheme = new SignatureScheme(RSA, "SHA1withRSA", "RSA");
+    private static final SignatureScheme ecdsaScheme = new SignatureScheme(ECDSA, "SHA256withECDSA", "EC");
+
+    private final String name;
+    private final String algorithm;
+    private final String keyAlgorithm;
+    private final ThreadLocal<Signature> engines;
+
+    private SignatureScheme(String name, String algorithm, String keyAlgorithm) {
+        this.name = name;
+        this.algorithm = algorithm;
+        this.keyAlgorithm = keyAlgorithm;
+        this.engines = new ThreadLocal<Signature>() {
+            @Override
+            protected Signature initialValue() {
+                return newEngine();
+            }
+        };
+    }
+
+    /**
+     * @param name name of the scheme (RSA or ECDSA)
+     * @return the scheme
+     */
+    public static SignatureScheme getInstance(String name) {
+        if (ECDSA.equalsIgnoreCase(name)) return ecdsaScheme;
+        if (RSA.equalsIgnoreCase(name)) return rsaScheme;
+        throw new IllegalArgumentException("Unknown signature scheme: " + name);
+    }
+
+    /**
+     * @param key a public or private key
+     * @return the scheme that uses that kind of key
+     */
+    public static SignatureScheme forKey(Key key) {
+        return key instanceof ECKey ? ecdsaScheme : rsaScheme;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the JCA name of the signature algorithm
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the JCA name of the key algorithm
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * Creates a new engine for this scheme (e.g., to be used with SignedObject)
+     * @return the engine
+     */
+    public Signature newEngine() {
+        try {
+            return Signature.getInstance(algorithm);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Size of the signatures produced with a key, as they are sent on the wire
+     * @param key the private (or public) key
+     * @return the signature size, in bytes
+     */
+    public int getSignatureSize(Key key) {
+        if (key instanceof ECKey) {
+            return 2 * getCoordinateSize((ECKey) key);
+        } else if (key instanceof RSAKey) {
+            return (((RSAKey) key).getModulus().bitLength() + 7) / 8;
+        }
+
+        byte[] signature = sign((PrivateKey) key, "a".getBytes());
+        return signature != null ? signature.length : 0;
+    }
+
+    public byte[] sign(PrivateKey key, byte[] message) {
+        try {
+            Signature engine = engines.get();
+            engine.initSign(key);
+            engine.update(message);
+            byte[] signature = engine.sign();
+
+            if (key instanceof ECKey) {
+                signature = toFixedLength(signature, getCoordinateSize((ECKey) key));
+            }
+            return signature;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public boolean verify(PublicKey key, byte[] message, byte[] signature) {
+        if (key == null || signature == null) return false;
+
+        try {
+            if (key instanceof ECKey) {
+                signature = toDER(signature);
+                if (signature == null) return false;
+            }
+
+            Signature engine = engines.get();
+            engine.initVerify(key);
+            engine.update(message);
+            return engine.verify(signature);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static int getCoordinateSize(ECKey key) {
+        return (key.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+    }
+
+    /**
+     * Converts a DER encoded ECDSA signature (SEQUENCE of two INTEGERs) to r || s
+     */
+    private static byte[] toFixedLength(byte[] der, int size) {
+        int[] pos = {0};
+        if (der[pos[0]++] != 0x30) throw new IllegalArgumentException("Invalid ECDSA signature");
+        readLength(der, pos);
+
+        byte[] result = new byte[2 * size];
+        for (int i = 0; i < 2; i++) {
+            if (der[pos[0]++] != 0x02) throw new IllegalArgumentException("Invalid ECDSA signature");
+            int length = readLength(der, pos);
+            int offset = pos[0];
+            pos[0] += length;
+
+            // skip the leading zeros (sign byte)
+            while (length > size && der[offset] == 0) {
+                offset++;
+                length--;
+            }
+            if (length > size) throw new IllegalArgumentException("Invalid ECDSA signature");
+            System.arraycopy(der, offset, result, (i + 1) * size - length, length);
+        }
+        return result;
+    }
+
+    /**
+     * Converts an ECDSA signature in the r || s format to DER
+     */
+    private static byte[] toDER(byte[] signature) {
+        if (signature.length == 0 || signature.length % 2 != 0) return null;
+
+        int size = signature.length / 2;
+        byte[] r = toInteger(signature, 0, size);
+        byte[] s = toInteger(signature, size, size);
+
+        int contentLength = (1 + lengthSize(r.length) + r.length) + (1 + lengthSize(s.length) + s.length);
+        byte[] der = new byte[1 + lengthSize(contentLength) + contentLength];
+        int pos = 0;
+        der[pos++] = 0x30;
+        pos = writeLength(der, pos, contentLength);
+        der[pos++] = 0x02;
+        pos = writeLength(der, pos, r.length);
+        System.arraycopy(r, 0, der, pos, r.length);
+        pos += r.length;
+        der[pos++] = 0x02;
+        pos = writeLength(der, pos, s.length);
+        System.arraycopy(s, 0, der, pos, s.length);
+        return der;
+    }
+
+    private static byte[] toInteger(byte[] buf, int offset, int length) {
+        byte[] value = new byte[length];
+        System.arraycopy(buf, offset, value, 0, length);
+        return new BigInteger(1, value).toByteArray(); // minimal two's complement encoding
+    }
+
+    private static int readLength(byte[] der, int[] pos) {
+        int length = der[pos[0]++] & 0xff;
+        if (length < 0x80) return length;
+
+        int bytes = length & 0x7f;
+        length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | (der[pos[0]++] & 0xff);
+        }
+        return length;
+    }
+
+    private static int lengthSize(int length) {
+        return length < 0x80 ? 1 : (length < 0x100 ? 2 : 3);
+    }
+
+    private static int writeLength(byte[] der, int pos, int length) {
+        if (length < 0x80) {
+            der[pos++] = (byte) length;
+        } else if (length < 0x100) {
+            der[pos++] = (byte) 0x81;
+            der[pos++] = (byte) length;
+        } else {
+            der[pos++] = (byte) 0x82;
+            der[pos++] = (byte) (length >> 8);
+            der[pos++] = (byte) length;
+        }
+        return pos;
+    }
+}
@@ -20,14 +20,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Arrays;
-import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.reconfiguration.ViewController;
 
@@ -46,31 +43,33 @@ public class TOMUtil {
     public static final int SM_REPLY = 7;
     public static final int SM_ASK_INITIAL = 11;
     public static final int SM_REPLY_INITIAL = 12;
+    public static final int FETCH_REQUEST = 13;
+    public static final int FETCH_REPLY = 14;
 
     public static final int TRIGGER_LC_LOCALLY = 8;
     public static final int TRIGGER_SM_LOCALLY = 9;
     
-    //the signature engine used in the system and the signatureSize
-    private static Signature signatureEngine;
+    //the size of the signatures of the scheme used in the system
     private static int signatureSize = -1;
 
-    //lock to make signMessage and verifySignature reentrant
-    private static ReentrantLock lock = new ReentrantLock();
-
     //private static Semaphore sem = new Semaphore(10, true);
 
     //private static Storage st = new Storage(BENCHMARK_PERIOD);
     //private static int count=0;
+    /**
+     * Size of the signatures of the scheme configured in system.communication.signatureScheme
+     *
+     * @param controller the view controller
+     * @return the signature size, in bytes
+     */
     public static int getSignatureSize(ViewController controller) {
         if (signatureSize > 0) {
             return signatureSize;
         }
 
-        byte[] signature = signMessage(controller.getStaticConf().getRSAPrivateKey(),
-                "a".getBytes());
-
-        if (signature != null) {
-            signatureSize = signature.length;
+        PrivateKey key = controller.getStaticConf().getPrivateKey();
+        if (key != null) {
+            signatureSize = SignatureScheme.forKey(key).getSignatureSize(key);
         }
 
         return signatureSize;
@@ -121,24 +120,7 @@ public class TOMUtil {
      * @return the signature
      */
     public static byte[] signMessage(PrivateKey key, byte[] message) {
-        lock.lock();
-        byte[] result = null;
-        try {
-            if (signatureEngine == null) {
-                signatureEngine = Signature.getInstance("SHA1withRSA");
-            }
-
-            signatureEngine.initSign(key);
-
-            signatureEngine.update(message);
-
-            result = signatureEngine.sign();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        lock.unlock();
-        return result;
+        return SignatureScheme.forKey(key).sign(key, message);
     }
 
     /**
@@ -150,39 +132,7 @@ public class TOMUtil {
      * @return true if the signature is valid, false otherwise
      */
     public static boolean verifySignature(PublicKey key, byte[] message, byte[] signature) {
-        lock.lock();
-        boolean result = false;
-        //long startTime = System.nanoTime();
-        try {
-            if (signatureEngine == null) {
-                signatureEngine = Signature.getInstance("SHA1withRSA");
-            }
-
-            signatureEngine.initVerify(key);
-
-            result = verifySignature(signatureEngine, message, signature);
-            /*
-            st.store(System.nanoTime()-startTime);
-            //statistics about signature execution time
-            count++;
-            if (count%BENCHMARK_PERIOD==0){                
-            System.out.println("#-- (TOMUtil) Signature verification benchmark:--");
-            System.out.println("#Average time for " + BENCHMARK_PERIOD + " signature verifications (-10%) = " + st.getAverage(true) / 1000 + " us ");
-            System.out.println("#Standard desviation for " + BENCHMARK_PERIOD + " signature verifications (-10%) = " + st.getDP(true) / 1000 + " us ");
-            System.out.println("#Average time for " + BENCHMARK_PERIOD + " signature verifications (all samples) = " + st.getAverage(false) / 1000 + " us ");
-            System.out.println("#Standard desviation for " + BENCHMARK_PERIOD + " signature verifications (all samples) = " + st.getDP(false) / 1000 + " us ");
-            System.out.println("#Maximum time for " + BENCHMARK_PERIOD + " signature verifications (-10%) = " + st.getMax(true) / 1000 + " us ");
-            System.out.println("#Maximum time for " + BENCHMARK_PERIOD + " signature verifications (all samples) = " + st.getMax(false) / 1000 + " us ");
-            count = 0;
-            st = new Storage(BENCHMARK_PERIOD);
-            }
-         */
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        lock.unlock();
-        return result;
+        return key != null && SignatureScheme.forKey(key).verify(key, message, signature);
     }
 
     /**
@@ -217,15 +167,11 @@ public class TOMUtil {
         return Arrays.equals(h2, h2);
     }
 
+	// MD5 is kept here because clients compare these hashes with the ones computed by the replicas
+	private static final DigestService md5 = new DigestService("MD5", 0);
+
 	public static final byte[] computeHash(byte[] data) {
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} // TODO: shouldn't it be SHA?
-		return md.digest(data);
+		return md5.digest(data);
 	}
 
 }
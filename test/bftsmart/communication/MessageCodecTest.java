@@ -0,0 +1,194 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import bftsmart.consensus.messages.MacVector;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.reconfiguration.ReconfigureReply;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.reconfiguration.views.View;
+import bftsmart.statemanagement.strategy.StandardSMMessage;
+import bftsmart.statemanagement.strategy.durability.CSTRequestF1;
+import bftsmart.statemanagement.strategy.durability.CSTSMMessage;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.timer.ForwardedMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.server.defaultservices.DefaultApplicationState;
+import bftsmart.tom.util.TOMUtil;
+
+public class MessageCodecTest {
+
+	private static SystemMessage roundTrip(SystemMessage sm) throws Exception {
+		byte[] data = MessageCodec.encode(sm);
+		assertEquals(MessageCodec.VERSION, data[0]);
+		SystemMessage copy = MessageCodec.decode(data);
+		assertSame(sm.getClass(), copy.getClass());
+		assertEquals(sm.getSender(), copy.getSender());
+		return copy;
+	}
+
+	private static View view() {
+		InetSocketAddress[] addresses = new InetSocketAddress[4];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = new InetSocketAddress("127.0.0.1", 11000 + 10 * i);
+		}
+		return new View(2, new int[]{0, 1, 2, 3}, 1, addresses);
+	}
+
+	private static TOMMessage request(int sender, int sequence) {
+		TOMMessage tm = new TOMMessage(sender, 0, sequence, ("op " + sequence).getBytes(), 0);
+		tm.serializedMessage = TOMMessage.messageToBytes(tm);
+		return tm;
+	}
+
+	@Test
+	public void testPaxosMessages() throws Exception {
+		MessageFactory factory = new MessageFactory(2);
+		byte[] hash = new byte[16];
+		hash[3] = 7;
+
+		PaxosMessage propose = (PaxosMessage) roundTrip(factory.createPropose(10, 1, "batch".getBytes()));
+		assertEquals(MessageFactory.PROPOSE, propose.getPaxosType());
+		assertEquals(10, propose.getNumber());
+		assertEquals(1, propose.getRound());
+		assertArrayEquals("batch".getBytes(), propose.getValue());
+
+		PaxosMessage write = (PaxosMessage) roundTrip(factory.createWrite(11, 0, hash));
+		assertEquals(MessageFactory.WRITE, write.getPaxosType());
+		assertArrayEquals(hash, write.getValue());
+		assertNull(write.getProof());
+
+		PaxosMessage accept = factory.createAccept(12, 0, hash);
+		MacVector macs = new MacVector(new int[]{0, 1, 3}, 16);
+		macs.getMacs()[20] = 5;
+		accept.setProof(macs);
+		MacVector macsCopy = (MacVector) ((PaxosMessage) roundTrip(accept)).getProof();
+		assertArrayEquals(macs.getIds(), macsCopy.getIds());
+		assertArrayEquals(macs.getMacs(), macsCopy.getMacs());
+
+		byte[] signature = new byte[64];
+		signature[0] = 1;
+		accept.setProof(signature);
+		assertArrayEquals(signature, (byte[]) ((PaxosMessage) roundTrip(accept)).getProof());
+	}
+
+	@Test
+	public void testLeaderChangeAndForwardedMessages() throws Exception {
+		LCMessage stop = (LCMessage) roundTrip(new LCMessage(1, TOMUtil.STOP, 3, "requests".getBytes()));
+		assertEquals(TOMUtil.STOP, stop.getType());
+		assertEquals(3, stop.getReg());
+		assertArrayEquals("requests".getBytes(), stop.getPayload());
+
+		TOMMessage tm = request(1001, 5);
+		tm.signed = true;
+		tm.serializedMessageSignature = new byte[]{1, 2, 3};
+		ForwardedMessage fw = (ForwardedMessage) roundTrip(new ForwardedMessage(3, tm));
+		assertEquals(tm, fw.getRequest());
+		assertArrayEquals(tm.getContent(), fw.getRequest().getContent());
+		assertArrayEquals(tm.serializedMessageSignature, fw.getRequest().serializedMessageSignature);
+	}
+
+	@Test
+	public void testFetchMessages() throws Exception {
+		List<int[]> ids = new LinkedList<int[]>();
+		ids.add(new int[]{1001, 0, 4});
+		RequestFetchMessage ask = (RequestFetchMessage) roundTrip(new RequestFetchMessage(0, 7, ids));
+		assertEquals(TOMUtil.FETCH_REQUEST, ask.getType());
+		assertArrayEquals(ids.get(0), ask.getIds().get(0));
+
+		TOMMessage[] requests = new TOMMessage[]{request(1001, 4), request(1002, 9)};
+		RequestFetchMessage reply = (RequestFetchMessage) roundTrip(new RequestFetchMessage(0, 7, requests));
+		assertEquals(2, reply.getRequests().length);
+		assertEquals(requests[1], reply.getRequests()[1]);
+	}
+
+	@Test
+	public void testStateTransferAndReconfigurationMessages() throws Exception {
+		DefaultApplicationState state = new DefaultApplicationState(null, -1, -1, -1, 20, "state".getBytes(), null);
+		StandardSMMessage sm = (StandardSMMessage) roundTrip(
+				new StandardSMMessage(1, 20, TOMUtil.SM_REPLY, 2, state, view(), 0, 0));
+		assertEquals(20, sm.getEid());
+		assertEquals(2, sm.getReplica());
+		assertEquals(20, sm.getState().getLastEid());
+		assertEquals(4, sm.getView().getN());
+
+		CSTSMMessage cst = (CSTSMMessage) roundTrip(
+				new CSTSMMessage(1, 20, TOMUtil.SM_REQUEST, new CSTRequestF1(20), null, null, 0, 0));
+		assertNull(cst.getState());
+		assertEquals(20, cst.getCstConfig().getEid());
+
+		VMMessage vm = (VMMessage) roundTrip(new VMMessage(7001, new ReconfigureReply(view(), new String[0], 5, 0)));
+		assertEquals(2, vm.getReply().getView().getId());
+		assertEquals(5, vm.getReply().getLastExecConsId());
+	}
+
+	@Test
+	public void testJavaSerializedMessage() throws Exception {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		new ObjectOutputStream(bOut).writeObject(new MessageFactory(1).createWrite(3, 0, new byte[16]));
+
+		PaxosMessage pm = (PaxosMessage) MessageCodec.decode(bOut.toByteArray());
+		assertEquals(3, pm.getNumber());
+		assertEquals(1, pm.getSender());
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownTag() throws Exception {
+		MessageCodec.decode(new byte[]{MessageCodec.VERSION, 100, 0, 0, 0, 0});
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedMessage() throws Exception {
+		byte[] data = MessageCodec.encode(new LCMessage(1, TOMUtil.STOP, 3, new byte[100]));
+		MessageCodec.decode(Arrays.copyOf(data, data.length - 10));
+	}
+
+	@Test
+	public void testMacVectorBounds() throws Exception {
+		PaxosMessage accept = new MessageFactory(1).createAccept(12, 0, new byte[16]);
+		accept.setProof(new MacVector(new int[]{0, 1, 2, 3}, 16));
+		byte[] data = MessageCodec.encode(accept);
+		assertNotNull(MessageCodec.decode(data, 0, data.length, 4));
+
+		try {
+			MessageCodec.decode(data, 0, data.length, 3); // more MACs than replicas
+			fail("MAC vector larger than the view accepted");
+		} catch (IOException ex) {
+		}
+
+		accept.setProof(new MacVector(new int[]{0, 1}, 1 << 20));
+		data = MessageCodec.encode(accept);
+		try {
+			MessageCodec.decode(data, 0, data.length, 4); // MACs longer than the MAC algorithm
+			fail("MAC vector with invalid MAC length accepted");
+		} catch (IOException ex) {
+		}
+	}
+}
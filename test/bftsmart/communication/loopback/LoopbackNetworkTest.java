@@ -0,0 +1,96 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.loopback;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoopbackNetworkTest {
+
+	private LoopbackNetwork network;
+	private LinkedBlockingQueue<Object> received;
+
+	@Before
+	public void setUp() {
+		network = LoopbackNetwork.getDefault();
+		network.reset();
+		received = new LinkedBlockingQueue<Object>();
+		network.register(LoopbackNetwork.SERVERS, 1, new LoopbackNetwork.Endpoint() {
+			public void receive(int from, Object message) {
+				received.add(message);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		network.reset();
+	}
+
+	@Test
+	public void testNotRegistered() {
+		assertFalse(network.send(LoopbackNetwork.SERVERS, 1, 2, "m", 1));
+		assertFalse(network.send(LoopbackNetwork.REQUESTS, 0, 1, "m", 1));
+	}
+
+	@Test
+	public void testLatencyKeepsOrder() throws InterruptedException {
+		network.setLink(0, 1, 50000, 0);
+		long start = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			assertTrue(network.send(LoopbackNetwork.SERVERS, 0, 1, i, 1));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, received.poll(5, TimeUnit.SECONDS));
+		}
+		assertTrue(System.nanoTime() - start >= 50000000L);
+	}
+
+	@Test
+	public void testBandwidth() throws InterruptedException {
+		network.setDefaultLink(0, 1000000); // 1 MB/s
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			network.send(LoopbackNetwork.SERVERS, 0, 1, i, 10000);
+		}
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, received.poll(5, TimeUnit.SECONDS));
+		}
+		assertTrue(System.nanoTime() - start >= 100000000L);
+	}
+
+	@Test
+	public void testPartition() throws InterruptedException {
+		network.partition(new int[]{0}, new int[]{1, 2});
+		assertTrue(network.send(LoopbackNetwork.SERVERS, 0, 1, "lost", 1));
+		assertTrue(network.send(LoopbackNetwork.SERVERS, 2, 1, "same side", 1));
+		assertTrue(network.send(LoopbackNetwork.SERVERS, 3, 1, "not partitioned", 1));
+		assertEquals("same side", received.poll(5, TimeUnit.SECONDS));
+		assertEquals("not partitioned", received.poll(5, TimeUnit.SECONDS));
+
+		network.heal();
+		assertTrue(network.send(LoopbackNetwork.SERVERS, 0, 1, "healed", 1));
+		assertEquals("healed", received.poll(5, TimeUnit.SECONDS));
+		assertTrue(received.isEmpty());
+		assertTrue(network.getStats().contains("0->1: messages=1, bytes=1, lost=1"));
+	}
+}
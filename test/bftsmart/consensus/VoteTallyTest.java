@@ -0,0 +1,93 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import bftsmart.reconfiguration.views.View;
+
+public class VoteTallyTest {
+
+	private static View view(int id, int... processes) {
+		InetSocketAddress[] addresses = new InetSocketAddress[processes.length];
+		for (int i = 0; i < processes.length; i++) {
+			addresses[i] = new InetSocketAddress("127.0.0.1", 11000 + 10 * processes[i]);
+		}
+		return new View(id, processes, 1, addresses);
+	}
+
+	@Test
+	public void testCount() {
+		VoteTally tally = new VoteTally(view(0, 0, 1, 2, 3));
+		byte[] a = {1, 2, 3};
+		byte[] b = {4, 5, 6};
+
+		tally.set(0, a);
+		tally.set(1, new byte[] {1, 2, 3});
+		tally.set(2, b);
+		assertEquals(2, tally.count(a));
+		assertEquals(1, tally.count(b));
+		assertEquals(0, tally.count(new byte[] {7}));
+		assertEquals(0, tally.count(null));
+		assertTrue(tally.isSet(2));
+		assertFalse(tally.isSet(3));
+
+		// a replica that changes its vote is counted only once
+		tally.set(2, a);
+		tally.set(2, a);
+		assertEquals(3, tally.count(a));
+		assertEquals(0, tally.count(b));
+
+		// votes from outside the view are ignored
+		tally.set(7, a);
+		assertEquals(3, tally.count(a));
+		assertNull(tally.get(7));
+	}
+
+	@Test
+	public void testManyDistinctValues() {
+		VoteTally tally = new VoteTally(view(0, 0, 1, 2, 3));
+		for (byte v = 0; v < 20; v++) {
+			tally.set(v % 4, new byte[] {v});
+		}
+		assertEquals(1, tally.count(new byte[] {19}));
+		assertEquals(1, tally.count(new byte[] {16}));
+		assertEquals(0, tally.count(new byte[] {15 - 4}));
+	}
+
+	@Test
+	public void testRebind() {
+		VoteTally tally = new VoteTally(view(0, 0, 1, 2, 3));
+		byte[] a = {1};
+		tally.set(0, a);
+		tally.set(1, a);
+		tally.set(3, a);
+
+		// replica 1 leaves, replica 4 joins
+		tally.rebind(view(1, 0, 2, 3, 4));
+		assertEquals(2, tally.count(a));
+		assertFalse(tally.isSet(1));
+		assertTrue(tally.isSet(3));
+
+		tally.set(4, a);
+		assertEquals(3, tally.count(a));
+		assertArrayEquals(a, tally.getVotes()[3]);
+	}
+}
@@ -0,0 +1,175 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices.durability;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.statemanagement.StateManager;
+import bftsmart.statemanagement.strategy.durability.DurableStateManager;
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.ReplicaContext;
+import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Checks that the hash of the current state matches the hash stored with the
+ * checkpoints, which is what the collaborative state transfer compares.
+ */
+public class DurabilityCoordinatorTest {
+
+	private static final int REPLICA = 0;
+
+	private File configHome;
+
+	/**
+	 * Coordinator whose state is the concatenation of the commands executed, and
+	 * that does not ask the other replicas for the current consensus
+	 */
+	private static class AppendCoordinator extends DurabilityCoordinator {
+		private byte[] state = new byte[0];
+		private StateManager stateManager = new DurableStateManager() {
+			@Override
+			public void askCurrentConsensusId() {
+			}
+		};
+
+		@Override
+		public void installSnapshot(byte[] state) {
+			this.state = state;
+		}
+
+		@Override
+		public byte[] getSnapshot() {
+			return state.clone();
+		}
+
+		@Override
+		public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs) {
+			byte[][] replies = new byte[commands.length][];
+			for (int i = 0; i < commands.length; i++) {
+				byte[] next = new byte[state.length + commands[i].length];
+				System.arraycopy(state, 0, next, 0, state.length);
+				System.arraycopy(commands[i], 0, next, state.length, commands[i].length);
+				state = next;
+				replies[i] = commands[i];
+			}
+			return replies;
+		}
+
+		@Override
+		public byte[] executeUnordered(byte[] command, MessageContext msgCtx) {
+			return null;
+		}
+
+		@Override
+		public void noOp(int lastEid) {
+		}
+
+		@Override
+		public StateManager getStateManager() {
+			return stateManager;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		configHome = new File(System.getProperty("java.io.tmpdir"), "bftsmart-durability-" + System.nanoTime());
+		configHome.mkdirs();
+
+		// the default configuration, with a chunked SHA-256 digest and a short checkpoint period
+		BufferedReader in = new BufferedReader(new FileReader("config" + File.separator + "system.config"));
+		PrintWriter out = new PrintWriter(new FileWriter(new File(configHome, "system.config")));
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("system.totalordermulticast.digest ")) {
+				line = "system.totalordermulticast.digest = SHA-256";
+			} else if (line.startsWith("system.totalordermulticast.digest_chunk_size")) {
+				line = "system.totalordermulticast.digest_chunk_size = 16";
+			} else if (line.startsWith("system.totalordermulticast.global_checkpoint_period")) {
+				line = "system.totalordermulticast.global_checkpoint_period = 8";
+			}
+			out.println(line);
+		}
+		in.close();
+		out.close();
+
+		in = new BufferedReader(new FileReader("config" + File.separator + "hosts.config"));
+		out = new PrintWriter(new FileWriter(new File(configHome, "hosts.config")));
+		while ((line = in.readLine()) != null) {
+			out.println(line);
+		}
+		in.close();
+		out.close();
+
+		new File(DurableStateLog.DEFAULT_DIR).mkdirs();
+		deleteReplicaFiles();
+	}
+
+	@After
+	public void tearDown() {
+		deleteReplicaFiles();
+		for (File f : configHome.listFiles()) {
+			f.delete();
+		}
+		configHome.delete();
+	}
+
+	private void deleteReplicaFiles() {
+		File[] files = new File(DurableStateLog.DEFAULT_DIR).listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			if (f.getName().startsWith(REPLICA + ".")) f.delete();
+		}
+	}
+
+	@Test
+	public void testCurrentStateHashMatchesCheckpoint() {
+		AppendCoordinator coordinator = new AppendCoordinator();
+		coordinator.setReplicaContext(new ReplicaContext(null,
+				new ServerViewController(REPLICA, configHome.getPath())));
+
+		// consensus 0 is logged, and replica 0 takes the checkpoint of consensus 1 (period 8, 4 replicas)
+		for (int eid = 0; eid < 2; eid++) {
+			byte[][] commands = {("command of consensus " + eid + ", larger than two chunks").getBytes()};
+			MessageContext[] msgCtx = {new MessageContext(0, null, 0, eid, 1000, null)};
+			coordinator.executeBatch(commands, msgCtx);
+		}
+
+		FileRecoverer fr = new FileRecoverer(REPLICA, DurableStateLog.DEFAULT_DIR);
+		String ckpPath = fr.getLatestFile(".ckp");
+		assertNotNull("A checkpoint should have been taken", ckpPath);
+		fr.getCkpState(ckpPath);
+		byte[] checkpointHash = fr.getCkpStateHash();
+
+		assertEquals(1, fr.getCkpLastConsensusId());
+		assertArrayEquals(checkpointHash, coordinator.getCurrentStateHash());
+		assertFalse("The configured digest should be used, not MD5",
+				Arrays.equals(checkpointHash, TOMUtil.computeHash(coordinator.getSnapshot())));
+	}
+}
@@ -0,0 +1,69 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.junit.Test;
+
+public class SignatureSchemeTest {
+
+	private static KeyPair generate(String algorithm, int size) throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algorithm);
+		keyGen.initialize(size);
+		return keyGen.generateKeyPair();
+	}
+
+	@Test
+	public void testECDSAFixedSize() throws Exception {
+		KeyPair kp = generate("EC", 256);
+		SignatureScheme scheme = SignatureScheme.forKey(kp.getPrivate());
+		assertEquals(SignatureScheme.ECDSA, scheme.getName());
+		assertEquals(64, scheme.getSignatureSize(kp.getPrivate()));
+
+		// r and s are sometimes shorter than the curve size, or need a sign byte in DER
+		for (int i = 0; i < 200; i++) {
+			byte[] message = ("message " + i).getBytes();
+			byte[] signature = scheme.sign(kp.getPrivate(), message);
+			assertEquals(64, signature.length);
+			assertTrue(scheme.verify(kp.getPublic(), message, signature));
+			assertFalse(scheme.verify(kp.getPublic(), ("other " + i).getBytes(), signature));
+		}
+	}
+
+	@Test
+	public void testTamperedSignature() throws Exception {
+		KeyPair kp = generate("EC", 256);
+		byte[] message = "hello".getBytes();
+		byte[] signature = TOMUtil.signMessage(kp.getPrivate(), message);
+		signature[10] ^= 1;
+		assertFalse(TOMUtil.verifySignature(kp.getPublic(), message, signature));
+		assertFalse(TOMUtil.verifySignature(kp.getPublic(), message, new byte[63]));
+	}
+
+	@Test
+	public void testRSA() throws Exception {
+		KeyPair kp = generate("RSA", 1024);
+		SignatureScheme scheme = SignatureScheme.forKey(kp.getPublic());
+		assertEquals(SignatureScheme.RSA, scheme.getName());
+		byte[] signature = TOMUtil.signMessage(kp.getPrivate(), "hello".getBytes());
+		assertEquals(scheme.getSignatureSize(kp.getPrivate()), signature.length);
+		assertTrue(TOMUtil.verifySignature(kp.getPublic(), "hello".getBytes(), signature));
+	}
+}